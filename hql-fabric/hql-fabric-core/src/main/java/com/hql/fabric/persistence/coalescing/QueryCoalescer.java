@@ -0,0 +1,120 @@
+package com.hql.fabric.persistence.coalescing;
+
+import org.hibernate.HibernateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Single-flight execution of identical concurrent reads.
+ * <p>
+ * The first caller of a {@link QueryKey} executes the query, concurrent callers of the same
+ * key wait on that in-flight execution and share its result instead of opening their own
+ * session. Nothing is cached: once the execution completes the key is released and the next
+ * caller hits the database again. A caller waiting longer than the maximum wait executes the
+ * query on its own.
+ * <p>
+ * Shared results are handed to several threads, callers must treat them as read-only, unless
+ * the query is executed with a copier giving each caller its own copy.
+ */
+public class QueryCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(QueryCoalescer.class);
+
+    private final ConcurrentHashMap<QueryKey, CompletableFuture<Object>> inFlight =
+            new ConcurrentHashMap<>();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final long maxWaitMillis;
+
+    /**
+     * @param maxWaitMillis maximum time a caller waits on an in-flight execution before
+     *                      executing the query itself
+     */
+    public QueryCoalescer(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Executes the loader, unless an identical query is already in flight, in which case its
+     * result or its exception is shared.
+     *
+     * @param key    the key of the query
+     * @param loader executes the query
+     * @param <R>    the result type
+     * @return the result of the query
+     */
+    public <R> R execute(QueryKey key, Supplier<R> loader) {
+        return execute(key, loader, UnaryOperator.identity());
+    }
+
+    /**
+     * Executes the loader like {@link #execute(QueryKey, Supplier)}, each caller receiving its
+     * own copy of the result, which it may modify without affecting the other callers.
+     *
+     * @param key    the key of the query
+     * @param loader executes the query
+     * @param copier copies the result, e.g. {@code ArrayList::new}
+     * @param <R>    the result type
+     * @return the copy of the result of the query
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R execute(QueryKey key, Supplier<R> loader, UnaryOperator<R> copier) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, call);
+        if (Objects.isNull(existing)) {
+            try {
+                R result = loader.get();
+                call.complete(result);
+                // the loaded result is read by the waiting callers while this one uses its copy
+                return copier.apply(result);
+            } catch (RuntimeException | Error e) {
+                call.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, call);
+            }
+        }
+
+        coalescedCount.increment();
+        try {
+            return copier.apply((R) existing.get(maxWaitMillis, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            LOG.debug("Waited {} ms on in-flight query {}, executing it directly", maxWaitMillis, key);
+            return loader.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new HibernateException("In-flight query failed: " + key, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateException("Interrupted while waiting on in-flight query: " + key, e);
+        }
+    }
+
+    /**
+     * @return the number of calls served by another caller's execution
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * @return the number of queries currently in flight
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,84 @@
+package com.hql.fabric.persistence.coalescing;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Identifies a read query by its HQL, its parameters and its result window, so that
+ * identical concurrent reads can be coalesced by {@link QueryCoalescer}.
+ */
+public final class QueryKey {
+    private final String hql;
+    private final Object parameters;
+    private final Integer firstResult;
+    private final Integer maxResults;
+    private final int hash;
+
+    private QueryKey(String hql, Object parameters, Integer firstResult, Integer maxResults) {
+        this.hql = hql;
+        this.parameters = parameters;
+        this.firstResult = firstResult;
+        this.maxResults = maxResults;
+        this.hash = Objects.hash(hql, parameters, firstResult, maxResults);
+    }
+
+    /**
+     * @param hql    the HQL query containing positional parameters
+     * @param params the positional parameters, copied
+     * @return key of the query
+     */
+    public static QueryKey of(String hql, Object... params) {
+        List<Object> copy = Objects.isNull(params) ? List.of() : Arrays.asList(params.clone());
+        return new QueryKey(hql, copy, null, null);
+    }
+
+    /**
+     * @param hql         the HQL query containing named parameters
+     * @param namedParams the named parameters, copied
+     * @return key of the query
+     */
+    public static QueryKey of(String hql, Map<String, Object> namedParams) {
+        return new QueryKey(hql, new HashMap<>(namedParams), null, null);
+    }
+
+    /**
+     * @param hql         the HQL query containing named parameters
+     * @param namedParams the named parameters, copied
+     * @param firstResult the start point for the page
+     * @param maxResults  the number of elements of the page
+     * @return key of the paged query
+     */
+    public static QueryKey of(String hql, Map<String, Object> namedParams, Integer firstResult,
+                              Integer maxResults) {
+        return new QueryKey(hql, new HashMap<>(namedParams), firstResult, maxResults);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof QueryKey)) {
+            return false;
+        }
+        QueryKey that = (QueryKey) o;
+        return hash == that.hash
+                && hql.equals(that.hql)
+                && Objects.equals(parameters, that.parameters)
+                && Objects.equals(firstResult, that.firstResult)
+                && Objects.equals(maxResults, that.maxResults);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return hql;
+    }
+}
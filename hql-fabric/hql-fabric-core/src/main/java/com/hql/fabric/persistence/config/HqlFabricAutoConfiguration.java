@@ -1,10 +1,16 @@
 package com.hql.fabric.persistence.config;
 
+import com.hql.fabric.persistence.coalescing.QueryCoalescer;
 import com.hql.fabric.persistence.service.IHqlQueryService;
 import com.hql.fabric.persistence.service.impl.HqlQueryService;
+import com.hql.fabric.persistence.writer.WriteBehindWriter;
+import com.hql.fabric.persistence.writer.WriteFailureHandler;
 import jakarta.persistence.EntityManagerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -16,4 +22,26 @@ public class HqlFabricAutoConfiguration {
     public IHqlQueryService hqlQueryService(EntityManagerFactory entityManagerFactory) {
         return new HqlQueryService(entityManagerFactory);
     }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "hql.fabric.query.coalescing.enabled", havingValue = "true")
+    public QueryCoalescer queryCoalescer(
+            @Value("${hql.fabric.query.coalescing.max-wait-ms:5000}") long maxWaitMillis) {
+        return new QueryCoalescer(maxWaitMillis);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "hql.fabric.write-behind.enabled", havingValue = "true")
+    public WriteBehindWriter writeBehindWriter(
+            IHqlQueryService hqlQueryService,
+            @Value("${hql.fabric.write-behind.capacity:10000}") int capacity,
+            @Value("${hql.fabric.write-behind.batch-size:500}") int batchSize,
+            @Value("${hql.fabric.write-behind.flush-interval-ms:200}") long flushIntervalMillis,
+            @Value("${hql.fabric.write-behind.overflow-policy:BLOCK}") WriteBehindWriter.OverflowPolicy overflowPolicy,
+            ObjectProvider<WriteFailureHandler> failureHandler) {
+        return new WriteBehindWriter(hqlQueryService, capacity, batchSize, flushIntervalMillis,
+                overflowPolicy, failureHandler.getIfAvailable());
+    }
 }
@@ -1,8 +1,7 @@
 package com.hql.fabric.persistence.entity;
 
+import com.hql.fabric.persistence.id.DistributedId;
 import jakarta.persistence.Column;
-import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.MappedSuperclass;
 import jakarta.persistence.Version;
@@ -11,9 +10,9 @@ import java.util.Date;
 
 @MappedSuperclass
 public abstract class BaseEntity {
-    // unique identifier
+    // unique identifier, allocated before the insert so that inserts can be batched
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @DistributedId
     @Column(name = "id")
     protected Long id;
 
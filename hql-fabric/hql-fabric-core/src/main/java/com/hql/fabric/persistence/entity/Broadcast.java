@@ -0,0 +1,20 @@
+package com.hql.fabric.persistence.entity;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a reference table replicated to every shard when the entities are sharded: its rows
+ * are written to all the shards and read from any single one, so that the joins of the
+ * sharded entities to it stay on their shard.
+ * <p>
+ * Meant for small tables, written rarely and read by many queries.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Broadcast {
+}
@@ -0,0 +1,22 @@
+package com.hql.fabric.persistence.entity;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Places the rows of an entity on the shard of their parent when the entities are sharded:
+ * the entity is routed by the shard key of the entity its {@code @ManyToOne} property refers
+ * to, up to the root of the entity group, so that the joins of the group stay on one shard.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ColocateWith {
+    /**
+     * @return the {@code @ManyToOne} property referring to the parent
+     */
+    String value();
+}
@@ -0,0 +1,24 @@
+package com.hql.fabric.persistence.entity;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Lists the properties of an entity indexed across the shards when the entities are sharded:
+ * the shard holding each value is recorded when the entity is written, so that a lookup by
+ * that value goes to its shard instead of every shard.
+ * <p>
+ * Meant for the lookup keys other than the shard key, such as a unique business identifier.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface GlobalIndex {
+    /**
+     * @return the indexed properties
+     */
+    String[] value();
+}
@@ -0,0 +1,18 @@
+package com.hql.fabric.persistence.id;
+
+import org.hibernate.annotations.IdGeneratorType;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates the identifier of the entity with an {@link IdGenerator}, see
+ * {@link DistributedIdGenerator} for its settings.
+ */
+@IdGeneratorType(DistributedIdGenerator.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface DistributedId {
+}
@@ -0,0 +1,126 @@
+package com.hql.fabric.persistence.id;
+
+import org.hibernate.HibernateException;
+import org.hibernate.boot.model.naming.Identifier;
+import org.hibernate.boot.model.relational.Database;
+import org.hibernate.boot.model.relational.Namespace;
+import org.hibernate.boot.model.relational.Sequence;
+import org.hibernate.boot.model.relational.SqlStringGenerationContext;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.factory.spi.CustomIdGeneratorCreationContext;
+import org.hibernate.service.ServiceRegistry;
+
+import java.lang.reflect.Member;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Hibernate generator of the {@link DistributedId} identifiers, configured by the settings of
+ * the session factory:
+ * <ul>
+ *     <li>{@code hql.fabric.id.strategy}: {@code snowflake} (default) or {@code hilo}</li>
+ *     <li>{@code hql.fabric.id.shard}: index of the shard of the session factory, 0 by default</li>
+ *     <li>{@code hql.fabric.id.node}: snowflake only, index of the application node, 0 by default</li>
+ *     <li>{@code hql.fabric.id.block-size}: hilo only, identifiers per block, 1000 by default</li>
+ * </ul>
+ * The hilo blocks are numbered by the {@code hql_fabric_id_block} sequence, exported with the
+ * schema.
+ */
+public class DistributedIdGenerator implements IdentifierGenerator {
+    public static final String STRATEGY = "hql.fabric.id.strategy";
+    public static final String SHARD = "hql.fabric.id.shard";
+    public static final String NODE = "hql.fabric.id.node";
+    public static final String BLOCK_SIZE = "hql.fabric.id.block-size";
+    public static final String BLOCK_SEQUENCE = "hql_fabric_id_block";
+
+    private final IdGenerator generator;
+    private final boolean hilo;
+    private Sequence blockSequence;
+    private volatile String nextBlockSql;
+
+    public DistributedIdGenerator(DistributedId config, Member member, CustomIdGeneratorCreationContext context) {
+        ServiceRegistry serviceRegistry = context.getServiceRegistry();
+        Map<String, Object> settings = serviceRegistry.requireService(ConfigurationService.class).getSettings();
+        String strategy = Objects.toString(settings.get(STRATEGY), "snowflake");
+        int shard = intSetting(settings, SHARD, 0);
+        if ("snowflake".equalsIgnoreCase(strategy)) {
+            this.hilo = false;
+            this.generator = new SnowflakeIdGenerator(intSetting(settings, NODE, 0), shard);
+        } else if ("hilo".equalsIgnoreCase(strategy)) {
+            this.hilo = true;
+            this.generator = new HiLoIdGenerator(() -> nextBlock(serviceRegistry),
+                    intSetting(settings, BLOCK_SIZE, 1000), shard);
+        } else {
+            throw new HibernateException("Unknown id strategy " + strategy + ", expect snowflake or hilo");
+        }
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object owner) {
+        return generator.nextId();
+    }
+
+    @Override
+    public void registerExportables(Database database) {
+        if (!hilo) {
+            return;
+        }
+        // the entities share the sequence
+        Namespace namespace = database.getDefaultNamespace();
+        Identifier name = database.toIdentifier(BLOCK_SEQUENCE);
+        blockSequence = namespace.locateSequence(name);
+        if (Objects.isNull(blockSequence)) {
+            blockSequence = namespace.createSequence(name, physicalName -> new Sequence(
+                    DistributedIdGenerator.class.getSimpleName(), namespace.getPhysicalName().getCatalog(),
+                    namespace.getPhysicalName().getSchema(), physicalName, 1, 1));
+        }
+    }
+
+    @Override
+    public void initialize(SqlStringGenerationContext context) {
+        if (hilo) {
+            nextBlockSql = context.getDialect().getSequenceSupport()
+                    .getSequenceNextValString(context.format(blockSequence.getName()));
+        }
+    }
+
+    /**
+     * Takes the next block number on a connection of its own, sequences are not transactional.
+     */
+    private long nextBlock(ServiceRegistry serviceRegistry) {
+        ConnectionProvider connectionProvider = serviceRegistry.requireService(ConnectionProvider.class);
+        Connection connection = null;
+        try {
+            connection = connectionProvider.getConnection();
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(nextBlockSql)) {
+                if (!resultSet.next()) {
+                    throw new HibernateException("Sequence " + BLOCK_SEQUENCE + " returned no value");
+                }
+                return resultSet.getLong(1);
+            }
+        } catch (SQLException e) {
+            throw new HibernateException("Cannot take a block from sequence " + BLOCK_SEQUENCE, e);
+        } finally {
+            if (Objects.nonNull(connection)) {
+                try {
+                    connectionProvider.closeConnection(connection);
+                } catch (SQLException e) {
+                    throw new HibernateException("Cannot release the connection of sequence " + BLOCK_SEQUENCE, e);
+                }
+            }
+        }
+    }
+
+    private static int intSetting(Map<String, Object> settings, String name, int defaultValue) {
+        Object value = settings.get(name);
+        return Objects.isNull(value) ? defaultValue : Integer.parseInt(value.toString().trim());
+    }
+}
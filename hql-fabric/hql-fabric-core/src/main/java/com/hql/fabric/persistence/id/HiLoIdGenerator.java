@@ -0,0 +1,65 @@
+package com.hql.fabric.persistence.id;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Identifiers allocated from pooled blocks: the database hands out a block number, the hi,
+ * and the generator allocates the {@code blockSize} values of the block locally, the lo.
+ * <p>
+ * The current block is swapped by compare-and-set. Threads exhausting the block at the
+ * same time each fetch a block, the losers of the swap discard theirs, leaving a gap.
+ */
+public class HiLoIdGenerator implements IdGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(HiLoIdGenerator.class);
+
+    /**
+     * Hands out the block numbers, never twice, e.g. a database sequence.
+     */
+    @FunctionalInterface
+    public interface BlockSource {
+        long nextBlock();
+    }
+
+    private final BlockSource blockSource;
+    private final int blockSize;
+    private final int shard;
+    private final AtomicReference<Block> block = new AtomicReference<>(new Block(0, 0));
+
+    public HiLoIdGenerator(BlockSource blockSource, int blockSize, int shard) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Expect a positive block size, but got " + blockSize);
+        }
+        this.blockSource = blockSource;
+        this.blockSize = blockSize;
+        this.shard = IdGenerator.checkShard(shard);
+    }
+
+    @Override
+    public long nextId() {
+        while (true) {
+            Block current = block.get();
+            long value = current.next.getAndIncrement();
+            if (value < current.end) {
+                return IdGenerator.compose(value, shard);
+            }
+            long hi = blockSource.nextBlock();
+            if (!block.compareAndSet(current, new Block(hi * blockSize, blockSize))) {
+                LOG.debug("Discarding block {}, another thread swapped the block first", hi);
+            }
+        }
+    }
+
+    private static final class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long start, int size) {
+            this.next = new AtomicLong(start);
+            this.end = start + size;
+        }
+    }
+}
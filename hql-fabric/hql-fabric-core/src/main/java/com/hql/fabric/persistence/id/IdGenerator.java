@@ -0,0 +1,43 @@
+package com.hql.fabric.persistence.id;
+
+/**
+ * Allocates the identifiers of the entities locally, without a round trip to the database
+ * per insert, so that Hibernate can batch the inserts.
+ * <p>
+ * Every identifier carries the index of the shard which allocated it in its lowest
+ * {@link #SHARD_BITS} bits, the routers find the shard of a row from its identifier alone
+ * and the identifiers of different shards never collide.
+ */
+public interface IdGenerator {
+    int SHARD_BITS = 6;
+    int MAX_SHARDS = 1 << SHARD_BITS;
+
+    /**
+     * @return a new identifier, positive and unique for this generator
+     */
+    long nextId();
+
+    /**
+     * @param id an identifier allocated by a generator
+     * @return the index of the shard which allocated it
+     */
+    static int shardOf(long id) {
+        return (int) (id & (MAX_SHARDS - 1));
+    }
+
+    /**
+     * @param value the value unique for the shard, below {@code 2^57}
+     * @param shard the index of the shard
+     * @return the identifier
+     */
+    static long compose(long value, int shard) {
+        return (value << SHARD_BITS) | shard;
+    }
+
+    static int checkShard(int shard) {
+        if (shard < 0 || shard >= MAX_SHARDS) {
+            throw new IllegalArgumentException("Expect a shard index in [0, " + MAX_SHARDS + "), but got " + shard);
+        }
+        return shard;
+    }
+}
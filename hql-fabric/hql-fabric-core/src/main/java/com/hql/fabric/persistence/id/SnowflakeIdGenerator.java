@@ -0,0 +1,61 @@
+package com.hql.fabric.persistence.id;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Time ordered identifiers: 41 bits of milliseconds since {@link #EPOCH}, 5 bits of node,
+ * 11 bits of sequence and the shard bits.
+ * <p>
+ * The time and the sequence are a single atomic counter, advanced by compare-and-set: when
+ * the 2048 identifiers of a millisecond are exhausted, or the clock goes backwards, the
+ * counter moves on to the next millisecond instead of waiting for the clock, so allocation
+ * never blocks and the identifiers of a generator are strictly increasing.
+ */
+public class SnowflakeIdGenerator implements IdGenerator {
+    // 2024-01-01T00:00:00Z, 41 bits of milliseconds last until 2093
+    public static final long EPOCH = 1_704_067_200_000L;
+    public static final int NODE_BITS = 5;
+    public static final int SEQUENCE_BITS = 11;
+    public static final int MAX_NODES = 1 << NODE_BITS;
+
+    private final long node;
+    private final int shard;
+    private final LongSupplier clock;
+    // milliseconds since the epoch << SEQUENCE_BITS | sequence of the last identifier
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeIdGenerator(int node, int shard) {
+        this(node, shard, System::currentTimeMillis);
+    }
+
+    public SnowflakeIdGenerator(int node, int shard, LongSupplier clock) {
+        if (node < 0 || node >= MAX_NODES) {
+            throw new IllegalArgumentException("Expect a node in [0, " + MAX_NODES + "), but got " + node);
+        }
+        this.node = node;
+        this.shard = IdGenerator.checkShard(shard);
+        this.clock = clock;
+    }
+
+    @Override
+    public long nextId() {
+        long next;
+        long previous;
+        do {
+            previous = state.get();
+            next = Math.max((clock.getAsLong() - EPOCH) << SEQUENCE_BITS, previous + 1);
+        } while (!state.compareAndSet(previous, next));
+        long millis = next >>> SEQUENCE_BITS;
+        long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+        return IdGenerator.compose((((millis << NODE_BITS) | node) << SEQUENCE_BITS) | sequence, shard);
+    }
+
+    /**
+     * @param id an identifier of a snowflake generator
+     * @return the time it was allocated at, in milliseconds since 1970
+     */
+    public static long timestampOf(long id) {
+        return (id >>> (SHARD_BITS + SEQUENCE_BITS + NODE_BITS)) + EPOCH;
+    }
+}
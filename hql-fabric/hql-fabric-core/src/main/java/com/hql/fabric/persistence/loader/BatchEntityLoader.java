@@ -0,0 +1,191 @@
+package com.hql.fabric.persistence.loader;
+
+import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.service.IHqlQueryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Request scoped loader collecting {@code findObjectById}/{@code findObjectByName} lookups and
+ * resolving them with a single IN query per entity class.
+ * <p>
+ * Each load returns a future which is completed once the pending lookups are dispatched,
+ * either explicitly via {@link #dispatch()} or {@link #close()}, or after the batching window
+ * when the loader is created with a scheduler. Lookups are memoized for the lifetime of the
+ * loader, so a loader must not outlive the request it was created for:
+ * <pre>
+ * try (BatchEntityLoader loader = new BatchEntityLoader(hqlQueryService)) {
+ *     CompletableFuture&lt;Order&gt; first = loader.loadById(Order.class, firstId);
+ *     CompletableFuture&lt;Order&gt; second = loader.loadById(Order.class, secondId);
+ *     loader.dispatch(); // a single "where id in (:ids)" query
+ *     Order order = first.join();
+ * }
+ * </pre>
+ */
+public class BatchEntityLoader implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchEntityLoader.class);
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+    private final IHqlQueryService hqlQueryService;
+    private final ScheduledExecutorService scheduler;
+    private final long windowMillis;
+    private final int maxBatchSize;
+
+    private final Map<Class<?>, Map<Long, CompletableFuture<Object>>> byId = new HashMap<>();
+    private final Map<Class<?>, Map<String, CompletableFuture<Object>>> byName = new HashMap<>();
+    private Map<Class<?>, Set<Long>> pendingIds = new LinkedHashMap<>();
+    private Map<Class<?>, Set<String>> pendingNames = new LinkedHashMap<>();
+    private boolean scheduled;
+
+    /**
+     * Creates a loader dispatched explicitly via {@link #dispatch()} or {@link #close()}.
+     *
+     * @param hqlQueryService the service running the batched queries
+     */
+    public BatchEntityLoader(IHqlQueryService hqlQueryService) {
+        this(hqlQueryService, null, 0, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a loader which also dispatches the lookups collected during a window, the window
+     * being opened by the first lookup following a dispatch.
+     *
+     * @param hqlQueryService the service running the batched queries
+     * @param scheduler       the scheduler running the dispatch at the end of the window
+     * @param windowMillis    the batching window in milliseconds
+     * @param maxBatchSize    the maximum number of keys sent in a single IN query
+     */
+    public BatchEntityLoader(IHqlQueryService hqlQueryService, ScheduledExecutorService scheduler,
+                             long windowMillis, int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.hqlQueryService = hqlQueryService;
+        this.scheduler = scheduler;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Loads an object by its unique identifier within the next batch.
+     *
+     * @param clazz the data type of the object to search for
+     * @param id    the unique identifier of the object
+     * @param <T>   the data type of the object
+     * @return the future of the object, completed with {@code null} if no such object exists
+     */
+    public <T extends BaseEntity> CompletableFuture<T> loadById(Class<T> clazz, Long id) {
+        if (Objects.isNull(id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return enqueue(clazz, id, byId, pendingIds);
+    }
+
+    /**
+     * Loads an object by its name within the next batch, the name being matched case
+     * insensitively.
+     *
+     * @param clazz the data type of the object to search for
+     * @param name  the name of the object
+     * @param <T>   the data type of the object
+     * @return the future of the object, completed with {@code null} if no such object exists
+     */
+    public <T extends BaseEntity> CompletableFuture<T> loadByName(Class<T> clazz, String name) {
+        if (Objects.isNull(name)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return enqueue(clazz, name.toLowerCase(Locale.ROOT), byName, pendingNames);
+    }
+
+    /**
+     * Runs one IN query per entity class for the pending lookups and completes their futures.
+     * A failing query completes the futures of its keys exceptionally and forgets them, so
+     * that they can be loaded again.
+     */
+    public void dispatch() {
+        Map<Class<?>, Set<Long>> ids;
+        Map<Class<?>, Set<String>> names;
+        synchronized (this) {
+            ids = pendingIds;
+            names = pendingNames;
+            pendingIds = new LinkedHashMap<>();
+            pendingNames = new LinkedHashMap<>();
+            scheduled = false;
+        }
+        for (Map.Entry<Class<?>, Set<Long>> entry : ids.entrySet()) {
+            Class<? extends BaseEntity> clazz = entry.getKey().asSubclass(BaseEntity.class);
+            resolve(clazz, entry.getValue(), byId,
+                    batch -> hqlQueryService.findObjectsByIds(clazz, batch));
+        }
+        for (Map.Entry<Class<?>, Set<String>> entry : names.entrySet()) {
+            Class<? extends BaseEntity> clazz = entry.getKey().asSubclass(BaseEntity.class);
+            resolve(clazz, entry.getValue(), byName,
+                    batch -> hqlQueryService.findObjectsByNames(clazz, batch));
+        }
+    }
+
+    /**
+     * Dispatches the pending lookups.
+     */
+    @Override
+    public void close() {
+        dispatch();
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <K, T> CompletableFuture<T> enqueue(Class<?> clazz, K key,
+                                                             Map<Class<?>, Map<K, CompletableFuture<Object>>> loaded,
+                                                             Map<Class<?>, Set<K>> pending) {
+        Map<K, CompletableFuture<Object>> futures = loaded.computeIfAbsent(clazz, c -> new HashMap<>());
+        CompletableFuture<Object> future = futures.get(key);
+        if (Objects.isNull(future)) {
+            future = new CompletableFuture<>();
+            futures.put(key, future);
+            pending.computeIfAbsent(clazz, c -> new LinkedHashSet<>()).add(key);
+            if (Objects.nonNull(scheduler) && !scheduled) {
+                scheduled = true;
+                scheduler.schedule(this::dispatch, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return (CompletableFuture<T>) future;
+    }
+
+    private <K> void resolve(Class<?> clazz, Set<K> keys,
+                             Map<Class<?>, Map<K, CompletableFuture<Object>>> loaded,
+                             Function<List<K>, Map<K, ? extends BaseEntity>> finder) {
+        List<K> all = new ArrayList<>(keys);
+        for (int start = 0; start < all.size(); start += maxBatchSize) {
+            List<K> batch = all.subList(start, Math.min(start + maxBatchSize, all.size()));
+            Map<K, CompletableFuture<Object>> futures = new HashMap<>();
+            synchronized (this) {
+                for (K key : batch) {
+                    futures.put(key, loaded.get(clazz).get(key));
+                }
+            }
+            try {
+                Map<K, ? extends BaseEntity> found = finder.apply(batch);
+                futures.forEach((key, future) -> future.complete(found.get(key)));
+            } catch (RuntimeException e) {
+                LOG.error("Failed to load {} {} objects in batch", batch.size(), clazz.getName(), e);
+                synchronized (this) {
+                    batch.forEach(loaded.get(clazz)::remove);
+                }
+                futures.values().forEach(future -> future.completeExceptionally(e));
+            }
+        }
+    }
+}
@@ -12,11 +12,12 @@ import java.util.Collection;
  *
  * @param <T> Type of class to be paged
  */
-@JsonPropertyOrder(value = {"start", "page_size", "total", "elements"})
+@JsonPropertyOrder(value = {"start", "page_size", "total", "exact", "elements"})
 public class PagedResponse<T extends NamedArtifact> {
     private int start;
     private int pageSize;
     private int total;
+    private boolean exact = true;
     private Collection<T> elements;
 
     /**
@@ -51,6 +52,28 @@ public class PagedResponse<T extends NamedArtifact> {
         this.total = total;
     }
 
+    /**
+     * Sets the total from a possibly approximate count, capping it to the int range.
+     *
+     * @param totalCount the total number of rows behind the page
+     */
+    public void setTotal(TotalCount totalCount) {
+        this.total = (int) Math.min(Integer.MAX_VALUE, totalCount.getTotal());
+        this.exact = totalCount.isExact();
+    }
+
+    /**
+     * @return {@code false} if {@link #getTotal()} is a lower bound, e.g. "10,000+", rather
+     * than the exact number of rows
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    public void setExact(boolean exact) {
+        this.exact = exact;
+    }
+
     public Collection<T> getElements() {
         return elements;
     }
@@ -0,0 +1,40 @@
+package com.hql.fabric.persistence.model;
+
+/**
+ * Total number of rows behind a paged query, either counted exactly or capped at a cutoff
+ * when the planner estimates more rows than are worth counting.
+ */
+public class TotalCount {
+    private final long total;
+    private final boolean exact;
+
+    private TotalCount(long total, boolean exact) {
+        this.total = total;
+        this.exact = exact;
+    }
+
+    /**
+     * @param total the counted number of rows
+     * @return an exact total
+     */
+    public static TotalCount exact(long total) {
+        return new TotalCount(total, true);
+    }
+
+    /**
+     * @param cutoff the cutoff the estimated number of rows is above of
+     * @return an inexact total, to be displayed like "10,000+"
+     */
+    public static TotalCount atLeast(long cutoff) {
+        return new TotalCount(cutoff, false);
+    }
+
+    // -- getter && setter --
+    public long getTotal() {
+        return total;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+}
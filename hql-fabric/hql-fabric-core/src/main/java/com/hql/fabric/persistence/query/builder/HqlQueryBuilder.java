@@ -10,13 +10,19 @@ import com.hql.fabric.persistence.query.exception.HqlBuildException;
 import io.micrometer.common.util.StringUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 /**
@@ -25,6 +31,14 @@ import java.util.Objects;
  * Examples can be found in the associated test classes.
  */
 public class HqlQueryBuilder {
+    /**
+     * Name of the collection parameter holding the root identifiers of
+     * {@link #buildFetchByIdsQuery()}.
+     */
+    public static final String ROOT_IDS_PARAMETER = "rootIds";
+    private static final Pattern AGGREGATE = Pattern.compile("(?i)(count|sum|avg|min|max)\\s*\\(");
+    private static final Pattern PARAMETER = Pattern.compile(":(\\w+)");
+
     private Map<String, String> fromMap = new LinkedHashMap<>();
     private List<Join> joins = new ArrayList<>();
     private List<Condition> conditions = new ArrayList<>();
@@ -41,6 +55,21 @@ public class HqlQueryBuilder {
         return new HashMap<>(injectionParameters);
     }
 
+    /**
+     * @return the registered entities, by entity name, associated to their alias or
+     * {@code null}, in registration order
+     */
+    public Map<String, String> getTables() {
+        return Collections.unmodifiableMap(fromMap);
+    }
+
+    /**
+     * @return the conditions of the WHERE clause, in order, with their bound values
+     */
+    public List<Condition> getConditions() {
+        return Collections.unmodifiableList(conditions);
+    }
+
     /**
      * Used to register a Class type with the builder for a query.
      *
@@ -225,7 +254,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder like(String field, String value) {
         String token = getNextToken();
         injectionParameters.put(token, value);
-        conditions.add(new Condition(field, WhereClause.LIKE, ":" + token));
+        conditions.add(new Condition(field, WhereClause.LIKE, ":" + token, Collections.singletonList(value)));
         return this;
     }
 
@@ -245,7 +274,8 @@ public class HqlQueryBuilder {
             stringBuilder.append(delimiter).append(":").append(token);
             delimiter = ", ";
         }
-        conditions.add(new Condition(field, WhereClause.IN, stringBuilder.toString()));
+        conditions.add(new Condition(field, WhereClause.IN, stringBuilder.toString(),
+                Arrays.asList(values)));
         return this;
     }
 
@@ -266,7 +296,7 @@ public class HqlQueryBuilder {
             delimiter = ", ";
         }
         conditions.add(new Condition(field, WhereClause.IN,
-                stringBuilder.toString()));
+                stringBuilder.toString(), new ArrayList<>(values)));
         return this;
     }
 
@@ -303,7 +333,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder eq(String field, String value) {
         String token = getNextToken();
         injectionParameters.put(token, value);
-        conditions.add(new Condition(field, WhereClause.EQUALS, ":" + token));
+        conditions.add(new Condition(field, WhereClause.EQUALS, ":" + token, Collections.singletonList(value)));
         return this;
     }
 
@@ -317,7 +347,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder neq(String field, Object value) {
         String token = getNextToken();
         injectionParameters.put(token, value);
-        conditions.add(new Condition(field, WhereClause.NOT_EQUAL, ":" + token));
+        conditions.add(new Condition(field, WhereClause.NOT_EQUAL, ":" + token, Collections.singletonList(value)));
         return this;
     }
 
@@ -456,7 +486,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder gt(Integer value) {
         String token = getNextToken();
         injectionParameters.put(token, value.intValue());
-        conditions.add(new Condition(null, WhereClause.GREATER_THAN, ":" + token));
+        conditions.add(new Condition(null, WhereClause.GREATER_THAN, ":" + token, Collections.singletonList(value.intValue())));
         return this;
     }
 
@@ -470,7 +500,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder gt(String field, Integer value) {
         String token = getNextToken();
         injectionParameters.put(token, value.intValue());
-        conditions.add(new Condition(field, WhereClause.GREATER_THAN, ":" + token));
+        conditions.add(new Condition(field, WhereClause.GREATER_THAN, ":" + token, Collections.singletonList(value.intValue())));
         return this;
     }
 
@@ -484,7 +514,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder ge(String field, Integer value) {
         String token = getNextToken();
         injectionParameters.put(token, value.intValue());
-        conditions.add(new Condition(field, WhereClause.GREATER_EQUAL_THAN, ":" + token));
+        conditions.add(new Condition(field, WhereClause.GREATER_EQUAL_THAN, ":" + token, Collections.singletonList(value.intValue())));
         return this;
     }
 
@@ -520,7 +550,7 @@ public class HqlQueryBuilder {
         String token = getNextToken();
         this.injectionParameters.put(token, value.intValue());
         conditions.add(new Condition(null, WhereClause.LESS_THAN,
-                ":" + token));
+                ":" + token, Collections.singletonList(value.intValue())));
         return this;
     }
 
@@ -534,7 +564,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder lt(String field, Date value) {
         String token = getNextToken();
         injectionParameters.put(token, value);
-        conditions.add(new Condition(field, WhereClause.LESS_THAN, ":" + token));
+        conditions.add(new Condition(field, WhereClause.LESS_THAN, ":" + token, Collections.singletonList(value)));
         return this;
     }
 
@@ -548,7 +578,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder gt(String field, Date value) {
         String token = getNextToken();
         injectionParameters.put(token, value);
-        conditions.add(new Condition(field, WhereClause.GREATER_THAN, ":" + token));
+        conditions.add(new Condition(field, WhereClause.GREATER_THAN, ":" + token, Collections.singletonList(value)));
         return this;
     }
 
@@ -562,8 +592,8 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder ge(String field, Date value) {
         String token = getNextToken();
         injectionParameters.put(token, value);
-        conditions.add(new Condition(field, WhereClause.GREATER_THAN,
-                ":" + token));
+        conditions.add(new Condition(field, WhereClause.GREATER_EQUAL_THAN,
+                ":" + token, Collections.singletonList(value)));
         return this;
     }
 
@@ -577,7 +607,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder le(String field, Integer value) {
         String token = getNextToken();
         injectionParameters.put(token, value.intValue());
-        conditions.add(new Condition(field, WhereClause.LESS_EQUAL_THAN, ":" + token));
+        conditions.add(new Condition(field, WhereClause.LESS_EQUAL_THAN, ":" + token, Collections.singletonList(value.intValue())));
         return this;
     }
 
@@ -591,7 +621,7 @@ public class HqlQueryBuilder {
     public HqlQueryBuilder lt(String field, Integer value) {
         String token = getNextToken();
         injectionParameters.put(token, value.intValue());
-        conditions.add(new Condition(field, WhereClause.LESS_THAN, ":" + token));
+        conditions.add(new Condition(field, WhereClause.LESS_THAN, ":" + token, Collections.singletonList(value.intValue())));
         return this;
     }
 
@@ -677,6 +707,171 @@ public class HqlQueryBuilder {
             stringBuilder.append(" ");
         }
 
+        appendFrom(stringBuilder);
+        appendJoins(stringBuilder, true);
+        appendWhere(stringBuilder);
+
+        // GROUP BY and HAVING precede ORDER BY
+        if (!StringUtils.isEmpty(groupBy)) {
+            stringBuilder.append(" GROUP BY " + groupBy);
+        }
+        if (!StringUtils.isEmpty(having)) {
+            stringBuilder.append(" having " + having);
+        }
+        appendOrderBy(stringBuilder);
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Used to create the first phase of an id-first paged query: the identifiers of the root
+     * entity, filtered and ordered like the full query, one row per root entity.
+     * <p>
+     * Fetch joins are rendered as plain joins so the database can apply the page limit
+     * instead of Hibernate paging the joined rows in memory (HHH90003004). The rows are
+     * grouped by the root identifier: the order by fields of the root entity are grouped
+     * along with it, those of the joined aliases are aggregated, {@code min} ascending and
+     * {@code max} descending, so that a root joined to several rows takes a single position
+     * in the page. The group by fields of the builder must belong to the root entity, its
+     * having condition applies to each root. The root identifier is appended as a
+     * tie-breaker to keep pages stable.
+     *
+     * @return HQL String selecting the root identifiers
+     * @throws HqlBuildException if the root entity is not registered with an alias, or the
+     *                           query groups by a field of a joined alias
+     */
+    public String buildIdPageQuery() throws HqlBuildException {
+        String rootAlias = getRootAlias();
+        String rootId = rootAlias + ".id";
+        List<String> pageGroupBy = new ArrayList<>();
+        pageGroupBy.add(rootId);
+        Map<String, String> pageOrderBy = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : orderBy.entrySet()) {
+            String field = entry.getKey();
+            if (field.equals(rootId)) {
+                pageOrderBy.put(field, entry.getValue());
+            } else if (field.startsWith(rootAlias + ".")) {
+                pageGroupBy.add(field);
+                pageOrderBy.put(field, entry.getValue());
+            } else if (AGGREGATE.matcher(field).lookingAt()) {
+                pageOrderBy.put(field, entry.getValue());
+            } else {
+                pageOrderBy.put((entry.getValue().equals("asc") ? "min(" : "max(") + field + ")",
+                        entry.getValue());
+            }
+        }
+        pageOrderBy.putIfAbsent(rootId, "asc");
+        if (!StringUtils.isEmpty(groupBy)) {
+            for (String field : groupBy.split(",")) {
+                field = field.trim();
+                if (!field.equals(rootId) && !field.startsWith(rootAlias + ".")) {
+                    throw new HqlBuildException("ERROR: id-first paging cannot group by " + field
+                            + ", the group by fields must belong to the root entity " + rootAlias);
+                }
+                if (!pageGroupBy.contains(field)) {
+                    pageGroupBy.add(field);
+                }
+            }
+        }
+
+        StringBuilder stringBuilder = new StringBuilder("SELECT ").append(rootId);
+        for (String field : pageOrderBy.keySet()) {
+            if (!field.equals(rootId)) {
+                stringBuilder.append(", ").append(field);
+            }
+        }
+        stringBuilder.append(" ");
+
+        appendFrom(stringBuilder);
+        appendJoins(stringBuilder, false);
+        appendWhere(stringBuilder);
+
+        stringBuilder.append(" GROUP BY ").append(String.join(", ", pageGroupBy));
+        if (!StringUtils.isEmpty(having)) {
+            stringBuilder.append(" having ").append(having);
+        }
+        stringBuilder.append(" ORDER BY ");
+        String delimiter = "";
+        for (Map.Entry<String, String> entry : pageOrderBy.entrySet()) {
+            stringBuilder.append(delimiter).append(entry.getKey()).append(" ").append(entry.getValue());
+            delimiter = ", ";
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Used to create the second phase of an id-first paged query: the root entity with its
+     * fetch joins, restricted to the identifiers bound to {@link #ROOT_IDS_PARAMETER}.
+     * <p>
+     * Where conditions and the plain joins no fetch join chains off are left out, they were
+     * already applied by {@link #buildIdPageQuery()}. The plain joins a fetch join chains
+     * off, such as {@code g} of {@code LEFT JOIN u.groups g LEFT JOIN FETCH g.permissions p},
+     * are kept as plain joins.
+     *
+     * @return HQL String loading the fetch graph of the given identifiers
+     * @throws HqlBuildException if the root entity is not registered with an alias
+     */
+    public String buildFetchByIdsQuery() throws HqlBuildException {
+        String rootAlias = getRootAlias();
+        Map.Entry<String, String> root = fromMap.entrySet().iterator().next();
+
+        // aliases the fetch joins chain off, transitively
+        Set<String> required = new HashSet<>();
+        Set<Join> kept = new HashSet<>();
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Join join : joins) {
+                if ((join.isFetch() || required.contains(join.getToTable())) && kept.add(join)) {
+                    String path = join.getFromTable();
+                    if (path.contains(".")) {
+                        required.add(path.substring(0, path.indexOf('.')));
+                    }
+                    added = true;
+                }
+            }
+        }
+
+        StringBuilder stringBuilder = new StringBuilder("SELECT ").append(rootAlias)
+                .append(" FROM ").append(root.getKey()).append(" as ").append(rootAlias);
+        for (Join join : joins) {
+            if (kept.contains(join)) {
+                join.append(stringBuilder);
+            }
+        }
+        stringBuilder.append(" WHERE ").append(rootAlias).append(".id in (:")
+                .append(ROOT_IDS_PARAMETER).append(")");
+        return stringBuilder.toString();
+    }
+
+    /**
+     * @return the injection parameters {@link #buildFetchByIdsQuery()} refers to, such as
+     * those of the with conditions of its joins
+     * @throws HqlBuildException if the root entity is not registered with an alias
+     */
+    public Map<String, Object> getFetchByIdsParameters() throws HqlBuildException {
+        Map<String, Object> parameters = new HashMap<>();
+        Matcher matcher = PARAMETER.matcher(buildFetchByIdsQuery());
+        while (matcher.find()) {
+            if (injectionParameters.containsKey(matcher.group(1))) {
+                parameters.put(matcher.group(1), injectionParameters.get(matcher.group(1)));
+            }
+        }
+        return parameters;
+    }
+
+    private String getRootAlias() throws HqlBuildException {
+        if (fromMap.isEmpty()) {
+            throw new HqlBuildException("ERROR: no entity registered, call from() or fromAs() first");
+        }
+        String rootAlias = fromMap.values().iterator().next();
+        if (StringUtils.isEmpty(rootAlias)) {
+            throw new HqlBuildException("ERROR: id-first paging requires the root entity to be registered via fromAs()");
+        }
+        return rootAlias;
+    }
+
+    private void appendFrom(StringBuilder stringBuilder) {
         stringBuilder.append("FROM ");
         String delimiter = "";
 
@@ -687,11 +882,15 @@ public class HqlQueryBuilder {
             }
             delimiter = ", ";
         }
+    }
 
+    private void appendJoins(StringBuilder stringBuilder, boolean fetch) {
         for (Join join : joins) {
-            join.append(stringBuilder);
+            join.append(stringBuilder, fetch);
         }
+    }
 
+    private void appendWhere(StringBuilder stringBuilder) throws HqlBuildException {
         if (!conditions.isEmpty()) {
             stringBuilder.append(" WHERE ");
             for (Condition condition : conditions) {
@@ -758,24 +957,17 @@ public class HqlQueryBuilder {
                 }
             }
         }
+    }
 
+    private void appendOrderBy(StringBuilder stringBuilder) {
         if (!orderBy.isEmpty()) {
             stringBuilder.append(" ORDER BY ");
-            delimiter = "";
+            String delimiter = "";
             for (Map.Entry<String, String> entry : orderBy.entrySet()) {
                 stringBuilder.append(delimiter).append(entry.getKey()).append(" ").append(entry.getValue());
                 delimiter = ", ";
             }
         }
-
-        if (!StringUtils.isEmpty(groupBy)) {
-            stringBuilder.append(" GROUP BY " + groupBy);
-        }
-        if (!StringUtils.isEmpty(having)) {
-            stringBuilder.append(" having " + having);
-        }
-
-        return stringBuilder.toString();
     }
 
     /**
@@ -791,6 +983,9 @@ public class HqlQueryBuilder {
         this.operatorField = null;
         this.injectionParameters.clear();
         this.tokenCount = 0;
+        this.distinct = false;
+        this.groupBy = null;
+        this.having = null;
     }
 
     private String getNextToken() {
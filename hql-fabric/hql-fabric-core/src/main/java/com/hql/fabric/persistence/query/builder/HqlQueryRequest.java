@@ -1,19 +1,42 @@
 package com.hql.fabric.persistence.query.builder;
 
+import com.hql.fabric.persistence.query.operator.Condition;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class HqlQueryRequest {
     private final String hql;
     private final Map<String, Object> parameters;
+    private final Map<String, String> tables;
+    private final List<Condition> conditions;
 
     public HqlQueryRequest(String hql, Map<String, Object> parameters) {
+        this(hql, parameters, Collections.emptyMap(), Collections.emptyList());
+    }
+
+    /**
+     * @param tables     the queried entities, by entity name, associated to their alias
+     * @param conditions the conditions of the WHERE clause with their bound values
+     */
+    public HqlQueryRequest(String hql, Map<String, Object> parameters,
+                           Map<String, String> tables, List<Condition> conditions) {
         this.hql = hql;
         this.parameters = parameters;
+        this.tables = tables;
+        this.conditions = conditions;
     }
 
+    /**
+     * Builds the request of the builder, keeping its structure so that the request can be
+     * routed without parsing the HQL.
+     */
     public static HqlQueryRequest from(HqlQueryBuilder builder) {
-        // return new HqlQueryRequest(builder.build(), builder.getInjectionParameters());
-        return null;
+        return new HqlQueryRequest(builder.build(), builder.getInjectionParameters(),
+                Collections.unmodifiableMap(new LinkedHashMap<>(builder.getTables())),
+                List.copyOf(builder.getConditions()));
     }
 
     // -- getter && setter --
@@ -24,4 +47,12 @@ public class HqlQueryRequest {
     public Map<String, Object> getParameters() {
         return parameters;
     }
+
+    public Map<String, String> getTables() {
+        return tables;
+    }
+
+    public List<Condition> getConditions() {
+        return conditions;
+    }
 }
@@ -1,5 +1,8 @@
 package com.hql.fabric.persistence.query.operator;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * HqlQueryBuilder internal container for conditional elements of an HQL query.
  */
@@ -9,6 +12,7 @@ public class Condition {
     private String mapValue;
     private String subQuery;
     private WhereClause operator;
+    private List<Object> parameterValues = Collections.emptyList();
 
     public Condition(String field, WhereClause operator, String value) {
         this.field = field;
@@ -23,6 +27,17 @@ public class Condition {
         this.operator = operator;
     }
 
+    /**
+     * @param parameterValues the values bound to the parameters of {@code value}, in order
+     */
+    public Condition(String field, WhereClause operator, String value,
+                     List<Object> parameterValues) {
+        this.field = field;
+        this.value = value;
+        this.operator = operator;
+        this.parameterValues = Collections.unmodifiableList(parameterValues);
+    }
+
     public Condition(String subQuery, WhereClause operator) {
         this.subQuery = subQuery;
         this.operator = operator;
@@ -69,4 +84,12 @@ public class Condition {
     public void setOperator(WhereClause operator) {
         this.operator = operator;
     }
+
+    public List<Object> getParameterValues() {
+        return parameterValues;
+    }
+
+    public void setParameterValues(List<Object> parameterValues) {
+        this.parameterValues = parameterValues;
+    }
 }
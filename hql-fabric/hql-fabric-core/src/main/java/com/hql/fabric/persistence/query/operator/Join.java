@@ -92,8 +92,19 @@ public class Join {
      * @param builder the StringBuilder where the HQL query is being accumulated.
      */
     public void append(StringBuilder builder) {
+        append(builder, true);
+    }
+
+    /**
+     * Appends the HQL representation of this join operation to the given StringBuilder.
+     *
+     * @param builder the StringBuilder where the HQL query is being accumulated.
+     * @param fetch   {@code false} to render a fetch join as a plain join, e.g. when only the
+     *                identifiers of the root entity are selected.
+     */
+    public void append(StringBuilder builder, boolean fetch) {
         builder.append(" ").append(this.joinType.getHql()).append(" ");
-        if (isFetch()) {
+        if (fetch && isFetch()) {
             builder.append("FETCH ");
         }
         builder.append(this.fromTable).append(" ").append(this.toTable);
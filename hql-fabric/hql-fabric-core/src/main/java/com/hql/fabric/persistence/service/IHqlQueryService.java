@@ -1,11 +1,14 @@
 package com.hql.fabric.persistence.service;
 
 import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.model.TotalCount;
 import com.hql.fabric.persistence.processor.IQueryPostProcessor;
+import com.hql.fabric.persistence.query.builder.HqlQueryBuilder;
 import com.hql.fabric.persistence.query.builder.HqlQueryRequest;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -107,6 +110,36 @@ public interface IHqlQueryService {
                                               Integer pageStart,
                     Integer pageSize, IQueryPostProcessor post);
 
+    /**
+     * Executes the query held by the builder page by page, in two phases, so that fetch joins
+     * on collections do not force Hibernate to paginate in memory.
+     * <p>
+     * The first phase pages over the distinct identifiers of the root entity, the second one
+     * loads the fetch graph of those identifiers only and keeps their order.
+     *
+     * @param builder   the builder holding the query, the root entity must be registered via
+     *                  {@link HqlQueryBuilder#fromAs(Class, String)}
+     * @param pageStart the start point for the page
+     * @param pageSize  the number of elements to be returned from the page
+     * @return the root entities of the page, with their fetch joins initialized
+     */
+    <T extends BaseEntity> List<T> pagedFetchQuery(HqlQueryBuilder builder, Integer pageStart,
+                                                   Integer pageSize);
+
+    /**
+     * Executes the query held by the builder page by page, in two phases, so that fetch joins
+     * on collections do not force Hibernate to paginate in memory.
+     *
+     * @param builder   the builder holding the query, the root entity must be registered via
+     *                  {@link HqlQueryBuilder#fromAs(Class, String)}
+     * @param pageStart the start point for the page
+     * @param pageSize  the number of elements to be returned from the page
+     * @param post      the query post-processor. May be {@code null} if no post-processing is required.
+     * @return the root entities of the page, with their fetch joins initialized
+     */
+    <T extends BaseEntity> List<T> pagedFetchQuery(HqlQueryBuilder builder, Integer pageStart,
+                                                   Integer pageSize, IQueryPostProcessor post);
+
     /**
      * Inserts or Update the object. if it's new, creates new one, or update the object
      * directly.
@@ -250,6 +283,30 @@ public interface IHqlQueryService {
     <T extends BaseEntity> T findObjectByIdOrName(Class<T> clazz, String idOrName,
                                                   IQueryPostProcessor post);
 
+    /**
+     * Finds the objects with the given unique identifiers in a single query.
+     *
+     * @param clazz the data type of the objects to search for
+     * @param ids   the unique identifiers of the objects
+     * @param <T>   The data type of the objects
+     * @return the found objects by their unique identifier, identifiers without object are
+     * absent from the map
+     */
+    <T extends BaseEntity> Map<Long, T> findObjectsByIds(Class<T> clazz, Collection<Long> ids);
+
+    /**
+     * Finds the objects with the given names in a single query, names are matched case
+     * insensitively as in {@link #findObjectByName(Class, String)}.
+     *
+     * @param clazz the data type of the objects to search for
+     * @param names the names of the objects
+     * @param <T>   The data type of the objects
+     * @return the found objects by their lower-cased name, names without object are absent
+     * from the map
+     */
+    <T extends BaseEntity> Map<String, T> findObjectsByNames(Class<T> clazz,
+                                                             Collection<String> names);
+
     /**
      * Execute an HQL query for a single object.
      *
@@ -301,4 +358,37 @@ public interface IHqlQueryService {
      */
     <T extends BaseEntity> List<T> query(HqlQueryRequest request);
 
+    /**
+     * Counts the rows of an entity table, relying on the planner statistics of the table
+     * ({@code pg_class.reltuples}) to avoid a full {@code count(*)} on huge tables.
+     *
+     * @param clazz  the entity to count
+     * @param cutoff the number of rows above which an estimate is good enough
+     * @return the exact count, or {@link TotalCount#atLeast(long)} the cutoff if the table is
+     * estimated to hold more rows than the cutoff
+     */
+    TotalCount approximateCount(Class<? extends BaseEntity> clazz, int cutoff);
+
+    /**
+     * Counts the rows of an SQL query with ? replacement parameters, relying on the row
+     * estimate of its plan ({@code EXPLAIN}) to avoid counting lightly filtered huge tables.
+     *
+     * @param sql    the SQL query whose rows are counted
+     * @param cutoff the number of rows above which an estimate is good enough
+     * @param params the replacement parameter values
+     * @return the exact count, or {@link TotalCount#atLeast(long)} the cutoff if the query is
+     * estimated to return more rows than the cutoff
+     */
+    TotalCount approximateCount(String sql, int cutoff, Object... params);
+
+    /**
+     * Estimates the number of distinct results of an HQL query, streaming the results into a
+     * {@link com.hql.fabric.persistence.utils.HyperLogLog} sketch instead of holding them.
+     *
+     * @param hql    the HQL query selecting the values to count
+     * @param params parameters of the query
+     * @return the estimated number of distinct results
+     */
+    long approximateDistinctCount(String hql, Map<String, Object> params);
+
 }
\ No newline at end of file
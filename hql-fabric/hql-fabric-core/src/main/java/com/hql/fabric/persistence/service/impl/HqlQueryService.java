@@ -1,14 +1,19 @@
 package com.hql.fabric.persistence.service.impl;
 
+import com.hql.fabric.persistence.coalescing.QueryCoalescer;
+import com.hql.fabric.persistence.coalescing.QueryKey;
 import com.hql.fabric.persistence.entity.BaseEntity;
 import com.hql.fabric.persistence.executor.LimitExecutor;
 import com.hql.fabric.persistence.executor.UpdateExecutor;
+import com.hql.fabric.persistence.model.TotalCount;
 import com.hql.fabric.persistence.processor.IQueryPostProcessor;
 import com.hql.fabric.persistence.query.builder.ArrayRowBuilder;
+import com.hql.fabric.persistence.query.builder.HqlQueryBuilder;
 import com.hql.fabric.persistence.query.builder.HqlQueryRequest;
 import com.hql.fabric.persistence.query.builder.MapRowBuilder;
 import com.hql.fabric.persistence.query.builder.RowBuilder;
 import com.hql.fabric.persistence.service.IHqlQueryService;
+import com.hql.fabric.persistence.utils.HyperLogLog;
 import jakarta.persistence.EntityManagerFactory;
 import org.hibernate.HibernateException;
 import org.hibernate.JDBCException;
@@ -16,25 +21,42 @@ import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.metamodel.mapping.EntityMappingType;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.query.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 @Service("hqlQueryService")
 public class HqlQueryService implements IHqlQueryService {
     private static final Logger LOG = LoggerFactory.getLogger(HqlQueryService.class);
     private static final Object[] EMPTY = {};
+    private static final String ESTIMATE_TABLE_SQL =
+            "select reltuples::bigint from pg_class where oid = to_regclass(?)";
+    private static final Pattern PLAN_ROWS = Pattern.compile("\"Plan Rows\":\\s*(\\d+)");
 
     private final SessionFactoryImplementor sfi;
     private final MapRowBuilder mapRowBuilder;
     private final ArrayRowBuilder arrayRowBuilder;
+    private QueryCoalescer coalescer;
 
     public HqlQueryService(EntityManagerFactory entityManagerFactory) {
         super();
@@ -66,6 +88,15 @@ public class HqlQueryService implements IHqlQueryService {
 
     @Override
     public <T extends BaseEntity> List<T> query(String hql, IQueryPostProcessor post, Object... params) {
+        List<T> result = coalesce(QueryKey.of(hql, params), () -> list(hql, params));
+        if (Objects.nonNull(post)) {
+            return post.processListResult(result);
+        } else {
+            return result;
+        }
+    }
+
+    private <T> List<T> list(String hql, Object[] params) {
         Session session = null;
 
         try {
@@ -74,14 +105,7 @@ public class HqlQueryService implements IHqlQueryService {
             for (int i = 0; i < params.length; i++) {
                 query = query.setParameter(i, params[i]);
             }
-
-            List<T> result = query.list();
-            if (Objects.nonNull(post)) {
-                return post.processListResult(result);
-            } else {
-                return result;
-            }
-
+            return query.list();
         } catch (Exception e) {
             if (e instanceof JDBCException) {
                 LOG.error("JDBCException while executing query {}", hql, e);
@@ -103,26 +127,33 @@ public class HqlQueryService implements IHqlQueryService {
     @Override
     public <T extends BaseEntity> List<T> query(String hql, Map<String, Object> namedParams,
                                                 IQueryPostProcessor post) {
-        Session session = null;
         if (Objects.isNull(namedParams)) {
             LOG.debug("Expect query parameters, but not provided");
             return null;
         }
+        List<T> result = coalesce(QueryKey.of(hql, namedParams),
+                () -> list(hql, namedParams, null, null));
+        if (Objects.nonNull(post)) {
+            return post.processListResult(result);
+        } else {
+            return result;
+        }
+    }
+
+    private <T> List<T> list(String hql, Map<String, Object> namedParams, Integer pageStart,
+                             Integer pageSize) {
+        Session session = null;
         try {
             session = openSession();
             Query<T> query = session.createQuery(hql);
             for (Map.Entry<String, Object> entry : namedParams.entrySet()) {
                 query = query.setParameter(entry.getKey(), entry.getValue());
             }
-
-            List<T> result = query.list();
-
-            if (Objects.nonNull(post)) {
-                return post.processListResult(result);
-            } else {
-                return result;
+            if (Objects.nonNull(pageStart)) {
+                query.setFirstResult(pageStart);
+                query.setMaxResults(pageSize);
             }
-
+            return query.list();
         } catch (Exception e) {
             if (e instanceof JDBCException) {
                 LOG.error("JDBCException while executing hql {}", hql, e);
@@ -142,21 +173,73 @@ public class HqlQueryService implements IHqlQueryService {
 
     @Override
     public <T extends BaseEntity> List<T> pagedQuery(String hql, Map<String, Object> namedParameters, Integer pageStart, Integer pageSize, IQueryPostProcessor post) {
+        if (Objects.isNull(pageStart) || Objects.isNull(pageSize)) {
+            LOG.debug("Both pageStart and pageSize are required, but not provided.");
+            return null;
+        }
+        List<T> result = coalesce(QueryKey.of(hql, namedParameters, pageStart, pageSize),
+                () -> list(hql, namedParameters, pageStart, pageSize));
+        if (Objects.nonNull(post)) {
+            return post.processListResult(result);
+        } else {
+            return result;
+        }
+    }
+
+    @Override
+    public <T extends BaseEntity> List<T> pagedFetchQuery(HqlQueryBuilder builder, Integer pageStart, Integer pageSize) {
+        return pagedFetchQuery(builder, pageStart, pageSize, null);
+    }
+
+    /**
+     * Pages over the distinct root identifiers first, then loads the fetch graph of the page
+     * in a second query on the same session, restoring the order of the first phase.
+     */
+    @Override
+    public <T extends BaseEntity> List<T> pagedFetchQuery(HqlQueryBuilder builder, Integer pageStart, Integer pageSize, IQueryPostProcessor post) {
         Session session = null;
         if (Objects.isNull(pageStart) || Objects.isNull(pageSize)) {
             LOG.debug("Both pageStart and pageSize are required, but not provided.");
             return null;
         }
+        String idHql = builder.buildIdPageQuery();
+        String fetchHql = builder.buildFetchByIdsQuery();
+        Map<String, Object> namedParameters = builder.getInjectionParameters();
+        Map<String, Object> fetchParameters = builder.getFetchByIdsParameters();
         try {
             session = openSession();
-            Query<T> query = session.createQuery(hql);
+            Query idQuery = session.createQuery(idHql);
             for (Map.Entry<String, Object> entry : namedParameters.entrySet()) {
-                query = query.setParameter(entry.getKey(), entry.getValue());
+                idQuery = idQuery.setParameter(entry.getKey(), entry.getValue());
+            }
+            idQuery.setFirstResult(pageStart);
+            idQuery.setMaxResults(pageSize);
+
+            // rows are Object[] when the order by fields are selected along with the id
+            Map<Long, Integer> positions = new LinkedHashMap<>();
+            for (Object row : idQuery.list()) {
+                Long id = (Long) (row instanceof Object[] ? ((Object[]) row)[0] : row);
+                positions.putIfAbsent(id, positions.size());
             }
-            query.setFirstResult(pageStart);
-            query.setMaxResults(pageSize);
 
-            List<T> result = query.list();
+            List<T> result = new ArrayList<>();
+            if (!positions.isEmpty()) {
+                Query<T> fetchQuery = session.createQuery(fetchHql);
+                fetchQuery.setParameterList(HqlQueryBuilder.ROOT_IDS_PARAMETER, positions.keySet());
+                // join with conditions may still refer to the builder parameters
+                for (Map.Entry<String, Object> entry : fetchParameters.entrySet()) {
+                    fetchQuery = fetchQuery.setParameter(entry.getKey(), entry.getValue());
+                }
+                Map<Long, T> fetched = new HashMap<>();
+                for (T entity : fetchQuery.list()) {
+                    fetched.putIfAbsent(entity.getId(), entity);
+                }
+                for (Long id : positions.keySet()) {
+                    if (fetched.containsKey(id)) {
+                        result.add(fetched.get(id));
+                    }
+                }
+            }
 
             if (Objects.nonNull(post)) {
                 return post.processListResult(result);
@@ -165,9 +248,9 @@ public class HqlQueryService implements IHqlQueryService {
             }
         } catch (Exception e) {
             if (e instanceof JDBCException) {
-                LOG.error("JDBCException while executing hql {}", hql, e);
+                LOG.error("JDBCException while executing id-first paged hql {}", fetchHql, e);
             } else if (e instanceof HibernateException) {
-                LOG.error("HibernateException while executing hql {}", hql, e);
+                LOG.error("HibernateException while executing id-first paged hql {}", fetchHql, e);
             }
             throw e;
         } finally {
@@ -448,6 +531,55 @@ public class HqlQueryService implements IHqlQueryService {
         return found.isEmpty() ? null : found.get(0);
     }
 
+    @Override
+    public <T extends BaseEntity> Map<Long, T> findObjectsByIds(Class<T> clazz, Collection<Long> ids) {
+        Map<Long, T> found = new HashMap<>();
+        if (Objects.isNull(ids) || ids.isEmpty()) {
+            return found;
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put("ids", new ArrayList<>(new LinkedHashSet<>(ids)));
+        List<T> result = query("from " + clazz.getName() + " where id in (:ids)", params, null);
+        for (T item : result) {
+            found.put(item.getId(), item);
+        }
+        return found;
+    }
+
+    @Override
+    public <T extends BaseEntity> Map<String, T> findObjectsByNames(Class<T> clazz, Collection<String> names) {
+        Map<String, T> found = new HashMap<>();
+        if (Objects.isNull(names) || names.isEmpty()) {
+            return found;
+        }
+        EntityPersister persister = sfi.getRuntimeMetamodels()
+                .getMappingMetamodel()
+                .getEntityDescriptor(clazz.getName());
+
+        Set<String> lowerNames = new LinkedHashSet<>();
+        for (String name : names) {
+            if (Objects.nonNull(name)) {
+                lowerNames.add(name.toLowerCase(Locale.ROOT));
+            }
+        }
+        StringBuilder hql =
+                new StringBuilder("from " + clazz.getName() + " where lower(name) in (:names)");
+        if (persister.findAttributeMapping("deleted") != null) {
+            hql.append(" and deleted is null");
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put("names", new ArrayList<>(lowerNames));
+        List<T> result = query(hql.toString(), params, null);
+        for (T item : result) {
+            Object name = persister.getPropertyValue(item, "name");
+            if (Objects.nonNull(name)) {
+                // keeps the first match, as findObjectByName does
+                found.putIfAbsent(name.toString().toLowerCase(Locale.ROOT), item);
+            }
+        }
+        return found;
+    }
+
     @Override
     public Object querySingle(String hql) {
         Map<String, Object> namedParameters = new HashMap<>();
@@ -511,25 +643,28 @@ public class HqlQueryService implements IHqlQueryService {
      */
     @Override
     public Object querySingle(String hql, Map<String, Object> params, IQueryPostProcessor post) {
-        Session session = null;
         if (Objects.isNull(params)) {
             LOG.info("query parameters are required, but not provided!");
             return null;
         }
+        Object result = Objects.isNull(coalescer) ? uniqueResult(hql, params)
+                : coalescer.execute(QueryKey.of(hql, params), () -> uniqueResult(hql, params));
+        if (Objects.nonNull(post)) {
+            return post.processFindResult(result);
+        } else {
+            return result;
+        }
+    }
 
+    private Object uniqueResult(String hql, Map<String, Object> params) {
+        Session session = null;
         try {
             session = openSession();
             Query query = session.createQuery(hql);
             for (Map.Entry<String, Object> entry : params.entrySet()) {
                 query = query.setParameter(entry.getKey(), entry.getValue());
             }
-            Object result = query.uniqueResult();
-            if (Objects.nonNull(post)) {
-                return post.processFindResult(result);
-            } else {
-                return result;
-            }
-
+            return query.uniqueResult();
         } catch (Exception e) {
             if (e instanceof JDBCException) {
                 LOG.error("JDBCException during executing hql {}, with parameter cnt {}",
@@ -588,6 +723,54 @@ public class HqlQueryService implements IHqlQueryService {
         return this.query(request.getHql(), request.getParameters());
     }
 
+    @Override
+    public TotalCount approximateCount(Class<? extends BaseEntity> clazz, int cutoff) {
+        String table = ((AbstractEntityPersister) sfi.getMappingMetamodel()
+                .getEntityDescriptor(clazz)).getIdentifierTableName();
+        long estimate = estimate(ESTIMATE_TABLE_SQL, table);
+        if (estimate > cutoff) {
+            return TotalCount.atLeast(cutoff);
+        }
+        Number count = (Number) querySingle("select count(*) from " + clazz.getName());
+        return TotalCount.exact(count.longValue());
+    }
+
+    @Override
+    public TotalCount approximateCount(String sql, int cutoff, Object... params) {
+        long estimate = estimate("EXPLAIN (FORMAT JSON) " + sql, params);
+        if (estimate > cutoff) {
+            return TotalCount.atLeast(cutoff);
+        }
+        List<Object[]> rows = sqlQueryArray("select count(*) from (" + sql + ") as fabric_count", params);
+        return TotalCount.exact(((Number) rows.get(0)[0]).longValue());
+    }
+
+    @Override
+    public long approximateDistinctCount(String hql, Map<String, Object> params) {
+        Session session = null;
+        HyperLogLog sketch = new HyperLogLog();
+        try {
+            session = openSession();
+            Query<Object> query = session.createQuery(hql);
+            for (Map.Entry<String, Object> entry : params.entrySet()) {
+                query = query.setParameter(entry.getKey(), entry.getValue());
+            }
+            try (Stream<Object> results = query.stream()) {
+                results.forEach(sketch::add);
+            }
+            return sketch.cardinality();
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while streaming hql {}", hql, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while streaming hql {}", hql, e);
+            }
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
 
 
     // -- getter && setter --
@@ -595,6 +778,27 @@ public class HqlQueryService implements IHqlQueryService {
         return sfi;
     }
 
+    /**
+     * Enables single-flight execution of identical concurrent reads, see {@link QueryCoalescer}.
+     *
+     * @param coalescer the coalescer shared by the read queries, {@code null} to disable it
+     */
+    @Autowired(required = false)
+    public void setCoalescer(QueryCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Lists the results through the coalescer, if enabled. Each caller receives its own list,
+     * modifiable as without coalescing, the entities of the list are shared.
+     */
+    private <T> List<T> coalesce(QueryKey key, Supplier<List<T>> loader) {
+        if (Objects.isNull(coalescer)) {
+            return loader.get();
+        }
+        return coalescer.execute(key, loader, ArrayList::new);
+    }
+
     private void rollback(Transaction trx) {
         if (Objects.nonNull(trx)) {
             try {
@@ -615,6 +819,31 @@ public class HqlQueryService implements IHqlQueryService {
         }
     }
 
+    /**
+     * Reads a planner row estimate, either from the table statistics or from the top node of
+     * an EXPLAIN plan.
+     *
+     * @return the estimated number of rows, or -1 if the database cannot tell, e.g. the table
+     * was never analyzed or the database is not PostgreSQL
+     */
+    private long estimate(String sql, Object... params) {
+        try {
+            List<Object[]> rows = sqlQueryArray(sql, params);
+            if (rows.isEmpty() || Objects.isNull(rows.get(0)[0])) {
+                return -1;
+            }
+            Object value = rows.get(0)[0];
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            Matcher matcher = PLAN_ROWS.matcher(value.toString());
+            return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+        } catch (HibernateException e) {
+            LOG.debug("Planner estimate not available for sql {}, falling back to count", sql, e);
+            return -1;
+        }
+    }
+
     private List sqlQueryExecute(String sql, int limit,
                                  Object[] params,
                                  RowBuilder builder) {
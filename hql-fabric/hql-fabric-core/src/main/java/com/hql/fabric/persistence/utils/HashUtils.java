@@ -0,0 +1,36 @@
+package com.hql.fabric.persistence.utils;
+
+public class HashUtils {
+    /**
+     * Returns a well spread 64-bit hash of the value, stable across JVMs. Integral numbers are
+     * hashed by value and any other value by its string form (FNV-1a), then the bits are mixed
+     * with the MurmurHash3 finalizer.
+     */
+    public static long hash64(Object value) {
+        long h;
+        if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            h = ((Number) value).longValue();
+        } else {
+            String text = value.toString();
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < text.length(); i++) {
+                h ^= text.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        return mix64(h);
+    }
+
+    /**
+     * MurmurHash3 64-bit finalizer.
+     */
+    public static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,276 @@
+package com.hql.fabric.persistence.writer;
+
+import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.service.IHqlQueryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind buffer for high frequency inserts.
+ * <p>
+ * Entities are accepted into a bounded lock-free queue and persisted by a background flusher
+ * in batches of {@code batchSize} entities, one transaction per batch, via
+ * {@link IHqlQueryService#saveAll(List)}. A flush is triggered as soon as a full batch is
+ * queued, and at least every {@code flushIntervalMillis} for the remaining entities.
+ * <p>
+ * When the queue is full the {@link OverflowPolicy} applies backpressure on the submitter.
+ * Closing the writer stops the flusher and drains the queue on the closing thread.
+ * <p>
+ * Submitted entities are persisted asynchronously: their identifiers are not assigned when
+ * {@link #submit(BaseEntity)} returns, and a failed batch is only reported to the
+ * {@link WriteFailureHandler}.
+ */
+public class WriteBehindWriter implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindWriter.class);
+
+    /**
+     * What {@link #submit(BaseEntity)} does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Waits until the flusher frees room in the queue.
+         */
+        BLOCK,
+        /**
+         * Flushes a batch on the submitting thread, then queues the entity.
+         */
+        CALLER_RUNS,
+        /**
+         * Throws a {@link RejectedExecutionException}.
+         */
+        REJECT
+    }
+
+    private final IHqlQueryService hqlQueryService;
+    private final int capacity;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final WriteFailureHandler failureHandler;
+
+    private final Queue<BaseEntity> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+    // signalled when a batch frees room in the queue, or the writer is closed
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final Condition roomAvailable = roomLock.newCondition();
+
+    private final LongAdder flushedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    /**
+     * @param hqlQueryService     the service persisting the batches
+     * @param capacity            the maximum number of queued entities
+     * @param batchSize           the number of entities persisted per transaction
+     * @param flushIntervalMillis the maximum time an entity waits in the queue, in milliseconds
+     * @param overflowPolicy      what to do when the queue is full
+     * @param failureHandler      notified of the batches which failed, may be {@code null} to
+     *                            only log them
+     */
+    public WriteBehindWriter(IHqlQueryService hqlQueryService, int capacity, int batchSize,
+                             long flushIntervalMillis, OverflowPolicy overflowPolicy,
+                             WriteFailureHandler failureHandler) {
+        if (batchSize <= 0 || capacity < batchSize) {
+            throw new IllegalArgumentException("Expect 0 < batchSize <= capacity, but got batchSize "
+                    + batchSize + " and capacity " + capacity);
+        }
+        this.hqlQueryService = hqlQueryService;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        this.failureHandler = Objects.nonNull(failureHandler) ? failureHandler
+                : (batch, e) -> LOG.error("Dropping {} entities of a failed write-behind batch", batch.size());
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hql-fabric-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis,
+                flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the entity for insertion, applying the overflow policy if the queue is full.
+     *
+     * @param item the entity to insert
+     * @throws RejectedExecutionException if the writer is closed, or the queue is full and
+     *                                    the policy is {@link OverflowPolicy#REJECT}
+     */
+    public <T extends BaseEntity> void submit(T item) {
+        Objects.requireNonNull(item);
+        while (!tryReserve()) {
+            if (closed.get()) {
+                throw new RejectedExecutionException("Write-behind writer is closed");
+            }
+            switch (overflowPolicy) {
+                case REJECT:
+                    throw new RejectedExecutionException("Write-behind queue is full, capacity " + capacity);
+                case CALLER_RUNS:
+                    flushBatch();
+                    break;
+                case BLOCK:
+                default:
+                    requestFlush();
+                    awaitRoom();
+            }
+        }
+        queue.offer(item);
+        if (closed.get()) {
+            // raced with close(), which may have drained the queue already
+            flush();
+        } else if (size.get() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Persists the queued entities on the calling thread.
+     */
+    public void flush() {
+        while (flushBatch() > 0) {
+            // keeps going until the queue is drained
+        }
+    }
+
+    /**
+     * Stops the background flusher and persists the remaining entities on the calling thread.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        signalRoom();
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warn("Write-behind flusher did not terminate in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        LOG.info("Write-behind writer closed, {} entities flushed, {} failed", getFlushedCount(),
+                getFailedCount());
+    }
+
+    // -- getter && setter --
+    public int getQueuedCount() {
+        return size.get();
+    }
+
+    public long getFlushedCount() {
+        return flushedCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    private boolean tryReserve() {
+        while (true) {
+            int current = size.get();
+            if (current >= capacity || closed.get()) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits until the queue has room or the writer is closed.
+     *
+     * @throws RejectedExecutionException if interrupted while waiting
+     */
+    private void awaitRoom() {
+        roomLock.lock();
+        try {
+            while (size.get() >= capacity && !closed.get()) {
+                roomAvailable.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for queue room", e);
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    private void signalRoom() {
+        roomLock.lock();
+        try {
+            roomAvailable.signalAll();
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    private void requestFlush() {
+        if (!closed.get() && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushRequested.set(false);
+                    flushQuietly();
+                });
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOG.error("Unexpected failure while flushing the write-behind queue", e);
+        }
+    }
+
+    /**
+     * Persists up to one batch in its own transaction.
+     *
+     * @return the number of entities taken from the queue
+     */
+    private int flushBatch() {
+        List<BaseEntity> batch = new ArrayList<>(batchSize);
+        BaseEntity item;
+        while (batch.size() < batchSize && Objects.nonNull(item = queue.poll())) {
+            batch.add(item);
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        size.addAndGet(-batch.size());
+        signalRoom();
+        try {
+            hqlQueryService.saveAll(batch);
+            flushedCount.add(batch.size());
+        } catch (Exception e) {
+            failedCount.add(batch.size());
+            try {
+                failureHandler.onFailure(batch, e);
+            } catch (RuntimeException handlerFailure) {
+                LOG.error("Write-behind failure handler failed", handlerFailure);
+            }
+        }
+        return batch.size();
+    }
+}
@@ -0,0 +1,19 @@
+package com.hql.fabric.persistence.writer;
+
+import com.hql.fabric.persistence.entity.BaseEntity;
+
+import java.util.List;
+
+/**
+ * Callback notified when a batch flushed by {@link WriteBehindWriter} could not be persisted.
+ * The transaction of the batch has been rolled back, the handler decides whether its entities
+ * are retried, parked or dropped.
+ */
+@FunctionalInterface
+public interface WriteFailureHandler {
+    /**
+     * @param batch the entities of the failed batch
+     * @param e     the failure
+     */
+    void onFailure(List<BaseEntity> batch, Exception e);
+}
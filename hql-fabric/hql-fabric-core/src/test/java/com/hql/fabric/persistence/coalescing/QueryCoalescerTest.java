@@ -0,0 +1,150 @@
+package com.hql.fabric.persistence.coalescing;
+
+import org.hibernate.HibernateException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueryCoalescerTest {
+    private static final String HQL = "FROM User u WHERE u.email = :email";
+
+    @Test
+    public void testIdenticalQueriesShareOneExecution() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer(5_000);
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(pool.submit(() -> coalescer.execute(
+                        QueryKey.of(HQL, Map.of("email", "a@b.c")), () -> {
+                            executions.incrementAndGet();
+                            await(release);
+                            return List.of("a@b.c");
+                        })));
+            }
+            while (coalescer.getCoalescedCount() < 7) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<List<String>> future : futures) {
+                Assertions.assertEquals(List.of("a@b.c"), future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Assertions.assertEquals(1, executions.get());
+        Assertions.assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    public void testFailureIsSharedWithWaitingCallers() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer(5_000);
+        CountDownLatch release = new CountDownLatch(1);
+        QueryKey key = QueryKey.of(HQL, Map.of("email", "a@b.c"));
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> leader = pool.submit(() -> coalescer.execute(key, () -> {
+                await(release);
+                throw new HibernateException("connection refused");
+            }));
+            while (coalescer.getInFlightCount() == 0) {
+                Thread.sleep(5);
+            }
+            new Thread(() -> {
+                while (coalescer.getCoalescedCount() == 0) {
+                    Thread.onSpinWait();
+                }
+                release.countDown();
+            }).start();
+            HibernateException e = Assertions.assertThrows(HibernateException.class,
+                    () -> coalescer.execute(key, () -> "never executed"));
+            Assertions.assertEquals("connection refused", e.getMessage());
+            Assertions.assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWaitingCallerFallsBackAfterMaxWait() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer(20);
+        CountDownLatch release = new CountDownLatch(1);
+        QueryKey key = QueryKey.of(HQL, "a@b.c");
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            pool.submit(() -> coalescer.execute(key, () -> {
+                await(release);
+                return "slow";
+            }));
+            while (coalescer.getInFlightCount() == 0) {
+                Thread.sleep(5);
+            }
+            Assertions.assertEquals("direct", coalescer.execute(key, () -> "direct"));
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testEachCallerReceivesItsOwnCopy() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer(5_000);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(pool.submit(() -> coalescer.execute(
+                        QueryKey.of(HQL, Map.of("email", "a@b.c")), () -> {
+                            await(release);
+                            return new ArrayList<>(List.of("a@b.c"));
+                        }, ArrayList::new)));
+            }
+            while (coalescer.getCoalescedCount() < 3) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            List<List<String>> results = new ArrayList<>();
+            for (Future<List<String>> future : futures) {
+                results.add(future.get(5, TimeUnit.SECONDS));
+            }
+            // the callers modify their results as without coalescing
+            results.get(0).add("b@c.d");
+            for (int i = 1; i < results.size(); i++) {
+                Assertions.assertNotSame(results.get(0), results.get(i));
+                Assertions.assertEquals(List.of("a@b.c"), results.get(i));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testKeysDifferByParametersAndWindow() {
+        Assertions.assertEquals(QueryKey.of(HQL, Map.of("email", "a")),
+                QueryKey.of(HQL, Map.of("email", "a")));
+        Assertions.assertNotEquals(QueryKey.of(HQL, Map.of("email", "a")),
+                QueryKey.of(HQL, Map.of("email", "b")));
+        Assertions.assertNotEquals(QueryKey.of(HQL, Map.of("email", "a"), 0, 10),
+                QueryKey.of(HQL, Map.of("email", "a"), 10, 10));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.hql.fabric.persistence.id;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IdGeneratorTest {
+
+    @Test
+    public void testSnowflakeIdsIncreaseAndCarryTheirShard() {
+        AtomicLong clock = new AtomicLong(SnowflakeIdGenerator.EPOCH + 1_000);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(3, 2, clock::get);
+        long previous = 0;
+        // more than the 2048 ids of a millisecond, then the clock goes backwards
+        for (int i = 0; i < 5_000; i++) {
+            if (i == 4_000) {
+                clock.addAndGet(-500);
+            }
+            long id = generator.nextId();
+            Assertions.assertTrue(id > previous);
+            Assertions.assertEquals(2, IdGenerator.shardOf(id));
+            previous = id;
+        }
+        clock.addAndGet(10_000);
+        Assertions.assertEquals(clock.get(), SnowflakeIdGenerator.timestampOf(generator.nextId()));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(0, IdGenerator.MAX_SHARDS));
+    }
+
+    @Test
+    public void testConcurrentAllocationsNeverCollide() throws InterruptedException {
+        AtomicLong blocks = new AtomicLong();
+        List<IdGenerator> generators = List.of(new SnowflakeIdGenerator(1, 0),
+                new HiLoIdGenerator(blocks::incrementAndGet, 100, 1));
+        for (IdGenerator generator : generators) {
+            Set<Long> ids = ConcurrentHashMap.newKeySet();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10_000; i++) {
+                        Assertions.assertTrue(ids.add(generator.nextId()));
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assertions.assertEquals(80_000, ids.size());
+        }
+    }
+
+    @Test
+    public void testHiLoAllocatesBlocksLocally() {
+        AtomicLong blocks = new AtomicLong();
+        HiLoIdGenerator generator = new HiLoIdGenerator(blocks::incrementAndGet, 10, 3);
+        Set<Long> values = new HashSet<>();
+        for (int i = 0; i < 25; i++) {
+            long id = generator.nextId();
+            Assertions.assertEquals(3, IdGenerator.shardOf(id));
+            values.add(id >>> IdGenerator.SHARD_BITS);
+        }
+        // one round trip per block of 10
+        Assertions.assertEquals(3, blocks.get());
+        Assertions.assertTrue(values.contains(10L) && values.contains(34L));
+    }
+}
@@ -0,0 +1,111 @@
+package com.hql.fabric.persistence.loader;
+
+import com.hql.fabric.persistence.entity.User;
+import com.hql.fabric.persistence.service.IHqlQueryService;
+import org.hibernate.HibernateException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+
+public class BatchEntityLoaderTest {
+
+    @Test
+    public void testLookupsCollapseIntoOneQueryPerClass() {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        User first = user(1L);
+        User second = user(2L);
+        Mockito.when(service.findObjectsByIds(eq(User.class), any()))
+                .thenReturn(Map.of(1L, first, 2L, second));
+
+        BatchEntityLoader loader = new BatchEntityLoader(service);
+        CompletableFuture<User> f1 = loader.loadById(User.class, 1L);
+        CompletableFuture<User> f2 = loader.loadById(User.class, 2L);
+        CompletableFuture<User> f3 = loader.loadById(User.class, 3L);
+        CompletableFuture<User> again = loader.loadById(User.class, 1L);
+        Assertions.assertFalse(f1.isDone());
+
+        loader.dispatch();
+        Assertions.assertSame(first, f1.join());
+        Assertions.assertSame(second, f2.join());
+        Assertions.assertNull(f3.join());
+        Assertions.assertSame(f1, again);
+        Mockito.verify(service, Mockito.times(1))
+                .findObjectsByIds(User.class, List.of(1L, 2L, 3L));
+
+        // memoized for the lifetime of the loader
+        Assertions.assertSame(first, loader.loadById(User.class, 1L).join());
+        loader.close();
+        Mockito.verifyNoMoreInteractions(service);
+    }
+
+    @Test
+    public void testNamesAreMatchedCaseInsensitively() {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        User admin = user(1L);
+        Mockito.when(service.findObjectsByNames(eq(User.class), any()))
+                .thenReturn(Map.of("admin", admin));
+
+        try (BatchEntityLoader loader = new BatchEntityLoader(service)) {
+            CompletableFuture<User> upper = loader.loadByName(User.class, "ADMIN");
+            CompletableFuture<User> lower = loader.loadByName(User.class, "admin");
+            loader.dispatch();
+            Assertions.assertSame(admin, upper.join());
+            Assertions.assertSame(upper, lower);
+        }
+        Mockito.verify(service).findObjectsByNames(User.class, List.of("admin"));
+    }
+
+    @Test
+    public void testFailureCompletesFuturesAndAllowsReload() {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        User first = user(1L);
+        Mockito.when(service.findObjectsByIds(eq(User.class), any()))
+                .thenThrow(new HibernateException("connection refused"))
+                .thenReturn(Map.of(1L, first));
+
+        BatchEntityLoader loader = new BatchEntityLoader(service);
+        CompletableFuture<User> failed = loader.loadById(User.class, 1L);
+        loader.dispatch();
+        CompletionException e = Assertions.assertThrows(CompletionException.class, failed::join);
+        Assertions.assertInstanceOf(HibernateException.class, e.getCause());
+
+        CompletableFuture<User> reloaded = loader.loadById(User.class, 1L);
+        loader.dispatch();
+        Assertions.assertSame(first, reloaded.join());
+    }
+
+    @Test
+    public void testBatchesAreSplitAndWindowDispatches() throws Exception {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        Mockito.when(service.findObjectsByIds(eq(User.class), any())).thenReturn(Map.of());
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            BatchEntityLoader loader = new BatchEntityLoader(service, scheduler, 10, 2);
+            CompletableFuture<User> last = null;
+            for (long id = 0; id < 5; id++) {
+                last = loader.loadById(User.class, id);
+            }
+            Assertions.assertNull(last.get(5, TimeUnit.SECONDS));
+            Mockito.verify(service, Mockito.times(3)).findObjectsByIds(eq(User.class), any());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static User user(Long id) {
+        User user = new User();
+        user.setId(id);
+        return user;
+    }
+}
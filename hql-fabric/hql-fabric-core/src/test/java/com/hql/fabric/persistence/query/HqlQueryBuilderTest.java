@@ -4,7 +4,9 @@ package com.hql.fabric.persistence.query;
 import com.hql.fabric.HqlFabricCoreTestApp;
 import com.hql.fabric.persistence.entity.Order;
 import com.hql.fabric.persistence.entity.User;
+import com.hql.fabric.persistence.query.exception.HqlBuildException;
 import com.hql.fabric.persistence.query.builder.HqlQueryBuilder;
+import com.hql.fabric.persistence.query.builder.HqlQueryRequest;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
@@ -15,6 +17,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertNull;
@@ -182,4 +185,63 @@ public class HqlQueryBuilderTest {
     public void testGtGe() {
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testIdFirstPaging() {
+        hqlQueryBuilder.fromAs(User.class, "u")
+                .leftJoinFetch("u.orders", "o")
+                .leftJoin("u.groups", "g")
+                .eq("g.name", "admin")
+                .orderBy("u.email", false);
+
+        Assertions.assertEquals("SELECT u.id, u.email " +
+                "FROM com.hql.fabric.persistence.entity.User as u " +
+                "LEFT JOIN u.orders o LEFT JOIN u.groups g " +
+                "WHERE g.name = :_0 GROUP BY u.id, u.email ORDER BY u.email desc, u.id asc",
+                hqlQueryBuilder.buildIdPageQuery());
+        Assertions.assertEquals("SELECT u FROM com.hql.fabric.persistence.entity.User as u " +
+                "LEFT JOIN FETCH u.orders o WHERE u.id in (:rootIds)",
+                hqlQueryBuilder.buildFetchByIdsQuery());
+    }
+
+    @Test
+    public void testIdFirstPagingOfJoinedOrderAndChainedFetch() {
+        hqlQueryBuilder.fromAs(User.class, "u")
+                .leftJoin("u.groups", "g")
+                .leftJoinFetch("g.permissions", "p")
+                .leftJoinWithEq("u.orders", "o", "o.status", "open")
+                .orderBy("g.name", true)
+                .having("count(o) > 1");
+
+        // a user of several groups takes a single position in the page
+        Assertions.assertEquals("SELECT u.id, min(g.name) " +
+                "FROM com.hql.fabric.persistence.entity.User as u " +
+                "LEFT JOIN u.groups g LEFT JOIN g.permissions p LEFT JOIN u.orders o WITH o.status = :_0 " +
+                "GROUP BY u.id having count(o) > 1 ORDER BY min(g.name) asc, u.id asc",
+                hqlQueryBuilder.buildIdPageQuery());
+        // the fetch join chains off g, the join of the orders is left out along with its parameter
+        Assertions.assertEquals("SELECT u FROM com.hql.fabric.persistence.entity.User as u " +
+                "LEFT JOIN u.groups g LEFT JOIN FETCH g.permissions p WHERE u.id in (:rootIds)",
+                hqlQueryBuilder.buildFetchByIdsQuery());
+        Assertions.assertTrue(hqlQueryBuilder.getFetchByIdsParameters().isEmpty());
+
+        hqlQueryBuilder.groupBy("g.name");
+        Assertions.assertThrows(HqlBuildException.class, () -> hqlQueryBuilder.buildIdPageQuery());
+    }
+
+    @Test
+    public void testRequestKeepsStructure() {
+        hqlQueryBuilder.fromAs(User.class, "u")
+                .eq("u.email", "a@b.c")
+                .and()
+                .in("u.id", 1L, 2L);
+
+        HqlQueryRequest request = HqlQueryRequest.from(hqlQueryBuilder);
+        Assertions.assertEquals("FROM com.hql.fabric.persistence.entity.User as u " +
+                "WHERE u.email = :_0 and u.id in (:_1, :_2)", request.getHql());
+        Assertions.assertEquals("u", request.getTables().get(User.class.getName()));
+        Assertions.assertEquals(3, request.getConditions().size());
+        Assertions.assertEquals(List.of("a@b.c"), request.getConditions().get(0).getParameterValues());
+        Assertions.assertEquals(List.of(1L, 2L), request.getConditions().get(2).getParameterValues());
+    }
+}
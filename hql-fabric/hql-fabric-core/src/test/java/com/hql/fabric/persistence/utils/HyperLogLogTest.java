@@ -0,0 +1,48 @@
+package com.hql.fabric.persistence.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void testCardinalityWithinStandardError() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (long i = 0; i < 200_000; i++) {
+            sketch.add(i);
+        }
+        // 0.8% standard error, allow 3 sigma
+        Assertions.assertEquals(200_000, sketch.cardinality(), 200_000 * 0.025);
+    }
+
+    @Test
+    public void testDuplicatesAreNotCounted() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 1_000; i++) {
+                sketch.add("txn-" + i);
+            }
+        }
+        Assertions.assertEquals(1_000, sketch.cardinality(), 1_000 * 0.025);
+    }
+
+    @Test
+    public void testMerge() {
+        HyperLogLog shard0 = new HyperLogLog();
+        HyperLogLog shard1 = new HyperLogLog();
+        for (long i = 0; i < 60_000; i++) {
+            shard0.add(i);
+            shard1.add(i + 30_000);
+        }
+        shard0.merge(shard1);
+        Assertions.assertEquals(90_000, shard0.cardinality(), 90_000 * 0.025);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> shard0.merge(new HyperLogLog(10)));
+    }
+
+    @Test
+    public void testEmptyAndNull() {
+        HyperLogLog sketch = new HyperLogLog();
+        sketch.add(null);
+        Assertions.assertEquals(0, sketch.cardinality());
+    }
+}
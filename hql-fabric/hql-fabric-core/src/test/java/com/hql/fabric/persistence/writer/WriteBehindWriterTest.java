@@ -0,0 +1,144 @@
+package com.hql.fabric.persistence.writer;
+
+import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.entity.User;
+import com.hql.fabric.persistence.service.IHqlQueryService;
+import org.hibernate.HibernateException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyList;
+
+public class WriteBehindWriterTest {
+
+    @Test
+    public void testFlushesBySizeAndDrainsOnClose() {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        Mockito.when(service.saveAll(anyList())).thenAnswer(invocation -> {
+            List<?> batch = invocation.getArgument(0);
+            batchSizes.add(batch.size());
+            return batch;
+        });
+
+        WriteBehindWriter writer = new WriteBehindWriter(service, 1_000, 10, 60_000,
+                WriteBehindWriter.OverflowPolicy.BLOCK, null);
+        for (int i = 0; i < 25; i++) {
+            writer.submit(new User());
+        }
+        writer.close();
+
+        Assertions.assertEquals(25, writer.getFlushedCount());
+        Assertions.assertEquals(25, batchSizes.stream().mapToInt(Integer::intValue).sum());
+        Assertions.assertTrue(batchSizes.stream().allMatch(size -> size <= 10));
+        Assertions.assertThrows(RejectedExecutionException.class, () -> writer.submit(new User()));
+    }
+
+    @Test
+    public void testFlushesByTime() throws Exception {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        CountDownLatch flushed = new CountDownLatch(1);
+        Mockito.when(service.saveAll(anyList())).thenAnswer(invocation -> {
+            flushed.countDown();
+            return invocation.getArgument(0);
+        });
+
+        try (WriteBehindWriter writer = new WriteBehindWriter(service, 100, 50, 20,
+                WriteBehindWriter.OverflowPolicy.BLOCK, null)) {
+            writer.submit(new User());
+            Assertions.assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testOverflowPolicies() {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(service.saveAll(anyList())).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return invocation.getArgument(0);
+        });
+
+        WriteBehindWriter rejecting = new WriteBehindWriter(service, 2, 2, 60_000,
+                WriteBehindWriter.OverflowPolicy.REJECT, null);
+        rejecting.submit(new User());
+        rejecting.submit(new User());
+        // wait for the flusher to take the first batch, it stays blocked in saveAll
+        while (rejecting.getQueuedCount() > 0) {
+            Thread.onSpinWait();
+        }
+        rejecting.submit(new User());
+        rejecting.submit(new User());
+        Assertions.assertThrows(RejectedExecutionException.class, () -> rejecting.submit(new User()));
+        release.countDown();
+        rejecting.close();
+        Assertions.assertEquals(4, rejecting.getFlushedCount());
+
+        IHqlQueryService callerRunsService = Mockito.mock(IHqlQueryService.class);
+        WriteBehindWriter callerRuns = new WriteBehindWriter(callerRunsService, 2, 2, 60_000,
+                WriteBehindWriter.OverflowPolicy.CALLER_RUNS, null);
+        for (int i = 0; i < 9; i++) {
+            callerRuns.submit(new User());
+        }
+        callerRuns.close();
+        Assertions.assertEquals(9, callerRuns.getFlushedCount());
+    }
+
+    @Test
+    public void testBlockingSubmitWaitsForRoom() throws Exception {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(service.saveAll(anyList())).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return invocation.getArgument(0);
+        });
+
+        WriteBehindWriter writer = new WriteBehindWriter(service, 2, 2, 60_000,
+                WriteBehindWriter.OverflowPolicy.BLOCK, null);
+        writer.submit(new User());
+        writer.submit(new User());
+        while (writer.getQueuedCount() > 0) {
+            Thread.onSpinWait();
+        }
+        writer.submit(new User());
+        writer.submit(new User());
+        Thread submitter = new Thread(() -> writer.submit(new User()));
+        submitter.start();
+        // parked on the queue room, not spinning
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (submitter.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assertions.assertEquals(Thread.State.WAITING, submitter.getState());
+        release.countDown();
+        submitter.join(5_000);
+        Assertions.assertFalse(submitter.isAlive());
+        writer.close();
+        Assertions.assertEquals(5, writer.getFlushedCount());
+    }
+
+    @Test
+    public void testFailedBatchesAreReported() {
+        IHqlQueryService service = Mockito.mock(IHqlQueryService.class);
+        Mockito.when(service.saveAll(anyList())).thenThrow(new HibernateException("constraint violation"));
+        List<BaseEntity> failed = Collections.synchronizedList(new ArrayList<>());
+
+        WriteBehindWriter writer = new WriteBehindWriter(service, 100, 10, 60_000,
+                WriteBehindWriter.OverflowPolicy.BLOCK, (batch, e) -> failed.addAll(batch));
+        writer.submit(new User());
+        writer.submit(new User());
+        writer.close();
+
+        Assertions.assertEquals(2, failed.size());
+        Assertions.assertEquals(2, writer.getFailedCount());
+        Assertions.assertEquals(0, writer.getFlushedCount());
+    }
+}
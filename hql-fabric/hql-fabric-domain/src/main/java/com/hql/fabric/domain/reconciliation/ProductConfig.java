@@ -1,5 +1,6 @@
 package com.hql.fabric.domain.reconciliation;
 
+import com.hql.fabric.persistence.entity.Broadcast;
 import com.hql.fabric.persistence.entity.NamedArtifact;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
@@ -15,6 +16,7 @@ import java.util.List;
 @Data
 @Builder
 @Entity
+@Broadcast
 @NoArgsConstructor
 @AllArgsConstructor
 @Table(name = "v2_product_config")
@@ -1,5 +1,6 @@
 package com.hql.fabric.domain.reconciliation;
 
+import com.hql.fabric.persistence.entity.ColocateWith;
 import com.hql.fabric.persistence.entity.NamedArtifact;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
@@ -17,6 +18,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Table(name = "v2_reconciliation_exception")
+@ColocateWith("result")
 public class ReconciliationException extends NamedArtifact {
 
     @ManyToOne
@@ -1,5 +1,6 @@
 package com.hql.fabric.domain.reconciliation;
 
+import com.hql.fabric.persistence.entity.ColocateWith;
 import com.hql.fabric.persistence.entity.NamedArtifact;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
@@ -20,6 +21,7 @@ import java.util.List;
 @NoArgsConstructor
 @AllArgsConstructor
 @Table(name = "v2_reconciliation_result")
+@ColocateWith("batch")
 public class ReconciliationResult extends NamedArtifact {
 
     @ManyToOne
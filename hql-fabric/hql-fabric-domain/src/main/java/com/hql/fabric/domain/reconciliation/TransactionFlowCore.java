@@ -1,5 +1,7 @@
 package com.hql.fabric.domain.reconciliation;
 
+import com.hql.fabric.persistence.entity.ColocateWith;
+import com.hql.fabric.persistence.entity.GlobalIndex;
 import com.hql.fabric.persistence.entity.NamedArtifact;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
@@ -22,6 +24,8 @@ import java.util.List;
 @NoArgsConstructor
 @AllArgsConstructor
 @Table(name = "v2_transaction_flow_core")
+@GlobalIndex({"transactionId", NamedArtifact.NameAttribute})
+@ColocateWith("accountUser")
 public class TransactionFlowCore extends NamedArtifact {
     @Column(name = "transaction_id", unique = true, nullable = false)
     private String transactionId;
@@ -1,62 +1,227 @@
 package com.hql.fabric.sharding.config;
 
 import com.hql.fabric.persistence.config.HqlFabricAutoConfiguration;
-import com.hql.fabric.sharding.router.RouterRegistry;
+import com.hql.fabric.persistence.id.DistributedIdGenerator;
+import com.hql.fabric.persistence.id.IdGenerator;
+import com.hql.fabric.sharding.replica.LagProbe;
+import com.hql.fabric.sharding.replica.Replica;
+import com.hql.fabric.sharding.replica.ReplicaSelector;
+import com.hql.fabric.sharding.router.IdShardRouter;
 import jakarta.persistence.EntityManagerFactory;
 import org.hibernate.SessionFactory;
 import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ResourceLoader;
 import org.springframework.orm.hibernate5.LocalSessionFactoryBuilder;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.persistenceunit.PersistenceManagedTypes;
+import org.springframework.orm.jpa.persistenceunit.PersistenceManagedTypesScanner;
 import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
 
 import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Configuration
 @ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
 @AutoConfigureAfter(HqlFabricAutoConfiguration.class)
 public class ShardingAutoConfiguration {
 
+    private static final Logger LOG = LoggerFactory.getLogger(ShardingAutoConfiguration.class);
+    private static final String DOMAIN_PACKAGE = "com.hql.fabric.domain";
+
     private final ShardingProperties shardingProperties;
+    private final ResourceLoader resourceLoader;
+    private PersistenceManagedTypes managedTypes;
 
-    public ShardingAutoConfiguration(ShardingProperties shardingProperties) {
+    public ShardingAutoConfiguration(ShardingProperties shardingProperties, ResourceLoader resourceLoader) {
         this.shardingProperties = shardingProperties;
+        this.resourceLoader = resourceLoader;
     }
 
+    /**
+     * The session factories of the shards, built in parallel from the entities scanned once.
+     */
     @Bean
     public Map<String, SessionFactoryImplementor> shardSessionFactoryMap() {
         Map<String, DataSource> dataSourceMap = shardingProperties.buildDataSourceMap();
-        Map<String, SessionFactoryImplementor> factoryMap = new HashMap<>();
-
+        Map<String, Callable<SessionFactoryImplementor>> builds = new HashMap<>();
         for (Map.Entry<String, DataSource> entry : dataSourceMap.entrySet()) {
             String shardKey = entry.getKey();
-            DataSource dataSource = entry.getValue();
-
-            LocalContainerEntityManagerFactoryBean emfBean =
-                    new LocalContainerEntityManagerFactoryBean();
-            emfBean.setDataSource(dataSource);
-            emfBean.setPackagesToScan("com.hql.fabric.domain");
-            emfBean.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
-            emfBean.setPersistenceUnitName("shard-" + shardKey);
-            emfBean.afterPropertiesSet();
-
-            EntityManagerFactory emf = emfBean.getObject();
-            if (Objects.isNull(emf)) {
-                throw new IllegalStateException("EntityManagerFactory is null for shard: " + shardKey);
+            builds.put(shardKey, () -> buildSessionFactory("shard-" + shardKey, entry.getValue(), shardKey));
+        }
+        return buildAll(builds);
+    }
+
+    /**
+     * The read replicas of the shards, the reads of a shard without replicas go to its primary.
+     */
+    @Bean
+    public ReplicaSelector replicaSelector() {
+        Map<String, Callable<SessionFactoryImplementor>> builds = new HashMap<>();
+        for (Map.Entry<String, List<DataSourceProperties>> entry : shardingProperties.getReplicas().entrySet()) {
+            String shardKey = entry.getKey();
+            if (!shardingProperties.getDatasources().containsKey(shardKey)) {
+                throw new IllegalStateException("Replicas declared for unknown shard: " + shardKey);
+            }
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                String name = replicaName(shardKey, i);
+                DataSourceProperties properties = entry.getValue().get(i);
+                builds.put(name, () -> buildSessionFactory(name,
+                        properties.initializeDataSourceBuilder().build(), shardKey));
             }
+        }
+        Map<String, SessionFactoryImplementor> factories = buildAll(builds);
 
-            SessionFactoryImplementor sessionFactory =
-                    emf.unwrap(SessionFactoryImplementor.class);
-            factoryMap.put(shardKey, sessionFactory);
+        Map<String, List<Replica>> replicas = new HashMap<>();
+        for (Map.Entry<String, List<DataSourceProperties>> entry : shardingProperties.getReplicas().entrySet()) {
+            List<Replica> shardReplicas = new ArrayList<>();
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                String name = replicaName(entry.getKey(), i);
+                shardReplicas.add(new Replica(name, entry.getKey(), factories.get(name)));
+            }
+            replicas.put(entry.getKey(), shardReplicas);
         }
+        ShardingProperties.Replication replication = shardingProperties.getReplication();
+        return new ReplicaSelector(replicas, replication.getMaxLagMs(),
+                replication.getLagCheckIntervalMs(), LagProbe.postgres());
+    }
+
+    private static String replicaName(String shardKey, int index) {
+        return "shard-" + shardKey + "-replica-" + index;
+    }
 
+    /**
+     * Runs the builds on a pool of {@code bootstrap.parallelism} threads, so that the startup
+     * time tracks the slowest build rather than their sum.
+     *
+     * @param builds the build of each session factory, by name
+     * @return the session factories, by name
+     */
+    private Map<String, SessionFactoryImplementor> buildAll(Map<String, Callable<SessionFactoryImplementor>> builds) {
+        Map<String, SessionFactoryImplementor> factoryMap = new HashMap<>();
+        if (builds.isEmpty()) {
+            return factoryMap;
+        }
+        long start = System.nanoTime();
+        int parallelism = shardingProperties.getBootstrap().getParallelism();
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, builds.size()), r -> {
+            Thread thread = new Thread(r, "hql-fabric-bootstrap-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Future<SessionFactoryImplementor>> futures = new HashMap<>();
+        try {
+            for (Map.Entry<String, Callable<SessionFactoryImplementor>> build : builds.entrySet()) {
+                futures.put(build.getKey(), pool.submit(build.getValue()));
+            }
+            for (Map.Entry<String, Future<SessionFactoryImplementor>> future : futures.entrySet()) {
+                factoryMap.put(future.getKey(), future.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            closeBuilt(futures.values());
+            throw new IllegalStateException("Cannot build the session factories " + builds.keySet(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+            closeBuilt(futures.values());
+            throw new IllegalStateException("Interrupted while building the session factories " + builds.keySet(), e);
+        } finally {
+            pool.shutdown();
+        }
+        LOG.info("Built the session factories {} in {} ms", builds.keySet(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         return factoryMap;
     }
 
+    /**
+     * Closes the session factories whose build completed, whichever build failed first.
+     */
+    private static void closeBuilt(Collection<Future<SessionFactoryImplementor>> futures) {
+        for (Future<SessionFactoryImplementor> future : futures) {
+            if (!future.isDone() || future.isCancelled()) {
+                continue;
+            }
+            try {
+                future.get().close();
+            } catch (ExecutionException e) {
+                // this build failed, nothing to close
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOG.warn("Cannot close a session factory built before the failure", e);
+            }
+        }
+    }
+
+    /**
+     * The entities of the shards, scanned once for all the session factories.
+     */
+    private synchronized PersistenceManagedTypes managedTypes() {
+        if (Objects.isNull(managedTypes)) {
+            managedTypes = new PersistenceManagedTypesScanner(resourceLoader).scan(DOMAIN_PACKAGE);
+        }
+        return managedTypes;
+    }
+
+    private SessionFactoryImplementor buildSessionFactory(String unitName, DataSource dataSource, String shardKey) {
+        LocalContainerEntityManagerFactoryBean emfBean =
+                new LocalContainerEntityManagerFactoryBean();
+        emfBean.setDataSource(dataSource);
+        emfBean.setManagedTypes(managedTypes());
+        emfBean.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        emfBean.setPersistenceUnitName(unitName);
+        emfBean.setJpaPropertyMap(idSettings(shardKey));
+        emfBean.afterPropertiesSet();
+
+        EntityManagerFactory emf = emfBean.getObject();
+        if (Objects.isNull(emf)) {
+            throw new IllegalStateException("EntityManagerFactory is null for: " + unitName);
+        }
+        return emf.unwrap(SessionFactoryImplementor.class);
+    }
+
+    /**
+     * Settings of the {@link DistributedIdGenerator} of a shard: its identifiers embed the
+     * index of the shard in the sorted shard names, which is how {@link IdShardRouter} finds
+     * them.
+     */
+    private Map<String, Object> idSettings(String shardKey) {
+        List<String> shardNames = new ArrayList<>(shardingProperties.getDatasources().keySet());
+        Collections.sort(shardNames);
+        if (shardNames.size() > IdGenerator.MAX_SHARDS) {
+            throw new IllegalStateException("Identifiers embed at most " + IdGenerator.MAX_SHARDS
+                    + " shards, but got " + shardNames.size());
+        }
+        ShardingProperties.Ids ids = shardingProperties.getIds();
+        Map<String, Object> settings = new HashMap<>();
+        settings.put(DistributedIdGenerator.STRATEGY, ids.getStrategy());
+        settings.put(DistributedIdGenerator.SHARD, shardNames.indexOf(shardKey));
+        settings.put(DistributedIdGenerator.NODE, ids.getNode());
+        settings.put(DistributedIdGenerator.BLOCK_SIZE, ids.getBlockSize());
+        return settings;
+    }
 }
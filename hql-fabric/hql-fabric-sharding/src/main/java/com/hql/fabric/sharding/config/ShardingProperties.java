@@ -1,13 +1,18 @@
 package com.hql.fabric.sharding.config;
 
+import org.springframework.beans.BeanUtils;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
 import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 @Configuration
 @ConfigurationProperties(prefix = "hql.fabric.sharding")
@@ -15,7 +20,25 @@ import java.util.Map;
 public class ShardingProperties {
     private boolean enabled;
     private int shardCount;
+    private String strategy = "hash";
+    // property of the entities the routers hash, overridden per entity by shardKeys
+    private String shardKey = "id";
+    private Map<String, String> shardKeys = new HashMap<>();
+    private Ring ring = new Ring();
+    private Range range = new Range();
+    private Time time = new Time();
+    private Tag tag = new Tag();
     private Map<String, DataSourceProperties> datasources;
+    // read replicas of each shard, optional
+    private Map<String, List<DataSourceProperties>> replicas = new HashMap<>();
+    private Replication replication = new Replication();
+    private Ids ids = new Ids();
+    private Bootstrap bootstrap = new Bootstrap();
+    private Directory directory = new Directory();
+    // @ManyToOne property leading to the parent of each co-located entity, overriding @ColocateWith,
+    // which the entities with a shardKeys entry ignore
+    private Map<String, String> colocation = new HashMap<>();
+    private Rebalance rebalance = new Rebalance();
 
 
     public Map<String, DataSource> buildDataSourceMap() {
@@ -29,6 +52,31 @@ public class ShardingProperties {
         return result;
     }
 
+    /**
+     * @return the shards the hash routers spread the keys over, in sorted order: the
+     * configured shards but the standby ones
+     */
+    public List<String> getShardNames() {
+        List<String> names = Objects.nonNull(datasources) ? new ArrayList<>(datasources.keySet()) : new ArrayList<>();
+        names.removeAll(rebalance.getStandbyShards());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * @return a copy of these settings routing over the standby shards too, e.g. to build
+     * the router of a rebalance adding them
+     */
+    public ShardingProperties withStandbyShardsPromoted() {
+        ShardingProperties copy = new ShardingProperties();
+        BeanUtils.copyProperties(this, copy);
+        Rebalance promoted = new Rebalance();
+        BeanUtils.copyProperties(rebalance, promoted);
+        promoted.setStandbyShards(List.of());
+        copy.setRebalance(promoted);
+        return copy;
+    }
+
     // Getters and Setters
     public boolean isEnabled() {
         return enabled;
@@ -46,6 +94,70 @@ public class ShardingProperties {
         this.shardCount = shardCount;
     }
 
+    public String getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(String strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param tableName the simple entity name
+     * @return the shard key property of the entity
+     */
+    public String getShardKey(String tableName) {
+        return shardKeys.getOrDefault(tableName, shardKey);
+    }
+
+    public String getShardKey() {
+        return shardKey;
+    }
+
+    public void setShardKey(String shardKey) {
+        this.shardKey = shardKey;
+    }
+
+    public Map<String, String> getShardKeys() {
+        return shardKeys;
+    }
+
+    public void setShardKeys(Map<String, String> shardKeys) {
+        this.shardKeys = shardKeys;
+    }
+
+    public Ring getRing() {
+        return ring;
+    }
+
+    public void setRing(Ring ring) {
+        this.ring = ring;
+    }
+
+    public Range getRange() {
+        return range;
+    }
+
+    public void setRange(Range range) {
+        this.range = range;
+    }
+
+    public Time getTime() {
+        return time;
+    }
+
+    public void setTime(Time time) {
+        this.time = time;
+    }
+
+    public Tag getTag() {
+        return tag;
+    }
+
+    public void setTag(Tag tag) {
+        this.tag = tag;
+    }
+
     public Map<String, DataSourceProperties> getDatasources() {
         return datasources;
     }
@@ -53,4 +165,381 @@ public class ShardingProperties {
     public void setDatasources(Map<String, DataSourceProperties> datasources) {
         this.datasources = datasources;
     }
-}
\ No newline at end of file
+
+    public Map<String, List<DataSourceProperties>> getReplicas() {
+        return replicas;
+    }
+
+    public void setReplicas(Map<String, List<DataSourceProperties>> replicas) {
+        this.replicas = replicas;
+    }
+
+    public Replication getReplication() {
+        return replication;
+    }
+
+    public void setReplication(Replication replication) {
+        this.replication = replication;
+    }
+
+    public Ids getIds() {
+        return ids;
+    }
+
+    public void setIds(Ids ids) {
+        this.ids = ids;
+    }
+
+    public Bootstrap getBootstrap() {
+        return bootstrap;
+    }
+
+    public void setBootstrap(Bootstrap bootstrap) {
+        this.bootstrap = bootstrap;
+    }
+
+    public Directory getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(Directory directory) {
+        this.directory = directory;
+    }
+
+    public Map<String, String> getColocation() {
+        return colocation;
+    }
+
+    public void setColocation(Map<String, String> colocation) {
+        this.colocation = colocation;
+    }
+
+    public Rebalance getRebalance() {
+        return rebalance;
+    }
+
+    public void setRebalance(Rebalance rebalance) {
+        this.rebalance = rebalance;
+    }
+
+    /**
+     * Settings of the consistent-hash ring, {@code strategy: consistent-hash}.
+     */
+    public static class Ring {
+        // points of a shard of weight 1
+        private int virtualNodes = 160;
+        // weight of each shard, 1 if absent
+        private Map<String, Integer> weights = new HashMap<>();
+
+        public Map<String, Integer> buildWeightMap(Iterable<String> shardNames) {
+            Map<String, Integer> result = new HashMap<>();
+            for (String shardName : shardNames) {
+                result.put(shardName, weights.getOrDefault(shardName, 1));
+            }
+            return result;
+        }
+
+        public int getVirtualNodes() {
+            return virtualNodes;
+        }
+
+        public void setVirtualNodes(int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+        }
+
+        public Map<String, Integer> getWeights() {
+            return weights;
+        }
+
+        public void setWeights(Map<String, Integer> weights) {
+            this.weights = weights;
+        }
+    }
+
+    /**
+     * Settings of the numeric ranges, {@code strategy: range}.
+     */
+    public static class Range {
+        // first shard key value of each shard
+        private Map<String, Long> lowerBounds = new HashMap<>();
+
+        public Map<String, Long> getLowerBounds() {
+            return lowerBounds;
+        }
+
+        public void setLowerBounds(Map<String, Long> lowerBounds) {
+            this.lowerBounds = lowerBounds;
+        }
+    }
+
+    /**
+     * Settings of the time ranges, {@code strategy: time}.
+     */
+    public static class Time {
+        // first instant of each shard, ISO date or instant
+        private Map<String, String> lowerBounds = new HashMap<>();
+
+        public Map<String, String> getLowerBounds() {
+            return lowerBounds;
+        }
+
+        public void setLowerBounds(Map<String, String> lowerBounds) {
+            this.lowerBounds = lowerBounds;
+        }
+    }
+
+    /**
+     * Settings of the tags, {@code strategy: tag}.
+     */
+    public static class Tag {
+        // shard of each tag
+        private Map<String, String> tags = new HashMap<>();
+        // additional shards of each tag, its rows spread over its shard and these by spreadKey
+        private Map<String, List<String>> overflow = new HashMap<>();
+        // property of the root entities spreading the rows of a tag over its shards, required
+        // with overflow
+        private String spreadKey;
+        // tag whose shards each unmapped tag falls back to
+        private Map<String, String> fallbacks = new HashMap<>();
+        // shard of the untagged values, every shard if absent
+        private String defaultShard;
+
+        public Map<String, String> getTags() {
+            return tags;
+        }
+
+        public void setTags(Map<String, String> tags) {
+            this.tags = tags;
+        }
+
+        public Map<String, List<String>> getOverflow() {
+            return overflow;
+        }
+
+        public void setOverflow(Map<String, List<String>> overflow) {
+            this.overflow = overflow;
+        }
+
+        public String getSpreadKey() {
+            return spreadKey;
+        }
+
+        public void setSpreadKey(String spreadKey) {
+            this.spreadKey = spreadKey;
+        }
+
+        public Map<String, String> getFallbacks() {
+            return fallbacks;
+        }
+
+        public void setFallbacks(Map<String, String> fallbacks) {
+            this.fallbacks = fallbacks;
+        }
+
+        public String getDefaultShard() {
+            return defaultShard;
+        }
+
+        public void setDefaultShard(String defaultShard) {
+            this.defaultShard = defaultShard;
+        }
+    }
+
+    /**
+     * Settings of the read replicas.
+     */
+    public static class Replication {
+        // lag above which a replica is skipped
+        private long maxLagMs = 5000;
+        // delay between two measures of the lags
+        private long lagCheckIntervalMs = 1000;
+
+        public long getMaxLagMs() {
+            return maxLagMs;
+        }
+
+        public void setMaxLagMs(long maxLagMs) {
+            this.maxLagMs = maxLagMs;
+        }
+
+        public long getLagCheckIntervalMs() {
+            return lagCheckIntervalMs;
+        }
+
+        public void setLagCheckIntervalMs(long lagCheckIntervalMs) {
+            this.lagCheckIntervalMs = lagCheckIntervalMs;
+        }
+    }
+
+    /**
+     * Settings of the identifier generators of the shards, the index of each shard in the
+     * sorted shard names is embedded in its identifiers.
+     */
+    public static class Ids {
+        // snowflake or hilo
+        private String strategy = "snowflake";
+        // snowflake only, index of this application node
+        private int node;
+        // hilo only, identifiers per block
+        private int blockSize = 1000;
+
+        public String getStrategy() {
+            return strategy;
+        }
+
+        public void setStrategy(String strategy) {
+            this.strategy = strategy;
+        }
+
+        public int getNode() {
+            return node;
+        }
+
+        public void setNode(int node) {
+            this.node = node;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public void setBlockSize(int blockSize) {
+            this.blockSize = blockSize;
+        }
+    }
+
+    /**
+     * Settings of the startup of the shards.
+     */
+    public static class Bootstrap {
+        // session factories built at the same time, the available processors if not positive
+        private int parallelism;
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+    }
+
+    /**
+     * Settings of the shard directory, routing the listed entities by a lookup table.
+     */
+    public static class Directory {
+        private boolean enabled;
+        // simple names of the entities routed by the directory
+        private List<String> tables = new ArrayList<>();
+        // metadata datasource holding the directory table
+        private DataSourceProperties datasource = new DataSourceProperties();
+        private String table = "hql_fabric_shard_directory";
+        // keys held in memory at most
+        private int cacheSize = 1_000_000;
+        // loads the whole directory into the cache at startup
+        private boolean preload = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<String> getTables() {
+            return tables;
+        }
+
+        public void setTables(List<String> tables) {
+            this.tables = tables;
+        }
+
+        public DataSourceProperties getDatasource() {
+            return datasource;
+        }
+
+        public void setDatasource(DataSourceProperties datasource) {
+            this.datasource = datasource;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public void setTable(String table) {
+            this.table = table;
+        }
+
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+
+        public boolean isPreload() {
+            return preload;
+        }
+
+        public void setPreload(boolean preload) {
+            this.preload = preload;
+        }
+    }
+
+    /**
+     * Settings of the online rebalance, see {@code ShardRebalancer}.
+     */
+    public static class Rebalance {
+        private boolean enabled;
+        // configured shards the routers skip until a rebalance moves rows to them
+        private List<String> standbyShards = new ArrayList<>();
+        // rows read per keyset page and written per batch
+        private int batchSize = 1000;
+        // copies of a moved range before the rebalance fails on a checksum mismatch
+        private int verifyAttempts = 3;
+        // whether the moved rows are deleted from their source shard once routed to their target
+        private boolean deleteMovedRows = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<String> getStandbyShards() {
+            return standbyShards;
+        }
+
+        public void setStandbyShards(List<String> standbyShards) {
+            this.standbyShards = standbyShards;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public int getVerifyAttempts() {
+            return verifyAttempts;
+        }
+
+        public void setVerifyAttempts(int verifyAttempts) {
+            this.verifyAttempts = verifyAttempts;
+        }
+
+        public boolean isDeleteMovedRows() {
+            return deleteMovedRows;
+        }
+
+        public void setDeleteMovedRows(boolean deleteMovedRows) {
+            this.deleteMovedRows = deleteMovedRows;
+        }
+    }
+}
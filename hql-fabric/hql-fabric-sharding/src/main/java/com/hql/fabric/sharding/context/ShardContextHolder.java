@@ -1,24 +1,31 @@
 package com.hql.fabric.sharding.context;
 
 import com.hql.fabric.persistence.entity.NamedArtifact;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-public class ShardContextHolder {
-    private static final Logger LOG = LoggerFactory.getLogger(ShardContextHolder.class);
+import java.util.Objects;
 
-    private static final ThreadLocal<NamedArtifact> CONTEXT = new ThreadLocal<>();
+/**
+ * @deprecated the entity set here stays on the thread until {@link #clear()}, and is not seen
+ * by the shard threads; open a {@link ShardRoutingContext} scope instead.
+ */
+@Deprecated
+public class ShardContextHolder {
 
     public static void setCurrentEntity(NamedArtifact entity) {
-        CONTEXT.set(entity);
+        if (Objects.isNull(entity)) {
+            clear();
+            return;
+        }
+        ShardRoutingContext.ofEntity(entity).open();
     }
 
     public static NamedArtifact getCurrentEntity() {
-        return CONTEXT.get();
+        ShardRoutingContext context = ShardRoutingContext.current();
+        return Objects.nonNull(context) ? context.getEntity() : null;
     }
 
     public static void clear() {
-        CONTEXT.remove();
+        ShardRoutingContext.reset();
     }
 
 }
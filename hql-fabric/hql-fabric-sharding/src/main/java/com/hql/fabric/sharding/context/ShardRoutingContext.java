@@ -0,0 +1,134 @@
+package com.hql.fabric.sharding.context;
+
+import com.hql.fabric.persistence.entity.NamedArtifact;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Immutable routing context of the queries of a scope: the entity whose shard key value
+ * routes them, or the shard they are pinned to.
+ * <pre>
+ * try (ShardRoutingContext.Scope scope = ShardRoutingContext.ofEntity(user).open()) {
+ *     service.query(hql, params); // runs on the shard of the user
+ * }
+ * </pre>
+ * Closing the scope restores the context it replaced, so a pooled or virtual thread never
+ * keeps the context of a former request. The thread holds a single reference to the current
+ * context, which the {@code ShardQueryExecutor} hands over to the shard tasks it runs.
+ */
+public final class ShardRoutingContext {
+    private static final ThreadLocal<ShardRoutingContext> CURRENT = new ThreadLocal<>();
+
+    private final NamedArtifact entity;
+    private final String shard;
+
+    private ShardRoutingContext(NamedArtifact entity, String shard) {
+        this.entity = entity;
+        this.shard = shard;
+    }
+
+    /**
+     * @param entity the entity whose shard key value routes the queries
+     */
+    public static ShardRoutingContext ofEntity(NamedArtifact entity) {
+        return new ShardRoutingContext(Objects.requireNonNull(entity, "entity"), null);
+    }
+
+    /**
+     * @param shard the shard the queries are pinned to, whatever their router
+     */
+    public static ShardRoutingContext ofShard(String shard) {
+        return new ShardRoutingContext(null, Objects.requireNonNull(shard, "shard"));
+    }
+
+    /**
+     * @return the context of the current thread, {@code null} if none
+     */
+    public static ShardRoutingContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes this context the current one of the thread until the scope is closed.
+     *
+     * @return the scope, to close on the thread which opened it
+     */
+    public Scope open() {
+        Scope scope = new Scope(CURRENT.get());
+        CURRENT.set(this);
+        return scope;
+    }
+
+    /**
+     * Runs the call in the given context, so that a task handed over to another thread is
+     * routed like the thread which submitted it.
+     *
+     * @param context the context, {@code null} to run the call outside of any
+     * @param call    the call
+     * @return the result of the call
+     */
+    public static <R> R callWith(ShardRoutingContext context, Supplier<R> call) {
+        ShardRoutingContext outer = CURRENT.get();
+        if (outer == context) {
+            return call.get();
+        }
+        set(context);
+        try {
+            return call.get();
+        } finally {
+            set(outer);
+        }
+    }
+
+    /**
+     * @return the entity routing the queries, {@code null} if the context pins a shard
+     */
+    public NamedArtifact getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return the shard the queries are pinned to, {@code null} if the context binds an entity
+     */
+    public String getShard() {
+        return shard;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.nonNull(shard) ? "ShardRoutingContext{shard=" + shard + "}"
+                : "ShardRoutingContext{entity=" + entity + "}";
+    }
+
+    /**
+     * Drops the context of the current thread, whatever the scopes still open.
+     */
+    static void reset() {
+        CURRENT.remove();
+    }
+
+    private static void set(ShardRoutingContext context) {
+        if (Objects.nonNull(context)) {
+            CURRENT.set(context);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * The lifetime of a context on a thread.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final ShardRoutingContext previous;
+
+        private Scope(ShardRoutingContext previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            set(previous);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.hql.fabric.sharding.context;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Scope of the read-your-writes guarantee of the replicas: once a shard is written in a unit
+ * of work, the reads of that unit of work on the shard go to its primary instead of a
+ * replica which may not have replayed the write yet.
+ * <pre>
+ * try (UnitOfWork unit = UnitOfWork.begin()) {
+ *     service.saveAll(users);
+ *     service.query(hql, params); // reads the shards of the users from their primary
+ * }
+ * </pre>
+ * A unit of work begun inside another one joins it. Outside of a unit of work, reads go to
+ * the replicas whatever was written before.
+ */
+public final class UnitOfWork implements AutoCloseable {
+    private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+
+    private final UnitOfWork previous;
+    // shared with the units of work joining this one, written by the shard threads
+    private final Set<String> writtenShards;
+
+    private UnitOfWork(UnitOfWork previous) {
+        this.previous = previous;
+        this.writtenShards = Objects.nonNull(previous) ? previous.writtenShards : ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Begins a unit of work on the current thread, or joins the current one.
+     *
+     * @return the unit of work, to close when it ends
+     */
+    public static UnitOfWork begin() {
+        UnitOfWork unit = new UnitOfWork(CURRENT.get());
+        CURRENT.set(unit);
+        return unit;
+    }
+
+    /**
+     * @return the unit of work of the current thread, {@code null} if none
+     */
+    public static UnitOfWork current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Records a write on the shard in the current unit of work, if any.
+     */
+    public static void markWritten(String shard) {
+        UnitOfWork unit = CURRENT.get();
+        if (Objects.nonNull(unit)) {
+            unit.writtenShards.add(shard);
+        }
+    }
+
+    /**
+     * @return whether the current unit of work wrote the shard
+     */
+    public static boolean isWritten(String shard) {
+        UnitOfWork unit = CURRENT.get();
+        return Objects.nonNull(unit) && unit.writtenShards.contains(shard);
+    }
+
+    /**
+     * Runs the call in the given unit of work, so that a task handed over to another thread
+     * sees the writes of the thread which submitted it.
+     *
+     * @param unit the unit of work, {@code null} to run the call outside of any
+     * @param call the call
+     * @return the result of the call
+     */
+    public static <R> R callWith(UnitOfWork unit, Supplier<R> call) {
+        UnitOfWork outer = CURRENT.get();
+        if (outer == unit) {
+            return call.get();
+        }
+        CURRENT.set(unit);
+        try {
+            return call.get();
+        } finally {
+            if (Objects.nonNull(outer)) {
+                CURRENT.set(outer);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (Objects.nonNull(previous)) {
+            CURRENT.set(previous);
+        } else {
+            CURRENT.remove();
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.hql.fabric.sharding.executor;
+
+import com.hql.fabric.sharding.context.ShardRoutingContext;
+import com.hql.fabric.sharding.context.UnitOfWork;
+import com.hql.fabric.sharding.replica.Replica;
+import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs the reads of a shard on its replicas, hedging the slow ones.
+ * <p>
+ * A hedged read runs off the calling thread, which waits for the first attempt to return.
+ * Once the read has run longer than the recent {@code percentile} latency of the shard, the
+ * same read is sent to another replica, or to the primary if the shard has no other replica
+ * in bound. The first attempt to return completes the read and the query of the other one is
+ * cancelled; the read fails once both attempts failed. Reads on the primary of a shard,
+ * because it has no replica or because the current unit of work wrote it, are not hedged and
+ * run on the calling thread.
+ * <p>
+ * Every read earns {@code budget-ratio} of a hedge, up to {@code burst} hedges, so that the
+ * hedges add at most that ratio of reads when a shard slows down as a whole.
+ */
+@Component
+@ConditionalOnExpression("${hql.fabric.sharding.enabled:false} and ${hql.fabric.sharding.hedge.enabled:false}")
+public class HedgedReadExecutor implements DisposableBean {
+    private static final Logger LOG = LoggerFactory.getLogger(HedgedReadExecutor.class);
+
+    private final ShardedSessionResolver sessionResolver;
+    private final ScheduledThreadPoolExecutor hedger;
+    // runs the attempts of the hedged reads, the hedger only launches them
+    private final ThreadPoolExecutor readers;
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final int windowSize;
+    private final double percentile;
+    private final int minSamples;
+    private final long minDelayNanos;
+    private final double budgetRatio;
+    private final double burst;
+    private final Object budgetLock = new Object();
+    private double budget;
+
+    public HedgedReadExecutor(ShardedSessionResolver sessionResolver,
+                              @Value("${hql.fabric.sharding.hedge.percentile:95}") double percentile,
+                              @Value("${hql.fabric.sharding.hedge.min-delay-ms:5}") long minDelayMillis,
+                              @Value("${hql.fabric.sharding.hedge.window:256}") int windowSize,
+                              @Value("${hql.fabric.sharding.hedge.min-samples:32}") int minSamples,
+                              @Value("${hql.fabric.sharding.hedge.budget-ratio:0.05}") double budgetRatio,
+                              @Value("${hql.fabric.sharding.hedge.burst:10}") int burst,
+                              @Value("${hql.fabric.sharding.hedge.pool-size:4}") int poolSize) {
+        this.sessionResolver = sessionResolver;
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.windowSize = windowSize;
+        this.minSamples = minSamples;
+        this.budgetRatio = budgetRatio;
+        this.burst = burst;
+        this.budget = burst;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.hedger = new ScheduledThreadPoolExecutor(poolSize, r -> {
+            Thread thread = new Thread(r, "hql-fabric-hedge-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hedger.setRemoveOnCancelPolicy(true);
+        AtomicInteger readerIndex = new AtomicInteger();
+        // unbounded: each hedged read holds at most two threads while its caller waits
+        this.readers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "hql-fabric-read-" + readerIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the read on a replica of the shard, or on its primary.
+     *
+     * @param shard the shard to read
+     * @param work  the read, receiving a session it must not close
+     * @return the result of the attempt which returned first
+     */
+    public <R> R read(String shard, Function<Session, R> work) {
+        Replica replica = sessionResolver.selectReplica(shard).orElse(null);
+        LatencyWindow window = latencies.computeIfAbsent(shard,
+                s -> new LatencyWindow(windowSize, percentile, minSamples));
+        Attempt<R> first = new Attempt<>(shard, replica, work, window);
+        long delayNanos = window.percentileNanos();
+        if (Objects.isNull(replica) || delayNanos < 0) {
+            return first.run();
+        }
+        deposit();
+
+        // the attempts are routed like the caller and see the writes of its unit of work
+        ShardRoutingContext context = ShardRoutingContext.current();
+        UnitOfWork unit = UnitOfWork.current();
+        Hedge<R> hedge = new Hedge<>(first, context, unit);
+        try {
+            readers.execute(hedge::runFirst);
+        } catch (RejectedExecutionException e) {
+            first.release();
+            throw new HibernateException("Cannot read shard " + shard + ", the executor is shut down", e);
+        }
+        try {
+            hedge.timer = hedger.schedule(() -> launch(hedge), Math.max(delayNanos, minDelayNanos),
+                    TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            hedge.close();
+        }
+        try {
+            return hedge.outcome.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            first.cancel();
+            hedge.cancel();
+            throw new HibernateException("Interrupted while reading shard " + shard, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new HibernateException("Read of shard " + shard + " failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        hedger.shutdownNow();
+        readers.shutdownNow();
+    }
+
+    private <R> void launch(Hedge<R> hedge) {
+        try {
+            readers.execute(hedge);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Executor shut down, not hedging the read of shard {}", hedge.first.shard, e);
+            hedge.close();
+        }
+    }
+
+    private void deposit() {
+        synchronized (budgetLock) {
+            budget = Math.min(burst, budget + budgetRatio);
+        }
+    }
+
+    private boolean withdraw() {
+        synchronized (budgetLock) {
+            if (budget < 1) {
+                return false;
+            }
+            budget -= 1;
+            return true;
+        }
+    }
+
+    private void refund() {
+        synchronized (budgetLock) {
+            budget = Math.min(burst, budget + 1);
+        }
+    }
+
+    /**
+     * The attempts of a hedged read: the first one, and the second one the timer launches
+     * unless the read returned or failed before. The first attempt to return completes the
+     * outcome, the outcome fails once every launched attempt failed.
+     */
+    private final class Hedge<R> implements Runnable {
+        private static final int PENDING = 0;
+        private static final int LAUNCHED = 1;
+        private static final int CLOSED = 2;
+
+        private final Attempt<R> first;
+        private final ShardRoutingContext context;
+        private final UnitOfWork unit;
+        private final CompletableFuture<R> outcome = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // attempts launched and not finished
+        private final AtomicInteger running = new AtomicInteger(1);
+        private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        private volatile ScheduledFuture<?> timer;
+        private volatile Attempt<R> second;
+
+        private Hedge(Attempt<R> first, ShardRoutingContext context, UnitOfWork unit) {
+            this.first = first;
+            this.context = context;
+            this.unit = unit;
+        }
+
+        private void runFirst() {
+            try {
+                R result = call(first);
+                if (outcome.complete(result)) {
+                    cancel();
+                }
+            } catch (RuntimeException | Error e) {
+                if (close()) {
+                    // the hedge will never run
+                    ScheduledFuture<?> pending = timer;
+                    if (Objects.nonNull(pending)) {
+                        pending.cancel(false);
+                    }
+                }
+                failed(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (state.get() != PENDING) {
+                return;
+            }
+            if (!withdraw()) {
+                LOG.debug("Hedge budget exhausted, not hedging the read of shard {}", first.shard);
+                close();
+                return;
+            }
+            Replica replica = sessionResolver.selectReplica(first.shard, first.replica).orElse(null);
+            Attempt<R> attempt = new Attempt<>(first.shard, replica, first.work, first.window);
+            second = attempt;
+            running.incrementAndGet();
+            if (!state.compareAndSet(PENDING, LAUNCHED)) {
+                // the first attempt may have failed meanwhile, counting on this one
+                ended();
+                refund();
+                attempt.release();
+                return;
+            }
+            LOG.debug("Hedging the read of shard {} on {} to {}", first.shard, first, attempt);
+            try {
+                R result = call(attempt);
+                if (outcome.complete(result)) {
+                    first.cancel();
+                }
+            } catch (RuntimeException | Error e) {
+                failed(e);
+            }
+        }
+
+        private R call(Attempt<R> attempt) {
+            return ShardRoutingContext.callWith(context, () -> UnitOfWork.callWith(unit, attempt::run));
+        }
+
+        /**
+         * Records the failure of an attempt, and fails the outcome if no attempt is left
+         * running. The query of the losing attempt may have been the cancelled one.
+         */
+        private void failed(Throwable e) {
+            failures.add(e);
+            ended();
+        }
+
+        private void ended() {
+            if (running.decrementAndGet() > 0 || failures.isEmpty()) {
+                return;
+            }
+            Throwable failure = failures.poll();
+            for (Throwable other = failures.poll(); Objects.nonNull(other); other = failures.poll()) {
+                failure.addSuppressed(other);
+            }
+            outcome.completeExceptionally(failure);
+        }
+
+        /**
+         * @return whether the hedge will never be launched
+         */
+        private boolean close() {
+            return state.compareAndSet(PENDING, CLOSED) || state.get() == CLOSED;
+        }
+
+        private void cancel() {
+            if (!close()) {
+                Attempt<R> attempt = second;
+                if (Objects.nonNull(attempt)) {
+                    attempt.cancel();
+                }
+            }
+            ScheduledFuture<?> pending = timer;
+            if (Objects.nonNull(pending)) {
+                pending.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A run of the read on a replica or on the primary of the shard.
+     */
+    private final class Attempt<R> {
+        private final String shard;
+        private final Replica replica;
+        private final Function<Session, R> work;
+        private final LatencyWindow window;
+        private volatile Session session;
+        private volatile boolean cancelled;
+
+        private Attempt(String shard, Replica replica, Function<Session, R> work, LatencyWindow window) {
+            this.shard = shard;
+            this.replica = replica;
+            this.work = work;
+            this.window = window;
+        }
+
+        private R run() {
+            long start = System.nanoTime();
+            try {
+                session = Objects.nonNull(replica) ? replica.openSession() : sessionResolver.openSession(shard);
+                if (cancelled) {
+                    throw new HibernateException("Read of shard " + shard + " cancelled by its hedge");
+                }
+                R result = work.apply(session);
+                window.record(System.nanoTime() - start);
+                return result;
+            } finally {
+                Session opened = session;
+                session = null;
+                if (Objects.nonNull(opened) && opened.isOpen()) {
+                    opened.close();
+                }
+                release();
+            }
+        }
+
+        private void release() {
+            if (Objects.nonNull(replica)) {
+                replica.release();
+            }
+        }
+
+        /**
+         * Cancels the query running on the session of the attempt, from another thread.
+         */
+        private void cancel() {
+            cancelled = true;
+            Session running = session;
+            if (Objects.nonNull(running)) {
+                try {
+                    running.cancelQuery();
+                } catch (RuntimeException e) {
+                    LOG.debug("Cannot cancel the read of shard {} on {}", shard, this, e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Objects.nonNull(replica) ? replica.getName() : "primary";
+        }
+    }
+}
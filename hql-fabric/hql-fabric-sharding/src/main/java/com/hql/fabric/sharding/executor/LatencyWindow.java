@@ -0,0 +1,53 @@
+package com.hql.fabric.sharding.executor;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the last reads of a shard, and a percentile of them recomputed every
+ * quarter of the window so that the reads do not sort the window each time.
+ */
+final class LatencyWindow {
+    private final long[] samples;
+    private final double percentile;
+    private final int minSamples;
+    private int next;
+    private int count;
+    private int sinceRefresh;
+    // -1 until the window holds minSamples latencies
+    private volatile long percentileNanos = -1;
+
+    /**
+     * @param size       the latencies kept
+     * @param percentile the percentile computed, in (0, 100]
+     * @param minSamples the latencies needed before the percentile is computed
+     */
+    LatencyWindow(int size, double percentile, int minSamples) {
+        if (size <= 0 || percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("Expect size > 0 and percentile in (0, 100], but got "
+                    + size + " and " + percentile);
+        }
+        this.samples = new long[size];
+        this.percentile = percentile;
+        this.minSamples = Math.min(minSamples, size);
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        if (count >= minSamples && (percentileNanos < 0 || ++sinceRefresh >= Math.max(1, samples.length / 4))) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+            percentileNanos = sorted[Math.max(0, rank)];
+            sinceRefresh = 0;
+        }
+    }
+
+    /**
+     * @return the percentile of the latencies in nanoseconds, -1 if not enough were recorded
+     */
+    long percentileNanos() {
+        return percentileNanos;
+    }
+}
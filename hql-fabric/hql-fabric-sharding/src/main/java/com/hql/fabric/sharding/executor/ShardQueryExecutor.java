@@ -0,0 +1,127 @@
+package com.hql.fabric.sharding.executor;
+
+import com.hql.fabric.sharding.context.ShardRoutingContext;
+import com.hql.fabric.sharding.context.UnitOfWork;
+import org.hibernate.HibernateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs a task on several shards in parallel on a bounded pool, so that the latency of a
+ * fanned out query tracks the slowest shard instead of the sum of all shards.
+ * <p>
+ * When the pool and its queue are saturated the calling thread runs the shard task itself.
+ * The shard tasks run in the {@link ShardRoutingContext} and the {@link UnitOfWork} of the
+ * calling thread.
+ */
+@Component
+@ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
+public class ShardQueryExecutor implements DisposableBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardQueryExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    public ShardQueryExecutor(@Value("${hql.fabric.sharding.executor.pool-size:${hql.fabric.sharding.shard-count}}") int poolSize,
+                              @Value("${hql.fabric.sharding.executor.queue-capacity:256}") int queueCapacity,
+                              @Value("${hql.fabric.sharding.executor.timeout-ms:30000}") long timeoutMillis) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "hql-fabric-shard-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs the task on every shard and waits for all of them.
+     *
+     * @param shards the shards to run the task on
+     * @param task   the task, receiving the shard name
+     * @param <R>    the result type of the task
+     * @return the result of each shard, in the order of the given shards
+     * @throws HibernateException if a shard fails or does not answer within the timeout, the
+     *                            tasks still running are cancelled
+     */
+    public <R> Map<String, R> scatter(List<String> shards, Function<String, R> task) {
+        Map<String, R> results = new LinkedHashMap<>();
+        if (shards.size() == 1) {
+            // no need to hop threads for a single shard
+            String shard = shards.get(0);
+            results.put(shard, task.apply(shard));
+            return results;
+        }
+
+        // the shard threads are routed like the caller and see the writes of its unit of work
+        ShardRoutingContext context = ShardRoutingContext.current();
+        UnitOfWork unit = UnitOfWork.current();
+        List<Callable<R>> calls = new ArrayList<>(shards.size());
+        for (String shard : shards) {
+            calls.add(() -> ShardRoutingContext.callWith(context,
+                    () -> UnitOfWork.callWith(unit, () -> task.apply(shard))));
+        }
+        List<Future<R>> futures;
+        try {
+            futures = executor.invokeAll(calls, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HibernateException("Interrupted while querying shards " + shards, e);
+        }
+
+        for (int i = 0; i < shards.size(); i++) {
+            String shard = shards.get(i);
+            try {
+                results.put(shard, futures.get(i).get());
+            } catch (CancellationException e) {
+                cancel(futures);
+                throw new HibernateException("Shard " + shard + " did not answer within "
+                        + timeoutMillis + " ms");
+            } catch (ExecutionException e) {
+                cancel(futures);
+                Throwable cause = e.getCause();
+                LOG.error("Query failed on shard {}", shard, cause);
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new HibernateException("Query failed on shard " + shard, cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(futures);
+                throw new HibernateException("Interrupted while querying shards " + shards, e);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private static void cancel(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.hql.fabric.sharding.index;
+
+import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.entity.GlobalIndex;
+import com.hql.fabric.persistence.utils.HashUtils;
+import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
+import org.hibernate.HibernateException;
+import org.hibernate.JDBCException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Global secondary index of the {@link GlobalIndex} properties, enabled with
+ * {@code global-index.enabled}.
+ * <p>
+ * Each entry maps a value of an indexed property to the shard and the identifier of an entity
+ * holding it. The entries live in an index table on every shard, the entry of a value on the
+ * shard its hash designates, so that a lookup reads a single shard. Values are indexed lower
+ * cased, the lookups matching them case insensitively or not.
+ * <p>
+ * The entries are written once the entities are committed on their shard, and are not removed
+ * with them: an entry is a hint, the caller finds the entity on the shard it designates or
+ * falls back to every shard.
+ */
+@Component
+@ConditionalOnExpression("${hql.fabric.sharding.enabled:false} and ${hql.fabric.sharding.global-index.enabled:false}")
+public class GlobalSecondaryIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(GlobalSecondaryIndex.class);
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][\\w.]*");
+
+    private final ShardedSessionResolver sessionResolver;
+    private final String table;
+    private final String selectSql;
+    private final String updateSql;
+    private final String insertSql;
+    private final boolean trustMisses;
+    // indexed properties of each entity class, empty if none
+    private final Map<Class<?>, Set<String>> indexedProperties = new ConcurrentHashMap<>();
+
+    public GlobalSecondaryIndex(ShardedSessionResolver sessionResolver,
+                                @Value("${hql.fabric.sharding.global-index.table:hql_fabric_global_index}") String table,
+                                @Value("${hql.fabric.sharding.global-index.trust-misses:false}") boolean trustMisses) {
+        if (!TABLE_NAME.matcher(table).matches()) {
+            throw new IllegalArgumentException("Invalid global index table name: " + table);
+        }
+        this.sessionResolver = sessionResolver;
+        this.table = table;
+        this.trustMisses = trustMisses;
+        this.selectSql = "select distinct shard from " + table
+                + " where entity_name = ? and property = ? and index_value = ?";
+        this.updateSql = "update " + table + " set shard = ?"
+                + " where entity_name = ? and property = ? and index_value = ? and entity_id = ?";
+        this.insertSql = "insert into " + table
+                + " (entity_name, property, index_value, entity_id, shard) values (?, ?, ?, ?, ?)";
+        for (String shard : sessionResolver.getShardNames()) {
+            createTable(shard);
+        }
+    }
+
+    /**
+     * @param entityClass the entity class
+     * @param property    the property
+     * @return whether the property of the entity is indexed
+     */
+    public boolean isIndexed(Class<?> entityClass, String property) {
+        return indexedProperties(entityClass).contains(property);
+    }
+
+    /**
+     * Records the shard of the indexed values of the entities written to it. The failures are
+     * logged and not thrown, the lookups of the values then read every shard.
+     *
+     * @param shard the shard the entities were written to
+     * @param items the entities, with their identifiers assigned
+     */
+    public void index(String shard, Collection<? extends BaseEntity> items) {
+        Map<String, List<Object[]>> entries = new TreeMap<>();
+        for (BaseEntity item : items) {
+            Set<String> properties = indexedProperties(item.getClass());
+            if (properties.isEmpty() || Objects.isNull(item.getId())) {
+                continue;
+            }
+            BeanWrapperImpl wrapper = new BeanWrapperImpl(item);
+            for (String property : properties) {
+                Object value = wrapper.getPropertyValue(property);
+                if (Objects.isNull(value)) {
+                    continue;
+                }
+                String indexValue = normalize(value);
+                entries.computeIfAbsent(indexShard(indexValue), s -> new ArrayList<>()).add(new Object[]{
+                        item.getClass().getSimpleName(), property, indexValue, item.getId(), shard});
+            }
+        }
+        for (Map.Entry<String, List<Object[]>> indexShard : entries.entrySet()) {
+            try {
+                write(indexShard.getKey(), indexShard.getValue());
+            } catch (Exception e) {
+                LOG.warn("Cannot index {} values of shard {} on shard {}, their lookups will read every shard",
+                        indexShard.getValue().size(), shard, indexShard.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * @param entityClass the entity class
+     * @param property    an indexed property
+     * @param value       the value looked up
+     * @return the shards holding entities of that value, empty if the index has no entry for it
+     */
+    public Set<String> lookup(Class<?> entityClass, String property, Object value) {
+        String indexValue = normalize(value);
+        String indexShard = indexShard(indexValue);
+        Session session = null;
+        try {
+            session = sessionResolver.openSession(indexShard);
+            return session.doReturningWork(connection -> {
+                Set<String> shards = new HashSet<>();
+                try (PreparedStatement statement = connection.prepareStatement(selectSql)) {
+                    statement.setString(1, entityClass.getSimpleName());
+                    statement.setString(2, property);
+                    statement.setString(3, indexValue);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            shards.add(rs.getString(1));
+                        }
+                    }
+                }
+                return shards;
+            });
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while looking up {}.{} on index shard {}",
+                        entityClass.getSimpleName(), property, indexShard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while looking up {}.{} on index shard {}",
+                        entityClass.getSimpleName(), property, indexShard, e);
+            }
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
+    /**
+     * @return whether a value missing from the index is missing from every shard, which holds
+     * once all the entities were written with the index enabled
+     */
+    public boolean isTrustMisses() {
+        return trustMisses;
+    }
+
+    /**
+     * @return the shard holding the index entries of the value
+     */
+    String indexShard(String indexValue) {
+        List<String> shardNames = sessionResolver.getShardNames();
+        return shardNames.get((int) Math.floorMod(HashUtils.hash64(indexValue), (long) shardNames.size()));
+    }
+
+    static String normalize(Object value) {
+        return value.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private Set<String> indexedProperties(Class<?> entityClass) {
+        return indexedProperties.computeIfAbsent(entityClass, c -> {
+            GlobalIndex index = c.getAnnotation(GlobalIndex.class);
+            return Objects.nonNull(index) ? Set.of(index.value()) : Set.of();
+        });
+    }
+
+    /**
+     * Upserts the entries on the index shard, the entry of a moved entity is updated.
+     */
+    private void write(String indexShard, List<Object[]> entries) {
+        Session session = null;
+        Transaction trx = null;
+        try {
+            session = sessionResolver.openSession(indexShard);
+            trx = session.beginTransaction();
+            session.doWork(connection -> {
+                List<Object[]> inserts = new ArrayList<>();
+                try (PreparedStatement update = connection.prepareStatement(updateSql)) {
+                    for (Object[] entry : entries) {
+                        update.setString(1, (String) entry[4]);
+                        update.setString(2, (String) entry[0]);
+                        update.setString(3, (String) entry[1]);
+                        update.setString(4, (String) entry[2]);
+                        update.setLong(5, (Long) entry[3]);
+                        if (update.executeUpdate() == 0) {
+                            inserts.add(entry);
+                        }
+                    }
+                }
+                if (inserts.isEmpty()) {
+                    return;
+                }
+                try (PreparedStatement insert = connection.prepareStatement(insertSql)) {
+                    for (Object[] entry : inserts) {
+                        insert.setString(1, (String) entry[0]);
+                        insert.setString(2, (String) entry[1]);
+                        insert.setString(3, (String) entry[2]);
+                        insert.setLong(4, (Long) entry[3]);
+                        insert.setString(5, (String) entry[4]);
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+            });
+            trx.commit();
+        } catch (Exception e) {
+            rollback(trx);
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
+    private void createTable(String shard) {
+        Session session = null;
+        Transaction trx = null;
+        try {
+            session = sessionResolver.openSession(shard);
+            trx = session.beginTransaction();
+            session.doWork(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("create table if not exists " + table + " ("
+                            + "entity_name varchar(255) not null, "
+                            + "property varchar(64) not null, "
+                            + "index_value varchar(255) not null, "
+                            + "entity_id bigint not null, "
+                            + "shard varchar(64) not null, "
+                            + "primary key (entity_name, property, index_value, entity_id))");
+                }
+            });
+            trx.commit();
+        } catch (Exception e) {
+            rollback(trx);
+            LOG.warn("Cannot create the global index table {} on shard {}, expecting it to exist", table, shard, e);
+        } finally {
+            close(session);
+        }
+    }
+
+    private void rollback(Transaction trx) {
+        if (Objects.nonNull(trx) && trx.isActive()) {
+            try {
+                trx.rollback();
+            } catch (HibernateException e) {
+                LOG.error("Error rolling back Transaction", e);
+            }
+        }
+    }
+
+    private static void close(Session session) {
+        if (Objects.nonNull(session) && session.isOpen()) {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.hql.fabric.sharding.join;
+
+import com.hql.fabric.persistence.utils.HashUtils;
+import org.hibernate.HibernateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Inner equi-join of two row streams in bounded memory.
+ * <p>
+ * The rows of the build side, which should be the smaller one, are hashed by their key into
+ * an in-memory table, then each row of the probe side is matched against it as it streams
+ * by. Once the table holds more than {@code maxBuildRows} rows, the join switches to a grace
+ * hash join: the build rows, and then the probe rows, are partitioned by key into spill
+ * files, and {@link #finish(Consumer)} joins the pairs of partitions one by one. A partition
+ * still too large is partitioned again with another hash, up to {@link #MAX_DEPTH} levels.
+ * <p>
+ * Rows with a {@code null} key match nothing. Spilled rows must be {@link Serializable},
+ * such as the rows of a projection. {@link #build(Object)} and {@link #probe(Object, Consumer)}
+ * may be called from several threads, all the build rows before the first probe row.
+ *
+ * @param <B> the type of the build rows
+ * @param <P> the type of the probe rows
+ * @param <R> the type of the joined rows
+ */
+public class GraceHashJoin<B, P, R> implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(GraceHashJoin.class);
+    public static final int MAX_DEPTH = 3;
+    // rows written between two resets of a spill stream, which otherwise keeps them all
+    private static final int RESET_INTERVAL = 256;
+
+    private final Function<? super B, ?> buildKey;
+    private final Function<? super P, ?> probeKey;
+    private final BiFunction<? super B, ? super P, ? extends R> joiner;
+    private final int maxBuildRows;
+    private final int partitionCount;
+    private final Path spillDirectory;
+    private final int depth;
+
+    private Map<Object, List<B>> table = new HashMap<>();
+    private int tableRows;
+    private Path spillFiles;
+    private List<SpillFile> buildPartitions;
+    private List<SpillFile> probePartitions;
+
+    /**
+     * @param buildKey       the join key of a build row
+     * @param probeKey       the join key of a probe row
+     * @param joiner         combines a matching pair of rows
+     * @param maxBuildRows   the build rows held in memory at most
+     * @param partitionCount the partitions of the spilled rows
+     * @param spillDirectory the directory of the spill files
+     */
+    public GraceHashJoin(Function<? super B, ?> buildKey, Function<? super P, ?> probeKey,
+                         BiFunction<? super B, ? super P, ? extends R> joiner,
+                         int maxBuildRows, int partitionCount, Path spillDirectory) {
+        this(buildKey, probeKey, joiner, maxBuildRows, partitionCount, spillDirectory, 0);
+    }
+
+    private GraceHashJoin(Function<? super B, ?> buildKey, Function<? super P, ?> probeKey,
+                          BiFunction<? super B, ? super P, ? extends R> joiner,
+                          int maxBuildRows, int partitionCount, Path spillDirectory, int depth) {
+        if (maxBuildRows <= 0 || partitionCount < 2) {
+            throw new IllegalArgumentException("Expect maxBuildRows > 0 and partitionCount > 1, but got "
+                    + maxBuildRows + " and " + partitionCount);
+        }
+        this.buildKey = buildKey;
+        this.probeKey = probeKey;
+        this.joiner = joiner;
+        this.maxBuildRows = maxBuildRows;
+        this.partitionCount = partitionCount;
+        this.spillDirectory = spillDirectory;
+        this.depth = depth;
+    }
+
+    /**
+     * Adds a row of the build side.
+     */
+    public synchronized void build(B row) {
+        Object key = key(buildKey.apply(row));
+        if (Objects.isNull(key)) {
+            return;
+        }
+        if (isSpilled()) {
+            buildPartitions.get(partition(key)).write(row);
+            return;
+        }
+        table.computeIfAbsent(key, k -> new ArrayList<>(1)).add(row);
+        if (++tableRows > maxBuildRows) {
+            spill();
+        }
+    }
+
+    /**
+     * Matches a row of the probe side, the joined rows are passed to the sink unless the
+     * build side was spilled, in which case the row is spilled too and joined by
+     * {@link #finish(Consumer)}.
+     */
+    public void probe(P row, Consumer<? super R> sink) {
+        Object key = key(probeKey.apply(row));
+        if (Objects.isNull(key)) {
+            return;
+        }
+        if (isSpilled()) {
+            SpillFile partition = probePartitions.get(partition(key));
+            synchronized (partition) {
+                partition.write(row);
+            }
+            return;
+        }
+        List<B> matches = table.get(key);
+        if (Objects.nonNull(matches)) {
+            for (B match : matches) {
+                sink.accept(joiner.apply(match, row));
+            }
+        }
+    }
+
+    /**
+     * Joins the spilled partitions, once all the probe rows are passed.
+     */
+    public void finish(Consumer<? super R> sink) {
+        if (!isSpilled()) {
+            return;
+        }
+        for (int i = 0; i < partitionCount; i++) {
+            SpillFile buildPartition = buildPartitions.get(i);
+            SpillFile probePartition = probePartitions.get(i);
+            buildPartition.finishWriting();
+            probePartition.finishWriting();
+            if (buildPartition.rows == 0 || probePartition.rows == 0) {
+                continue;
+            }
+            // a partition over the budget is partitioned again, unless too deep
+            int budget = depth + 1 < MAX_DEPTH ? maxBuildRows : Integer.MAX_VALUE;
+            try (GraceHashJoin<B, P, R> nested = new GraceHashJoin<>(buildKey, probeKey, joiner,
+                    budget, partitionCount, spillDirectory, depth + 1)) {
+                buildPartition.<B>read(nested::build);
+                probePartition.<P>read(row -> nested.probe(row, sink));
+                nested.finish(sink);
+            }
+            buildPartition.delete();
+            probePartition.delete();
+        }
+    }
+
+    public boolean isSpilled() {
+        return Objects.nonNull(buildPartitions);
+    }
+
+    @Override
+    public void close() {
+        if (!isSpilled()) {
+            return;
+        }
+        for (SpillFile file : buildPartitions) {
+            file.delete();
+        }
+        for (SpillFile file : probePartitions) {
+            file.delete();
+        }
+        try {
+            Files.deleteIfExists(spillFiles);
+        } catch (IOException e) {
+            LOG.warn("Cannot delete the spill directory {}", spillFiles, e);
+        }
+    }
+
+    private void spill() {
+        try {
+            Files.createDirectories(spillDirectory);
+            spillFiles = Files.createTempDirectory(spillDirectory, "hql-fabric-join-");
+        } catch (IOException e) {
+            throw new HibernateException("Cannot create the spill directory in " + spillDirectory, e);
+        }
+        LOG.info("Hash join over {} build rows at depth {}, spilling {} partitions to {}",
+                maxBuildRows, depth, partitionCount, spillFiles);
+        buildPartitions = new ArrayList<>(partitionCount);
+        probePartitions = new ArrayList<>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            buildPartitions.add(new SpillFile(spillFiles.resolve("build-" + i)));
+            probePartitions.add(new SpillFile(spillFiles.resolve("probe-" + i)));
+        }
+        for (Map.Entry<Object, List<B>> entry : table.entrySet()) {
+            SpillFile partition = buildPartitions.get(partition(entry.getKey()));
+            for (B row : entry.getValue()) {
+                partition.write(row);
+            }
+        }
+        table = null;
+    }
+
+    private int partition(Object key) {
+        // a different hash per level, so that a partition spilled again splits
+        long hash = HashUtils.mix64(HashUtils.hash64(key) + depth);
+        return (int) Math.floorMod(hash, (long) partitionCount);
+    }
+
+    /**
+     * Integral keys match whatever their type, like the shard keys.
+     */
+    private static Object key(Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        }
+        return key;
+    }
+
+    /**
+     * A partition of spilled rows, written then read once.
+     */
+    private static final class SpillFile {
+        private final Path path;
+        private ObjectOutputStream out;
+        private long rows;
+
+        private SpillFile(Path path) {
+            this.path = path;
+        }
+
+        private void write(Object row) {
+            if (!(row instanceof Serializable)) {
+                throw new HibernateException("Cannot spill rows of " + row.getClass().getName()
+                        + ", join serializable rows such as projections");
+            }
+            try {
+                if (Objects.isNull(out)) {
+                    out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+                }
+                out.writeObject(row);
+                if (++rows % RESET_INTERVAL == 0) {
+                    out.reset();
+                }
+            } catch (IOException e) {
+                throw new HibernateException("Cannot spill to " + path, e);
+            }
+        }
+
+        private void finishWriting() {
+            if (Objects.nonNull(out)) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    throw new HibernateException("Cannot spill to " + path, e);
+                }
+                out = null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void read(Consumer<T> consumer) {
+            try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                for (long i = 0; i < rows; i++) {
+                    consumer.accept((T) in.readObject());
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                throw new HibernateException("Cannot read the spilled rows of " + path, e);
+            }
+        }
+
+        private void delete() {
+            try {
+                finishWriting();
+                Files.deleteIfExists(path);
+            } catch (IOException | HibernateException e) {
+                LOG.warn("Cannot delete the spill file {}", path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.hql.fabric.sharding.join;
+
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A side of a cross-shard join: the query of its rows, run on the shards it resolves to, and
+ * the join key of a row.
+ *
+ * @param <T> the type of the rows
+ */
+public class JoinSide<T> {
+    private final String hql;
+    private final Map<String, Object> parameters;
+    private final Function<? super T, ?> key;
+
+    private JoinSide(String hql, Map<String, Object> parameters, Function<? super T, ?> key) {
+        this.hql = hql;
+        this.parameters = Map.copyOf(parameters);
+        this.key = key;
+    }
+
+    /**
+     * @param hql        the query of the rows
+     * @param parameters the named parameters of the query
+     * @param key        the join key of a row, rows of {@code null} key match nothing
+     */
+    public static <T> JoinSide<T> of(String hql, Map<String, Object> parameters, Function<? super T, ?> key) {
+        return new JoinSide<>(hql, parameters, key);
+    }
+
+    // -- getter && setter --
+    public String getHql() {
+        return hql;
+    }
+
+    public Map<String, Object> getParameters() {
+        return parameters;
+    }
+
+    public Function<? super T, ?> getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,222 @@
+package com.hql.fabric.sharding.join;
+
+import com.hql.fabric.sharding.executor.ShardQueryExecutor;
+import com.hql.fabric.sharding.merge.ShardedQuery;
+import com.hql.fabric.sharding.replica.Replica;
+import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
+import org.hibernate.HibernateException;
+import org.hibernate.JDBCException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Joins the rows of two queries whose entities live on different shards, such as
+ * {@code TransactionFlowCore} and {@code TransactionFlowClearing} on their transaction id.
+ * <p>
+ * Both sides are counted first. The rows of the smaller side are streamed from its shards
+ * into a {@link GraceHashJoin}, then the rows of the larger side are streamed from its shards
+ * and probed, spilling to disk past the memory budget. No side is ever held whole in memory
+ * unless it fits the budget. The shards of a side are read in parallel, each within the
+ * timeout of the {@link ShardQueryExecutor}.
+ */
+@Component
+@ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
+public class ShardJoinExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardJoinExecutor.class);
+
+    private final ShardedSessionResolver sessionResolver;
+    private final ShardQueryExecutor shardQueryExecutor;
+    private final int maxBuildRows;
+    private final int partitionCount;
+    private final int fetchSize;
+    private final Path spillDirectory;
+
+    public ShardJoinExecutor(ShardedSessionResolver sessionResolver, ShardQueryExecutor shardQueryExecutor,
+                             @Value("${hql.fabric.sharding.join.max-build-rows:100000}") int maxBuildRows,
+                             @Value("${hql.fabric.sharding.join.partitions:16}") int partitionCount,
+                             @Value("${hql.fabric.sharding.join.fetch-size:1000}") int fetchSize,
+                             @Value("${hql.fabric.sharding.join.spill-directory:${java.io.tmpdir}}") String spillDirectory) {
+        this.sessionResolver = sessionResolver;
+        this.shardQueryExecutor = shardQueryExecutor;
+        this.maxBuildRows = maxBuildRows;
+        this.partitionCount = partitionCount;
+        this.fetchSize = fetchSize;
+        this.spillDirectory = Path.of(spillDirectory);
+    }
+
+    /**
+     * Joins the two sides and collects the joined rows.
+     *
+     * @see #join(JoinSide, JoinSide, BiFunction, Consumer)
+     */
+    public <L, R, O> List<O> join(JoinSide<L> left, JoinSide<R> right,
+                                  BiFunction<? super L, ? super R, ? extends O> joiner) {
+        List<O> joined = new ArrayList<>();
+        join(left, right, joiner, joined::add);
+        return joined;
+    }
+
+    /**
+     * Joins the rows of the two sides of equal keys.
+     *
+     * @param left   the left side
+     * @param right  the right side
+     * @param joiner combines a matching pair of rows
+     * @param sink   receives the joined rows, one at a time, in no particular order
+     */
+    public <L, R, O> void join(JoinSide<L> left, JoinSide<R> right,
+                               BiFunction<? super L, ? super R, ? extends O> joiner, Consumer<? super O> sink) {
+        List<String> leftShards = resolveShards(left);
+        List<String> rightShards = resolveShards(right);
+        long leftRows = count(left, leftShards);
+        long rightRows = count(right, rightShards);
+        LOG.debug("Joining {} rows of {} with {} rows of {}", leftRows, leftShards, rightRows, rightShards);
+        // the probes of the shard threads hand over the joined rows one at a time
+        Consumer<O> serialSink = row -> {
+            synchronized (sink) {
+                sink.accept(row);
+            }
+        };
+        if (leftRows <= rightRows) {
+            hashJoin(left, leftShards, right, rightShards, joiner, serialSink);
+        } else {
+            hashJoin(right, rightShards, left, leftShards,
+                    (R rightRow, L leftRow) -> joiner.apply(leftRow, rightRow), serialSink);
+        }
+    }
+
+    private <B, P, O> void hashJoin(JoinSide<B> build, List<String> buildShards, JoinSide<P> probe,
+                                    List<String> probeShards, BiFunction<? super B, ? super P, ? extends O> joiner,
+                                    Consumer<O> sink) {
+        try (GraceHashJoin<B, P, O> join = new GraceHashJoin<>(build.getKey(), probe.getKey(), joiner,
+                maxBuildRows, partitionCount, spillDirectory)) {
+            shardQueryExecutor.scatter(buildShards, shard -> stream(shard, build, join::build));
+            shardQueryExecutor.scatter(probeShards, shard -> stream(shard, probe, row -> join.probe(row, sink)));
+            join.finish(sink);
+        }
+    }
+
+    private List<String> resolveShards(JoinSide<?> side) {
+        return sessionResolver.resolveShard(side.getHql())
+                .map(List::of)
+                .orElseGet(sessionResolver::getShardNames);
+    }
+
+    /**
+     * @return the rows of the side, {@link Long#MAX_VALUE} if its query cannot be counted
+     */
+    private long count(JoinSide<?> side, List<String> shards) {
+        String countHql = ShardedQuery.of(side.getHql()).getCountHql();
+        if (Objects.isNull(countHql)) {
+            return Long.MAX_VALUE;
+        }
+        long rows = 0;
+        for (Long count : shardQueryExecutor.scatter(shards, shard -> {
+            Replica replica = sessionResolver.selectReplica(shard).orElse(null);
+            Session session = null;
+            try {
+                session = Objects.nonNull(replica) ? replica.openSession() : sessionResolver.openSession(shard);
+                Query<Long> query = session.createQuery(countHql, Long.class);
+                bind(query, side.getParameters());
+                return query.uniqueResult();
+            } finally {
+                close(session, replica);
+            }
+        }).values()) {
+            rows += Objects.nonNull(count) ? count : 0;
+        }
+        return rows;
+    }
+
+    /**
+     * Streams the rows of the side on the shard, in a read-only transaction so that the
+     * driver fetches them by {@code fetchSize}, clearing the session as it goes.
+     *
+     * @return the number of rows streamed
+     */
+    @SuppressWarnings("unchecked")
+    private <T> long stream(String shard, JoinSide<T> side, Consumer<T> consumer) {
+        Replica replica = sessionResolver.selectReplica(shard).orElse(null);
+        Session session = null;
+        Transaction trx = null;
+        long rows = 0;
+        try {
+            session = Objects.nonNull(replica) ? replica.openSession() : sessionResolver.openSession(shard);
+            session.setDefaultReadOnly(true);
+            trx = session.beginTransaction();
+            Query<T> query = session.createQuery(side.getHql());
+            bind(query, side.getParameters());
+            query.setFetchSize(fetchSize);
+            try (ScrollableResults<T> results = query.scroll(ScrollMode.FORWARD_ONLY)) {
+                while (results.next()) {
+                    consumer.accept(results.get());
+                    if (++rows % fetchSize == 0) {
+                        session.clear();
+                    }
+                }
+            }
+            trx.commit();
+            return rows;
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while streaming hql {} on shard {}", side.getHql(), shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while streaming hql {} on shard {}", side.getHql(), shard, e);
+            }
+            rollback(trx);
+            throw e;
+        } finally {
+            close(session, replica);
+        }
+    }
+
+    private static void bind(Query<?> query, Map<String, Object> params) {
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            // the count query drops the order by, and the parameters it may use
+            if (Objects.isNull(query.getParameterMetadata().findQueryParameter(entry.getKey()))) {
+                continue;
+            }
+            if (entry.getValue() instanceof Collection) {
+                query.setParameterList(entry.getKey(), (Collection<?>) entry.getValue());
+            } else {
+                query.setParameter(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void rollback(Transaction trx) {
+        if (Objects.nonNull(trx) && trx.isActive()) {
+            try {
+                trx.rollback();
+            } catch (HibernateException e) {
+                LOG.error("Error rolling back Transaction", e);
+            }
+        }
+    }
+
+    private static void close(Session session, Replica replica) {
+        if (Objects.nonNull(session) && session.isOpen()) {
+            session.close();
+        }
+        if (Objects.nonNull(replica)) {
+            replica.release();
+        }
+    }
+}
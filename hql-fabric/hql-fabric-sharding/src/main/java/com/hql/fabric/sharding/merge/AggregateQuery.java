@@ -0,0 +1,452 @@
+package com.hql.fabric.sharding.merge;
+
+import org.hibernate.HibernateException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An aggregate HQL query rewritten into partial aggregates which can be merged across shards.
+ * <p>
+ * Each shard runs {@link #getShardHql()}: the GROUP BY expressions followed by the partial
+ * aggregates, without HAVING, ORDER BY or result window, so that a shard only returns one
+ * row per group. COUNT, SUM, MIN and MAX are their own partials, AVG is rewritten as a SUM
+ * and a COUNT. The partial rows are merged by group in a hash map, then the HAVING clause,
+ * the ORDER BY clause and the result window of the original query apply to the merged rows.
+ * <p>
+ * Aggregates over DISTINCT values, other than MIN and MAX, cannot be merged from partials,
+ * nor can a HAVING clause which is not a conjunction of comparisons.
+ */
+public class AggregateQuery {
+    private static final Pattern AGGREGATE = Pattern.compile(
+            "^(count|sum|avg|min|max)\\s*\\(\\s*(distinct\\s+)?(.+?)\\s*\\)$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern ALIAS = Pattern.compile("^(.+?)\\s+as\\s+(\\w+)$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern COMPARISON = Pattern.compile("^(.+?)\\s*(<>|!=|>=|<=|=|>|<)\\s*(.+)$",
+            Pattern.DOTALL);
+    private static final Pattern NUMBER = Pattern.compile("^-?\\d+(\\.\\d+)?$");
+
+    private final List<String> groupExpressions;
+    private final List<Partial> partials = new ArrayList<>();
+    private final List<Operand> columns = new ArrayList<>();
+    private final List<String> aliases = new ArrayList<>();
+    private final List<Predicate> having = new ArrayList<>();
+    private final ShardedQuery query;
+    private final String shardHql;
+
+    private AggregateQuery(ShardedQuery query, List<String> selections, String body,
+                           List<String> groupExpressions, String havingClause) {
+        this.query = query;
+        this.groupExpressions = groupExpressions;
+        for (String selection : selections) {
+            Matcher aliased = ALIAS.matcher(selection);
+            String expression = aliased.matches() ? aliased.group(1).trim() : selection;
+            aliases.add(aliased.matches() ? aliased.group(2) : null);
+            columns.add(operand(expression, false));
+        }
+        if (Objects.nonNull(havingClause)) {
+            parseHaving(havingClause);
+        }
+
+        List<String> shardSelections = new ArrayList<>(groupExpressions);
+        for (Partial partial : partials) {
+            shardSelections.add(partial.toString());
+        }
+        StringBuilder hql = new StringBuilder("select ")
+                .append(String.join(", ", shardSelections))
+                .append(' ').append(body);
+        if (!groupExpressions.isEmpty()) {
+            hql.append(" group by ").append(String.join(", ", groupExpressions));
+        }
+        this.shardHql = hql.toString();
+    }
+
+    /**
+     * @param query the fanned out query
+     * @return the query rewritten into partial aggregates, {@code null} if it neither
+     * aggregates nor groups its rows
+     * @throws HibernateException if the aggregates of the query cannot be merged
+     */
+    public static AggregateQuery of(ShardedQuery query) {
+        String hql = query.getHql();
+        List<String> selections = HqlClauses.selections(hql);
+        String lower = hql.toLowerCase(Locale.ROOT);
+        int from = HqlClauses.firstTopLevel(lower, "from ");
+        if (selections.isEmpty() || from < 0) {
+            return null;
+        }
+        int groupBy = HqlClauses.firstTopLevel(lower, "group by ", from);
+        if (groupBy < 0 && selections.stream().noneMatch(AggregateQuery::isAggregate)) {
+            return null;
+        }
+        int having = HqlClauses.firstTopLevel(lower, "having ", from);
+        int orderBy = HqlClauses.lastTopLevel(lower, "order by");
+        if (orderBy < from) {
+            orderBy = -1;
+        }
+        int bodyEnd = firstOf(hql.length(), groupBy, having, orderBy);
+
+        List<String> groupExpressions = new ArrayList<>();
+        if (groupBy >= 0) {
+            int end = firstOf(hql.length(), having, orderBy);
+            groupExpressions.addAll(HqlClauses.splitTopLevel(
+                    hql.substring(groupBy + "group by ".length(), end)));
+        }
+        String havingClause = null;
+        if (having >= 0) {
+            int end = firstOf(hql.length(), orderBy);
+            havingClause = hql.substring(having + "having ".length(), end).trim();
+        }
+        return new AggregateQuery(query, selections, hql.substring(from, bodyEnd).trim(),
+                groupExpressions, havingClause);
+    }
+
+    /**
+     * @param params the parameters of the original query
+     * @return the parameters the shard query refers to, HAVING parameters are only used
+     * once the groups are merged
+     */
+    public Map<Object, Object> shardParameters(Map<?, Object> params) {
+        Map<Object, Object> shardParams = new LinkedHashMap<>();
+        for (Map.Entry<?, Object> entry : params.entrySet()) {
+            String reference = entry.getKey() instanceof Integer
+                    ? "\\?" + entry.getKey() + "(?!\\d)"
+                    : ":" + Pattern.quote(entry.getKey().toString()) + "(?!\\w)";
+            if (Pattern.compile(reference).matcher(shardHql).find()) {
+                shardParams.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return shardParams;
+    }
+
+    /**
+     * Merges the partial rows of the shards by group, then applies the HAVING clause, the
+     * ORDER BY clause and the result window of the query.
+     *
+     * @param partials the rows returned by each shard for {@link #getShardHql()}
+     * @param params   the parameters of the original query
+     * @return the rows of the original query
+     */
+    public List<Object> merge(Collection<? extends List<?>> partials, Map<?, Object> params) {
+        int keySize = groupExpressions.size();
+        Map<List<Object>, Object[]> groups = new LinkedHashMap<>();
+        for (List<?> partial : partials) {
+            for (Object row : partial) {
+                Object[] values = row instanceof Object[] ? (Object[]) row : new Object[]{row};
+                List<Object> key = Arrays.asList(Arrays.copyOfRange(values, 0, keySize));
+                Object[] merged = groups.get(key);
+                if (Objects.isNull(merged)) {
+                    groups.put(key, Arrays.copyOfRange(values, keySize, values.length));
+                    continue;
+                }
+                for (int i = 0; i < this.partials.size(); i++) {
+                    merged[i] = this.partials.get(i).function.combine(merged[i], values[keySize + i]);
+                }
+            }
+        }
+
+        List<Object> rows = new ArrayList<>(groups.size());
+        for (Map.Entry<List<Object>, Object[]> group : groups.entrySet()) {
+            if (!matches(group.getKey(), group.getValue(), params)) {
+                continue;
+            }
+            Object[] row = new Object[columns.size()];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = columns.get(i).evaluate(group.getKey(), group.getValue(), params);
+            }
+            // a single selection is returned as a scalar, as Hibernate does
+            rows.add(row.length == 1 ? row[0] : row);
+        }
+        if (!query.getOrderBy().isEmpty()) {
+            rows.sort(query.getOrderBy().comparator());
+        }
+        return ShardResultMerger.concat(List.of(rows), query.getOffset(), query.getLimit());
+    }
+
+    private boolean matches(List<Object> key, Object[] values, Map<?, Object> params) {
+        for (Predicate predicate : having) {
+            if (!predicate.test(key, values, params)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void parseHaving(String clause) {
+        if (HqlClauses.firstTopLevel(clause.toLowerCase(Locale.ROOT), "or ") >= 0) {
+            throw new HibernateException("Cannot merge shard results with HAVING " + clause
+                    + ", only conjunctions of comparisons are supported");
+        }
+        for (String condition : HqlClauses.splitTopLevel(clause, " and ")) {
+            String text = unwrap(condition);
+            Matcher comparison = COMPARISON.matcher(text);
+            if (!comparison.matches() || text.toLowerCase(Locale.ROOT).startsWith("not ")) {
+                throw new HibernateException("Cannot merge shard results with HAVING " + clause
+                        + ", only conjunctions of comparisons are supported");
+            }
+            having.add(new Predicate(operand(comparison.group(1).trim(), true),
+                    comparison.group(2), operand(comparison.group(3).trim(), true)));
+        }
+    }
+
+    /**
+     * @param expression an aggregate, a group expression, or in a HAVING clause also an alias
+     *                   of the SELECT clause, a literal or a parameter
+     */
+    private Operand operand(String expression, boolean inHaving) {
+        Matcher aggregate = AGGREGATE.matcher(expression);
+        if (aggregate.matches()) {
+            return aggregate(Function.valueOf(aggregate.group(1).toUpperCase(Locale.ROOT)),
+                    aggregate.group(3), Objects.nonNull(aggregate.group(2)), expression);
+        }
+        int key = indexOf(groupExpressions, expression);
+        if (key >= 0) {
+            return (k, values, params) -> k.get(key);
+        }
+        if (inHaving) {
+            int column = indexOf(aliases, expression);
+            if (column >= 0) {
+                return columns.get(column);
+            }
+            if (expression.startsWith(":")) {
+                String name = expression.substring(1);
+                return (k, values, params) -> params.get(name);
+            }
+            if (expression.startsWith("?")) {
+                Integer position = Integer.valueOf(expression.substring(1));
+                return (k, values, params) -> params.get(position);
+            }
+            if (NUMBER.matcher(expression).matches()) {
+                Object literal = expression.contains(".")
+                        ? (Object) new BigDecimal(expression) : (Object) Long.valueOf(expression);
+                return (k, values, params) -> literal;
+            }
+            if (expression.length() >= 2 && expression.startsWith("'") && expression.endsWith("'")) {
+                String literal = expression.substring(1, expression.length() - 1).replace("''", "'");
+                return (k, values, params) -> literal;
+            }
+        }
+        throw new HibernateException("Cannot merge shard results of " + expression
+                + ", the expression is neither an aggregate nor grouped");
+    }
+
+    private Operand aggregate(Function function, String argument, boolean distinct, String expression) {
+        if (distinct && function != Function.MIN && function != Function.MAX) {
+            throw new HibernateException("Cannot merge shard results of " + expression
+                    + ", an aggregate of distinct values is not mergeable");
+        }
+        switch (function) {
+            case AVG:
+                int sum = partial(Function.SUM, argument);
+                int count = partial(Function.COUNT, argument);
+                return (k, values, params) -> average(values[sum], values[count]);
+            case COUNT:
+                int counted = partial(Function.COUNT, argument);
+                return (k, values, params) -> Objects.isNull(values[counted]) ? 0L : values[counted];
+            default:
+                int index = partial(function, argument);
+                return (k, values, params) -> values[index];
+        }
+    }
+
+    private int partial(Function function, String argument) {
+        String normalized = argument.trim().replaceAll("\\s+", " ");
+        for (int i = 0; i < partials.size(); i++) {
+            Partial partial = partials.get(i);
+            if (partial.function == function && partial.argument.equalsIgnoreCase(normalized)) {
+                return i;
+            }
+        }
+        partials.add(new Partial(function, normalized));
+        return partials.size() - 1;
+    }
+
+    private static boolean isAggregate(String selection) {
+        Matcher aliased = ALIAS.matcher(selection);
+        return AGGREGATE.matcher(aliased.matches() ? aliased.group(1).trim() : selection).matches();
+    }
+
+    private static int indexOf(List<String> expressions, String expression) {
+        String normalized = expression.replaceAll("\\s+", " ");
+        for (int i = 0; i < expressions.size(); i++) {
+            String candidate = expressions.get(i);
+            if (Objects.nonNull(candidate) && candidate.replaceAll("\\s+", " ").equalsIgnoreCase(normalized)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String unwrap(String condition) {
+        String text = condition.trim();
+        while (isWrapped(text)) {
+            text = text.substring(1, text.length() - 1).trim();
+        }
+        return text;
+    }
+
+    private static boolean isWrapped(String text) {
+        if (!text.startsWith("(") || !text.endsWith(")")) {
+            return false;
+        }
+        int depth = 0;
+        for (int i = 0; i < text.length() - 1; i++) {
+            if (text.charAt(i) == '(') {
+                depth++;
+            } else if (text.charAt(i) == ')' && --depth == 0) {
+                // the opening parenthesis closes before the end
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int firstOf(int end, int... indexes) {
+        int first = end;
+        for (int index : indexes) {
+            if (index >= 0 && index < first) {
+                first = index;
+            }
+        }
+        return first;
+    }
+
+    private static Object average(Object sum, Object count) {
+        if (Objects.isNull(sum) || Objects.isNull(count) || ((Number) count).longValue() == 0) {
+            return null;
+        }
+        // Hibernate returns AVG as a Double
+        return ((Number) sum).doubleValue() / ((Number) count).longValue();
+    }
+
+    static Object add(Object left, Object right) {
+        if (Objects.isNull(left)) {
+            return right;
+        }
+        if (Objects.isNull(right)) {
+            return left;
+        }
+        Number a = (Number) left;
+        Number b = (Number) right;
+        if (a instanceof BigDecimal || b instanceof BigDecimal) {
+            return toBigDecimal(a).add(toBigDecimal(b));
+        }
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        if (a instanceof BigInteger || b instanceof BigInteger) {
+            return new BigInteger(a.toString()).add(new BigInteger(b.toString()));
+        }
+        return Math.addExact(a.longValue(), b.longValue());
+    }
+
+    private static BigDecimal toBigDecimal(Number number) {
+        return number instanceof BigDecimal ? (BigDecimal) number : new BigDecimal(number.toString());
+    }
+
+    // -- getter && setter --
+    public String getShardHql() {
+        return shardHql;
+    }
+
+    public List<String> getGroupExpressions() {
+        return Collections.unmodifiableList(groupExpressions);
+    }
+
+    /**
+     * The aggregate functions, and how two of their partial results combine.
+     */
+    enum Function {
+        COUNT, SUM, AVG, MIN, MAX;
+
+        Object combine(Object left, Object right) {
+            switch (this) {
+                case MIN:
+                case MAX:
+                    if (Objects.isNull(left) || Objects.isNull(right)) {
+                        return Objects.isNull(left) ? right : left;
+                    }
+                    int result = OrderByClause.Item.compareValues(left, right);
+                    return (this == MIN) == (result <= 0) ? left : right;
+                default:
+                    return add(left, right);
+            }
+        }
+    }
+
+    /**
+     * One partial aggregate selected by the shard query.
+     */
+    static final class Partial {
+        private final Function function;
+        private final String argument;
+
+        private Partial(Function function, String argument) {
+            this.function = function;
+            this.argument = argument;
+        }
+
+        @Override
+        public String toString() {
+            return function.name().toLowerCase(Locale.ROOT) + "(" + argument + ")";
+        }
+    }
+
+    /**
+     * A value of a merged group.
+     */
+    private interface Operand {
+        Object evaluate(List<Object> key, Object[] values, Map<?, Object> params);
+    }
+
+    /**
+     * A comparison of the HAVING clause, false when either side is null as in SQL.
+     */
+    private static final class Predicate {
+        private final Operand left;
+        private final String operator;
+        private final Operand right;
+
+        private Predicate(Operand left, String operator, Operand right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        private boolean test(List<Object> key, Object[] values, Map<?, Object> params) {
+            Object l = left.evaluate(key, values, params);
+            Object r = right.evaluate(key, values, params);
+            if (Objects.isNull(l) || Objects.isNull(r)) {
+                return false;
+            }
+            int result = OrderByClause.Item.compareValues(l, r);
+            switch (operator) {
+                case "=":
+                    return result == 0;
+                case "<>":
+                case "!=":
+                    return result != 0;
+                case ">":
+                    return result > 0;
+                case ">=":
+                    return result >= 0;
+                case "<":
+                    return result < 0;
+                default:
+                    return result <= 0;
+            }
+        }
+    }
+}
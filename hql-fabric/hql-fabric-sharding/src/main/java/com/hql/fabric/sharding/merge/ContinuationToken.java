@@ -0,0 +1,260 @@
+package com.hql.fabric.sharding.merge;
+
+import org.hibernate.HibernateException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The position of a keyset paged query on each shard: the ORDER BY values of the last row
+ * read from the shard, and the shards which have no row left.
+ * <p>
+ * A token is an opaque URL-safe string. Its values are written with an explicit type tag,
+ * no Java serialization is involved in decoding a token received from a client, and a token
+ * only decodes for the query and parameters it was issued for. Its counts are checked against
+ * the shards and the ORDER BY clause before anything is allocated for them.
+ */
+public final class ContinuationToken {
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte INTEGER = 2;
+    private static final byte STRING = 3;
+    private static final byte DECIMAL = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte BOOLEAN = 6;
+    private static final byte DATE = 7;
+    private static final byte TIMESTAMP = 8;
+    private static final byte INSTANT = 9;
+    private static final byte LOCAL_DATE = 10;
+    private static final byte LOCAL_DATE_TIME = 11;
+    private static final byte OFFSET_DATE_TIME = 12;
+
+    private final long fingerprint;
+    private final Map<String, List<Object>> cursors;
+    private final Set<String> exhausted;
+
+    ContinuationToken(long fingerprint, Map<String, List<Object>> cursors, Set<String> exhausted) {
+        this.fingerprint = fingerprint;
+        this.cursors = Collections.unmodifiableMap(new LinkedHashMap<>(cursors));
+        this.exhausted = Collections.unmodifiableSet(new LinkedHashSet<>(exhausted));
+    }
+
+    /**
+     * @return the token of the first page of the query
+     */
+    static ContinuationToken first(long fingerprint) {
+        return new ContinuationToken(fingerprint, Map.of(), Set.of());
+    }
+
+    /**
+     * @param token       the encoded token
+     * @param fingerprint the fingerprint of the query and parameters the token must have been
+     *                    issued for
+     * @param arity       the number of ORDER BY expressions of the query
+     * @param shards      the names of all the shards
+     * @throws HibernateException if the token is malformed or was issued for another query
+     */
+    static ContinuationToken decode(String token, long fingerprint, int arity, Collection<String> shards) {
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            if (in.readByte() != VERSION || in.readLong() != fingerprint) {
+                throw new HibernateException("Continuation token was not issued for this query");
+            }
+            Map<String, List<Object>> cursors = new LinkedHashMap<>();
+            int cursorCount = readCount(in, shards.size());
+            for (int i = 0; i < cursorCount; i++) {
+                String shard = readShard(in, shards);
+                if (in.readInt() != arity) {
+                    throw new HibernateException("Malformed continuation token, cursor of shard " + shard
+                            + " does not match the ORDER BY clause");
+                }
+                List<Object> values = new ArrayList<>(arity);
+                for (int j = 0; j < arity; j++) {
+                    values.add(readValue(in));
+                }
+                cursors.put(shard, values);
+            }
+            Set<String> exhausted = new LinkedHashSet<>();
+            int exhaustedCount = readCount(in, shards.size());
+            for (int i = 0; i < exhaustedCount; i++) {
+                exhausted.add(readShard(in, shards));
+            }
+            return new ContinuationToken(fingerprint, cursors, exhausted);
+        } catch (IOException | IllegalArgumentException | DateTimeException e) {
+            throw new HibernateException("Malformed continuation token", e);
+        }
+    }
+
+    /**
+     * @return the token as an opaque URL-safe string
+     */
+    public String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(cursors.size());
+            for (Map.Entry<String, List<Object>> cursor : cursors.entrySet()) {
+                out.writeUTF(cursor.getKey());
+                out.writeInt(cursor.getValue().size());
+                for (Object value : cursor.getValue()) {
+                    writeValue(out, value);
+                }
+            }
+            out.writeInt(exhausted.size());
+            for (String shard : exhausted) {
+                out.writeUTF(shard);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @return the ORDER BY values of the last row read from the shard, {@code null} if no row
+     * was read from it yet
+     */
+    public List<Object> getCursor(String shard) {
+        return cursors.get(shard);
+    }
+
+    public boolean isExhausted(String shard) {
+        return exhausted.contains(shard);
+    }
+
+    // -- getter && setter --
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    public Map<String, List<Object>> getCursors() {
+        return cursors;
+    }
+
+    public Set<String> getExhausted() {
+        return exhausted;
+    }
+
+    private static int readCount(DataInputStream in, int shardCount) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > shardCount) {
+            throw new HibernateException("Malformed continuation token, " + count + " entries for "
+                    + shardCount + " shards");
+        }
+        return count;
+    }
+
+    private static String readShard(DataInputStream in, Collection<String> shards) throws IOException {
+        String shard = in.readUTF();
+        if (!shards.contains(shard)) {
+            throw new HibernateException("Malformed continuation token, unknown shard " + shard);
+        }
+        return shard;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (Objects.isNull(value)) {
+            out.writeByte(NULL);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(DECIMAL);
+            out.writeUTF(value.toString());
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Timestamp) {
+            // keeps the sub-millisecond part of database timestamps
+            out.writeByte(TIMESTAMP);
+            out.writeLong(((Timestamp) value).getTime());
+            out.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof Date) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Instant) {
+            out.writeByte(INSTANT);
+            out.writeUTF(value.toString());
+        } else if (value instanceof LocalDate) {
+            out.writeByte(LOCAL_DATE);
+            out.writeUTF(value.toString());
+        } else if (value instanceof LocalDateTime) {
+            out.writeByte(LOCAL_DATE_TIME);
+            out.writeUTF(value.toString());
+        } else if (value instanceof OffsetDateTime) {
+            out.writeByte(OFFSET_DATE_TIME);
+            out.writeUTF(value.toString());
+        } else {
+            throw new HibernateException("Cannot page on values of type " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case LONG:
+                return in.readLong();
+            case INTEGER:
+                return in.readInt();
+            case STRING:
+                return in.readUTF();
+            case DECIMAL:
+                return new BigDecimal(in.readUTF());
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case DATE:
+                return new Date(in.readLong());
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case INSTANT:
+                return Instant.parse(in.readUTF());
+            case LOCAL_DATE:
+                return LocalDate.parse(in.readUTF());
+            case LOCAL_DATE_TIME:
+                return LocalDateTime.parse(in.readUTF());
+            case OFFSET_DATE_TIME:
+                return OffsetDateTime.parse(in.readUTF());
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+}
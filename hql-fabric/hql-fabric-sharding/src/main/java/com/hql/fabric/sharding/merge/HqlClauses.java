@@ -0,0 +1,187 @@
+package com.hql.fabric.sharding.merge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Locates the clauses of an HQL query, ignoring what is nested in parentheses or quoted in
+ * string literals.
+ */
+final class HqlClauses {
+    private static final Pattern ROOT = Pattern.compile("^from\\s+([\\w.$]+)(?:\\s+(?:as\\s+)?(\\w+))?",
+            Pattern.CASE_INSENSITIVE);
+    private static final Set<String> KEYWORDS = Set.of("where", "join", "left", "right", "inner",
+            "outer", "cross", "full", "order", "group", "fetch");
+
+    private HqlClauses() {
+    }
+
+    /**
+     * @param lower   the lower-cased query
+     * @param keyword the lower-cased keyword
+     * @return the index of the last top level occurrence of the keyword, -1 if none
+     */
+    static int lastTopLevel(String lower, String keyword) {
+        int found = -1;
+        int depth = 0;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (c == '\'') {
+                i = endOfLiteral(lower, i);
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && isKeyword(lower, keyword, i)) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param lower   the lower-cased query
+     * @param keyword the lower-cased keyword
+     * @return the index of the first top level occurrence of the keyword, -1 if none
+     */
+    static int firstTopLevel(String lower, String keyword) {
+        return firstTopLevel(lower, keyword, 0);
+    }
+
+    static int firstTopLevel(String lower, String keyword, int from) {
+        int depth = 0;
+        for (int i = Math.max(0, from); i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if (c == '\'') {
+                i = endOfLiteral(lower, i);
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && isKeyword(lower, keyword, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits a clause on its top level separator, {@code ","} or a keyword such as
+     * {@code " and "}.
+     */
+    static List<String> splitTopLevel(String clause, String separator) {
+        String lower = clause.toLowerCase(Locale.ROOT);
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < clause.length(); i++) {
+            char c = clause.charAt(i);
+            if (c == '\'') {
+                i = endOfLiteral(clause, i);
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && lower.startsWith(separator, i)) {
+                parts.add(clause.substring(start, i).trim());
+                start = i + separator.length();
+                i = start - 1;
+            }
+        }
+        String last = clause.substring(start).trim();
+        if (!last.isEmpty()) {
+            parts.add(last);
+        }
+        return parts;
+    }
+
+    static List<String> splitTopLevel(String clause) {
+        return splitTopLevel(clause, ",");
+    }
+
+    /**
+     * @return the expressions of the top level SELECT clause, without DISTINCT, empty if the
+     * query selects its root entity implicitly
+     */
+    static List<String> selections(String hql) {
+        String lower = hql.toLowerCase(Locale.ROOT);
+        int select = firstTopLevel(lower, "select");
+        int from = firstTopLevel(lower, "from");
+        if (select < 0 || from <= select) {
+            return new ArrayList<>();
+        }
+        String clause = hql.substring(select + "select".length(), from).trim();
+        if (isKeyword(clause.toLowerCase(Locale.ROOT), "distinct", 0)) {
+            clause = clause.substring("distinct".length());
+        }
+        return splitTopLevel(clause);
+    }
+
+    /**
+     * @return whether the top level SELECT clause starts with DISTINCT
+     */
+    static boolean isDistinct(String hql) {
+        String lower = hql.toLowerCase(Locale.ROOT);
+        int select = firstTopLevel(lower, "select");
+        if (select < 0) {
+            return false;
+        }
+        String clause = lower.substring(select + "select".length()).trim();
+        return isKeyword(clause, "distinct", 0);
+    }
+
+    /**
+     * @return the alias of the root entity of the top level FROM clause, {@code null} if it has
+     * none
+     */
+    static String rootAlias(String hql) {
+        int from = firstTopLevel(hql.toLowerCase(Locale.ROOT), "from");
+        Matcher root = ROOT.matcher(from < 0 ? "" : hql.substring(from));
+        if (!root.find()) {
+            return null;
+        }
+        String alias = root.group(2);
+        return Objects.nonNull(alias) && KEYWORDS.contains(alias.toLowerCase(Locale.ROOT)) ? null : alias;
+    }
+
+    /**
+     * @return the index of the quote closing the string literal opened at the index, quotes
+     * are escaped by doubling them
+     */
+    private static int endOfLiteral(String text, int start) {
+        int i = start + 1;
+        while (i < text.length()) {
+            if (text.charAt(i) == '\'') {
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\'') {
+                    i += 2;
+                    continue;
+                }
+                return i;
+            }
+            i++;
+        }
+        return text.length();
+    }
+
+    private static boolean isKeyword(String text, String keyword, int index) {
+        if (!text.startsWith(keyword, index)) {
+            return false;
+        }
+        if (index > 0 && isIdentifierPart(text.charAt(index - 1))) {
+            return false;
+        }
+        int end = index + keyword.length();
+        // a keyword ending with a space is delimited by it
+        return end == text.length() || !isIdentifierPart(keyword.charAt(keyword.length() - 1))
+                || !isIdentifierPart(text.charAt(end));
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.' || c == ':';
+    }
+}
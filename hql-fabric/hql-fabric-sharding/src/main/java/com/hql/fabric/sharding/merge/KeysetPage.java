@@ -0,0 +1,35 @@
+package com.hql.fabric.sharding.merge;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A page of a keyset paged query and the token of the page after it.
+ *
+ * @param <T> the row type
+ */
+public class KeysetPage<T> {
+    private final List<T> rows;
+    private final String nextToken;
+
+    public KeysetPage(List<T> rows, String nextToken) {
+        this.rows = rows;
+        this.nextToken = nextToken;
+    }
+
+    public boolean hasNext() {
+        return Objects.nonNull(nextToken);
+    }
+
+    // -- getter && setter --
+    public List<T> getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the continuation token of the next page, {@code null} on the last page
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+}
@@ -0,0 +1,285 @@
+package com.hql.fabric.sharding.merge;
+
+import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.utils.HashUtils;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An ordered HQL query paged with keyset continuation tokens across shards.
+ * <p>
+ * Instead of reading {@code offset + limit} rows from every shard, each shard is asked for
+ * at most {@code limit} rows past its own cursor, the ORDER BY values of the last row the
+ * previous pages took from it:
+ * <pre>
+ *   where (...) and (u.createdDate &gt; :keysetCursor0
+ *       or (u.createdDate = :keysetCursor0 and u.id &gt; :keysetCursor1))
+ * </pre>
+ * The shard rows are merged with a heap holding one row per shard until the page is full,
+ * the rows which were not taken are read again by the next page. The cost of a page does not
+ * depend on its depth.
+ * <p>
+ * The ORDER BY expressions must be non-null and unique together within a shard. A query
+ * selecting its root entity is ordered by the identifier of the entity last if it is not
+ * already, a projection has to be ordered by unique expressions itself.
+ */
+public class KeysetQuery {
+    static final String CURSOR_PARAMETER = "keysetCursor";
+
+    private final String hql;
+    private final OrderByClause orderBy;
+
+    private KeysetQuery(String hql) {
+        this.hql = hql;
+        this.orderBy = OrderByClause.parse(hql);
+    }
+
+    /**
+     * @param hql the ordered HQL query, without LIMIT or OFFSET
+     * @throws HibernateException if the query is not ordered, or groups its rows
+     */
+    public static KeysetQuery of(String hql) {
+        String lower = hql.toLowerCase(Locale.ROOT);
+        int from = HqlClauses.firstTopLevel(lower, "from ");
+        int orderBy = HqlClauses.lastTopLevel(lower, "order by");
+        if (from < 0 || orderBy < from) {
+            throw new HibernateException("Keyset paging needs an ordered query: " + hql);
+        }
+        if (HqlClauses.firstTopLevel(lower, "group by ", from) >= 0) {
+            throw new HibernateException("Keyset paging does not support grouped queries: " + hql);
+        }
+
+        String alias = rootAlias(hql, HqlClauses.selections(hql));
+        if (Objects.nonNull(alias)) {
+            String id = alias.isEmpty() ? "id" : alias + ".id";
+            boolean ordered = OrderByClause.parse(hql).getItems().stream()
+                    .anyMatch(item -> item.getExpression().equalsIgnoreCase(id));
+            if (!ordered) {
+                // the identifier makes the order total
+                hql = hql + ", " + id;
+            }
+        }
+        return new KeysetQuery(hql);
+    }
+
+    /**
+     * @param token  the continuation token returned with the previous page, {@code null} for
+     *               the first page
+     * @param params the parameters of the query
+     * @param shards the names of all the shards
+     * @throws HibernateException if the token is malformed, or was not issued for this query
+     *                            and parameters
+     */
+    public ContinuationToken token(String token, Map<String, Object> params, Collection<String> shards) {
+        long fingerprint = fingerprint(params);
+        return Objects.isNull(token) ? ContinuationToken.first(fingerprint)
+                : ContinuationToken.decode(token, fingerprint, orderBy.getItems().size(), shards);
+    }
+
+    /**
+     * @param afterCursor whether the shard has a cursor
+     * @return the query to run on a shard, restricted to the rows past the cursor
+     */
+    public String shardHql(boolean afterCursor) {
+        if (!afterCursor) {
+            return hql;
+        }
+        String lower = hql.toLowerCase(Locale.ROOT);
+        int from = HqlClauses.firstTopLevel(lower, "from ");
+        int where = HqlClauses.firstTopLevel(lower, "where ", from);
+        int orderByIndex = HqlClauses.lastTopLevel(lower, "order by");
+        String keyset = keysetPredicate();
+        if (where < 0) {
+            return hql.substring(0, orderByIndex).trim() + " where " + keyset + " " + hql.substring(orderByIndex);
+        }
+        return hql.substring(0, where) + "where (" + hql.substring(where + "where ".length(), orderByIndex).trim()
+                + ") and " + keyset + " " + hql.substring(orderByIndex);
+    }
+
+    /**
+     * @param params the parameters of the query
+     * @param cursor the cursor of the shard, {@code null} if none
+     * @return the parameters of the shard query
+     * @throws HibernateException if a value of the cursor is null
+     */
+    public Map<String, Object> shardParameters(Map<String, Object> params, List<Object> cursor) {
+        Map<String, Object> shardParams = new HashMap<>(params);
+        if (Objects.isNull(cursor)) {
+            return shardParams;
+        }
+        List<OrderByClause.Item> items = orderBy.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            if (Objects.isNull(cursor.get(i))) {
+                throw new HibernateException("Cannot page past a null value of " + items.get(i).getExpression()
+                        + ", keyset paging needs non-null ORDER BY expressions");
+            }
+            shardParams.put(CURSOR_PARAMETER + i, cursor.get(i));
+        }
+        return shardParams;
+    }
+
+    /**
+     * Takes the page from the rows of the shards and moves the cursors of the shards past the
+     * rows taken.
+     *
+     * @param partials the rows each shard returned past its cursor, at most {@code pageSize}
+     *                 rows, in shard order
+     * @param pageSize the size of the page
+     * @param previous the token of the page
+     * @return the page and the token of the next page
+     */
+    public <T> KeysetPage<T> page(Map<String, List<T>> partials, int pageSize, ContinuationToken previous) {
+        Comparator<Object> comparator = orderBy.comparator();
+        PriorityQueue<Cursor<T>> heads = new PriorityQueue<>(Math.max(1, partials.size()), (a, b) -> {
+            int result = comparator.compare(a.head, b.head);
+            return result != 0 ? result : Integer.compare(a.shardIndex, b.shardIndex);
+        });
+        int shardIndex = 0;
+        for (Map.Entry<String, List<T>> partial : partials.entrySet()) {
+            Cursor<T> cursor = new Cursor<>(partial.getKey(), partial.getValue().iterator(), shardIndex++);
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+
+        List<T> rows = new ArrayList<>(pageSize);
+        Map<String, T> lastRows = new HashMap<>();
+        Map<String, Integer> taken = new HashMap<>();
+        while (!heads.isEmpty() && rows.size() < pageSize) {
+            Cursor<T> cursor = heads.poll();
+            rows.add(cursor.head);
+            lastRows.put(cursor.shard, cursor.head);
+            taken.merge(cursor.shard, 1, Integer::sum);
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+
+        Map<String, List<Object>> cursors = new LinkedHashMap<>(previous.getCursors());
+        for (Map.Entry<String, T> last : lastRows.entrySet()) {
+            cursors.put(last.getKey(), orderBy.values(last.getValue()));
+        }
+        Set<String> exhausted = new LinkedHashSet<>(previous.getExhausted());
+        for (Map.Entry<String, List<T>> partial : partials.entrySet()) {
+            int size = partial.getValue().size();
+            // a shard which returned less than a page, all of it taken, has no row left
+            if (size < pageSize && taken.getOrDefault(partial.getKey(), 0) == size) {
+                exhausted.add(partial.getKey());
+                cursors.remove(partial.getKey());
+            }
+        }
+        if (exhausted.containsAll(partials.keySet())) {
+            return new KeysetPage<>(rows, null);
+        }
+        return new KeysetPage<>(rows, new ContinuationToken(previous.getFingerprint(), cursors, exhausted).encode());
+    }
+
+    /**
+     * @return the hash of the query and of its parameters, sorted by name, so that a token
+     * does not resume the query with other parameters
+     */
+    private long fingerprint(Map<String, Object> params) {
+        StringBuilder text = new StringBuilder(hql);
+        for (Map.Entry<String, Object> param : new TreeMap<>(params).entrySet()) {
+            text.append('\0').append(param.getKey()).append('=');
+            appendValue(text, param.getValue());
+        }
+        return HashUtils.hash64(text.toString());
+    }
+
+    private static void appendValue(StringBuilder text, Object value) {
+        if (value instanceof Collection) {
+            text.append('[');
+            for (Object element : (Collection<?>) value) {
+                appendValue(text, element);
+                text.append(',');
+            }
+            text.append(']');
+        } else if (value instanceof BaseEntity) {
+            text.append(Hibernate.getClass(value).getName()).append('#').append(((BaseEntity) value).getId());
+        } else if (Objects.nonNull(value)) {
+            text.append(value.getClass().getName()).append(':').append(value);
+        }
+    }
+
+    /**
+     * @return {@code (e0 > :c0 or (e0 = :c0 and e1 > :c1) or ...)}, {@code <} on descending
+     * expressions
+     */
+    private String keysetPredicate() {
+        List<OrderByClause.Item> items = orderBy.getItems();
+        List<String> disjuncts = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            StringBuilder disjunct = new StringBuilder();
+            for (int j = 0; j < i; j++) {
+                disjunct.append(items.get(j).getExpression()).append(" = :").append(CURSOR_PARAMETER).append(j)
+                        .append(" and ");
+            }
+            OrderByClause.Item item = items.get(i);
+            disjunct.append(item.getExpression()).append(item.isDescending() ? " < :" : " > :")
+                    .append(CURSOR_PARAMETER).append(i);
+            disjuncts.add(i == 0 ? disjunct.toString() : "(" + disjunct + ")");
+        }
+        return "(" + String.join(" or ", disjuncts) + ")";
+    }
+
+    /**
+     * @return the alias of the root entity if the query selects it, empty if it has no alias,
+     * {@code null} if the query selects a projection
+     */
+    private static String rootAlias(String hql, List<String> selections) {
+        String alias = HqlClauses.rootAlias(hql);
+        if (selections.isEmpty()) {
+            return Objects.isNull(alias) ? "" : alias;
+        }
+        if (selections.size() == 1 && Objects.nonNull(alias) && selections.get(0).equals(alias)) {
+            return alias;
+        }
+        return null;
+    }
+
+    // -- getter && setter --
+    public String getHql() {
+        return hql;
+    }
+
+    public OrderByClause getOrderBy() {
+        return orderBy;
+    }
+
+    private static final class Cursor<T> {
+        private final String shard;
+        private final Iterator<T> rows;
+        private final int shardIndex;
+        private T head;
+
+        private Cursor(String shard, Iterator<T> rows, int shardIndex) {
+            this.shard = shard;
+            this.rows = rows;
+            this.shardIndex = shardIndex;
+        }
+
+        private boolean advance() {
+            if (!rows.hasNext()) {
+                return false;
+            }
+            head = rows.next();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.hql.fabric.sharding.merge;
+
+import org.hibernate.HibernateException;
+import org.springframework.beans.BeanWrapperImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * The ORDER BY clause of an HQL query, used to merge the sorted results of several shards
+ * the way the database would have sorted them.
+ * <p>
+ * Entity rows are compared on the property path of the expressions below the alias of the
+ * selected entity, the root entity unless another alias is selected ({@code u.email} reads
+ * {@code email}), projection rows on the selected expression the ORDER BY item refers to.
+ * Nulls sort as PostgreSQL does by default: last ascending, first descending.
+ */
+public class OrderByClause {
+    private static final Pattern ALIAS = Pattern.compile("\\w+");
+    private static final OrderByClause NONE = new OrderByClause(List.of(), List.of(), null);
+
+    private final List<Item> items;
+    private final List<String> selections;
+    private final String entityAlias;
+
+    private OrderByClause(List<Item> items, List<String> selections, String entityAlias) {
+        this.items = items;
+        this.selections = selections;
+        this.entityAlias = entityAlias;
+    }
+
+    /**
+     * Parses the top level ORDER BY clause of the query.
+     *
+     * @param hql the HQL query, without LIMIT or OFFSET
+     * @return the clause, {@link #isEmpty() empty} if the query is not ordered
+     */
+    public static OrderByClause parse(String hql) {
+        String lower = hql.toLowerCase(Locale.ROOT);
+        int orderBy = HqlClauses.lastTopLevel(lower, "order by");
+        if (orderBy < 0) {
+            return NONE;
+        }
+        List<Item> items = new ArrayList<>();
+        for (String part : HqlClauses.splitTopLevel(hql.substring(orderBy + "order by".length()))) {
+            items.add(Item.parse(part));
+        }
+
+        List<String> selections = HqlClauses.selections(hql);
+        return new OrderByClause(Collections.unmodifiableList(items),
+                Collections.unmodifiableList(selections), entityAlias(hql, selections));
+    }
+
+    /**
+     * @return the alias of the entity the query returns, {@code null} if it returns a
+     * projection
+     */
+    private static String entityAlias(String hql, List<String> selections) {
+        if (selections.isEmpty()) {
+            return HqlClauses.rootAlias(hql);
+        }
+        return selections.size() == 1 && ALIAS.matcher(selections.get(0)).matches() ? selections.get(0) : null;
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * @return a comparator of the rows returned by the query
+     * @throws HibernateException if a projection row is ordered by an expression which is not
+     *                            selected, or an entity row by a property of another entity
+     */
+    public Comparator<Object> comparator() {
+        Comparator<Object> comparator = null;
+        for (Item item : items) {
+            Comparator<Object> next = item.comparator(selections, entityAlias);
+            comparator = Objects.isNull(comparator) ? next : comparator.thenComparing(next);
+        }
+        return Objects.isNull(comparator) ? (a, b) -> 0 : comparator;
+    }
+
+    /**
+     * @param row a row returned by the query
+     * @return the values of the ORDER BY expressions of the row
+     */
+    public List<Object> values(Object row) {
+        List<Object> values = new ArrayList<>(items.size());
+        for (Item item : items) {
+            values.add(item.value(row, item.indexOf(selections), selections.size(), entityAlias));
+        }
+        return values;
+    }
+
+    // -- getter && setter --
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public List<String> getSelections() {
+        return selections;
+    }
+
+    public String getEntityAlias() {
+        return entityAlias;
+    }
+
+    /**
+     * One expression of the ORDER BY clause.
+     */
+    public static class Item {
+        private final String expression;
+        private final boolean descending;
+        private final boolean nullsFirst;
+
+        Item(String expression, boolean descending, boolean nullsFirst) {
+            this.expression = expression;
+            this.descending = descending;
+            this.nullsFirst = nullsFirst;
+        }
+
+        static Item parse(String text) {
+            String[] tokens = text.trim().split("\\s+");
+            int end = tokens.length;
+            Boolean nullsFirst = null;
+            if (end >= 2 && tokens[end - 2].equalsIgnoreCase("nulls")) {
+                nullsFirst = tokens[end - 1].equalsIgnoreCase("first");
+                end -= 2;
+            }
+            boolean descending = false;
+            if (end >= 2 && (tokens[end - 1].equalsIgnoreCase("asc")
+                    || tokens[end - 1].equalsIgnoreCase("desc"))) {
+                descending = tokens[end - 1].equalsIgnoreCase("desc");
+                end -= 1;
+            }
+            String expression = String.join(" ", Arrays.copyOf(tokens, end));
+            return new Item(expression, descending,
+                    Objects.isNull(nullsFirst) ? descending : nullsFirst);
+        }
+
+        Comparator<Object> comparator(List<String> selections, String entityAlias) {
+            int index = indexOf(selections);
+            return (a, b) -> {
+                Object left = value(a, index, selections.size(), entityAlias);
+                Object right = value(b, index, selections.size(), entityAlias);
+                if (left == right) {
+                    return 0;
+                }
+                if (Objects.isNull(left) || Objects.isNull(right)) {
+                    return (Objects.isNull(left) == nullsFirst) ? -1 : 1;
+                }
+                int result = compareValues(left, right);
+                return descending ? -result : result;
+            };
+        }
+
+        private Object value(Object row, int index, int selectionCount, String entityAlias) {
+            if (row instanceof Object[]) {
+                if (index < 0) {
+                    throw new HibernateException("Cannot merge shard results ordered by "
+                            + expression + ", the expression must be selected");
+                }
+                return ((Object[]) row)[index];
+            }
+            if (index >= 0 && selectionCount == 1) {
+                // single scalar projection
+                return row;
+            }
+            return Objects.isNull(row) ? null : new BeanWrapperImpl(row).getPropertyValue(path(entityAlias));
+        }
+
+        /**
+         * @return the property path of the expression within the entity of the row
+         * @throws HibernateException if the expression refers to another alias
+         */
+        private String path(String entityAlias) {
+            int dot = expression.indexOf('.');
+            if (dot < 0 && !expression.equalsIgnoreCase(entityAlias)) {
+                return expression;
+            }
+            if (dot > 0 && expression.substring(0, dot).equalsIgnoreCase(entityAlias)) {
+                return expression.substring(dot + 1);
+            }
+            throw new HibernateException("Cannot merge shard results ordered by " + expression
+                    + ", select it or order by a property of the selected entity");
+        }
+
+        private int indexOf(List<String> selections) {
+            for (int i = 0; i < selections.size(); i++) {
+                String selection = selections.get(i);
+                String[] aliased = selection.split("(?i)\\s+as\\s+");
+                if (selection.equalsIgnoreCase(expression)
+                        || aliased[0].trim().equalsIgnoreCase(expression)
+                        || (aliased.length == 2 && aliased[1].trim().equalsIgnoreCase(expression))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static int compareValues(Object left, Object right) {
+            if (left instanceof Number && right instanceof Number
+                    && left.getClass() != right.getClass()) {
+                return Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+            }
+            return ((Comparable) left).compareTo(right);
+        }
+
+        // -- getter && setter --
+        public String getExpression() {
+            return expression;
+        }
+
+        public boolean isDescending() {
+            return descending;
+        }
+
+        public boolean isNullsFirst() {
+            return nullsFirst;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.hql.fabric.sharding.merge;
+
+import com.hql.fabric.persistence.entity.BaseEntity;
+import org.hibernate.Hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Merges the partial results returned by the shards of a fanned out query.
+ */
+public final class ShardResultMerger {
+
+    private ShardResultMerger() {
+    }
+
+    /**
+     * Merges the partial results of the query, with a k-way merge if the query is ordered,
+     * and applies its result window. The rows of a {@code select distinct} query are
+     * deduplicated across the shards before the window, entities by their identifier.
+     *
+     * @param query    the fanned out query
+     * @param partials the results of each shard, in shard order
+     * @param <T>      the row type
+     * @return the merged rows
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> merge(ShardedQuery query, Collection<List<T>> partials) {
+        Set<Object> seen = query.isDistinct() ? new HashSet<>() : null;
+        if (query.getOrderBy().isEmpty()) {
+            return concat(partials, query.getOffset(), query.getLimit(), seen);
+        }
+        return mergeSorted(partials, (Comparator<? super T>) query.getOrderBy().comparator(),
+                query.getOffset(), query.getLimit(), seen);
+    }
+
+    /**
+     * Concatenates the partial results in shard order.
+     *
+     * @param partials the results of each shard
+     * @param offset   the number of rows to skip
+     * @param limit    the maximum number of rows, {@code null} if unbounded
+     */
+    public static <T> List<T> concat(Collection<List<T>> partials, int offset, Integer limit) {
+        return concat(partials, offset, limit, null);
+    }
+
+    private static <T> List<T> concat(Collection<List<T>> partials, int offset, Integer limit, Set<Object> seen) {
+        List<T> merged = new ArrayList<>();
+        int skipped = 0;
+        for (List<T> partial : partials) {
+            for (T row : partial) {
+                if (Objects.nonNull(seen) && !seen.add(distinctKey(row))) {
+                    continue;
+                }
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+                if (Objects.nonNull(limit) && merged.size() >= limit) {
+                    return merged;
+                }
+                merged.add(row);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merges partial results sorted by the comparator, reading each of them once and stopping
+     * as soon as the window is complete. Rows comparing equal keep the shard order.
+     *
+     * @param partials   the sorted results of each shard
+     * @param comparator the order of the rows
+     * @param offset     the number of rows to skip
+     * @param limit      the maximum number of rows, {@code null} if unbounded
+     */
+    public static <T> List<T> mergeSorted(Collection<List<T>> partials, Comparator<? super T> comparator,
+                                          int offset, Integer limit) {
+        return mergeSorted(partials, comparator, offset, limit, null);
+    }
+
+    private static <T> List<T> mergeSorted(Collection<List<T>> partials, Comparator<? super T> comparator,
+                                           int offset, Integer limit, Set<Object> seen) {
+        PriorityQueue<Cursor<T>> heads = new PriorityQueue<>(Math.max(1, partials.size()),
+                (a, b) -> {
+                    int result = comparator.compare(a.head, b.head);
+                    return result != 0 ? result : Integer.compare(a.shardIndex, b.shardIndex);
+                });
+        int shardIndex = 0;
+        for (List<T> partial : partials) {
+            Cursor<T> cursor = new Cursor<>(partial.iterator(), shardIndex++);
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+
+        List<T> merged = new ArrayList<>();
+        int skipped = 0;
+        while (!heads.isEmpty() && (Objects.isNull(limit) || merged.size() < limit)) {
+            Cursor<T> cursor = heads.poll();
+            // rows already merged from another shard are skipped
+            if (Objects.isNull(seen) || seen.add(distinctKey(cursor.head))) {
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    merged.add(cursor.head);
+                }
+            }
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return the value identifying a row among the rows of every shard: an entity loaded by
+     * each shard is identified by its class and identifier
+     */
+    private static Object distinctKey(Object row) {
+        if (row instanceof Object[]) {
+            Object[] values = (Object[]) row;
+            Object[] keys = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                keys[i] = distinctKey(values[i]);
+            }
+            return Arrays.asList(keys);
+        }
+        if (row instanceof BaseEntity && Objects.nonNull(((BaseEntity) row).getId())) {
+            return Arrays.asList(Hibernate.getClass(row), ((BaseEntity) row).getId());
+        }
+        return row;
+    }
+
+    private static final class Cursor<T> {
+        private final Iterator<T> rows;
+        private final int shardIndex;
+        private T head;
+
+        private Cursor(Iterator<T> rows, int shardIndex) {
+            this.rows = rows;
+            this.shardIndex = shardIndex;
+        }
+
+        private boolean advance() {
+            if (!rows.hasNext()) {
+                return false;
+            }
+            head = rows.next();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.hql.fabric.sharding.merge;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An HQL query prepared to be fanned out to several shards.
+ * <p>
+ * The result window (LIMIT/OFFSET literals of the query, or the page of the caller) cannot
+ * be applied as is on every shard: each shard returns its first {@code offset + limit} rows,
+ * and the window is applied once the partial results are merged.
+ */
+public class ShardedQuery {
+    private static final Pattern LIMIT_OFFSET = Pattern.compile(
+            "\\s+(?:limit\\s+(\\d+)\\s*)?(?:offset\\s+(\\d+)(?:\\s+rows?)?\\s*)?$",
+            Pattern.CASE_INSENSITIVE);
+
+    private final String hql;
+    private final OrderByClause orderBy;
+    private final boolean distinct;
+    private final int offset;
+    private final Integer limit;
+
+    private ShardedQuery(String hql, int offset, Integer limit) {
+        this.hql = hql;
+        this.orderBy = OrderByClause.parse(hql);
+        this.distinct = HqlClauses.isDistinct(hql);
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * @param hql the HQL query
+     * @return the query, its literal LIMIT/OFFSET moved to the result window
+     */
+    public static ShardedQuery of(String hql) {
+        return of(hql, null, null);
+    }
+
+    /**
+     * @param hql         the HQL query
+     * @param firstResult the first row of the page, may be {@code null}
+     * @param maxResults  the size of the page, may be {@code null}
+     * @return the query, its literal LIMIT/OFFSET combined with the page
+     */
+    public static ShardedQuery of(String hql, Integer firstResult, Integer maxResults) {
+        int offset = Objects.isNull(firstResult) ? 0 : firstResult;
+        Integer limit = maxResults;
+        Matcher matcher = LIMIT_OFFSET.matcher(hql);
+        if (matcher.find() && (Objects.nonNull(matcher.group(1)) || Objects.nonNull(matcher.group(2)))) {
+            int literalOffset = Objects.isNull(matcher.group(2)) ? 0 : Integer.parseInt(matcher.group(2));
+            Integer literalLimit = Objects.isNull(matcher.group(1)) ? null : Integer.valueOf(matcher.group(1));
+            hql = hql.substring(0, matcher.start());
+            // the page applies within the rows selected by the literal window
+            if (Objects.nonNull(literalLimit)) {
+                int remaining = Math.max(0, literalLimit - offset);
+                limit = Objects.isNull(limit) ? remaining : Math.min(limit, remaining);
+            }
+            offset += literalOffset;
+        }
+        return new ShardedQuery(hql, offset, limit);
+    }
+
+    /**
+     * @return the number of rows each shard has to return, {@code null} if unbounded
+     */
+    public Integer getShardMaxResults() {
+        return Objects.isNull(limit) ? null : offset + limit;
+    }
+
+    /**
+     * @return the query counting the rows of this query, {@code null} if the query groups or
+     * deduplicates its rows
+     */
+    public String getCountHql() {
+        String lower = hql.toLowerCase(Locale.ROOT);
+        int from = HqlClauses.firstTopLevel(lower, "from");
+        if (from < 0 || HqlClauses.firstTopLevel(lower, "group by") >= 0
+                || HqlClauses.firstTopLevel(lower.substring(0, from), "distinct") >= 0) {
+            return null;
+        }
+        int orderBy = HqlClauses.lastTopLevel(lower, "order by");
+        return "select count(*) " + hql.substring(from, orderBy >= 0 ? orderBy : hql.length()).trim();
+    }
+
+    // -- getter && setter --
+    public String getHql() {
+        return hql;
+    }
+
+    public OrderByClause getOrderBy() {
+        return orderBy;
+    }
+
+    /**
+     * @return whether the query selects distinct rows, which the shards cannot deduplicate
+     * among them
+     */
+    public boolean isDistinct() {
+        return distinct;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,71 @@
+package com.hql.fabric.sharding.rebalance;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The outcome of the rebalance of an entity group, once routed with its new routing.
+ */
+public class RebalanceReport {
+    private final String rootTable;
+    private final Map<String, Long> movedRows;
+    private final int ranges;
+    private final int rangesCopiedAgain;
+    private final long deletedRows;
+    private final long elapsedMillis;
+
+    public RebalanceReport(String rootTable, Map<String, Long> movedRows, int ranges, int rangesCopiedAgain,
+                           long deletedRows, long elapsedMillis) {
+        this.rootTable = rootTable;
+        this.movedRows = Collections.unmodifiableMap(movedRows);
+        this.ranges = ranges;
+        this.rangesCopiedAgain = rangesCopiedAgain;
+        this.deletedRows = deletedRows;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    // -- getter && setter --
+
+    public String getRootTable() {
+        return rootTable;
+    }
+
+    /**
+     * @return the number of rows moved of each table of the entity group
+     */
+    public Map<String, Long> getMovedRows() {
+        return movedRows;
+    }
+
+    /**
+     * @return the number of ranges copied and verified
+     */
+    public int getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return the number of copies of ranges whose checksums differed, written to while copied
+     */
+    public int getRangesCopiedAgain() {
+        return rangesCopiedAgain;
+    }
+
+    /**
+     * @return the number of moved rows deleted from their source shard, 0 if they are kept
+     */
+    public long getDeletedRows() {
+        return deletedRows;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "RebalanceReport{rootTable=" + rootTable + ", movedRows=" + movedRows + ", ranges=" + ranges
+                + ", rangesCopiedAgain=" + rangesCopiedAgain + ", deletedRows=" + deletedRows
+                + ", elapsedMillis=" + elapsedMillis + "}";
+    }
+}
@@ -0,0 +1,410 @@
+package com.hql.fabric.sharding.rebalance;
+
+import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.utils.HashUtils;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
+import com.hql.fabric.sharding.router.RouterRegistry;
+import com.hql.fabric.sharding.router.TableAwareShardRouter;
+import org.hibernate.HibernateException;
+import org.hibernate.JDBCException;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Moves the rows of an entity group to the shards of a new routing while the application
+ * keeps reading and writing them, enabled with {@code rebalance.enabled}.
+ * <p>
+ * Adding a shard: configure its datasource and list it under {@code rebalance.standby-shards},
+ * which the hash routers skip, then rebalance each entity group to a router of the settings
+ * with the standby shards promoted, e.g.
+ * <pre>
+ * rebalancer.rebalance(AccountUser.class,
+ *         new DefaultHashShardRouter(shardingProperties.withStandbyShardsPromoted()));
+ * </pre>
+ * and drop the shard from the standby shards before the next restart: the new routing is
+ * kept in memory.
+ * <p>
+ * The rebalance of a group
+ * <ol>
+ * <li>mirrors the writes of its rows to the shard the new routing gives them,</li>
+ * <li>reads each shard by keyset pages of identifiers and upserts the rows the new routing
+ * places elsewhere on their new shard, by JDBC batches,</li>
+ * <li>compares the checksums of each copied range on its source and new shards, copying the
+ * ranges written to meanwhile again,</li>
+ * <li>routes the group with the new routing, in a single write of the {@link RouterRegistry},</li>
+ * <li>deletes the moved rows from their source shard.</li>
+ * </ol>
+ * Until the moved rows are deleted the queries sent to every shard may return them twice, so
+ * a rebalance is best run out of the busy hours of the group. The bulk HQL updates of the group
+ * are not mirrored: those run during the copy are caught by the checksums, not those run
+ * between the checksums and the routing switch.
+ */
+@Component
+@ConditionalOnExpression("${hql.fabric.sharding.enabled:false} and ${hql.fabric.sharding.rebalance.enabled:false}")
+public class ShardRebalancer {
+    private static final Logger LOG = LoggerFactory.getLogger(ShardRebalancer.class);
+
+    private final ShardedSessionResolver sessionResolver;
+    private final RouterRegistry routerRegistry;
+    private final int batchSize;
+    private final int verifyAttempts;
+    private final boolean deleteMovedRows;
+
+    public ShardRebalancer(ShardedSessionResolver sessionResolver, RouterRegistry routerRegistry,
+                           ShardingProperties shardingProperties) {
+        ShardingProperties.Rebalance settings = shardingProperties.getRebalance();
+        if (settings.getBatchSize() <= 0 || settings.getVerifyAttempts() <= 0) {
+            throw new IllegalArgumentException("Expect a positive rebalance batch size and verify attempts, but got "
+                    + settings.getBatchSize() + " and " + settings.getVerifyAttempts());
+        }
+        this.sessionResolver = sessionResolver;
+        this.routerRegistry = routerRegistry;
+        this.batchSize = settings.getBatchSize();
+        this.verifyAttempts = settings.getVerifyAttempts();
+        this.deleteMovedRows = settings.isDeleteMovedRows();
+    }
+
+    /**
+     * Moves the rows of the entity and of the entities co-located with it to the shards of
+     * the router, then routes them with it. On failure the group keeps its routing, and the
+     * rows already copied stay on their new shard until the group is rebalanced again.
+     *
+     * @param rootEntity   the root of the entity group
+     * @param targetRouter the router of the root once its rows are moved
+     * @return the report of the rebalance
+     * @throws HibernateException if a shard failed, or a range still differed after
+     *                            {@code rebalance.verify-attempts} copies
+     */
+    public synchronized RebalanceReport rebalance(Class<? extends BaseEntity> rootEntity,
+                                                  TableAwareShardRouter<?> targetRouter) {
+        long start = System.nanoTime();
+        String rootTable = rootEntity.getSimpleName();
+        List<String> group = routerRegistry.getEntityGroup(rootTable);
+        routerRegistry.beginMigration(rootTable, targetRouter);
+        List<MovedRange> ranges = new ArrayList<>();
+        int rangesCopiedAgain;
+        try {
+            // the parents first, so that the children find them on their new shard
+            for (String table : group) {
+                ranges.addAll(copy(table));
+            }
+            rangesCopiedAgain = verify(ranges);
+            routerRegistry.completeMigration(rootTable);
+        } catch (RuntimeException e) {
+            routerRegistry.abortMigration(rootTable);
+            LOG.error("Rebalance of {} failed, it keeps its routing", group, e);
+            throw e;
+        }
+        Map<String, Long> movedRows = new LinkedHashMap<>();
+        for (String table : group) {
+            movedRows.put(table, 0L);
+        }
+        for (MovedRange range : ranges) {
+            movedRows.merge(range.table, (long) range.ids.size(), Long::sum);
+        }
+        LOG.info("Routed {} with its new routing, moved rows {}", group, movedRows);
+
+        long deletedRows = 0;
+        if (deleteMovedRows) {
+            // the children first, before the parents they refer to
+            for (int i = ranges.size() - 1; i >= 0; i--) {
+                MovedRange range = ranges.get(i);
+                try {
+                    deletedRows += delete(range.source, range.table, range.ids);
+                } catch (Exception e) {
+                    LOG.warn("Cannot delete {} moved {} rows from shard {}, queries sent to every shard return them twice "
+                            + "until deleted", range.ids.size(), range.table, range.source, e);
+                }
+            }
+        }
+        RebalanceReport report = new RebalanceReport(rootTable, movedRows, ranges.size(), rangesCopiedAgain,
+                deletedRows, (System.nanoTime() - start) / 1_000_000);
+        LOG.info("Rebalanced {}", report);
+        return report;
+    }
+
+    /**
+     * Copies the rows of the table each shard holds and the new routing places elsewhere.
+     *
+     * @return the ranges copied, a keyset page of a shard to each of the shards it moves to
+     */
+    private List<MovedRange> copy(String table) {
+        TableAwareShardRouter<?> targetRouter = routerRegistry.getMigrationRouterForTable(table)
+                .orElseThrow(() -> new HibernateException("No router to rebalance " + table + " with"));
+        Class<?> entityClass = sessionResolver.getEntityClass(table);
+        List<String> shardNames = sessionResolver.getShardNames();
+        List<MovedRange> ranges = new ArrayList<>();
+        for (String shard : shardNames) {
+            long last = Long.MIN_VALUE;
+            long copied = 0;
+            List<BaseEntity> page;
+            do {
+                page = readPage(shard, entityClass, last);
+                if (page.isEmpty()) {
+                    break;
+                }
+                last = page.get(page.size() - 1).getId();
+                Map<String, List<BaseEntity>> moved = new TreeMap<>();
+                for (BaseEntity row : page) {
+                    String target = targetRouter.routeEntity(table, row);
+                    if (Objects.nonNull(target) && !target.equals(shard) && shardNames.contains(target)) {
+                        moved.computeIfAbsent(target, name -> new ArrayList<>()).add(row);
+                    }
+                }
+                for (Map.Entry<String, List<BaseEntity>> target : moved.entrySet()) {
+                    upsert(target.getKey(), target.getValue());
+                    ranges.add(new MovedRange(table, shard, target.getKey(), ids(target.getValue())));
+                    copied += target.getValue().size();
+                }
+            } while (page.size() == batchSize);
+            LOG.info("Copied {} {} rows of shard {} to their new shard", copied, table, shard);
+        }
+        return ranges;
+    }
+
+    /**
+     * Compares the checksums of each range on its source and new shards, copying it again
+     * while they differ.
+     *
+     * @return the number of copies of differing ranges
+     */
+    private int verify(List<MovedRange> ranges) {
+        int copiedAgain = 0;
+        for (MovedRange range : ranges) {
+            Class<?> entityClass = sessionResolver.getEntityClass(range.table);
+            int attempts = 1;
+            while (checksum(range.source, entityClass, range.ids) != checksum(range.target, entityClass, range.ids)) {
+                if (attempts++ >= verifyAttempts) {
+                    throw new HibernateException("Range of " + range.ids.size() + " " + range.table + " rows moved from "
+                            + range.source + " to " + range.target + " still differs after " + verifyAttempts + " copies");
+                }
+                LOG.debug("Range of {} {} rows moved from {} to {} differs, copying it again",
+                        range.ids.size(), range.table, range.source, range.target);
+                copyAgain(range, entityClass);
+                copiedAgain++;
+            }
+        }
+        return copiedAgain;
+    }
+
+    private void copyAgain(MovedRange range, Class<?> entityClass) {
+        List<BaseEntity> rows = readByIds(range.source, entityClass, range.ids);
+        upsert(range.target, rows);
+        // rows deleted from their source shard since copied
+        Set<Long> deleted = new HashSet<>(range.ids);
+        deleted.removeAll(ids(rows));
+        if (!deleted.isEmpty()) {
+            delete(range.target, range.table, new ArrayList<>(deleted));
+        }
+    }
+
+    /**
+     * @return an order independent checksum of the rows of the identifiers the shard holds,
+     * from their identifier and their persistent properties but their version, which
+     * differs between the shards
+     */
+    private long checksum(String shard, Class<?> entityClass, List<Long> ids) {
+        Session session = null;
+        try {
+            session = sessionResolver.openSession(shard);
+            EntityPersister persister = session.getSessionFactory().unwrap(SessionFactoryImplementor.class)
+                    .getMappingMetamodel().getEntityDescriptor(entityClass);
+            long checksum = 0;
+            for (BaseEntity row : readByIds(session, entityClass, ids)) {
+                checksum += fingerprint(persister, row);
+            }
+            return checksum;
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while summing {} {} rows on shard {}", ids.size(), entityClass.getSimpleName(), shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while summing {} {} rows on shard {}", ids.size(), entityClass.getSimpleName(), shard, e);
+            }
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
+    private static long fingerprint(EntityPersister persister, BaseEntity row) {
+        Object[] values = persister.getPropertyValues(row);
+        Type[] types = persister.getPropertyTypes();
+        int version = persister.isVersioned() ? persister.getVersionProperty() : -1;
+        StringBuilder text = new StringBuilder().append(row.getId());
+        for (int i = 0; i < values.length; i++) {
+            if (i == version || types[i].isCollectionType()) {
+                continue;
+            }
+            Object value = values[i];
+            if (types[i].isEntityType() && value instanceof BaseEntity) {
+                value = ((BaseEntity) value).getId();
+            }
+            text.append('\u001f').append(value);
+        }
+        return HashUtils.hash64(text.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<BaseEntity> readPage(String shard, Class<?> entityClass, long last) {
+        Session session = null;
+        try {
+            session = sessionResolver.openSession(shard);
+            return (List<BaseEntity>) session.createQuery("from " + entityClass.getSimpleName()
+                            + " e where e.id > :last order by e.id", entityClass)
+                    .setParameter("last", last)
+                    .setMaxResults(batchSize)
+                    .setReadOnly(true)
+                    .getResultList();
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while reading {} rows of shard {} after id {}", entityClass.getSimpleName(), shard, last, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while reading {} rows of shard {} after id {}", entityClass.getSimpleName(), shard, last, e);
+            }
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
+    private List<BaseEntity> readByIds(String shard, Class<?> entityClass, List<Long> ids) {
+        Session session = null;
+        try {
+            session = sessionResolver.openSession(shard);
+            return readByIds(session, entityClass, ids);
+        } finally {
+            close(session);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<BaseEntity> readByIds(Session session, Class<?> entityClass, List<Long> ids) {
+        List<BaseEntity> rows = new ArrayList<>(ids.size());
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            rows.addAll((List<BaseEntity>) session.createQuery("from " + entityClass.getSimpleName()
+                            + " e where e.id in (:ids)", entityClass)
+                    .setParameterList("ids", ids.subList(from, Math.min(from + batchSize, ids.size())))
+                    .setReadOnly(true)
+                    .getResultList());
+        }
+        return rows;
+    }
+
+    /**
+     * Inserts the rows on the shard, or overwrites them if already copied.
+     */
+    private void upsert(String shard, List<BaseEntity> rows) {
+        StatelessSession session = null;
+        Transaction trx = null;
+        try {
+            session = sessionResolver.openStatelessSession(shard);
+            session.setJdbcBatchSize(batchSize);
+            trx = session.beginTransaction();
+            for (BaseEntity row : rows) {
+                session.upsert(row);
+            }
+            trx.commit();
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while copying {} rows to shard {}, gonna rollback", rows.size(), shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while copying {} rows to shard {}, gonna rollback", rows.size(), shard, e);
+            }
+            rollback(trx);
+            throw e;
+        } finally {
+            if (Objects.nonNull(session) && session.isOpen()) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of rows deleted
+     */
+    private int delete(String shard, String table, List<Long> ids) {
+        Session session = null;
+        Transaction trx = null;
+        try {
+            session = sessionResolver.openSession(shard);
+            trx = session.beginTransaction();
+            int deleted = 0;
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                deleted += session.createMutationQuery("delete from " + table + " e where e.id in (:ids)")
+                        .setParameterList("ids", ids.subList(from, Math.min(from + batchSize, ids.size())))
+                        .executeUpdate();
+            }
+            trx.commit();
+            return deleted;
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while deleting {} {} rows from shard {}, gonna rollback", ids.size(), table, shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while deleting {} {} rows from shard {}, gonna rollback", ids.size(), table, shard, e);
+            }
+            rollback(trx);
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
+    private static List<Long> ids(List<BaseEntity> rows) {
+        List<Long> ids = new ArrayList<>(rows.size());
+        for (BaseEntity row : rows) {
+            ids.add(row.getId());
+        }
+        return ids;
+    }
+
+    private void rollback(Transaction trx) {
+        if (Objects.nonNull(trx) && trx.isActive()) {
+            try {
+                trx.rollback();
+            } catch (HibernateException e) {
+                LOG.error("Error rolling back Transaction", e);
+            }
+        }
+    }
+
+    private static void close(Session session) {
+        if (Objects.nonNull(session) && session.isOpen()) {
+            session.close();
+        }
+    }
+
+    /**
+     * Rows of a keyset page of a shard moved to another shard.
+     */
+    private static final class MovedRange {
+        private final String table;
+        private final String source;
+        private final String target;
+        private final List<Long> ids;
+
+        private MovedRange(String table, String source, String target, List<Long> ids) {
+            this.table = table;
+            this.source = source;
+            this.target = target;
+            this.ids = ids;
+        }
+    }
+}
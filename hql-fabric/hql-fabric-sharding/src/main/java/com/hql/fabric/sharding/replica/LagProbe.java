@@ -0,0 +1,49 @@
+package com.hql.fabric.sharding.replica;
+
+import org.hibernate.Session;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Objects;
+
+/**
+ * Measures the replication lag of a replica.
+ */
+@FunctionalInterface
+public interface LagProbe {
+    /**
+     * Age of the last transaction replayed by a PostgreSQL standby, 0 once it replayed all it
+     * received, so that an idle primary does not make its replicas look late.
+     */
+    String POSTGRES_LAG_SQL = "select case when pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() then 0"
+            + " else coalesce(extract(epoch from now() - pg_last_xact_replay_timestamp()) * 1000, 0) end";
+
+    /**
+     * @param replica the replica
+     * @return its replication lag in milliseconds
+     * @throws Exception if the lag cannot be measured, the replica is then skipped
+     */
+    long lagMillis(Replica replica) throws Exception;
+
+    /**
+     * @return the probe of the PostgreSQL streaming replicas
+     */
+    static LagProbe postgres() {
+        return replica -> {
+            Session session = null;
+            try {
+                session = replica.openSession();
+                return session.doReturningWork(connection -> {
+                    try (Statement statement = connection.createStatement();
+                         ResultSet resultSet = statement.executeQuery(POSTGRES_LAG_SQL)) {
+                        return resultSet.next() ? resultSet.getLong(1) : 0L;
+                    }
+                });
+            } finally {
+                if (Objects.nonNull(session) && session.isOpen()) {
+                    session.close();
+                }
+            }
+        };
+    }
+}
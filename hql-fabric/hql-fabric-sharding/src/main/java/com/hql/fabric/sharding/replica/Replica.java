@@ -0,0 +1,74 @@
+package com.hql.fabric.sharding.replica;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A read replica of a shard, with the number of reads it is running and its last measured
+ * replication lag.
+ */
+public class Replica {
+    private final String name;
+    private final String shard;
+    private final SessionFactoryImplementor sessionFactory;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // unknown until measured, the replica is skipped meanwhile
+    private volatile long lagMillis = Long.MAX_VALUE;
+
+    public Replica(String name, String shard, SessionFactoryImplementor sessionFactory) {
+        this.name = name;
+        this.shard = shard;
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Opens a session on the replica, the caller is responsible for closing it.
+     */
+    public Session openSession() {
+        return sessionFactory.openSession();
+    }
+
+    void acquire() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Ends a read acquired through {@link ReplicaSelector#select(String)}.
+     */
+    public void release() {
+        outstanding.decrementAndGet();
+    }
+
+    // -- getter && setter --
+
+    public String getName() {
+        return name;
+    }
+
+    public String getShard() {
+        return shard;
+    }
+
+    public SessionFactoryImplementor getSessionFactory() {
+        return sessionFactory;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public void setLagMillis(long lagMillis) {
+        this.lagMillis = lagMillis;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,138 @@
+package com.hql.fabric.sharding.replica;
+
+import com.hql.fabric.sharding.context.UnitOfWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the replica serving a read of a shard.
+ * <p>
+ * Among the replicas whose replication lag is within the bound, the one running the fewest
+ * reads is chosen, ties are broken at random. A shard with no replica in bound, or written
+ * in the current {@link UnitOfWork}, is read from its primary.
+ */
+public class ReplicaSelector implements DisposableBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaSelector.class);
+
+    private final Map<String, List<Replica>> replicas;
+    private final long maxLagMillis;
+    private final LagProbe lagProbe;
+    private final ScheduledExecutorService prober;
+
+    /**
+     * @param replicas            the replicas of each shard
+     * @param maxLagMillis        the lag above which a replica is skipped
+     * @param probeIntervalMillis the delay between two measures of the lags, measures are
+     *                            only taken by {@link #refreshLag()} if not positive
+     * @param lagProbe            the probe measuring the lag of a replica
+     */
+    public ReplicaSelector(Map<String, List<Replica>> replicas, long maxLagMillis,
+                           long probeIntervalMillis, LagProbe lagProbe) {
+        Map<String, List<Replica>> copy = new HashMap<>();
+        for (Map.Entry<String, List<Replica>> entry : replicas.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                copy.put(entry.getKey(), List.copyOf(entry.getValue()));
+            }
+        }
+        this.replicas = Map.copyOf(copy);
+        this.maxLagMillis = maxLagMillis;
+        this.lagProbe = lagProbe;
+        if (this.replicas.isEmpty() || probeIntervalMillis <= 0) {
+            this.prober = null;
+        } else {
+            this.prober = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "hql-fabric-replica-lag");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.prober.scheduleWithFixedDelay(this::refreshLag, 0, probeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Selects the replica of the read and counts the read as running on it.
+     *
+     * @param shard the shard to read
+     * @return the replica, to {@link Replica#release() release} once the read ends, empty if
+     * the read must go to the primary
+     */
+    public Optional<Replica> select(String shard) {
+        return select(shard, null);
+    }
+
+    /**
+     * Selects the replica of the read among those other than the excluded one, such as the
+     * replica of a read to hedge.
+     *
+     * @param shard    the shard to read
+     * @param excluded the replica not to select, {@code null} if none
+     * @return the replica, to {@link Replica#release() release} once the read ends, empty if
+     * the read must go to the primary
+     */
+    public Optional<Replica> select(String shard, Replica excluded) {
+        List<Replica> candidates = replicas.get(shard);
+        if (Objects.isNull(candidates) || UnitOfWork.isWritten(shard)) {
+            return Optional.empty();
+        }
+        int start = ThreadLocalRandom.current().nextInt(candidates.size());
+        Replica selected = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            Replica replica = candidates.get((start + i) % candidates.size());
+            if (replica == excluded || replica.getLagMillis() > maxLagMillis) {
+                continue;
+            }
+            if (Objects.isNull(selected) || replica.getOutstanding() < selected.getOutstanding()) {
+                selected = replica;
+            }
+        }
+        if (Objects.isNull(selected)) {
+            LOG.debug("No replica of shard {} within {} ms of lag, reading the primary", shard, maxLagMillis);
+            return Optional.empty();
+        }
+        selected.acquire();
+        return Optional.of(selected);
+    }
+
+    /**
+     * Measures the lag of every replica, a replica whose lag cannot be measured is skipped
+     * until the next measure.
+     */
+    public void refreshLag() {
+        for (List<Replica> shardReplicas : replicas.values()) {
+            for (Replica replica : shardReplicas) {
+                try {
+                    replica.setLagMillis(lagProbe.lagMillis(replica));
+                } catch (Exception e) {
+                    LOG.warn("Cannot measure the lag of replica {}, skipping it", replica, e);
+                    replica.setLagMillis(Long.MAX_VALUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the replicas of the shard, empty if it has none
+     */
+    public List<Replica> getReplicas(String shard) {
+        return replicas.getOrDefault(shard, new ArrayList<>());
+    }
+
+    @Override
+    public void destroy() {
+        if (Objects.nonNull(prober)) {
+            prober.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.hql.fabric.sharding.resolver;
+
+import com.hql.fabric.persistence.query.builder.HqlQueryRequest;
+import com.hql.fabric.persistence.query.operator.Condition;
+import com.hql.fabric.persistence.query.operator.WhereClause;
+import com.hql.fabric.sharding.router.TableAwareShardRouter;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Narrows the shards of a query built by the {@code HqlQueryBuilder} from its structured
+ * conditions, without parsing its HQL.
+ * <p>
+ * Only the conditions ANDed at the top level of the WHERE clause are considered: an equality
+ * on the shard key of the root entity selects its shard, an IN selects the shards of its
+ * values, a comparison selects the shards covering its range when the router assigns ranges
+ * of values to the shards, several of them intersect. A top level OR, or a negated shard key
+ * condition, keeps every shard.
+ */
+public class ShardPruner {
+
+    /**
+     * @param request   the query request
+     * @param tableName the simple name of the root entity of the query
+     * @param router    the router of the root entity
+     * @return the shards the query has to run on, empty if the query cannot be pruned
+     */
+    public Optional<Set<String>> prune(HqlQueryRequest request, String tableName,
+                                       TableAwareShardRouter<?> router) {
+        String shardKey = router.getShardKey(tableName);
+        if (Objects.isNull(shardKey) || request.getConditions().isEmpty()) {
+            return Optional.empty();
+        }
+        String alias = request.getTables().values().stream().findFirst().orElse(null);
+
+        Set<String> shards = null;
+        int depth = 0;
+        boolean negated = false;
+        for (Condition condition : request.getConditions()) {
+            WhereClause operator = condition.getOperator();
+            switch (operator) {
+                case OPEN_SCOPE:
+                    depth++;
+                    break;
+                case CLOSE_SCOPE:
+                    depth--;
+                    negated = false;
+                    break;
+                case OR:
+                    if (depth == 0) {
+                        return Optional.empty();
+                    }
+                    break;
+                case NOT:
+                    negated = depth == 0;
+                    break;
+                case EQUALS:
+                case IN:
+                    if (depth == 0 && !negated && isShardKey(condition.getField(), shardKey, alias)) {
+                        Set<String> candidates = route(tableName, router, condition.getParameterValues());
+                        if (Objects.isNull(candidates)) {
+                            return Optional.empty();
+                        }
+                        shards = intersect(shards, candidates);
+                    }
+                    negated = false;
+                    break;
+                case GREATER_THAN:
+                case GREATER_EQUAL_THAN:
+                case LESS_THAN:
+                case LESS_EQUAL_THAN:
+                    if (depth == 0 && !negated && isShardKey(condition.getField(), shardKey, alias)
+                            && condition.getParameterValues().size() == 1) {
+                        Object value = condition.getParameterValues().get(0);
+                        boolean lower = operator == WhereClause.GREATER_THAN
+                                || operator == WhereClause.GREATER_EQUAL_THAN;
+                        Set<String> candidates = router.routeShardsByRange(tableName,
+                                lower ? value : null, lower ? null : value);
+                        // a range the router cannot place does not narrow the shards
+                        if (Objects.nonNull(candidates)) {
+                            shards = intersect(shards, new LinkedHashSet<>(candidates));
+                        }
+                    }
+                    negated = false;
+                    break;
+                default:
+                    if (operator != WhereClause.AND) {
+                        negated = false;
+                    }
+            }
+        }
+        return Optional.ofNullable(shards);
+    }
+
+    /**
+     * @return the shards of the values, {@code null} if a value cannot be routed
+     */
+    private static Set<String> route(String tableName, TableAwareShardRouter<?> router,
+                                     List<Object> values) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        Set<String> shards = new LinkedHashSet<>();
+        for (Object value : values) {
+            if (value instanceof Collection) {
+                for (Object element : (Collection<?>) value) {
+                    Set<String> candidates = router.routeShardsByKey(tableName, element);
+                    if (Objects.isNull(candidates)) {
+                        return null;
+                    }
+                    shards.addAll(candidates);
+                }
+                continue;
+            }
+            Set<String> candidates = router.routeShardsByKey(tableName, value);
+            if (Objects.isNull(candidates)) {
+                return null;
+            }
+            shards.addAll(candidates);
+        }
+        return shards;
+    }
+
+    private static Set<String> intersect(Set<String> shards, Set<String> candidates) {
+        if (Objects.isNull(shards)) {
+            return candidates;
+        }
+        shards.retainAll(candidates);
+        return shards;
+    }
+
+    private static boolean isShardKey(String field, String shardKey, String alias) {
+        if (Objects.isNull(field)) {
+            return false;
+        }
+        return field.equals(shardKey)
+                || (Objects.nonNull(alias) && field.equals(alias + "." + shardKey));
+    }
+
+    /**
+     * @return the simple name of the root entity of the request, {@code null} if the request
+     * does not carry its tables
+     */
+    static String rootTable(HqlQueryRequest request) {
+        return request.getTables().keySet().stream()
+                .findFirst()
+                .map(entity -> entity.substring(entity.lastIndexOf('.') + 1))
+                .orElse(null);
+    }
+}
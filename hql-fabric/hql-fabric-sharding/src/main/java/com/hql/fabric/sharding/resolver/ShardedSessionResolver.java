@@ -1,57 +1,512 @@
 package com.hql.fabric.sharding.resolver;
 
-import com.hql.fabric.sharding.context.ShardContextHolder;
+import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.entity.Broadcast;
+import com.hql.fabric.persistence.entity.ColocateWith;
+import com.hql.fabric.persistence.query.builder.HqlQueryRequest;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import com.hql.fabric.sharding.context.ShardRoutingContext;
+import com.hql.fabric.sharding.replica.Replica;
+import com.hql.fabric.sharding.replica.ReplicaSelector;
+import com.hql.fabric.sharding.router.Colocation;
+import com.hql.fabric.sharding.router.ColocationShardRouter;
 import com.hql.fabric.sharding.router.RouterRegistry;
 import com.hql.fabric.sharding.router.TableAwareShardRouter;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
-import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
 import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Component
 @ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
 public class ShardedSessionResolver {
     private static final Logger LOG = LoggerFactory.getLogger(ShardedSessionResolver.class);
-
+    private static final Pattern FROM_ENTITY =
+            Pattern.compile("\\bfrom\\s+([\\w.$]+)", Pattern.CASE_INSENSITIVE);
 
     private final RouterRegistry routerRegistry;
     private final Map<String, SessionFactoryImplementor> shardSessionFactoryMap;
+    private final List<String> shardNames;
+    // shards the new rows are placed on: all the shards but the standby ones
+    private final List<String> writeShardNames;
+    private final ShardPruner shardPruner = new ShardPruner();
+    // table of each HQL string, bounded: once full, other queries are parsed on every call
+    private final Map<String, String> tableNames = new ConcurrentHashMap<>();
+    private final int tableCacheSize;
+    // simple names of the @Broadcast entities, replicated to every shard
+    private final Set<String> broadcastTables;
+    // mapped class of each simple entity name
+    private final Map<String, Class<?>> entityClasses;
+    private ReplicaSelector replicaSelector;
 
+    public ShardedSessionResolver(RouterRegistry routerRegistry,
+                                  Map<String, SessionFactoryImplementor> shardSessionFactoryMap,
+                                  int tableCacheSize) {
+        this(routerRegistry, shardSessionFactoryMap, tableCacheSize, Map.of(), Map.of(), List.of());
+    }
 
-    @Value("${hql.fabric.sharding.shard-count}")
-    private Integer shardCount;
-
+    @Autowired
     public ShardedSessionResolver(RouterRegistry routerRegistry,
-                                  Map<String, SessionFactoryImplementor> shardSessionFactoryMap) {
+                                  Map<String, SessionFactoryImplementor> shardSessionFactoryMap,
+                                  @Value("${hql.fabric.sharding.routing.table-cache-size:1024}") int tableCacheSize,
+                                  ShardingProperties shardingProperties) {
+        this(routerRegistry, shardSessionFactoryMap, tableCacheSize,
+                shardingProperties.getColocation(), shardingProperties.getShardKeys(),
+                shardingProperties.getRebalance().getStandbyShards());
+    }
+
+    private ShardedSessionResolver(RouterRegistry routerRegistry,
+                                   Map<String, SessionFactoryImplementor> shardSessionFactoryMap,
+                                   int tableCacheSize, Map<String, String> colocationProperties,
+                                   Map<String, String> shardKeys, Collection<String> standbyShards) {
         this.routerRegistry = routerRegistry;
         this.shardSessionFactoryMap = shardSessionFactoryMap;
+        this.tableCacheSize = tableCacheSize;
+        List<String> names = new ArrayList<>(shardSessionFactoryMap.keySet());
+        Collections.sort(names);
+        this.shardNames = Collections.unmodifiableList(names);
+        List<String> writeNames = new ArrayList<>(names);
+        writeNames.removeAll(standbyShards);
+        this.writeShardNames = Collections.unmodifiableList(writeNames);
+        Set<String> broadcast = new HashSet<>();
+        Set<String> entityNames = new HashSet<>();
+        Map<String, Colocation> colocations = new HashMap<>();
+        Map<String, Class<?>> classes = new HashMap<>();
+        for (EntityType<?> entity : entities(shardSessionFactoryMap.values())) {
+            entityNames.add(entity.getName());
+            classes.put(entity.getName(), entity.getJavaType());
+            if (entity.getJavaType().isAnnotationPresent(Broadcast.class)) {
+                broadcast.add(entity.getName());
+            }
+            Colocation colocation = colocation(entity, colocationProperties, shardKeys);
+            if (Objects.nonNull(colocation)) {
+                colocations.put(entity.getName(), colocation);
+            }
+        }
+        this.broadcastTables = Set.copyOf(broadcast);
+        this.entityClasses = Map.copyOf(classes);
+        if (!colocations.isEmpty()) {
+            LOG.info("Co-locating entities with their parents: {}", colocations);
+        }
+        routerRegistry.register(entityNames, colocations);
     }
 
+    /**
+     * Opens a session on the shard of the query, or on a random shard if the query cannot be
+     * routed to a single shard.
+     */
     public Session resolveSession(String hql) {
+        String shard = resolveShard(hql)
+                .orElseGet(() -> shardNames.get(ThreadLocalRandom.current().nextInt(shardNames.size())));
+        return openSession(shard);
+    }
+
+    /**
+     * Resolves the shard holding the rows of the query.
+     *
+     * @param hql the HQL query
+     * @return the shard name, empty if the query has to be sent to every shard
+     */
+    public Optional<String> resolveShard(String hql) {
+        return resolveShardForTable(extractTableName(hql));
+    }
+
+    /**
+     * Resolves the shards an HQL update or delete statement writes to: the shard of the
+     * statement, every shard if it cannot be routed or writes a {@link Broadcast} table.
+     *
+     * @param hql the HQL statement
+     * @return the shard names, in sorted order
+     */
+    public List<String> resolveWriteShards(String hql) {
         String table = extractTableName(hql);
+        if (broadcastTables.contains(table)) {
+            // every shard holds a copy of the rows, whatever the shard of the context
+            return shardNames;
+        }
+        return resolveShardForTable(table).map(List::of).orElse(shardNames);
+    }
+
+    /**
+     * Resolves the shards holding the rows of a query built by the {@code HqlQueryBuilder},
+     * pruning them from the conditions on the shard key when the context does not determine
+     * a single shard.
+     *
+     * @param request the query request
+     * @return the shard names, in sorted order
+     */
+    public List<String> resolveShards(HqlQueryRequest request) {
+        String table = ShardPruner.rootTable(request);
+        if (Objects.isNull(table)) {
+            return resolveShard(request.getHql()).map(List::of).orElse(shardNames);
+        }
+        Optional<String> shard = resolveShardForTable(table);
+        if (shard.isPresent()) {
+            return List.of(shard.get());
+        }
+        Optional<TableAwareShardRouter<?>> router = routerRegistry.getRouterForTable(table);
+        if (router.isEmpty()) {
+            return shardNames;
+        }
+        Optional<Set<String>> pruned = shardPruner.prune(request, table, router.get());
+        if (pruned.isEmpty()) {
+            return shardNames;
+        }
+        List<String> shards = new ArrayList<>();
+        for (String name : shardNames) {
+            if (pruned.get().contains(name)) {
+                shards.add(name);
+            }
+        }
+        LOG.debug("Pruned query on {} to shards {}", table, shards);
+        return shards;
+    }
+
+    /**
+     * Resolves the shards holding the rows of an entity whose property has the value.
+     *
+     * @param entityClass the entity class
+     * @param property    the property path, e.g. {@code id}
+     * @param value       the value of the property
+     * @return the shard names, in sorted order: the shards of the value if the entity is routed
+     * on the property, every shard otherwise
+     */
+    public List<String> resolveShards(Class<?> entityClass, String property, Object value) {
+        String table = entityClass.getSimpleName();
+        Optional<String> shard = resolveShardForTable(table);
+        if (shard.isPresent()) {
+            return List.of(shard.get());
+        }
+        Optional<TableAwareShardRouter<?>> router = routerRegistry.getRouterForTable(table);
+        if (router.isEmpty() || Objects.isNull(value) || !property.equals(router.get().getShardKey(table))) {
+            return shardNames;
+        }
+        Set<String> routed = router.get().routeShardsByKey(table, value);
+        if (Objects.isNull(routed)) {
+            return shardNames;
+        }
+        List<String> shards = new ArrayList<>();
+        for (String name : shardNames) {
+            if (routed.contains(name)) {
+                shards.add(name);
+            }
+        }
+        return shards;
+    }
+
+    private Optional<String> resolveShardForTable(String table) {
+        ShardRoutingContext context = ShardRoutingContext.current();
+        if (Objects.nonNull(context) && Objects.nonNull(context.getShard())) {
+            if (!shardSessionFactoryMap.containsKey(context.getShard())) {
+                throw new HibernateException("Routing context pinned to unknown shard " + context.getShard());
+            }
+            return Optional.of(context.getShard());
+        }
+        if (broadcastTables.contains(table)) {
+            // every shard holds the rows, spread the reads
+            return Optional.of(shardNames.get(ThreadLocalRandom.current().nextInt(shardNames.size())));
+        }
+        Optional<TableAwareShardRouter<?>> router = routerRegistry.getRouterForTable(table);
+        if (router.isEmpty()) {
+            return Optional.empty();
+        }
+        String shard = router.get().routeShard(table);
+        if (Objects.nonNull(shard) && !shardSessionFactoryMap.containsKey(shard)) {
+            LOG.warn("Router {} returned unknown shard {} for table {}, fanning out",
+                    router.get().getClass().getSimpleName(), shard, table);
+            return Optional.empty();
+        }
+        return Optional.ofNullable(shard);
+    }
+
+    /**
+     * Resolves the shard of an entity from its own properties, whatever the entity bound to
+     * the current thread.
+     *
+     * @param entity the entity to write
+     * @return the shard name, empty if the router of the entity cannot place it, e.g. when
+     * its shard key is not assigned yet
+     */
+    public Optional<String> resolveShard(BaseEntity entity) {
+        String table = entity.getClass().getSimpleName();
         Optional<TableAwareShardRouter<?>> router = routerRegistry.getRouterForTable(table);
+        if (router.isEmpty()) {
+            return Optional.empty();
+        }
+        String shard = router.get().routeEntity(table, entity);
+        return Objects.nonNull(shard) && shardSessionFactoryMap.containsKey(shard)
+                ? Optional.of(shard) : Optional.empty();
+    }
 
-        if (router.isPresent()) {
-            String shard = router.get().routeShard(table);
-            return shardSessionFactoryMap.get(shard).openSession();
-        } else {
-            int randomId = new Random().nextInt();
-            int shardIndex = Math.abs(randomId % shardSessionFactoryMap.size());
-            String shardKey = "shard_" + shardIndex;
-            return shardSessionFactoryMap.get(shardKey).openSession();
+    /**
+     * @param entity the entity to write
+     * @return the parent the entity is co-located with, empty if the entity is not co-located
+     * or its parent not set
+     */
+    public Optional<Object> resolveColocatedParent(BaseEntity entity) {
+        String table = entity.getClass().getSimpleName();
+        Optional<TableAwareShardRouter<?>> router = routerRegistry.getRouterForTable(table);
+        if (router.isEmpty() || !(router.get() instanceof ColocationShardRouter)) {
+            return Optional.empty();
         }
+        return Optional.ofNullable(((ColocationShardRouter) router.get()).getParent(entity));
+    }
+
+    /**
+     * Resolves the shard an entity is being moved to by a rebalance of its entity group, where
+     * its writes are mirrored until the group is routed there.
+     *
+     * @param entity the entity written
+     * @param shard  the shard the entity is written to
+     * @return the other shard of the entity, empty if it is not being moved
+     */
+    public Optional<String> resolveMigrationShard(BaseEntity entity, String shard) {
+        String table = entity.getClass().getSimpleName();
+        Optional<TableAwareShardRouter<?>> router = routerRegistry.getMigrationRouterForTable(table);
+        if (router.isEmpty()) {
+            return Optional.empty();
+        }
+        String target = router.get().routeEntity(table, entity);
+        return Objects.nonNull(target) && !target.equals(shard) && shardSessionFactoryMap.containsKey(target)
+                ? Optional.of(target) : Optional.empty();
+    }
+
+    /**
+     * @param tableName the simple entity name
+     * @return the mapped class of the entity
+     * @throws HibernateException if the entity is not mapped
+     */
+    public Class<?> getEntityClass(String tableName) {
+        Class<?> entityClass = entityClasses.get(tableName);
+        if (Objects.isNull(entityClass)) {
+            throw new HibernateException("Unknown entity: " + tableName);
+        }
+        return entityClass;
+    }
+
+    /**
+     * @param entityClass the entity class
+     * @return the table holding the identifiers of the entity, the same on every shard
+     */
+    public String getTableName(Class<?> entityClass) {
+        SessionFactoryImplementor sessionFactory = shardSessionFactoryMap.get(shardNames.get(0));
+        return ((AbstractEntityPersister) sessionFactory.getMappingMetamodel()
+                .getEntityDescriptor(entityClass)).getIdentifierTableName();
+    }
+
+    /**
+     * @param entityClass the entity class
+     * @return the Java type of the identifier of the entity
+     */
+    public Class<?> getIdentifierType(Class<?> entityClass) {
+        SessionFactoryImplementor sessionFactory = shardSessionFactoryMap.get(shardNames.get(0));
+        return sessionFactory.getMappingMetamodel().getEntityDescriptor(entityClass)
+                .getIdentifierMapping().getJavaType().getJavaTypeClass();
+    }
+
+    /**
+     * @param entityClass the entity class
+     * @param attribute   the attribute name
+     * @return whether the entity maps the attribute
+     */
+    public boolean hasAttribute(Class<?> entityClass, String attribute) {
+        SessionFactoryImplementor sessionFactory = shardSessionFactoryMap.get(shardNames.get(0));
+        return Objects.nonNull(sessionFactory.getMappingMetamodel().getEntityDescriptor(entityClass)
+                .findAttributeMapping(attribute));
+    }
+
+    /**
+     * Opens a session on the given shard, the caller is responsible for closing it.
+     */
+    public Session openSession(String shard) {
+        SessionFactoryImplementor sessionFactory = shardSessionFactoryMap.get(shard);
+        if (Objects.isNull(sessionFactory)) {
+            throw new HibernateException("Unknown shard: " + shard);
+        }
+        return sessionFactory.openSession();
+    }
+
+    /**
+     * Opens a stateless session on the given shard, the caller is responsible for closing it.
+     */
+    public StatelessSession openStatelessSession(String shard) {
+        SessionFactoryImplementor sessionFactory = shardSessionFactoryMap.get(shard);
+        if (Objects.isNull(sessionFactory)) {
+            throw new HibernateException("Unknown shard: " + shard);
+        }
+        return sessionFactory.openStatelessSession();
+    }
+
+    /**
+     * Allocates an identifier for the entity with the identifier generator of its mapping on
+     * the given shard, without writing it.
+     *
+     * @param shard  the shard whose generator allocates the identifier
+     * @param entity the entity
+     * @return the identifier
+     */
+    public Object generateId(String shard, BaseEntity entity) {
+        SessionFactoryImplementor sessionFactory = shardSessionFactoryMap.get(shard);
+        if (Objects.isNull(sessionFactory)) {
+            throw new HibernateException("Unknown shard: " + shard);
+        }
+        EntityPersister persister = sessionFactory.getMappingMetamodel().getEntityDescriptor(entity.getClass());
+        if (!(persister.getGenerator() instanceof BeforeExecutionGenerator)) {
+            throw new HibernateException("Identifiers of " + persister.getEntityName()
+                    + " are generated by the database, cannot allocate one before the insert");
+        }
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            return ((BeforeExecutionGenerator) persister.getGenerator()).generate(
+                    (SharedSessionContractImplementor) session, entity, null, EventType.INSERT);
+        }
+    }
+
+    /**
+     * @param entityClass the entity class
+     * @return whether the entity is a {@link Broadcast} table, replicated to every shard
+     */
+    public boolean isBroadcast(Class<?> entityClass) {
+        return broadcastTables.contains(entityClass.getSimpleName());
+    }
+
+    /**
+     * Selects the replica serving a read of the shard, see {@link ReplicaSelector}.
+     *
+     * @param shard the shard to read
+     * @return the replica, to release once the read ends, empty if the read must go to the
+     * primary
+     */
+    public Optional<Replica> selectReplica(String shard) {
+        return Objects.nonNull(replicaSelector) ? replicaSelector.select(shard) : Optional.empty();
+    }
+
+    /**
+     * Selects a replica serving a read of the shard other than the excluded one.
+     *
+     * @see ReplicaSelector#select(String, Replica)
+     */
+    public Optional<Replica> selectReplica(String shard, Replica excluded) {
+        return Objects.nonNull(replicaSelector) ? replicaSelector.select(shard, excluded) : Optional.empty();
+    }
+
+    /**
+     * Enables the reads on the replicas of the shards.
+     *
+     * @param replicaSelector the selector of the replicas, {@code null} to read the primaries
+     */
+    @Autowired(required = false)
+    public void setReplicaSelector(ReplicaSelector replicaSelector) {
+        this.replicaSelector = replicaSelector;
+    }
+
+    /**
+     * @return the sorted names of all the shards
+     */
+    public List<String> getShardNames() {
+        return shardNames;
+    }
+
+    /**
+     * @return the sorted names of the shards new rows are placed on, all the shards but the
+     * standby ones
+     */
+    public List<String> getWriteShardNames() {
+        return writeShardNames;
     }
 
     private String extractTableName(String hql) {
-        // todo: implement HqlQueryBuilder#getTableName()
-        return hql.split("\\s+")[1]; // "from User u" -> "User"
+        String tableName = tableNames.get(hql);
+        if (Objects.isNull(tableName)) {
+            tableName = parseTableName(hql);
+            if (tableNames.size() < tableCacheSize) {
+                tableNames.put(hql, tableName);
+            }
+        }
+        return tableName;
+    }
+
+    private static String parseTableName(String hql) {
+        Matcher matcher = FROM_ENTITY.matcher(hql);
+        if (!matcher.find()) {
+            // "update com.x.User u set ..." -> "User"
+            String entity = hql.trim().split("\\s+")[1];
+            return entity.substring(entity.lastIndexOf('.') + 1);
+        }
+        // "select u from com.x.User u" -> "User"
+        String entity = matcher.group(1);
+        return entity.substring(entity.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return the parent of the entity, from the configured property or else its
+     * {@link ColocateWith} unless a shard key of its own is configured, {@code null} if the
+     * entity is not co-located
+     * @throws IllegalStateException if the property is not a {@code @ManyToOne} to an entity
+     */
+    private static Colocation colocation(EntityType<?> entity, Map<String, String> colocationProperties,
+                                         Map<String, String> shardKeys) {
+        String property = colocationProperties.get(entity.getName());
+        if (Objects.isNull(property)) {
+            if (shardKeys.containsKey(entity.getName())) {
+                return null;
+            }
+            ColocateWith colocateWith = entity.getJavaType().getAnnotation(ColocateWith.class);
+            if (Objects.isNull(colocateWith)) {
+                return null;
+            }
+            property = colocateWith.value();
+        }
+        Attribute<?, ?> attribute;
+        try {
+            attribute = entity.getAttribute(property);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Unknown co-location property " + entity.getName() + "." + property, e);
+        }
+        if (attribute.getPersistentAttributeType() != Attribute.PersistentAttributeType.MANY_TO_ONE
+                && attribute.getPersistentAttributeType() != Attribute.PersistentAttributeType.ONE_TO_ONE) {
+            throw new IllegalStateException("Co-location property " + entity.getName() + "." + property
+                    + " is not a @ManyToOne");
+        }
+        return new Colocation(property, attribute.getJavaType().getSimpleName());
+    }
+
+    /**
+     * @return the entities mapped by the shards, which share their mappings
+     */
+    private static Set<EntityType<?>> entities(Collection<SessionFactoryImplementor> sessionFactories) {
+        for (SessionFactoryImplementor sessionFactory : sessionFactories) {
+            if (Objects.nonNull(sessionFactory)) {
+                return sessionFactory.getJpaMetamodel().getEntities();
+            }
+        }
+        return Set.of();
     }
 }
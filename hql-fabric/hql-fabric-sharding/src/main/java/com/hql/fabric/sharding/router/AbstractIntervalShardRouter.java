@@ -0,0 +1,43 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.sharding.config.ShardingProperties;
+
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Base of the routers assigning contiguous ranges of shard key values to the shards, so that
+ * a range predicate on the shard key only reaches the shards covering the range.
+ */
+public abstract class AbstractIntervalShardRouter extends AbstractKeyShardRouter {
+
+    protected AbstractIntervalShardRouter(ShardingProperties shardingProperties) {
+        super(shardingProperties);
+    }
+
+    @Override
+    protected String routeKey(Object key) {
+        Long point = toPoint(key);
+        return Objects.isNull(point) ? null : getIndex().route(point);
+    }
+
+    @Override
+    public Set<String> routeShardsByRange(String tableName, Object lower, Object upper) {
+        Long lowerPoint = Objects.isNull(lower) ? null : toPoint(lower);
+        Long upperPoint = Objects.isNull(upper) ? null : toPoint(upper);
+        if ((Objects.nonNull(lower) && Objects.isNull(lowerPoint))
+                || (Objects.nonNull(upper) && Objects.isNull(upperPoint))) {
+            return null;
+        }
+        return getIndex().routeRange(lowerPoint, upperPoint);
+    }
+
+    /**
+     * @param key a shard key value, integral values as {@link Long}
+     * @return the position of the value in the index, {@code null} if the value cannot be
+     * placed
+     */
+    protected abstract Long toPoint(Object key);
+
+    protected abstract IntervalIndex getIndex();
+}
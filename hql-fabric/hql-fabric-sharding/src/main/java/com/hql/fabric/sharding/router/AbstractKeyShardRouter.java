@@ -0,0 +1,87 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.persistence.entity.NamedArtifact;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import com.hql.fabric.sharding.context.ShardRoutingContext;
+
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * Base of the routers deriving the shard from the value of a shard key property, either read
+ * from the entity of the current {@link ShardRoutingContext} or taken from the predicates of a query.
+ * <p>
+ * Integral values are routed as {@code long}, whether they come as numbers or as strings, so
+ * that {@code eq("u.id", "42")} and an entity of id {@code 42L} land on the same shard.
+ */
+public abstract class AbstractKeyShardRouter implements TableAwareShardRouter<NamedArtifact> {
+    private static final Pattern INTEGRAL = Pattern.compile("-?\\d{1,18}");
+
+    private final ShardingProperties shardingProperties;
+
+    protected AbstractKeyShardRouter(ShardingProperties shardingProperties) {
+        this.shardingProperties = shardingProperties;
+    }
+
+    @Override
+    public boolean supportsTable(String tableName) {
+        return true;
+    }
+
+    /**
+     * @return the shard of the entity of the current routing context, or {@code null} when no
+     * entity with a shard key value is bound
+     */
+    @Override
+    public String routeShard(String tableName) {
+        ShardRoutingContext context = ShardRoutingContext.current();
+        NamedArtifact entity = Objects.nonNull(context) ? context.getEntity() : null;
+        if (Objects.isNull(entity)) {
+            return null;
+        }
+        return routeEntity(tableName, entity);
+    }
+
+    @Override
+    public String getShardKey(String tableName) {
+        return shardingProperties.getShardKey(tableName);
+    }
+
+    @Override
+    public String routeShardByKey(String tableName, Object keyValue) {
+        if (Objects.isNull(keyValue)) {
+            return null;
+        }
+        return routeKey(tableName, normalize(keyValue));
+    }
+
+    /**
+     * Routes the key of a table, by default whatever the table.
+     *
+     * @param tableName the simple entity name
+     * @param key       the non null shard key value, integral values as {@link Long}
+     * @return the shard name
+     */
+    protected String routeKey(String tableName, Object key) {
+        return routeKey(key);
+    }
+
+    /**
+     * @param key the non null shard key value, integral values as {@link Long}
+     * @return the shard name
+     */
+    protected abstract String routeKey(Object key);
+
+    /**
+     * @return the shard key value, integral values as {@link Long}
+     */
+    protected static Object normalize(Object keyValue) {
+        if (keyValue instanceof Integer || keyValue instanceof Short || keyValue instanceof Byte) {
+            return ((Number) keyValue).longValue();
+        }
+        if (keyValue instanceof String && INTEGRAL.matcher((String) keyValue).matches()) {
+            return Long.valueOf((String) keyValue);
+        }
+        return keyValue;
+    }
+}
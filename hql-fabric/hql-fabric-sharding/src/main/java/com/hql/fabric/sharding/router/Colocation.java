@@ -0,0 +1,34 @@
+package com.hql.fabric.sharding.router;
+
+import java.util.Objects;
+
+/**
+ * Placement of the rows of a table on the shard of their parent, reached through a
+ * {@code @ManyToOne} property of the entity.
+ */
+public final class Colocation {
+    private final String property;
+    private final String parentTable;
+
+    /**
+     * @param property    the property of the entity referring to the parent
+     * @param parentTable the simple entity name of the parent
+     */
+    public Colocation(String property, String parentTable) {
+        this.property = Objects.requireNonNull(property, "property");
+        this.parentTable = Objects.requireNonNull(parentTable, "parentTable");
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    public String getParentTable() {
+        return parentTable;
+    }
+
+    @Override
+    public String toString() {
+        return property + " -> " + parentTable;
+    }
+}
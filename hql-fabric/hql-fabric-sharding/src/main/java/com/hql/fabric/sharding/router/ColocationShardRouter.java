@@ -0,0 +1,123 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.persistence.entity.NamedArtifact;
+import com.hql.fabric.sharding.context.ShardRoutingContext;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.NullValueInNestedPathException;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Router of a table co-located with its parent, built by the {@link RouterRegistry}: the rows
+ * of the table are routed as the root of their entity group, reached through the
+ * {@code @ManyToOne} properties leading to it, so that they land on the shard of their root.
+ * <p>
+ * The shard key of the table is the path to the shard key of the root, e.g.
+ * {@code result.batch.id}, so that the predicates on it prune the queries of the table as
+ * they prune the queries of the root.
+ */
+public final class ColocationShardRouter implements TableAwareShardRouter<NamedArtifact> {
+    private final String tableName;
+    // tables of the group from the table to its root, and the properties between them
+    private final List<String> tables;
+    private final List<String> path;
+    private final String rootTable;
+    private final TableAwareShardRouter<?> rootRouter;
+
+    ColocationShardRouter(List<String> tables, List<String> path, TableAwareShardRouter<?> rootRouter) {
+        if (tables.size() != path.size() + 1) {
+            throw new IllegalArgumentException("Expect one property between each table of " + tables
+                    + ", but got " + path);
+        }
+        this.tables = List.copyOf(tables);
+        this.path = List.copyOf(path);
+        this.tableName = tables.get(0);
+        this.rootTable = tables.get(tables.size() - 1);
+        this.rootRouter = rootRouter;
+    }
+
+    @Override
+    public boolean supportsTable(String tableName) {
+        return this.tableName.equals(tableName);
+    }
+
+    /**
+     * @return the shard of the entity of the current routing context when it belongs to the
+     * entity group of the table, {@code null} otherwise
+     */
+    @Override
+    public String routeShard(String tableName) {
+        ShardRoutingContext context = ShardRoutingContext.current();
+        NamedArtifact entity = Objects.nonNull(context) ? context.getEntity() : null;
+        if (Objects.isNull(entity)) {
+            return null;
+        }
+        int level = tables.indexOf(entity.getClass().getSimpleName());
+        if (level < 0) {
+            return null;
+        }
+        Object root = level == tables.size() - 1
+                ? entity : readPath(entity, String.join(".", path.subList(level, path.size())));
+        return Objects.nonNull(root) ? rootRouter.routeEntity(rootTable, root) : null;
+    }
+
+    /**
+     * @return the path to the shard key of the root, {@code null} if the root is not routed on
+     * a property
+     */
+    @Override
+    public String getShardKey(String tableName) {
+        String rootKey = rootRouter.getShardKey(rootTable);
+        return Objects.nonNull(rootKey) ? String.join(".", path) + "." + rootKey : null;
+    }
+
+    @Override
+    public String routeShardByKey(String tableName, Object keyValue) {
+        return rootRouter.routeShardByKey(rootTable, keyValue);
+    }
+
+    @Override
+    public Set<String> routeShardsByKey(String tableName, Object keyValue) {
+        return rootRouter.routeShardsByKey(rootTable, keyValue);
+    }
+
+    /**
+     * @return the shard of the root the entity leads to, {@code null} if a parent along the
+     * way is not set
+     */
+    @Override
+    public String routeEntity(String tableName, Object entity) {
+        Object root = readPath(entity, String.join(".", path));
+        return Objects.nonNull(root) ? rootRouter.routeEntity(rootTable, root) : null;
+    }
+
+    @Override
+    public Set<String> routeShardsByRange(String tableName, Object lower, Object upper) {
+        return rootRouter.routeShardsByRange(rootTable, lower, upper);
+    }
+
+    /**
+     * @param entity an entity of the table
+     * @return its parent, {@code null} if not set
+     */
+    public Object getParent(Object entity) {
+        return new BeanWrapperImpl(entity).getPropertyValue(path.get(0));
+    }
+
+    public String getRootTable() {
+        return rootTable;
+    }
+
+    /**
+     * @return the value at the path, {@code null} if a parent along it is not set
+     */
+    static Object readPath(Object entity, String propertyPath) {
+        try {
+            return new BeanWrapperImpl(entity).getPropertyValue(propertyPath);
+        } catch (NullValueInNestedPathException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.persistence.utils.HashUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent-hash ring.
+ * <p>
+ * Each shard owns {@code virtualNodes * weight} points of the 64-bit hash space, a key belongs
+ * to the shard owning the first point at or after the hash of the key. Adding a shard only
+ * moves the keys falling on its points, about {@code 1 / shardCount} of them, instead of
+ * remapping nearly every key as {@code hash % shardCount} does.
+ * <p>
+ * The points are precomputed in a sorted array, a lookup is a binary search.
+ */
+public final class ConsistentHashRing {
+    private final long[] points;
+    private final String[] owners;
+    private final List<String> shardNames;
+
+    /**
+     * @param weights      the weight of each shard, a shard of weight 2 owns twice as many keys
+     *                     as a shard of weight 1
+     * @param virtualNodes the number of points of a shard of weight 1
+     */
+    public ConsistentHashRing(Map<String, Integer> weights, int virtualNodes) {
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one shard");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        // sorted so that the ring does not depend on the iteration order of the map
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(weights).entrySet()) {
+            int weight = Objects.isNull(entry.getValue()) ? 1 : entry.getValue();
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weight of shard " + entry.getKey() + " must be positive: " + weight);
+            }
+            for (int i = 0; i < virtualNodes * weight; i++) {
+                long point = HashUtils.hash64(entry.getKey() + "#" + i);
+                // on the (unlikely) collision the smallest shard name keeps the point
+                ring.putIfAbsent(point, entry.getKey());
+            }
+        }
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> entry : ring.entrySet()) {
+            points[i] = entry.getKey();
+            owners[i] = entry.getValue();
+            i++;
+        }
+        List<String> names = new ArrayList<>(weights.keySet());
+        Collections.sort(names);
+        this.shardNames = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @param key the sharding key, integral numbers are hashed by value
+     * @return the shard owning the key
+     */
+    public String route(Object key) {
+        return routeHash(HashUtils.hash64(key));
+    }
+
+    /**
+     * @param hash the hash of the sharding key
+     * @return the shard owning the hash
+     */
+    public String routeHash(long hash) {
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                // wraps around the ring
+                index = 0;
+            }
+        }
+        return owners[index];
+    }
+
+    // -- getter && setter --
+    public List<String> getShardNames() {
+        return shardNames;
+    }
+
+    public int size() {
+        return points.length;
+    }
+}
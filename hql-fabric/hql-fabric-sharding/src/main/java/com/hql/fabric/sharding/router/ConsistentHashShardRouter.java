@@ -0,0 +1,37 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Routes entities by their shard key on a consistent-hash ring, enabled with
+ * {@code strategy: consistent-hash}. Virtual nodes and shard weights are set under
+ * {@code hql.fabric.sharding.ring}.
+ */
+@Component
+@ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
+@ConditionalOnExpression("'${hql.fabric.sharding.strategy:hash}' == 'consistent-hash'")
+public class ConsistentHashShardRouter extends AbstractKeyShardRouter {
+
+    private final ConsistentHashRing ring;
+
+    public ConsistentHashShardRouter(ShardingProperties shardingProperties) {
+        super(shardingProperties);
+        ShardingProperties.Ring settings = shardingProperties.getRing();
+        this.ring = new ConsistentHashRing(
+                settings.buildWeightMap(shardingProperties.getShardNames()),
+                settings.getVirtualNodes());
+    }
+
+    @Override
+    protected String routeKey(Object key) {
+        return ring.route(key);
+    }
+
+    // -- getter && setter --
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+}
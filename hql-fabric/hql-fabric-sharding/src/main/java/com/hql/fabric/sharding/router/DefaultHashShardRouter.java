@@ -1,27 +1,28 @@
 package com.hql.fabric.sharding.router;
 
-import com.hql.fabric.persistence.entity.NamedArtifact;
-import com.hql.fabric.sharding.context.ShardContextHolder;
-import org.springframework.beans.factory.annotation.Value;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
+import java.util.List;
+
 @Component
 @ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
-public class DefaultHashShardRouter implements TableAwareShardRouter<NamedArtifact> {
+@ConditionalOnExpression("'${hql.fabric.sharding.strategy:hash}' == 'hash'")
+public class DefaultHashShardRouter extends AbstractKeyShardRouter {
 
-    @Value("${hql.fabric.sharding.shard-count}")
-    private Integer shardCount;
+    // shard names as configured under hql.fabric.sharding.datasources but the standby ones, sorted
+    private final List<String> shardNames;
 
-    @Override
-    public boolean supportsTable(String tableName) {
-        return true;
+    public DefaultHashShardRouter(ShardingProperties shardingProperties) {
+        super(shardingProperties);
+        this.shardNames = Collections.unmodifiableList(shardingProperties.getShardNames());
     }
 
     @Override
-    public String routeShard(String tableName) {
-        NamedArtifact entity = ShardContextHolder.getCurrentEntity();
-        int idHash = entity.getId().hashCode();
-        return "shard_" + (idHash % shardCount); //
+    protected String routeKey(Object key) {
+        return shardNames.get(Math.floorMod(key.hashCode(), shardNames.size()));
     }
 }
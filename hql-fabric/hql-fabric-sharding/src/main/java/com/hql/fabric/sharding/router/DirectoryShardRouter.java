@@ -0,0 +1,171 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes the entities listed under {@code hql.fabric.sharding.directory.tables} by a
+ * {@link ShardDirectory}, enabled with {@code directory.enabled}, ahead of the router of the
+ * strategy which keeps routing the other entities.
+ * <p>
+ * The directory is fronted by an in-memory cache, preloaded at startup, so that routing a key
+ * is a hash lookup: integral keys are held in a primitive {@link LongIntMap} of the index of
+ * their shard, other keys in a plain map. A key missing from the cache is looked up in the
+ * directory and cached, a key missing from the directory is not routed. Once the cache holds
+ * {@code cache-size} keys, the keys looked up are no longer cached.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@ConditionalOnExpression("${hql.fabric.sharding.enabled:false} and ${hql.fabric.sharding.directory.enabled:false}")
+public class DirectoryShardRouter extends AbstractKeyShardRouter {
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryShardRouter.class);
+
+    private final ShardDirectory directory;
+    private final Set<String> tableNames;
+    // shard names as configured under hql.fabric.sharding.datasources, sorted
+    private final List<String> shardNames;
+    private final Map<String, Integer> shardIndexes;
+    private final Map<String, LongIntMap> integralKeys;
+    private final Map<String, Map<Object, Integer>> otherKeys;
+    private final int cacheSize;
+    private final AtomicInteger cachedKeys = new AtomicInteger();
+    private final AtomicBoolean cacheFullLogged = new AtomicBoolean();
+
+    @Autowired
+    public DirectoryShardRouter(ShardingProperties shardingProperties) {
+        this(shardingProperties, new JdbcShardDirectory(
+                shardingProperties.getDirectory().getDatasource().initializeDataSourceBuilder().build(),
+                shardingProperties.getDirectory().getTable()));
+    }
+
+    public DirectoryShardRouter(ShardingProperties shardingProperties, ShardDirectory directory) {
+        super(shardingProperties);
+        ShardingProperties.Directory settings = shardingProperties.getDirectory();
+        this.directory = directory;
+        this.tableNames = Set.copyOf(settings.getTables());
+        List<String> names = new ArrayList<>(shardingProperties.getDatasources().keySet());
+        Collections.sort(names);
+        this.shardNames = Collections.unmodifiableList(names);
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            indexes.put(names.get(i), i);
+        }
+        this.shardIndexes = Map.copyOf(indexes);
+        this.cacheSize = settings.getCacheSize();
+        Map<String, LongIntMap> integral = new HashMap<>();
+        Map<String, Map<Object, Integer>> other = new HashMap<>();
+        for (String tableName : tableNames) {
+            integral.put(tableName, new LongIntMap(Math.min(cacheSize, 1 << 16)));
+            other.put(tableName, new ConcurrentHashMap<>());
+        }
+        this.integralKeys = Map.copyOf(integral);
+        this.otherKeys = Map.copyOf(other);
+        if (settings.isPreload()) {
+            preload();
+        }
+    }
+
+    @Override
+    public boolean supportsTable(String tableName) {
+        return tableNames.contains(tableName);
+    }
+
+    @Override
+    protected String routeKey(String tableName, Object key) {
+        int index = cached(tableName, key);
+        if (index != LongIntMap.MISSING) {
+            return shardNames.get(index);
+        }
+        String shard = directory.lookup(tableName, key.toString());
+        if (Objects.nonNull(shard) && cachedKeys.get() < cacheSize) {
+            cache(tableName, key, shard);
+        } else if (Objects.nonNull(shard) && cacheFullLogged.compareAndSet(false, true)) {
+            LOG.warn("Shard directory cache full at {} keys, looking up the others in the directory", cacheSize);
+        }
+        return shard;
+    }
+
+    /**
+     * Keys are routed per table, see {@link #routeKey(String, Object)}.
+     */
+    @Override
+    protected String routeKey(Object key) {
+        return null;
+    }
+
+    /**
+     * Places the key of the table on the shard, in the directory and in the cache, such as
+     * when a new entity is written or an entity is moved.
+     *
+     * @param tableName the simple entity name
+     * @param keyValue  the shard key value
+     * @param shard     the shard name
+     */
+    public void assign(String tableName, Object keyValue, String shard) {
+        if (!supportsTable(tableName) || !shardIndexes.containsKey(shard)) {
+            throw new IllegalArgumentException("Cannot assign " + tableName + " " + keyValue + " to " + shard);
+        }
+        Object key = normalize(keyValue);
+        directory.assign(tableName, key.toString(), shard);
+        // cached whatever the size of the cache, which must not keep the former shard
+        cache(tableName, key, shard);
+    }
+
+    /**
+     * @return the keys in the cache
+     */
+    public int getCachedKeys() {
+        return cachedKeys.get();
+    }
+
+    private void preload() {
+        long start = System.nanoTime();
+        directory.forEach(tableNames, (tableName, key, shard) -> {
+            if (tableNames.contains(tableName) && cachedKeys.get() < cacheSize) {
+                cache(tableName, normalize(key), shard);
+            }
+        });
+        LOG.info("Preloaded {} keys of the shard directory of {} in {} ms", cachedKeys.get(), tableNames,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private int cached(String tableName, Object key) {
+        if (key instanceof Long) {
+            return integralKeys.get(tableName).get((Long) key);
+        }
+        Integer index = otherKeys.get(tableName).get(key);
+        return Objects.nonNull(index) ? index : LongIntMap.MISSING;
+    }
+
+    private void cache(String tableName, Object key, String shard) {
+        Integer index = shardIndexes.get(shard);
+        if (Objects.isNull(index)) {
+            LOG.warn("Shard directory places {} {} on unknown shard {}", tableName, key, shard);
+            return;
+        }
+        if (key instanceof Long) {
+            if (integralKeys.get(tableName).put((Long) key, index)) {
+                cachedKeys.incrementAndGet();
+            }
+        } else if (Objects.isNull(otherKeys.get(tableName).put(key, index))) {
+            cachedKeys.incrementAndGet();
+        }
+    }
+}
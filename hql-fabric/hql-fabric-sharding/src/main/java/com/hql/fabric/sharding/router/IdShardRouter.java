@@ -0,0 +1,43 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.persistence.id.IdGenerator;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Routes entities by the shard bits of their identifiers, enabled with {@code strategy: id}.
+ * An entity is written to any shard, the {@link IdGenerator} of that shard embeds its index
+ * in the sorted shard names into the identifier, which then locates the row with no lookup.
+ * <p>
+ * Shard key values which are not identifiers of the generators are not routed.
+ */
+@Component
+@ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
+@ConditionalOnExpression("'${hql.fabric.sharding.strategy:hash}' == 'id'")
+public class IdShardRouter extends AbstractKeyShardRouter {
+
+    // shard names as configured under hql.fabric.sharding.datasources, sorted
+    private final List<String> shardNames;
+
+    public IdShardRouter(ShardingProperties shardingProperties) {
+        super(shardingProperties);
+        List<String> names = new ArrayList<>(shardingProperties.getDatasources().keySet());
+        Collections.sort(names);
+        this.shardNames = Collections.unmodifiableList(names);
+    }
+
+    @Override
+    protected String routeKey(Object key) {
+        if (!(key instanceof Long) || (Long) key <= 0) {
+            return null;
+        }
+        int shard = IdGenerator.shardOf((Long) key);
+        return shard < shardNames.size() ? shardNames.get(shard) : null;
+    }
+}
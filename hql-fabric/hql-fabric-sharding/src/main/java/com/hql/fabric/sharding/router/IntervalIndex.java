@@ -0,0 +1,80 @@
+package com.hql.fabric.sharding.router;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable index of contiguous intervals, each owned by a shard.
+ * <p>
+ * Each shard owns the points from its lower bound, inclusive, up to the lower bound of the
+ * next shard, exclusive. The lowest interval also owns the points below its bound and the
+ * highest one the points above. A lookup is a {@link TreeMap#floorEntry} in O(log n).
+ */
+public final class IntervalIndex {
+    private final NavigableMap<Long, String> lowerBounds;
+
+    /**
+     * @param lowerBounds the lower bound of the interval of each shard
+     * @throws IllegalArgumentException if there is no interval, or two shards share a bound
+     */
+    public IntervalIndex(Map<String, Long> lowerBounds) {
+        if (lowerBounds.isEmpty()) {
+            throw new IllegalArgumentException("An interval index needs at least one shard");
+        }
+        TreeMap<Long, String> index = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : lowerBounds.entrySet()) {
+            String previous = index.put(Objects.requireNonNull(entry.getValue(),
+                    "Lower bound of shard " + entry.getKey()), entry.getKey());
+            if (Objects.nonNull(previous)) {
+                throw new IllegalArgumentException("Shards " + previous + " and " + entry.getKey()
+                        + " share the lower bound " + entry.getValue());
+            }
+        }
+        this.lowerBounds = Collections.unmodifiableNavigableMap(index);
+    }
+
+    /**
+     * @return the shard owning the point
+     */
+    public String route(long point) {
+        Map.Entry<Long, String> owner = lowerBounds.floorEntry(point);
+        return Objects.isNull(owner) ? lowerBounds.firstEntry().getValue() : owner.getValue();
+    }
+
+    /**
+     * @param lower the lowest point, inclusive, {@code null} if unbounded
+     * @param upper the highest point, inclusive, {@code null} if unbounded
+     * @return the shards owning a point of the range, in ascending order of their intervals
+     */
+    public Set<String> routeRange(Long lower, Long upper) {
+        Set<String> shards = new LinkedHashSet<>();
+        if (Objects.nonNull(lower) && Objects.nonNull(upper) && lower > upper) {
+            return shards;
+        }
+        Long from = Objects.isNull(lower) ? null : lowerBounds.floorKey(lower);
+        NavigableMap<Long, String> covering = lowerBounds;
+        if (Objects.nonNull(from)) {
+            covering = covering.tailMap(from, true);
+        }
+        if (Objects.nonNull(upper)) {
+            covering = covering.headMap(upper, true);
+            if (covering.isEmpty()) {
+                // the whole range is below the lowest bound
+                covering = lowerBounds.headMap(lowerBounds.firstKey(), true);
+            }
+        }
+        shards.addAll(covering.values());
+        return shards;
+    }
+
+    // -- getter && setter --
+    public Collection<String> getShardNames() {
+        return lowerBounds.values();
+    }
+}
@@ -0,0 +1,127 @@
+package com.hql.fabric.sharding.router;
+
+import org.hibernate.HibernateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link ShardDirectory} in a table of the metadata datasource, created if absent:
+ * <pre>
+ * create table hql_fabric_shard_directory (
+ *     entity_name varchar(255) not null,
+ *     shard_key   varchar(255) not null,
+ *     shard       varchar(64)  not null,
+ *     primary key (entity_name, shard_key)
+ * )
+ * </pre>
+ */
+public class JdbcShardDirectory implements ShardDirectory {
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcShardDirectory.class);
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][\\w.]*");
+    private static final int FETCH_SIZE = 10_000;
+
+    private final DataSource dataSource;
+    private final String selectAllSql;
+    private final String selectSql;
+    private final String updateSql;
+    private final String insertSql;
+
+    /**
+     * @param dataSource the metadata datasource
+     * @param tableName  the directory table
+     */
+    public JdbcShardDirectory(DataSource dataSource, String tableName) {
+        if (!TABLE_NAME.matcher(tableName).matches()) {
+            throw new IllegalArgumentException("Invalid directory table name: " + tableName);
+        }
+        this.dataSource = dataSource;
+        this.selectAllSql = "select entity_name, shard_key, shard from " + tableName + " where entity_name = ?";
+        this.selectSql = "select shard from " + tableName + " where entity_name = ? and shard_key = ?";
+        this.updateSql = "update " + tableName + " set shard = ? where entity_name = ? and shard_key = ?";
+        this.insertSql = "insert into " + tableName + " (entity_name, shard_key, shard) values (?, ?, ?)";
+        createTable(tableName);
+    }
+
+    @Override
+    public void forEach(Collection<String> tableNames, EntryConsumer consumer) {
+        try (Connection connection = dataSource.getConnection()) {
+            // drivers such as PostgreSQL only stream the rows within a transaction
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(selectAllSql)) {
+                statement.setFetchSize(FETCH_SIZE);
+                for (String tableName : tableNames) {
+                    statement.setString(1, tableName);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            consumer.accept(rs.getString(1), rs.getString(2), rs.getString(3));
+                        }
+                    }
+                }
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new HibernateException("Cannot load the shard directory of " + tableNames, e);
+        }
+    }
+
+    @Override
+    public String lookup(String tableName, String key) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(selectSql)) {
+            statement.setString(1, tableName);
+            statement.setString(2, key);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            throw new HibernateException("Cannot look up the shard of " + tableName + " " + key, e);
+        }
+    }
+
+    @Override
+    public void assign(String tableName, String key, String shard) {
+        try (Connection connection = dataSource.getConnection()) {
+            try (PreparedStatement update = connection.prepareStatement(updateSql)) {
+                update.setString(1, shard);
+                update.setString(2, tableName);
+                update.setString(3, key);
+                if (update.executeUpdate() > 0) {
+                    return;
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement(insertSql)) {
+                insert.setString(1, tableName);
+                insert.setString(2, key);
+                insert.setString(3, shard);
+                insert.executeUpdate();
+            }
+        } catch (SQLException e) {
+            throw new HibernateException("Cannot assign " + tableName + " " + key + " to " + shard, e);
+        }
+    }
+
+    private void createTable(String tableName) {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("create table if not exists " + tableName + " ("
+                    + "entity_name varchar(255) not null, "
+                    + "shard_key varchar(255) not null, "
+                    + "shard varchar(64) not null, "
+                    + "primary key (entity_name, shard_key))");
+        } catch (SQLException e) {
+            LOG.warn("Cannot create the shard directory table {}, expecting it to exist", tableName, e);
+        }
+    }
+}
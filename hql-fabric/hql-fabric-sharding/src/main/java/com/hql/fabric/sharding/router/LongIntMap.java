@@ -0,0 +1,144 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.persistence.utils.HashUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open addressing map of {@code long} keys to non negative {@code int} values, with no boxing
+ * and two arrays in place of an entry object per key.
+ * <p>
+ * Lookups are optimistic reads which retry under the read lock if a write overlapped them, so
+ * that concurrent lookups do not contend. Writes are exclusive.
+ */
+final class LongIntMap {
+    static final int MISSING = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private final StampedLock lock = new StampedLock();
+    // replaced as a whole on resize, so that an optimistic read sees matching arrays
+    private volatile Slots slots;
+    private int size;
+
+    LongIntMap(int expectedSize) {
+        this.slots = new Slots(capacityFor(expectedSize));
+    }
+
+    /**
+     * @return the value of the key, {@link #MISSING} if absent
+     */
+    int get(long key) {
+        long stamp = lock.tryOptimisticRead();
+        int value = slots.get(key);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = slots.get(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param value the value, non negative
+     * @return whether the key was added rather than updated
+     */
+    boolean put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Expect a non negative value, but got " + value);
+        }
+        long stamp = lock.writeLock();
+        try {
+            Slots current = slots;
+            if ((size + 1) * 2L > current.keys.length) {
+                current = current.resize(current.keys.length * 2);
+                slots = current;
+            }
+            boolean added = current.put(key, value);
+            if (added) {
+                size++;
+            }
+            return added;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        // at most half full
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static final class Slots {
+        private final long[] keys;
+        // MISSING marks the free slots
+        private final int[] values;
+
+        private Slots(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new int[capacity];
+            Arrays.fill(values, MISSING);
+        }
+
+        private int get(long key) {
+            int mask = keys.length - 1;
+            int i = (int) HashUtils.mix64(key) & mask;
+            // bounded, the slots of a torn optimistic read may all be used
+            for (int probes = 0; probes < keys.length; probes++) {
+                int value = values[i];
+                if (value == MISSING) {
+                    return MISSING;
+                }
+                if (keys[i] == key) {
+                    return value;
+                }
+                i = (i + 1) & mask;
+            }
+            return MISSING;
+        }
+
+        /**
+         * @return whether the key was added rather than updated
+         */
+        private boolean put(long key, int value) {
+            int mask = keys.length - 1;
+            int i = (int) HashUtils.mix64(key) & mask;
+            while (values[i] != MISSING) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            return true;
+        }
+
+        private Slots resize(int capacity) {
+            Slots resized = new Slots(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != MISSING) {
+                    resized.put(keys[i], values[i]);
+                }
+            }
+            return resized;
+        }
+    }
+}
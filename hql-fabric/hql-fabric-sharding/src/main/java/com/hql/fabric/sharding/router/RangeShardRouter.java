@@ -0,0 +1,42 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.regex.Pattern;
+
+/**
+ * Routes entities by ranges of their numeric shard key, enabled with {@code strategy: range}.
+ * The lower bound of each shard is set under {@code hql.fabric.sharding.range.lower-bounds}.
+ */
+@Component
+@ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
+@ConditionalOnExpression("'${hql.fabric.sharding.strategy:hash}' == 'range'")
+public class RangeShardRouter extends AbstractIntervalShardRouter {
+    private static final Pattern INTEGRAL = Pattern.compile("-?\\d{1,18}");
+
+    private final IntervalIndex index;
+
+    public RangeShardRouter(ShardingProperties shardingProperties) {
+        super(shardingProperties);
+        this.index = new IntervalIndex(shardingProperties.getRange().getLowerBounds());
+    }
+
+    @Override
+    protected Long toPoint(Object key) {
+        if (key instanceof Number) {
+            return ((Number) key).longValue();
+        }
+        if (key instanceof String && INTEGRAL.matcher((String) key).matches()) {
+            return Long.valueOf((String) key);
+        }
+        return null;
+    }
+
+    @Override
+    protected IntervalIndex getIndex() {
+        return index;
+    }
+}
@@ -3,21 +3,201 @@ package com.hql.fabric.sharding.router;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 
+/**
+ * Resolves the router of each table.
+ * <p>
+ * The routers of the mapped entities are resolved once, at startup, into an immutable
+ * dispatch table: resolving the router of a known table is a map lookup which allocates
+ * nothing. Tables unknown to the dispatch table fall back to asking every router.
+ * <p>
+ * The tables co-located with a parent are routed by a {@link ColocationShardRouter} over the
+ * router of the root of their entity group.
+ * <p>
+ * While the rows of an entity group are rebalanced, the group also has a migration router,
+ * the routing the rows are moved to. Completing the migration swaps the dispatch table for
+ * one routing the group with it, in a single write.
+ */
 @Component
 @ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
 public class RouterRegistry {
     private final List<TableAwareShardRouter<?>> routers;
+    private volatile Map<String, Optional<TableAwareShardRouter<?>>> dispatchTable = Map.of();
+    // routers of the entity groups being rebalanced, empty if none
+    private volatile Map<String, Optional<TableAwareShardRouter<?>>> migrationTable = Map.of();
+    // registered tables, and the routers of the roots replaced by completed migrations
+    private Collection<String> tableNames = List.of();
+    private Map<String, Colocation> colocations = Map.of();
+    private final Map<String, TableAwareShardRouter<?>> rootRouters = new HashMap<>();
 
     public RouterRegistry(List<TableAwareShardRouter<?>> routers) {
-        this.routers = routers;
+        this.routers = List.copyOf(routers);
+    }
+
+    /**
+     * Resolves the router of each table into the dispatch table, replacing the tables
+     * registered before.
+     *
+     * @param tableNames the simple names of the mapped entities
+     */
+    public void register(Collection<String> tableNames) {
+        register(tableNames, Map.of());
+    }
+
+    /**
+     * Resolves the router of each table into the dispatch table, replacing the tables
+     * registered before.
+     *
+     * @param tableNames  the simple names of the mapped entities
+     * @param colocations the parent of each co-located table
+     * @throws IllegalStateException if the parents of a table lead back to it
+     */
+    public synchronized void register(Collection<String> tableNames, Map<String, Colocation> colocations) {
+        this.tableNames = List.copyOf(tableNames);
+        this.colocations = Map.copyOf(colocations);
+        this.dispatchTable = dispatchTable(tableNames, Map.of());
     }
 
     public Optional<TableAwareShardRouter<?>> getRouterForTable(String tableName) {
-        return routers.stream()
-                .filter(r -> r.supportsTable(tableName))
-                .findFirst();
+        Optional<TableAwareShardRouter<?>> router = dispatchTable.get(tableName);
+        return Objects.nonNull(router) ? router : findRouter(tableName);
+    }
+
+    /**
+     * @return the router the rows of the table are being moved to, empty if the table is not
+     * being rebalanced
+     */
+    public Optional<TableAwareShardRouter<?>> getMigrationRouterForTable(String tableName) {
+        Optional<TableAwareShardRouter<?>> router = migrationTable.get(tableName);
+        return Objects.nonNull(router) ? router : Optional.empty();
+    }
+
+    /**
+     * @param rootTable the root of an entity group
+     * @return the table and the tables co-located with it, each after its parent
+     */
+    public synchronized List<String> getEntityGroup(String rootTable) {
+        Set<String> group = new LinkedHashSet<>();
+        group.add(rootTable);
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (Map.Entry<String, Colocation> colocation : colocations.entrySet()) {
+                if (group.contains(colocation.getValue().getParentTable()) && group.add(colocation.getKey())) {
+                    added = true;
+                }
+            }
+        }
+        return List.copyOf(group);
+    }
+
+    /**
+     * Sets the router the rows of an entity group are moved to, the group is still routed by
+     * its current router.
+     *
+     * @param rootTable    the root of the entity group, not co-located itself
+     * @param targetRouter the router of the root once the rows are moved
+     * @throws IllegalArgumentException if the table is co-located with a parent
+     * @throws IllegalStateException    if the group is already being rebalanced
+     */
+    public synchronized void beginMigration(String rootTable, TableAwareShardRouter<?> targetRouter) {
+        if (colocations.containsKey(rootTable)) {
+            throw new IllegalArgumentException(rootTable + " is co-located, rebalance the root of its entity group");
+        }
+        if (migrationTable.containsKey(rootTable)) {
+            throw new IllegalStateException(rootTable + " is already being rebalanced");
+        }
+        Map<String, Optional<TableAwareShardRouter<?>>> target =
+                dispatchTable(getEntityGroup(rootTable), Map.of(rootTable, targetRouter));
+        Map<String, Optional<TableAwareShardRouter<?>>> table = new HashMap<>(migrationTable);
+        table.putAll(target);
+        this.migrationTable = Map.copyOf(table);
+    }
+
+    /**
+     * Routes the entity group with the router its rows were moved to.
+     *
+     * @param rootTable the root of the entity group
+     */
+    public synchronized void completeMigration(String rootTable) {
+        Optional<TableAwareShardRouter<?>> targetRouter = getMigrationRouterForTable(rootTable);
+        if (targetRouter.isEmpty()) {
+            throw new IllegalStateException(rootTable + " is not being rebalanced");
+        }
+        rootRouters.put(rootTable, targetRouter.get());
+        this.dispatchTable = dispatchTable(tableNames, rootRouters);
+        // the group is routed by the dispatch table before its migration ends, so that the
+        // writes in between still reach the shards the rows were moved to
+        endMigration(rootTable);
+    }
+
+    /**
+     * Drops the migration of an entity group, which keeps its current router.
+     *
+     * @param rootTable the root of the entity group
+     */
+    public synchronized void abortMigration(String rootTable) {
+        endMigration(rootTable);
+    }
+
+    private void endMigration(String rootTable) {
+        Map<String, Optional<TableAwareShardRouter<?>>> table = new HashMap<>(migrationTable);
+        table.keySet().removeAll(getEntityGroup(rootTable));
+        this.migrationTable = Map.copyOf(table);
+    }
+
+    private Map<String, Optional<TableAwareShardRouter<?>>> dispatchTable(
+            Collection<String> tableNames, Map<String, TableAwareShardRouter<?>> roots) {
+        Map<String, TableAwareShardRouter<?>> rootRouters = new HashMap<>(this.rootRouters);
+        rootRouters.putAll(roots);
+        Map<String, Optional<TableAwareShardRouter<?>>> table = new HashMap<>();
+        for (String tableName : tableNames) {
+            table.put(tableName, colocations.containsKey(tableName)
+                    ? colocatedRouter(tableName, rootRouters) : rootRouter(tableName, rootRouters));
+        }
+        return Map.copyOf(table);
+    }
+
+    private Optional<TableAwareShardRouter<?>> colocatedRouter(String tableName,
+                                                               Map<String, TableAwareShardRouter<?>> rootRouters) {
+        List<String> tables = new ArrayList<>();
+        List<String> path = new ArrayList<>();
+        tables.add(tableName);
+        Colocation colocation = colocations.get(tableName);
+        while (Objects.nonNull(colocation)) {
+            if (tables.contains(colocation.getParentTable())) {
+                throw new IllegalStateException("Co-location cycle from " + tableName + " through "
+                        + colocation.getParentTable());
+            }
+            tables.add(colocation.getParentTable());
+            path.add(colocation.getProperty());
+            colocation = colocations.get(colocation.getParentTable());
+        }
+        String rootTable = tables.get(tables.size() - 1);
+        return rootRouter(rootTable, rootRouters).map(root -> new ColocationShardRouter(tables, path, root));
+    }
+
+    private Optional<TableAwareShardRouter<?>> rootRouter(String tableName,
+                                                          Map<String, TableAwareShardRouter<?>> rootRouters) {
+        TableAwareShardRouter<?> router = rootRouters.get(tableName);
+        return Objects.nonNull(router) ? Optional.of(router) : findRouter(tableName);
+    }
+
+    private Optional<TableAwareShardRouter<?>> findRouter(String tableName) {
+        for (TableAwareShardRouter<?> router : routers) {
+            if (router.supportsTable(tableName)) {
+                return Optional.of(router);
+            }
+        }
+        return Optional.empty();
     }
 }
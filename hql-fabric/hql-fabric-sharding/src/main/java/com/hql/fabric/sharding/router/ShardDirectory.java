@@ -0,0 +1,39 @@
+package com.hql.fabric.sharding.router;
+
+import java.util.Collection;
+
+/**
+ * The directory of the shard of each shard key value, for the entities which cannot be placed
+ * by a function of their key, such as those migrated from legacy systems.
+ */
+public interface ShardDirectory {
+
+    /**
+     * Passes every entry of the tables to the consumer.
+     *
+     * @param tableNames the simple entity names
+     * @param consumer   receives the entries, one at a time
+     */
+    void forEach(Collection<String> tableNames, EntryConsumer consumer);
+
+    /**
+     * @param tableName the simple entity name
+     * @param key       the shard key value, integral values in decimal
+     * @return the shard of the key, {@code null} if the directory has no entry for it
+     */
+    String lookup(String tableName, String key);
+
+    /**
+     * Places the key on the shard, replacing its former entry.
+     *
+     * @param tableName the simple entity name
+     * @param key       the shard key value, integral values in decimal
+     * @param shard     the shard name
+     */
+    void assign(String tableName, String key, String shard);
+
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(String tableName, String key, String shard);
+    }
+}
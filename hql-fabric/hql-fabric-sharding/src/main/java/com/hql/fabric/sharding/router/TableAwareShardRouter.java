@@ -1,5 +1,11 @@
 package com.hql.fabric.sharding.router;
 
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.NullValueInNestedPathException;
+
+import java.util.Objects;
+import java.util.Set;
+
 public interface TableAwareShardRouter<T> {
     /**
      * @return Whether support this db table sharding logic
@@ -7,8 +13,68 @@ public interface TableAwareShardRouter<T> {
     boolean supportsTable(String tableName);
 
     /**
-     * @return shard name like (shard_0, shard_1, ...).
-     * Depending on context info.
+     * @return shard name as configured under {@code hql.fabric.sharding.datasources}
+     * (shard0, shard1, ...), depending on context info. {@code null} if the context does not
+     * determine a single shard, in which case the query is sent to every shard.
      */
     String routeShard(String tableName);
-}
\ No newline at end of file
+
+    /**
+     * @return the property of the entity the router routes on, {@code null} if the router
+     * does not route on a property, in which case queries cannot be pruned by their predicates
+     */
+    default String getShardKey(String tableName) {
+        return null;
+    }
+
+    /**
+     * @param tableName the simple entity name
+     * @param keyValue  a value of the shard key
+     * @return the shard holding the rows of that shard key value, {@code null} if unknown
+     */
+    default String routeShardByKey(String tableName, Object keyValue) {
+        return null;
+    }
+
+    /**
+     * @param tableName the simple entity name
+     * @param keyValue  a value of the shard key
+     * @return the shards which may hold the rows of that shard key value, {@code null} if
+     * unknown; by default the single shard of the value
+     */
+    default Set<String> routeShardsByKey(String tableName, Object keyValue) {
+        String shard = routeShardByKey(tableName, keyValue);
+        return Objects.nonNull(shard) ? Set.of(shard) : null;
+    }
+
+    /**
+     * @param tableName the simple entity name
+     * @param entity    an entity of the table
+     * @return the shard of the entity, by default the shard of its shard key value,
+     * {@code null} if unknown
+     */
+    default String routeEntity(String tableName, Object entity) {
+        String shardKey = getShardKey(tableName);
+        if (Objects.isNull(shardKey)) {
+            return null;
+        }
+        Object keyValue;
+        try {
+            keyValue = new BeanWrapperImpl(entity).getPropertyValue(shardKey);
+        } catch (NullValueInNestedPathException e) {
+            // a parent along the path is not set
+            return null;
+        }
+        return routeShardByKey(tableName, keyValue);
+    }
+
+    /**
+     * @param tableName the simple entity name
+     * @param lower     the lowest shard key value of the range, {@code null} if unbounded
+     * @param upper     the highest shard key value of the range, {@code null} if unbounded
+     * @return the shards holding the rows of the range, {@code null} if unknown
+     */
+    default Set<String> routeShardsByRange(String tableName, Object lower, Object upper) {
+        return null;
+    }
+}
@@ -0,0 +1,178 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.persistence.utils.HashUtils;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Routes entities by a tag such as a region, enabled with {@code strategy: tag}. The shard
+ * of each tag is set under {@code hql.fabric.sharding.tag.tags}, tags are case insensitive.
+ * <p>
+ * A tag outgrowing its shard lists overflow shards under {@code tag.overflow}: its rows are
+ * then spread over its shard and the overflow shards by the hash of {@code tag.spread-key},
+ * so that a row keeps its shard and the queries on the tag read the shards of the tag only.
+ * The spread key must be set when such a row is written, except the identifier, which the
+ * writer allocates first when it is not assigned yet.
+ * A tag with no shard of its own falls back to the shards of the tag set under
+ * {@code tag.fallbacks}. Other values go to {@code tag.default-shard}, or to every shard if
+ * none is set.
+ * <p>
+ * The entities co-located with a tagged entity follow its shard, e.g. the transactions of an
+ * account follow the region of the account.
+ */
+@Component
+@ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
+@ConditionalOnExpression("'${hql.fabric.sharding.strategy:hash}' == 'tag'")
+public class TagShardRouter extends AbstractKeyShardRouter {
+    private static final String ID = "id";
+
+    // shards of each tag, its own shard first then its overflow shards
+    private final Map<String, List<String>> shardsByTag;
+    private final String spreadKey;
+    private final String defaultShard;
+
+    /**
+     * @throws IllegalStateException if a tag refers to an unknown shard, its fallbacks do not
+     *                               lead to a tag with a shard, or tags overflow without a
+     *                               spread key
+     */
+    public TagShardRouter(ShardingProperties shardingProperties) {
+        super(shardingProperties);
+        ShardingProperties.Tag tag = shardingProperties.getTag();
+        Set<String> shardNames = shardingProperties.getDatasources().keySet();
+        Map<String, List<String>> overflow = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : tag.getOverflow().entrySet()) {
+            overflow.put(entry.getKey().toLowerCase(Locale.ROOT), entry.getValue());
+        }
+        Map<String, List<String>> tags = new HashMap<>();
+        for (Map.Entry<String, String> entry : tag.getTags().entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.ROOT);
+            List<String> shards = new ArrayList<>();
+            shards.add(entry.getValue());
+            for (String shard : overflow.getOrDefault(name, List.of())) {
+                if (!shards.contains(shard)) {
+                    shards.add(shard);
+                }
+            }
+            for (String shard : shards) {
+                if (!shardNames.contains(shard)) {
+                    throw new IllegalStateException("Tag " + entry.getKey() + " routed to unknown shard " + shard);
+                }
+            }
+            tags.put(name, List.copyOf(shards));
+        }
+        Map<String, String> fallbacks = new HashMap<>();
+        for (Map.Entry<String, String> entry : tag.getFallbacks().entrySet()) {
+            fallbacks.put(entry.getKey().toLowerCase(Locale.ROOT), entry.getValue().toLowerCase(Locale.ROOT));
+        }
+        Map<String, List<String>> resolved = new HashMap<>(tags);
+        for (String name : fallbacks.keySet()) {
+            if (!tags.containsKey(name)) {
+                resolved.put(name, tags.get(fallback(name, fallbacks, tags)));
+            }
+        }
+        this.shardsByTag = Map.copyOf(resolved);
+        this.spreadKey = tag.getSpreadKey();
+        if (Objects.isNull(spreadKey) && tags.values().stream().anyMatch(shards -> shards.size() > 1)) {
+            throw new IllegalStateException("Tags with overflow shards need a tag.spread-key");
+        }
+        this.defaultShard = tag.getDefaultShard();
+        if (Objects.nonNull(defaultShard) && !shardNames.contains(defaultShard)) {
+            throw new IllegalStateException("Unknown default shard " + defaultShard);
+        }
+    }
+
+    /**
+     * @return the shard of the entity: the shard of its tag, or the shard its spread key
+     * designates among the shards of its tag, {@code null} if it is spread on an identifier
+     * which is not assigned yet
+     * @throws IllegalArgumentException if it is spread on another property which is not set
+     */
+    @Override
+    public String routeEntity(String tableName, Object entity) {
+        String shardKey = getShardKey(tableName);
+        if (Objects.isNull(shardKey)) {
+            return null;
+        }
+        BeanWrapperImpl wrapper = new BeanWrapperImpl(entity);
+        Object tag = wrapper.getPropertyValue(shardKey);
+        List<String> shards = Objects.nonNull(tag) ? shardsOf(tag) : null;
+        if (Objects.isNull(shards)) {
+            return defaultShard;
+        }
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        Object spreadValue = wrapper.getPropertyValue(spreadKey);
+        if (Objects.isNull(spreadValue)) {
+            if (ID.equals(spreadKey)) {
+                return null;
+            }
+            throw new IllegalArgumentException("Cannot place " + tableName + " of tag " + tag
+                    + " among the shards " + shards + ", its " + spreadKey + " is not set");
+        }
+        return shards.get((int) Math.floorMod(HashUtils.hash64(normalize(spreadValue)), (long) shards.size()));
+    }
+
+    /**
+     * @return the shards of the tag, its own shard and its overflow shards
+     */
+    @Override
+    public Set<String> routeShardsByKey(String tableName, Object keyValue) {
+        if (Objects.isNull(keyValue)) {
+            return null;
+        }
+        List<String> shards = shardsOf(keyValue);
+        if (Objects.isNull(shards)) {
+            return Objects.nonNull(defaultShard) ? Set.of(defaultShard) : null;
+        }
+        return new LinkedHashSet<>(shards);
+    }
+
+    /**
+     * @return the shard of the tag, {@code null} if its rows are spread over overflow shards
+     */
+    @Override
+    protected String routeKey(Object key) {
+        List<String> shards = shardsOf(key);
+        if (Objects.isNull(shards)) {
+            return defaultShard;
+        }
+        return shards.size() == 1 ? shards.get(0) : null;
+    }
+
+    private List<String> shardsOf(Object tag) {
+        return shardsByTag.get(tag.toString().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the tag with a shard the fallbacks of the tag lead to
+     */
+    private static String fallback(String name, Map<String, String> fallbacks, Map<String, List<String>> tags) {
+        Set<String> visited = new HashSet<>();
+        String current = name;
+        while (!tags.containsKey(current)) {
+            if (!visited.add(current)) {
+                throw new IllegalStateException("Fallback cycle from tag " + name + " through " + current);
+            }
+            current = fallbacks.get(current);
+            if (Objects.isNull(current)) {
+                throw new IllegalStateException("Fallbacks of tag " + name + " lead to no tag with a shard");
+            }
+        }
+        return current;
+    }
+}
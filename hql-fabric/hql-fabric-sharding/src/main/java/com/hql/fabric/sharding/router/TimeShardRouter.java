@@ -0,0 +1,78 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routes entities by time ranges of their shard key, such as
+ * {@code TransactionFlowCore.txnTime}, enabled with {@code strategy: time}. The first instant
+ * of each shard is set under {@code hql.fabric.sharding.time.lower-bounds}, as an ISO date
+ * ({@code 2024-01-01}, midnight UTC) or instant ({@code 2024-01-01T00:00:00Z}).
+ */
+@Component
+@ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
+@ConditionalOnExpression("'${hql.fabric.sharding.strategy:hash}' == 'time'")
+public class TimeShardRouter extends AbstractIntervalShardRouter {
+
+    private final IntervalIndex index;
+
+    public TimeShardRouter(ShardingProperties shardingProperties) {
+        super(shardingProperties);
+        Map<String, Long> lowerBounds = new HashMap<>();
+        for (Map.Entry<String, String> entry : shardingProperties.getTime().getLowerBounds().entrySet()) {
+            lowerBounds.put(entry.getKey(), parse(entry.getValue()));
+        }
+        this.index = new IntervalIndex(lowerBounds);
+    }
+
+    /**
+     * @return the epoch milliseconds of a date or time, {@code null} for other values
+     */
+    @Override
+    protected Long toPoint(Object key) {
+        if (key instanceof Date) {
+            return ((Date) key).getTime();
+        }
+        if (key instanceof Instant) {
+            return ((Instant) key).toEpochMilli();
+        }
+        if (key instanceof LocalDate) {
+            return ((LocalDate) key).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+        if (key instanceof LocalDateTime) {
+            return ((LocalDateTime) key).toInstant(ZoneOffset.UTC).toEpochMilli();
+        }
+        if (key instanceof OffsetDateTime) {
+            return ((OffsetDateTime) key).toInstant().toEpochMilli();
+        }
+        if (key instanceof ZonedDateTime) {
+            return ((ZonedDateTime) key).toInstant().toEpochMilli();
+        }
+        return null;
+    }
+
+    @Override
+    protected IntervalIndex getIndex() {
+        return index;
+    }
+
+    private static long parse(String bound) {
+        String value = bound.trim();
+        if (value.length() == 10) {
+            return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+        return Instant.parse(value).toEpochMilli();
+    }
+}
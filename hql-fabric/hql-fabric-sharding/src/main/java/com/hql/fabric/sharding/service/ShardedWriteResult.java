@@ -0,0 +1,61 @@
+package com.hql.fabric.sharding.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a bulk write split by shard: each shard commits or rolls back its own
+ * items independently of the other shards.
+ *
+ * @param <T> the entity type
+ */
+public class ShardedWriteResult<T> {
+    private final List<T> items;
+    private final Map<String, Integer> counts;
+    private final Map<String, Exception> failures;
+
+    public ShardedWriteResult(List<T> items, Map<String, Integer> counts, Map<String, Exception> failures) {
+        this.items = Collections.unmodifiableList(items);
+        this.counts = Collections.unmodifiableMap(counts);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * @return the number of items committed on all shards
+     */
+    public int getWrittenCount() {
+        int written = 0;
+        for (Integer count : counts.values()) {
+            written += count;
+        }
+        return written;
+    }
+
+    // -- getter && setter --
+
+    /**
+     * @return the items committed, in the order of the shards
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the number of items committed on each shard, 0 on the shards which failed
+     */
+    public Map<String, Integer> getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return the failure of each shard which rolled back its items
+     */
+    public Map<String, Exception> getFailures() {
+        return failures;
+    }
+}
@@ -1,37 +1,117 @@
 package com.hql.fabric.sharding.service;
 
 import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.entity.Broadcast;
 import com.hql.fabric.persistence.entity.NamedArtifact;
+import com.hql.fabric.persistence.executor.LimitExecutor;
+import com.hql.fabric.persistence.executor.UpdateExecutor;
+import com.hql.fabric.persistence.model.TotalCount;
 import com.hql.fabric.persistence.processor.IQueryPostProcessor;
 import com.hql.fabric.persistence.query.builder.ArrayRowBuilder;
+import com.hql.fabric.persistence.query.builder.HqlQueryBuilder;
 import com.hql.fabric.persistence.query.builder.HqlQueryRequest;
 import com.hql.fabric.persistence.query.builder.MapRowBuilder;
+import com.hql.fabric.persistence.query.builder.RowBuilder;
 import com.hql.fabric.persistence.service.IHqlQueryService;
+import com.hql.fabric.persistence.utils.HyperLogLog;
+import com.hql.fabric.sharding.context.UnitOfWork;
+import com.hql.fabric.sharding.executor.HedgedReadExecutor;
+import com.hql.fabric.sharding.executor.ShardQueryExecutor;
+import com.hql.fabric.sharding.index.GlobalSecondaryIndex;
+import com.hql.fabric.sharding.merge.AggregateQuery;
+import com.hql.fabric.sharding.merge.ContinuationToken;
+import com.hql.fabric.sharding.merge.KeysetPage;
+import com.hql.fabric.sharding.merge.KeysetQuery;
+import com.hql.fabric.sharding.merge.ShardResultMerger;
+import com.hql.fabric.sharding.merge.ShardedQuery;
+import com.hql.fabric.sharding.replica.Replica;
 import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
 import org.hibernate.HibernateException;
+import org.hibernate.JDBCException;
+import org.hibernate.NonUniqueResultException;
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.query.MutationQuery;
+import org.hibernate.query.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.convert.ConversionException;
+import org.springframework.core.convert.support.DefaultConversionService;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 @Service("shardingHqlQueryService")
 @ConditionalOnProperty(name = "hql.fabric.sharding.enabled", havingValue = "true")
 public class ShardingHqlQueryService implements IHqlQueryService {
     private static final Logger LOG = LoggerFactory.getLogger(ShardingHqlQueryService.class);
+    private static final Pattern PROPERTY = Pattern.compile("[A-Za-z_]\\w*");
+    private static final String ESTIMATE_TABLE_SQL =
+            "select reltuples::bigint from pg_class where oid = to_regclass(?)";
+    private static final Pattern PLAN_ROWS = Pattern.compile("\"Plan Rows\":\\s*(\\d+)");
 
     private final ShardedSessionResolver sessionResolver;
+    private final ShardQueryExecutor shardQueryExecutor;
     private final MapRowBuilder mapRowBuilder;
     private final ArrayRowBuilder arrayRowBuilder;
+    private final int writeBatchSize;
+    // spreads the new identifiers of the entities the routers cannot place yet
+    private final AtomicInteger nextWriteShard = new AtomicInteger();
+    private HedgedReadExecutor hedgedReadExecutor;
+    private GlobalSecondaryIndex globalIndex;
 
 
-    public ShardingHqlQueryService(ShardedSessionResolver shardedSessionResolver) {
+    public ShardingHqlQueryService(ShardedSessionResolver shardedSessionResolver,
+                                   ShardQueryExecutor shardQueryExecutor,
+                                   @Value("${hql.fabric.sharding.write.batch-size:100}") int writeBatchSize) {
         this.sessionResolver = shardedSessionResolver;
+        this.shardQueryExecutor = shardQueryExecutor;
         this.mapRowBuilder = new MapRowBuilder();
         this.arrayRowBuilder = new ArrayRowBuilder();
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Enables the hedging of the slow reads.
+     *
+     * @param hedgedReadExecutor the executor of the reads, {@code null} not to hedge them
+     */
+    @Autowired(required = false)
+    public void setHedgedReadExecutor(HedgedReadExecutor hedgedReadExecutor) {
+        this.hedgedReadExecutor = hedgedReadExecutor;
+    }
+
+    /**
+     * Enables the lookups by the {@code GlobalIndex} properties on the shards holding them.
+     *
+     * @param globalIndex the index, {@code null} to look the values up on every shard
+     */
+    @Autowired(required = false)
+    public void setGlobalIndex(GlobalSecondaryIndex globalIndex) {
+        this.globalIndex = globalIndex;
     }
 
     @Override
@@ -41,138 +121,1074 @@ public class ShardingHqlQueryService implements IHqlQueryService {
 
     @Override
     public List query(String hql) {
-        try (Session session = sessionResolver.resolveSession(hql)) {
-            return session.createQuery(hql).list();
-        }
+        return scatterQuery(ShardedQuery.of(hql), Map.of());
     }
 
     @Override
     public <T extends BaseEntity> List<T> query(String hql, Object... params) {
-        return List.of();
+        return query(hql, null, params);
     }
 
     @Override
     public <T extends BaseEntity> List<T> query(String hql, IQueryPostProcessor post, Object... params) {
-        return List.of();
+        Map<Integer, Object> positionalParams = new HashMap<>();
+        for (int i = 0; i < params.length; i++) {
+            positionalParams.put(i, params[i]);
+        }
+        List<T> result = scatterQuery(ShardedQuery.of(hql), positionalParams);
+        if (Objects.nonNull(post)) {
+            return post.processListResult(result);
+        } else {
+            return result;
+        }
     }
 
     @Override
     public List query(String hql, Map<String, Object> params) {
-        return List.of();
+        return query(hql, params, null);
     }
 
     @Override
     public <T extends BaseEntity> List<T> query(String hql, Map<String, Object> namedParams, IQueryPostProcessor post) {
-        return List.of();
+        if (Objects.isNull(namedParams)) {
+            LOG.debug("Expect query parameters, but not provided");
+            return null;
+        }
+        List<T> result = scatterQuery(ShardedQuery.of(hql), namedParams);
+        if (Objects.nonNull(post)) {
+            return post.processListResult(result);
+        } else {
+            return result;
+        }
     }
 
     @Override
     public <T extends BaseEntity> List<T> pagedQuery(String hql, Map<String, Object> namedParameters, Integer pageStart, Integer pageSize) {
-        return List.of();
+        return pagedQuery(hql, namedParameters, pageStart, pageSize, null);
     }
 
+    /**
+     * Each shard returns its first {@code pageStart + pageSize} rows, the page is cut from the
+     * merged rows.
+     */
     @Override
     public <T extends BaseEntity> List<T> pagedQuery(String hql, Map<String, Object> namedParameters, Integer pageStart, Integer pageSize, IQueryPostProcessor post) {
-        return List.of();
+        if (Objects.isNull(pageStart) || Objects.isNull(pageSize)) {
+            LOG.debug("Both pageStart and pageSize are required, but not provided.");
+            return null;
+        }
+        List<T> result = scatterQuery(ShardedQuery.of(hql, pageStart, pageSize), namedParameters);
+        if (Objects.nonNull(post)) {
+            return post.processListResult(result);
+        } else {
+            return result;
+        }
+    }
+
+    /**
+     * Pages an ordered query with keyset continuation tokens: each shard returns at most
+     * {@code pageSize} rows past its own cursor, whatever the depth of the page.
+     *
+     * @param hql               the ordered HQL query, see {@link KeysetQuery}
+     * @param namedParameters   the parameters of the query
+     * @param continuationToken the token returned with the previous page, {@code null} for
+     *                          the first page
+     * @param pageSize          the size of the page
+     * @return the page and the token of the next page
+     */
+    public <T> KeysetPage<T> pagedQuery(String hql, Map<String, Object> namedParameters,
+                                        String continuationToken, int pageSize) {
+        if (Objects.isNull(namedParameters) || pageSize <= 0) {
+            LOG.debug("Both namedParameters and a positive pageSize are required, but not provided.");
+            return null;
+        }
+        KeysetQuery query = KeysetQuery.of(hql);
+        ContinuationToken token = query.token(continuationToken, namedParameters, sessionResolver.getShardNames());
+        List<String> shards = new ArrayList<>();
+        for (String shard : resolveShards(hql)) {
+            if (!token.isExhausted(shard)) {
+                shards.add(shard);
+            }
+        }
+        if (shards.isEmpty()) {
+            return new KeysetPage<>(new ArrayList<>(), null);
+        }
+        Map<String, List<T>> partials = shardQueryExecutor.scatter(shards, shard -> {
+            List<Object> cursor = token.getCursor(shard);
+            return list(shard, query.shardHql(Objects.nonNull(cursor)),
+                    query.shardParameters(namedParameters, cursor), pageSize);
+        });
+        return query.page(partials, pageSize, token);
+    }
+
+    @Override
+    public <T extends BaseEntity> List<T> pagedFetchQuery(HqlQueryBuilder builder, Integer pageStart, Integer pageSize) {
+        return pagedFetchQuery(builder, pageStart, pageSize, null);
+    }
+
+    /**
+     * Pages over the root identifiers first: each shard the conditions of the builder select
+     * returns its first {@code pageStart + pageSize} identifiers, merged in order into the
+     * page. The fetch graph of the page is then loaded from the shards holding its
+     * identifiers, in the order of the page.
+     */
+    @Override
+    public <T extends BaseEntity> List<T> pagedFetchQuery(HqlQueryBuilder builder, Integer pageStart, Integer pageSize, IQueryPostProcessor post) {
+        if (Objects.isNull(pageStart) || Objects.isNull(pageSize)) {
+            LOG.debug("Both pageStart and pageSize are required, but not provided.");
+            return null;
+        }
+        List<String> shards = sessionResolver.resolveShards(HqlQueryRequest.from(builder));
+        List<T> result = new ArrayList<>();
+        if (!shards.isEmpty()) {
+            ShardedQuery idQuery = ShardedQuery.of(builder.buildIdPageQuery(), pageStart, pageSize);
+            Map<String, Object> namedParameters = builder.getInjectionParameters();
+            Map<String, List<Object>> partials = shardQueryExecutor.scatter(shards,
+                    shard -> list(shard, idQuery.getHql(), namedParameters, idQuery.getShardMaxResults()));
+            // rows are Object[] when the order by fields are selected along with the id
+            Map<Long, String> shardsById = new HashMap<>();
+            for (Map.Entry<String, List<Object>> partial : partials.entrySet()) {
+                for (Object row : partial.getValue()) {
+                    shardsById.putIfAbsent(rootId(row), partial.getKey());
+                }
+            }
+            Map<String, List<Long>> idsByShard = new TreeMap<>();
+            List<Long> page = new ArrayList<>();
+            for (Object row : ShardResultMerger.merge(idQuery, partials.values())) {
+                Long id = rootId(row);
+                page.add(id);
+                idsByShard.computeIfAbsent(shardsById.get(id), shard -> new ArrayList<>()).add(id);
+            }
+
+            if (!page.isEmpty()) {
+                String fetchHql = builder.buildFetchByIdsQuery();
+                Map<String, Object> fetchParameters = builder.getFetchByIdsParameters();
+                Map<String, List<T>> fetched = shardQueryExecutor.scatter(new ArrayList<>(idsByShard.keySet()), shard -> {
+                    Map<String, Object> params = new HashMap<>(fetchParameters);
+                    params.put(HqlQueryBuilder.ROOT_IDS_PARAMETER, idsByShard.get(shard));
+                    return list(shard, fetchHql, params, null);
+                });
+                Map<Long, T> byId = new HashMap<>();
+                for (List<T> entities : fetched.values()) {
+                    for (T entity : entities) {
+                        byId.putIfAbsent(entity.getId(), entity);
+                    }
+                }
+                for (Long id : page) {
+                    if (byId.containsKey(id)) {
+                        result.add(byId.get(id));
+                    }
+                }
+            }
+        }
+        if (Objects.nonNull(post)) {
+            return post.processListResult(result);
+        } else {
+            return result;
+        }
     }
 
+    /**
+     * Persists the item on its shard, see {@link #saveAllByShard(List)}.
+     */
     @Override
     public <T extends BaseEntity> T save(T item) {
-        return null;
+        return checkWritten(writeAll(List.of(item), false)).get(0);
     }
 
+    /**
+     * Persists or merges the item on its shard, see {@link #saveAllByShard(List)}.
+     *
+     * @return the item persisted, or the merged copy of the item
+     */
     @Override
     public <T extends BaseEntity> T save(T item, boolean saveOrUpdate) throws HibernateException {
-        return null;
+        return checkWritten(writeAll(List.of(item), saveOrUpdate)).get(0);
     }
 
+    /**
+     * Deletes the item from its shard, from every shard if it is a {@link Broadcast} item or
+     * its shard cannot be resolved from its properties, and from the shard a rebalance is
+     * moving it to.
+     */
     @Override
     public <T extends BaseEntity> T delete(T item) throws HibernateException {
-        return null;
+        if (Objects.isNull(item.getId())) {
+            return item;
+        }
+        List<String> shards = sessionResolver.isBroadcast(item.getClass())
+                ? sessionResolver.getShardNames()
+                : sessionResolver.resolveShard(item).map(List::of).orElseGet(sessionResolver::getShardNames);
+        Set<String> targets = new TreeSet<>(shards);
+        for (String shard : shards) {
+            sessionResolver.resolveMigrationShard(item, shard).ifPresent(targets::add);
+        }
+        shardQueryExecutor.scatter(new ArrayList<>(targets), shard -> deleteShard(shard, item));
+        return item;
     }
 
+    /**
+     * Persists the items on their shards, see {@link #saveAllByShard(List)}.
+     *
+     * @throws HibernateException if a shard failed, the items of the other shards are
+     *                            committed
+     */
     @Override
     public <T extends BaseEntity> List<T> saveAll(List<T> itemList) {
-        return List.of();
+        return checkWritten(saveAllByShard(itemList));
     }
 
+    /**
+     * Merges the items on their shards, see {@link #mergeAllByShard(List)}.
+     *
+     * @throws HibernateException if a shard failed, the items of the other shards are
+     *                            committed
+     */
     @Override
     public <T extends BaseEntity> List<T> mergeAll(List<T> itemList) {
-        return List.of();
+        return checkWritten(mergeAllByShard(itemList));
+    }
+
+    /**
+     * Groups the items by the shard their router assigns them, then persists each group in
+     * its own transaction, with JDBC batching, on all the shards in parallel. Items the
+     * router cannot place yet, such as entities routed by an identifier which is not
+     * assigned, are given their identifier first, by the generators of the shards in turn,
+     * and routed on it, except the co-located
+     * items whose parent comes before them in the list, which follow it. {@link Broadcast}
+     * items are upserted on every shard, with the same identifier; they count as written once
+     * all the shards committed them.
+     *
+     * @param itemList the items to persist
+     * @return the items committed and the failures, by shard
+     */
+    public <T extends BaseEntity> ShardedWriteResult<T> saveAllByShard(List<T> itemList) {
+        return writeAll(itemList, false);
+    }
+
+    /**
+     * Groups the items by shard like {@link #saveAllByShard(List)} and merges each group.
+     *
+     * @param itemList the items to merge
+     * @return the items committed and the failures, by shard
+     */
+    public <T extends BaseEntity> ShardedWriteResult<T> mergeAllByShard(List<T> itemList) {
+        return writeAll(itemList, true);
     }
 
     @Override
     public List sqlQuery(String sql, Object... params) {
-        return List.of();
+        return sqlQueryExecute(sql, 0, params, mapRowBuilder);
     }
 
     @Override
     public List sqlQueryLimit(String sql, int limit, Object... params) {
-        return List.of();
+        return sqlQueryExecute(sql, limit, params, mapRowBuilder);
     }
 
     @Override
     public List<Object[]> sqlQueryArray(String sql, Object... params) {
-        return List.of();
+        return sqlQueryExecute(sql, 0, params, arrayRowBuilder);
     }
 
+    /**
+     * Runs the SQL update on every shard, SQL is not routed. Each shard commits its own
+     * update.
+     *
+     * @return the number of rows updated on all the shards
+     */
     @Override
     public int sqlUpdate(String sql, Object... params) {
-        return 0;
+        Map<String, Integer> counts = shardQueryExecutor.scatter(sessionResolver.getShardNames(), shard -> {
+            Session session = null;
+            UnitOfWork.markWritten(shard);
+            try {
+                session = sessionResolver.openSession(shard);
+                return session.doReturningWork(new UpdateExecutor(sql, params));
+            } catch (Exception e) {
+                LOG.error("Failed to execute sql {} on shard {}", sql, shard, e);
+                throw e;
+            } finally {
+                close(session);
+            }
+        });
+        return totalOf(counts.values());
     }
 
     @Override
     public <T extends BaseEntity> T findObjectByName(Class<T> clazz, String name) {
-        return null;
+        return findObjectByName(clazz, name, null);
     }
 
     @Override
     public <T extends BaseEntity> T findObjectById(Class<T> clazz, String id, IQueryPostProcessor post) {
-        return null;
+        if (Objects.isNull(id)) {
+            return null;
+        }
+        Object typedId;
+        try {
+            typedId = DefaultConversionService.getSharedInstance()
+                    .convert(id, sessionResolver.getIdentifierType(clazz));
+        } catch (ConversionException e) {
+            LOG.debug("{} is not an identifier of {}", id, clazz.getSimpleName(), e);
+            return null;
+        }
+        if (Objects.isNull(typedId)) {
+            return null;
+        }
+        List<T> found = scatterQuery(ShardedQuery.of("from " + clazz.getName() + " where id = ?0"),
+                sessionResolver.resolveShards(clazz, "id", typedId), Map.of(0, typedId));
+        if (Objects.nonNull(post)) {
+            found = post.processListResult(found);
+        }
+        return !found.isEmpty() ? found.get(0) : null;
     }
 
     @Override
     public <T extends BaseEntity> T findObjectByName(Class<T> clazz, String name, IQueryPostProcessor post) {
-        return null;
+        if (Objects.isNull(name)) {
+            return null;
+        }
+        List<T> found = indexedQuery(clazz, NamedArtifact.NameAttribute, name,
+                "from " + clazz.getName() + " where lower(name) = lower(?0)" + notDeleted(clazz));
+        if (Objects.nonNull(post)) {
+            found = post.processListResult(found);
+        }
+        return !found.isEmpty() ? found.get(0) : null;
+    }
+
+    /**
+     * Finds the entities of a property value, on the shards holding the value if the property
+     * is a {@code GlobalIndex} property, on every shard otherwise.
+     *
+     * @param clazz    the entity class
+     * @param property the property
+     * @param value    the value
+     * @return the entities of the value
+     */
+    public <T extends BaseEntity> List<T> findObjectsByIndex(Class<T> clazz, String property, Object value) {
+        if (!PROPERTY.matcher(property).matches()) {
+            throw new IllegalArgumentException("Invalid property: " + property);
+        }
+        if (Objects.isNull(value)) {
+            return new ArrayList<>();
+        }
+        return indexedQuery(clazz, property, value, "from " + clazz.getName() + " where " + property + " = ?0");
     }
 
     @Override
     public <T extends BaseEntity> T findObjectByIdOrName(Class<T> clazz, String idOrName) {
-        return null;
+        return findObjectByIdOrName(clazz, idOrName, null);
     }
 
     @Override
     public <T extends BaseEntity> T findObjectByIdOrName(Class<T> clazz, String idOrName, IQueryPostProcessor post) {
-        return null;
+        if (Objects.isNull(idOrName)) {
+            return null;
+        }
+        List<T> found = query("from " + clazz.getName() + " where (cast(id as String) = ?0 or lower(name) = lower(?1))",
+                post, idOrName, idOrName);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    @Override
+    public <T extends BaseEntity> Map<Long, T> findObjectsByIds(Class<T> clazz, Collection<Long> ids) {
+        Map<Long, T> found = new HashMap<>();
+        if (Objects.isNull(ids) || ids.isEmpty()) {
+            return found;
+        }
+        List<T> result = query("from " + clazz.getName() + " where id in (:ids)",
+                Map.of("ids", new ArrayList<>(new LinkedHashSet<>(ids))), null);
+        for (T item : result) {
+            found.put(item.getId(), item);
+        }
+        return found;
+    }
+
+    @Override
+    public <T extends BaseEntity> Map<String, T> findObjectsByNames(Class<T> clazz, Collection<String> names) {
+        Map<String, T> found = new HashMap<>();
+        if (Objects.isNull(names) || names.isEmpty() || !NamedArtifact.class.isAssignableFrom(clazz)) {
+            return found;
+        }
+        Set<String> lowerNames = new LinkedHashSet<>();
+        for (String name : names) {
+            if (Objects.nonNull(name)) {
+                lowerNames.add(name.toLowerCase(Locale.ROOT));
+            }
+        }
+        List<T> result = query("from " + clazz.getName() + " where lower(name) in (:names)" + notDeleted(clazz),
+                Map.of("names", new ArrayList<>(lowerNames)), null);
+        for (T item : result) {
+            String name = ((NamedArtifact) item).getName();
+            if (Objects.nonNull(name)) {
+                found.putIfAbsent(name.toLowerCase(Locale.ROOT), item);
+            }
+        }
+        return found;
     }
 
     @Override
     public Object querySingle(String hql) {
-        return null;
+        return querySingle(hql, new HashMap<>());
     }
 
     @Override
     public Object querySingle(String hql, Map<String, Object> params) {
-        return null;
+        return querySingle(hql, params, null);
     }
 
+    /**
+     * Runs the statement on its shard, or on every shard in parallel when the shard cannot be
+     * resolved or the statement writes a {@link Broadcast} table. Each shard commits its own
+     * transaction.
+     *
+     * @return the number of rows affected on all the shards, -1 if the parameters are missing
+     */
     @Override
     public int executeQuery(String hql, Map<String, Object> params) {
-        return 0;
+        if (Objects.isNull(params)) {
+            LOG.error("query parameters is required, but not provided");
+            return -1;
+        }
+        Map<String, Integer> counts = shardQueryExecutor.scatter(sessionResolver.resolveWriteShards(hql),
+                shard -> executeUpdate(shard, hql, params));
+        return totalOf(counts.values());
     }
 
+    /**
+     * Expects at most one shard to find a result, or an aggregate query to return at most one
+     * merged row.
+     *
+     * @throws NonUniqueResultException if several shards found a result
+     */
     @Override
     public Object querySingle(String hql, Map<String, Object> params, IQueryPostProcessor post) {
-        return null;
+        if (Objects.isNull(params)) {
+            LOG.info("query parameters are required, but not provided!");
+            return null;
+        }
+        List<String> shards = resolveShards(hql);
+        ShardedQuery query = ShardedQuery.of(hql);
+        List<Object> found = new ArrayList<>();
+        if (shards.size() > 1 && Objects.nonNull(AggregateQuery.of(query))) {
+            found.addAll(scatterQuery(query, shards, params));
+        } else {
+            for (Object result : shardQueryExecutor.scatter(shards, shard -> uniqueResult(shard, hql, params)).values()) {
+                if (Objects.nonNull(result)) {
+                    found.add(result);
+                }
+            }
+        }
+        if (found.size() > 1) {
+            throw new NonUniqueResultException(found.size());
+        }
+        Object result = found.isEmpty() ? null : found.get(0);
+        if (Objects.nonNull(post)) {
+            return post.processFindResult(result);
+        } else {
+            return result;
+        }
     }
 
+    /**
+     * Returns the entity the query finds, see {@link #querySingle(String, Map)}, or else
+     * saves the item on its shard.
+     */
     @Override
+    @SuppressWarnings("unchecked")
     public <T extends BaseEntity> T findOrSave(String hql, Map<String, Object> params, T item) {
-        return null;
+        if (Objects.isNull(params)) {
+            LOG.error("Query parameters are required, but not provided!");
+            return null;
+        }
+        T found = (T) querySingle(hql, params);
+        if (Objects.nonNull(found)) {
+            return found;
+        }
+        item.setModifiedDate(new Date());
+        return save(item, Objects.nonNull(item.getId()));
     }
 
+    /**
+     * Runs the query on the shards selected by its conditions on the shard key, or on every
+     * shard if its conditions do not narrow them.
+     */
     @Override
     public <T extends BaseEntity> List<T> query(HqlQueryRequest request) {
-        return List.of();
+        List<String> shards = sessionResolver.resolveShards(request);
+        if (shards.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return scatterQuery(ShardedQuery.of(request.getHql()), shards, request.getParameters());
+    }
+
+    /**
+     * Sums the planner estimates of the table on the shards holding its rows, and counts the
+     * rows exactly unless the sum is above the cutoff.
+     */
+    @Override
+    public TotalCount approximateCount(Class<? extends BaseEntity> clazz, int cutoff) {
+        String hql = "select count(*) from " + clazz.getName();
+        String table = sessionResolver.getTableName(clazz);
+        Map<String, Long> estimates = shardQueryExecutor.scatter(resolveShards(hql),
+                shard -> estimate(shard, ESTIMATE_TABLE_SQL, table));
+        if (sumOf(estimates.values()) > cutoff) {
+            return TotalCount.atLeast(cutoff);
+        }
+        Number count = (Number) querySingle(hql);
+        return TotalCount.exact(count.longValue());
+    }
+
+    /**
+     * Sums the planner estimates of the query on every shard, and counts its rows exactly on
+     * every shard unless the sum is above the cutoff.
+     */
+    @Override
+    public TotalCount approximateCount(String sql, int cutoff, Object... params) {
+        Map<String, Long> estimates = shardQueryExecutor.scatter(sessionResolver.getShardNames(),
+                shard -> estimate(shard, "EXPLAIN (FORMAT JSON) " + sql, params));
+        if (sumOf(estimates.values()) > cutoff) {
+            return TotalCount.atLeast(cutoff);
+        }
+        long total = 0;
+        for (Object[] row : sqlQueryArray("select count(*) from (" + sql + ") as fabric_count", params)) {
+            total += ((Number) row[0]).longValue();
+        }
+        return TotalCount.exact(total);
+    }
+
+    /**
+     * Streams the results of each shard into its own sketch, then merges the sketches: a
+     * value found on several shards is counted once.
+     */
+    @Override
+    public long approximateDistinctCount(String hql, Map<String, Object> params) {
+        Map<String, HyperLogLog> sketches = shardQueryExecutor.scatter(resolveShards(hql), shard -> {
+            try {
+                return read(shard, session -> {
+                    HyperLogLog sketch = new HyperLogLog();
+                    Query<Object> query = session.createQuery(hql);
+                    bind(query, params);
+                    try (Stream<Object> results = query.stream()) {
+                        results.forEach(sketch::add);
+                    }
+                    return sketch;
+                });
+            } catch (Exception e) {
+                if (e instanceof JDBCException) {
+                    LOG.error("JDBCException while streaming hql {} on shard {}", hql, shard, e);
+                } else if (e instanceof HibernateException) {
+                    LOG.error("HibernateException while streaming hql {} on shard {}", hql, shard, e);
+                }
+                throw e;
+            }
+        });
+        HyperLogLog merged = new HyperLogLog();
+        for (HyperLogLog sketch : sketches.values()) {
+            merged.merge(sketch);
+        }
+        return merged.cardinality();
+    }
+
+    /**
+     * Runs the query on its shard, or on every shard in parallel when the shard cannot be
+     * resolved, then merges the partial results.
+     */
+    private <T> List<T> scatterQuery(ShardedQuery query, Map<?, Object> params) {
+        return scatterQuery(query, resolveShards(query.getHql()), params);
+    }
+
+    /**
+     * Runs the query on the shards in parallel and merges the partial results. Aggregates
+     * fanned out to several shards are rewritten into partial aggregates, so that the shards
+     * return one row per group instead of the rows to aggregate.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> scatterQuery(ShardedQuery query, List<String> shards, Map<?, Object> params) {
+        AggregateQuery aggregate = shards.size() > 1 ? AggregateQuery.of(query) : null;
+        if (Objects.nonNull(aggregate)) {
+            Map<Object, Object> shardParams = aggregate.shardParameters(params);
+            Map<String, List<Object>> partials = shardQueryExecutor.scatter(shards,
+                    shard -> list(shard, aggregate.getShardHql(), shardParams, null));
+            return (List<T>) aggregate.merge(partials.values(), params);
+        }
+        Map<String, List<T>> partials = shardQueryExecutor.scatter(shards,
+                shard -> list(shard, query.getHql(), params, query.getShardMaxResults()));
+        return ShardResultMerger.merge(query, partials.values());
+    }
+
+    /**
+     * Runs the query of a single positional parameter, the value of the property, on the
+     * shards the global index designates. Falls back to every shard when the index is
+     * disabled, does not know the value, or designates shards no longer holding it.
+     */
+    private <T> List<T> indexedQuery(Class<?> clazz, String property, Object value, String hql) {
+        ShardedQuery query = ShardedQuery.of(hql);
+        Map<Integer, Object> params = Map.of(0, value);
+        if (Objects.isNull(globalIndex) || !globalIndex.isIndexed(clazz, property)) {
+            return scatterQuery(query, params);
+        }
+        Set<String> indexed = globalIndex.lookup(clazz, property, value);
+        if (indexed.isEmpty()) {
+            return globalIndex.isTrustMisses() ? new ArrayList<>() : scatterQuery(query, params);
+        }
+        List<String> shards = new ArrayList<>();
+        for (String shard : sessionResolver.getShardNames()) {
+            if (indexed.contains(shard)) {
+                shards.add(shard);
+            }
+        }
+        List<T> found = scatterQuery(query, shards, params);
+        if (found.isEmpty()) {
+            LOG.debug("Stale global index entries of {}.{} on {}, reading every shard",
+                    clazz.getSimpleName(), property, shards);
+            return scatterQuery(query, params);
+        }
+        return found;
+    }
+
+    /**
+     * Reads a planner row estimate on the shard, either from the table statistics or from the
+     * top node of an EXPLAIN plan.
+     *
+     * @return the estimated number of rows, or -1 if the shard cannot tell, e.g. the table
+     * was never analyzed or the database is not PostgreSQL
+     */
+    private long estimate(String shard, String sql, Object... params) {
+        try {
+            List<Object> rows = read(shard, session -> session.doReturningWork(
+                    new LimitExecutor(sql, 0, params, arrayRowBuilder)));
+            if (rows.isEmpty() || Objects.isNull(((Object[]) rows.get(0))[0])) {
+                return -1;
+            }
+            Object value = ((Object[]) rows.get(0))[0];
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            Matcher matcher = PLAN_ROWS.matcher(value.toString());
+            return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+        } catch (HibernateException e) {
+            LOG.debug("Planner estimate not available on shard {}, falling back to count", shard, e);
+            return -1;
+        }
+    }
+
+    /**
+     * @return the sum of the known estimates
+     */
+    private static long sumOf(Collection<Long> estimates) {
+        long sum = 0;
+        for (long estimate : estimates) {
+            sum += Math.max(0, estimate);
+        }
+        return sum;
+    }
+
+    private static int totalOf(Collection<Integer> counts) {
+        int sum = 0;
+        for (int count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the condition excluding the soft deleted rows, empty if the entity has no
+     * {@code deleted} attribute
+     */
+    private String notDeleted(Class<?> clazz) {
+        return sessionResolver.hasAttribute(clazz, "deleted") ? " and deleted is null" : "";
+    }
+
+    private static Long rootId(Object row) {
+        return (Long) (row instanceof Object[] ? ((Object[]) row)[0] : row);
+    }
+
+    private List<String> resolveShards(String hql) {
+        return sessionResolver.resolveShard(hql)
+                .map(List::of)
+                .orElseGet(sessionResolver::getShardNames);
+    }
+
+    private <T> List<T> list(String shard, String hql, Map<?, Object> params, Integer maxResults) {
+        try {
+            return read(shard, session -> {
+                Query<T> query = session.createQuery(hql);
+                bind(query, params);
+                if (Objects.nonNull(maxResults)) {
+                    query.setMaxResults(maxResults);
+                }
+                return query.list();
+            });
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while executing hql {} on shard {}", hql, shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while executing hql {} on shard {}", hql, shard, e);
+            }
+            throw e;
+        }
+    }
+
+    private Object uniqueResult(String shard, String hql, Map<String, Object> params) {
+        try {
+            return read(shard, session -> {
+                Query<?> query = session.createQuery(hql);
+                bind(query, params);
+                return query.uniqueResult();
+            });
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while executing hql {} on shard {}", hql, shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while executing hql {} on shard {}", hql, shard, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the SQL query on every shard, SQL is not routed. Rows are concatenated in shard
+     * order and the limit, pushed down to each shard, applies to the merged rows.
+     */
+    @SuppressWarnings("unchecked")
+    private List sqlQueryExecute(String sql, int limit, Object[] params, RowBuilder builder) {
+        Map<String, List<Object>> partials = shardQueryExecutor.scatter(sessionResolver.getShardNames(), shard -> {
+            try {
+                return read(shard, session -> session.doReturningWork(new LimitExecutor(sql, limit, params, builder)));
+            } catch (HibernateException e) {
+                LOG.error("HibernateException during executing sql {} limit {} on shard {}",
+                        sql, limit, shard, e);
+                throw e;
+            }
+        });
+        return ShardResultMerger.concat(partials.values(), 0, limit > 0 ? limit : null);
+    }
+
+    /**
+     * Runs the read on a replica of the shard, or on its primary, hedged if enabled.
+     *
+     * @param shard the shard to read
+     * @param work  the read, receiving a session it must not close
+     */
+    private <R> R read(String shard, Function<Session, R> work) {
+        if (Objects.nonNull(hedgedReadExecutor)) {
+            return hedgedReadExecutor.read(shard, work);
+        }
+        Replica replica = sessionResolver.selectReplica(shard).orElse(null);
+        Session session = null;
+        try {
+            session = Objects.nonNull(replica) ? replica.openSession() : sessionResolver.openSession(shard);
+            return work.apply(session);
+        } finally {
+            close(session);
+            release(replica);
+        }
+    }
+
+    private static void release(Replica replica) {
+        if (Objects.nonNull(replica)) {
+            replica.release();
+        }
+    }
+
+    private static void bind(Query<?> query, Map<?, Object> params) {
+        for (Map.Entry<?, Object> entry : params.entrySet()) {
+            if (entry.getKey() instanceof Integer) {
+                query.setParameter((Integer) entry.getKey(), entry.getValue());
+            } else if (entry.getValue() instanceof Collection) {
+                query.setParameterList(entry.getKey().toString(), (Collection<?>) entry.getValue());
+            } else {
+                query.setParameter(entry.getKey().toString(), entry.getValue());
+            }
+        }
+    }
+
+    private <T extends BaseEntity> ShardedWriteResult<T> writeAll(List<T> itemList, boolean merge) {
+        Map<String, List<T>> groups = new TreeMap<>();
+        List<T> broadcast = new ArrayList<>();
+        List<String> shardNames = sessionResolver.getShardNames();
+        // shard of each entity placed so far, so that a co-located entity follows its parent
+        // written along with it, before its parent's shard key is assigned
+        Map<Object, String> placed = new IdentityHashMap<>();
+        for (T item : itemList) {
+            if (sessionResolver.isBroadcast(item.getClass())) {
+                broadcast.add(item);
+                continue;
+            }
+            String shard = sessionResolver.resolveShard(item)
+                    .or(() -> sessionResolver.resolveColocatedParent(item).map(placed::get))
+                    .orElseGet(() -> routeWithNewId(item));
+            placed.put(item, shard);
+            groups.computeIfAbsent(shard, name -> new ArrayList<>()).add(item);
+        }
+        // the copies of a broadcast row share its identifier
+        for (T item : broadcast) {
+            if (Objects.isNull(item.getId())) {
+                item.setId((Long) sessionResolver.generateId(shardNames.get(0), item));
+            }
+        }
+
+        Map<String, Exception> failures = new ConcurrentHashMap<>();
+        Map<String, Exception> broadcastFailures = new ConcurrentHashMap<>();
+        Map<String, List<T>> broadcastCopies = new ConcurrentHashMap<>();
+        List<String> shards = broadcast.isEmpty() ? new ArrayList<>(groups.keySet()) : shardNames;
+        Map<String, Integer> counts = shardQueryExecutor.scatter(shards, shard -> {
+            int count = 0;
+            List<T> group = groups.get(shard);
+            if (Objects.nonNull(group)) {
+                try {
+                    writeShard(shard, group, merge);
+                    count += group.size();
+                } catch (Exception e) {
+                    failures.put(shard, e);
+                }
+                if (!failures.containsKey(shard)) {
+                    if (Objects.nonNull(globalIndex)) {
+                        globalIndex.index(shard, group);
+                    }
+                    mirror(shard, group);
+                }
+            }
+            if (!broadcast.isEmpty()) {
+                try {
+                    broadcastCopies.put(shard, upsertCopies(shard, broadcast));
+                    count += broadcast.size();
+                } catch (Exception e) {
+                    broadcastFailures.put(shard, e);
+                }
+            }
+            return count;
+        });
+
+        List<T> written = new ArrayList<>();
+        for (Map.Entry<String, List<T>> group : groups.entrySet()) {
+            if (!failures.containsKey(group.getKey())) {
+                written.addAll(group.getValue());
+            }
+        }
+        if (broadcastFailures.isEmpty() && !broadcast.isEmpty()) {
+            // the shards wrote the same versions
+            List<T> copies = broadcastCopies.get(shardNames.get(0));
+            for (int i = 0; i < broadcast.size(); i++) {
+                broadcast.get(i).setVersionNumber(copies.get(i).getVersionNumber());
+            }
+            written.addAll(broadcast);
+        }
+        for (Map.Entry<String, Exception> failure : broadcastFailures.entrySet()) {
+            failures.merge(failure.getKey(), failure.getValue(), (first, second) -> {
+                first.addSuppressed(second);
+                return first;
+            });
+        }
+        return new ShardedWriteResult<>(written, counts, new TreeMap<>(failures));
+    }
+
+    private int executeUpdate(String shard, String hql, Map<String, Object> params) {
+        Session session = null;
+        Transaction trx = null;
+        UnitOfWork.markWritten(shard);
+        try {
+            session = sessionResolver.openSession(shard);
+            trx = session.beginTransaction();
+            MutationQuery query = session.createMutationQuery(hql);
+            for (Map.Entry<String, Object> entry : params.entrySet()) {
+                query.setParameter(entry.getKey(), entry.getValue());
+            }
+            int result = query.executeUpdate();
+            trx.commit();
+            return result;
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while executing hql {} on shard {}, gonna rollback", hql, shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while executing hql {} on shard {}, gonna rollback", hql, shard, e);
+            }
+            rollback(trx);
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
+    /**
+     * Deletes the row of the item from the shard, if the shard holds it.
+     *
+     * @return whether the shard held the row
+     */
+    private <T extends BaseEntity> boolean deleteShard(String shard, T item) {
+        Session session = null;
+        Transaction trx = null;
+        UnitOfWork.markWritten(shard);
+        try {
+            session = sessionResolver.openSession(shard);
+            trx = session.beginTransaction();
+            Object row = session.get(item.getClass(), item.getId());
+            if (Objects.nonNull(row)) {
+                session.remove(row);
+            }
+            trx.commit();
+            return Objects.nonNull(row);
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while deleting item from shard {}, gonna rollback", shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while deleting item from shard {}, gonna rollback", shard, e);
+            }
+            rollback(trx);
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
+    /**
+     * Allocates the identifier of an item its router cannot place, then routes the item on
+     * it, so that the reads routed on the identifier find its row. The identifiers are
+     * allocated by the generators of the shards in turn, but the standby ones: the routers on
+     * the identifier place the rows on the shard whose index the identifier embeds, the
+     * routers hashing it wherever the hash falls.
+     *
+     * @throws HibernateException if the item still cannot be routed, e.g. its shard key is
+     *                            another property which is not set
+     */
+    private String routeWithNewId(BaseEntity item) {
+        if (Objects.isNull(item.getId())) {
+            List<String> shardNames = sessionResolver.getWriteShardNames();
+            String shard = shardNames.get(Math.floorMod(nextWriteShard.getAndIncrement(), shardNames.size()));
+            item.setId((Long) sessionResolver.generateId(shard, item));
+        }
+        return sessionResolver.resolveShard(item).orElseThrow(() -> new HibernateException("Cannot route "
+                + item.getClass().getSimpleName() + " " + item.getId() + ", its shard key is not set"));
+    }
+
+    private <T extends BaseEntity> void writeShard(String shard, List<T> items, boolean merge) {
+        Session session = null;
+        Transaction trx = null;
+        // the reads of the unit of work no longer see this shard through its replicas
+        UnitOfWork.markWritten(shard);
+        try {
+            session = sessionResolver.openSession(shard);
+            session.setJdbcBatchSize(writeBatchSize);
+            trx = session.beginTransaction();
+            for (int i = 0; i < items.size(); i++) {
+                if (merge) {
+                    // the merged copy holds the identifier and version written
+                    items.set(i, session.merge(items.get(i)));
+                } else {
+                    session.persist(items.get(i));
+                }
+                // sends the batch and keeps the persistence context small
+                if ((i + 1) % writeBatchSize == 0) {
+                    session.flush();
+                    session.clear();
+                }
+            }
+            trx.commit();
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while writing {} items to shard {}, gonna rollback", items.size(), shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while writing {} items to shard {}, gonna rollback", items.size(), shard, e);
+            }
+            rollback(trx);
+            throw e;
+        } finally {
+            close(session);
+        }
+    }
+
+    /**
+     * Mirrors the items written to the shard which a rebalance is moving to another shard,
+     * so that the rows it copied before stay current until their entity group is routed to
+     * their new shard. The failures are logged and not thrown, the rebalance finds the rows
+     * differing and copies them again.
+     */
+    private <T extends BaseEntity> void mirror(String shard, List<T> items) {
+        Map<String, List<T>> mirrors = new TreeMap<>();
+        for (T item : items) {
+            sessionResolver.resolveMigrationShard(item, shard).ifPresent(target ->
+                    mirrors.computeIfAbsent(target, name -> new ArrayList<>()).add(item));
+        }
+        for (Map.Entry<String, List<T>> target : mirrors.entrySet()) {
+            try {
+                upsertCopies(target.getKey(), target.getValue());
+            } catch (Exception e) {
+                LOG.warn("Cannot mirror {} items of shard {} to shard {}, the rebalance will copy them again",
+                        target.getValue().size(), shard, target.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Upserts copies of the rows on the shard: inserted where missing, overwritten otherwise,
+     * so that a shard which failed catches up when the rows are written again. Used for the
+     * broadcast rows and the mirrored rows. Each shard writes its own copies since the
+     * stateless session updates the versions of the rows it writes.
+     *
+     * @return the copies written
+     */
+    private <T extends BaseEntity> List<T> upsertCopies(String shard, List<T> items) {
+        List<T> copies = new ArrayList<>(items.size());
+        for (T item : items) {
+            @SuppressWarnings("unchecked")
+            T copy = (T) BeanUtils.instantiateClass(item.getClass());
+            BeanUtils.copyProperties(item, copy);
+            copies.add(copy);
+        }
+        StatelessSession session = null;
+        Transaction trx = null;
+        UnitOfWork.markWritten(shard);
+        try {
+            session = sessionResolver.openStatelessSession(shard);
+            session.setJdbcBatchSize(writeBatchSize);
+            trx = session.beginTransaction();
+            for (T copy : copies) {
+                session.upsert(copy);
+            }
+            trx.commit();
+            return copies;
+        } catch (Exception e) {
+            if (e instanceof JDBCException) {
+                LOG.error("JDBCException while upserting {} items to shard {}, gonna rollback", items.size(), shard, e);
+            } else if (e instanceof HibernateException) {
+                LOG.error("HibernateException while upserting {} items to shard {}, gonna rollback", items.size(), shard, e);
+            }
+            rollback(trx);
+            throw e;
+        } finally {
+            if (Objects.nonNull(session) && session.isOpen()) {
+                session.close();
+            }
+        }
+    }
+
+    private static <T> List<T> checkWritten(ShardedWriteResult<T> result) {
+        if (result.isSuccessful()) {
+            return result.getItems();
+        }
+        HibernateException failure = new HibernateException("Write failed on shards "
+                + result.getFailures().keySet() + ", committed " + result.getCounts());
+        for (Exception e : result.getFailures().values()) {
+            failure.addSuppressed(e);
+        }
+        throw failure;
+    }
+
+    private void rollback(Transaction trx) {
+        if (Objects.nonNull(trx)) {
+            try {
+                trx.rollback();
+            } catch (HibernateException e) {
+                LOG.error("Error rolling back Transaction", e);
+            }
+        }
+    }
+
+    private void close(Session session) {
+        if (Objects.nonNull(session) && session.isOpen()) {
+            session.close();
+        }
     }
 }
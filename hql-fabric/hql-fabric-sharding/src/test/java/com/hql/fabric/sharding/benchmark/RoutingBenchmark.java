@@ -0,0 +1,90 @@
+package com.hql.fabric.sharding.benchmark;
+
+import com.hql.fabric.sharding.config.ShardingProperties;
+import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
+import com.hql.fabric.sharding.router.DefaultHashShardRouter;
+import com.hql.fabric.sharding.router.RouterRegistry;
+import com.hql.fabric.sharding.router.TableAwareShardRouter;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the routing overhead of a query: resolving the router of its table and its shard.
+ * <p>
+ * Not run by the build, run it with the {@link #main(String[])} method from the test
+ * classpath, or with {@code -Dgc} profiling through the JMH command line options.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+    private static final String HQL = "select u from com.hql.fabric.domain.reconciliation.AccountUser u where u.region = :region";
+
+    private List<TableAwareShardRouter<?>> routers;
+    private RouterRegistry registry;
+    private ShardedSessionResolver resolver;
+
+    @Setup
+    public void setUp() {
+        ShardingProperties properties = new ShardingProperties();
+        properties.setDatasources(Map.of("shard0", new DataSourceProperties(),
+                "shard1", new DataSourceProperties(), "shard2", new DataSourceProperties()));
+        routers = List.of(new DefaultHashShardRouter(properties));
+        registry = new RouterRegistry(routers);
+
+        Map<String, SessionFactoryImplementor> sessionFactories = new HashMap<>();
+        sessionFactories.put("shard0", null);
+        sessionFactories.put("shard1", null);
+        sessionFactories.put("shard2", null);
+        resolver = new ShardedSessionResolver(registry, sessionFactories, 1024);
+        registry.register(List.of("AccountUser", "ReconciliationBatch", "TransactionFlowCore"));
+    }
+
+    /**
+     * The lookup of the router as it was done on every call before the dispatch table.
+     */
+    @Benchmark
+    public Optional<TableAwareShardRouter<?>> streamScan() {
+        return routers.stream()
+                .filter(r -> r.supportsTable("AccountUser"))
+                .findFirst();
+    }
+
+    @Benchmark
+    public Optional<TableAwareShardRouter<?>> dispatchTable() {
+        return registry.getRouterForTable("AccountUser");
+    }
+
+    @Benchmark
+    public Optional<String> resolveShard() {
+        return resolver.resolveShard(HQL);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RoutingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,151 @@
+package com.hql.fabric.sharding.executor;
+
+import com.hql.fabric.sharding.replica.Replica;
+import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class HedgedReadExecutorTest {
+    private final ShardedSessionResolver resolver = Mockito.mock(ShardedSessionResolver.class);
+    private final SessionImplementor slowSession = Mockito.mock(SessionImplementor.class);
+    private final SessionImplementor fastSession = Mockito.mock(SessionImplementor.class);
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    private final AtomicBoolean slow = new AtomicBoolean();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private final Set<Thread> readers = ConcurrentHashMap.newKeySet();
+    private Replica first;
+    private Replica second;
+    private HedgedReadExecutor executor;
+
+    @BeforeEach
+    public void setUp() {
+        first = new Replica("r0", "shard0", factory(slowSession));
+        second = new Replica("r1", "shard0", factory(fastSession));
+        Mockito.when(resolver.selectReplica("shard0")).thenReturn(Optional.of(first));
+        Mockito.when(resolver.selectReplica("shard0", first)).thenReturn(Optional.of(second));
+        Mockito.doAnswer(invocation -> {
+            cancelled.countDown();
+            return null;
+        }).when(slowSession).cancelQuery();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.destroy();
+    }
+
+    @Test
+    public void testSlowReadIsHedgedAndTheLoserCancelled() throws InterruptedException {
+        executor = new HedgedReadExecutor(resolver, 95, 5, 64, 16, 0.05, 2, 2);
+        warmUp();
+
+        slow.set(true);
+        int firstOutstanding = first.getOutstanding();
+        long start = System.nanoTime();
+        String result = executor.read("shard0", this::read);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assertions.assertEquals("r1", result);
+        Assertions.assertTrue(elapsedMillis < 500, "took " + elapsedMillis + " ms");
+        Assertions.assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+        // the mocked resolver does not acquire the replicas, each attempt releases its own once,
+        // the loser after the read returned
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (first.getOutstanding() != firstOutstanding - 1 && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        Assertions.assertEquals(firstOutstanding - 1, first.getOutstanding());
+        Assertions.assertEquals(-1, second.getOutstanding());
+    }
+
+    @Test
+    public void testHedgesAreLimitedByTheBudget() {
+        executor = new HedgedReadExecutor(resolver, 95, 5, 64, 16, 0, 0, 2);
+        warmUp();
+
+        slow.set(true);
+        Assertions.assertEquals("r0", executor.read("shard0", this::read));
+        Mockito.verify(resolver, Mockito.never()).selectReplica("shard0", first);
+        Assertions.assertEquals(1, cancelled.getCount());
+    }
+
+    @Test
+    public void testHedgedReadsRunOffTheCallingThread() {
+        executor = new HedgedReadExecutor(resolver, 95, 5, 64, 16, 0.05, 2, 2);
+        warmUp();
+
+        readers.clear();
+        slow.set(true);
+        Assertions.assertEquals("r1", executor.read("shard0", this::read));
+        Assertions.assertFalse(readers.isEmpty());
+        Assertions.assertFalse(readers.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void testReadFailsOnceBothAttemptsFailed() {
+        executor = new HedgedReadExecutor(resolver, 95, 5, 64, 16, 0.05, 2, 2);
+        warmUp();
+
+        slow.set(true);
+        failing.set(true);
+        HibernateException e = Assertions.assertThrows(HibernateException.class,
+                () -> executor.read("shard0", this::read));
+        // the hedge failed first, the read waited for the first attempt
+        Assertions.assertEquals("r1 is down", e.getMessage());
+        Assertions.assertEquals(1, e.getSuppressed().length);
+        Assertions.assertEquals("r0 is down", e.getSuppressed()[0].getMessage());
+    }
+
+    private void warmUp() {
+        for (int i = 0; i < 16; i++) {
+            Assertions.assertEquals("r0", executor.read("shard0", this::read));
+        }
+    }
+
+    /**
+     * Reads the name of the replica, the slow one answers in a second unless cancelled.
+     */
+    private String read(Session session) {
+        readers.add(Thread.currentThread());
+        if (session == fastSession) {
+            if (failing.get()) {
+                throw new HibernateException("r1 is down");
+            }
+            return "r1";
+        }
+        if (slow.get()) {
+            try {
+                if (cancelled.await(1, TimeUnit.SECONDS)) {
+                    throw new HibernateException("query cancelled");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failing.get()) {
+            throw new HibernateException("r0 is down");
+        }
+        return "r0";
+    }
+
+    private static SessionFactoryImplementor factory(SessionImplementor session) {
+        SessionFactoryImplementor factory = Mockito.mock(SessionFactoryImplementor.class);
+        Mockito.when(factory.openSession()).thenReturn(session);
+        Mockito.when(session.isOpen()).thenReturn(true);
+        return factory;
+    }
+}
@@ -0,0 +1,87 @@
+package com.hql.fabric.sharding.executor;
+
+import com.hql.fabric.sharding.context.ShardRoutingContext;
+import org.hibernate.HibernateException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class ShardQueryExecutorTest {
+    private final ShardQueryExecutor executor = new ShardQueryExecutor(3, 16, 2_000);
+
+    @AfterEach
+    public void tearDown() {
+        executor.destroy();
+    }
+
+    @Test
+    public void testShardsRunInParallel() {
+        long start = System.nanoTime();
+        Map<String, String> results = executor.scatter(List.of("shard0", "shard1", "shard2"), shard -> {
+            sleep(300);
+            return shard.toUpperCase();
+        });
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        Assertions.assertEquals(List.of("SHARD0", "SHARD1", "SHARD2"), List.copyOf(results.values()));
+        // tracks the slowest shard rather than the sum of the shards
+        Assertions.assertTrue(elapsedMillis < 800, "took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    public void testShardFailureIsPropagated() {
+        HibernateException e = Assertions.assertThrows(HibernateException.class,
+                () -> executor.scatter(List.of("shard0", "shard1"), shard -> {
+                    if (shard.equals("shard1")) {
+                        throw new HibernateException("shard1 is down");
+                    }
+                    return shard;
+                }));
+        Assertions.assertEquals("shard1 is down", e.getMessage());
+    }
+
+    @Test
+    public void testSlowShardTimesOut() {
+        ShardQueryExecutor impatient = new ShardQueryExecutor(2, 16, 100);
+        try {
+            Assertions.assertThrows(HibernateException.class,
+                    () -> impatient.scatter(List.of("shard0", "shard1"), shard -> {
+                        sleep(shard.equals("shard1") ? 5_000 : 0);
+                        return shard;
+                    }));
+        } finally {
+            impatient.destroy();
+        }
+    }
+
+    @Test
+    public void testRoutingContextIsPropagated() {
+        ShardQueryExecutor pooled = new ShardQueryExecutor(1, 16, 2_000);
+        try {
+            try (ShardRoutingContext.Scope scope = ShardRoutingContext.ofShard("shard1").open()) {
+                Map<String, String> shards = pooled.scatter(List.of("shard0", "shard1"),
+                        shard -> ShardRoutingContext.current().getShard());
+                Assertions.assertEquals(List.of("shard1", "shard1"), List.copyOf(shards.values()));
+            }
+            Assertions.assertNull(ShardRoutingContext.current());
+            // the pooled thread does not keep the context of the former scatter
+            Map<String, ShardRoutingContext> contexts = pooled.scatter(List.of("shard0", "shard1"),
+                    shard -> ShardRoutingContext.current());
+            Assertions.assertNull(contexts.get("shard0"));
+            Assertions.assertNull(contexts.get("shard1"));
+        } finally {
+            pooled.destroy();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
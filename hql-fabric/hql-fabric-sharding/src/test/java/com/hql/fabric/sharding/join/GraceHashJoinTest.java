@@ -0,0 +1,81 @@
+package com.hql.fabric.sharding.join;
+
+import org.hibernate.HibernateException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+public class GraceHashJoinTest {
+
+    @TempDir
+    Path spillDirectory;
+
+    @Test
+    public void testSpilledJoinMatchesTheInMemoryJoin() throws IOException {
+        List<Object[]> cores = new ArrayList<>();
+        List<Object[]> clearings = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            cores.add(new Object[]{"txn-" + i % 700, i});
+            if (i % 3 == 0) {
+                clearings.add(new Object[]{"txn-" + i % 900, -i});
+            }
+        }
+        cores.add(new Object[]{null, -1});
+        clearings.add(new Object[]{null, -2});
+        List<String> expected = new ArrayList<>();
+        for (Object[] core : cores) {
+            for (Object[] clearing : clearings) {
+                if (Objects.nonNull(core[0]) && core[0].equals(clearing[0])) {
+                    expected.add(core[1] + "/" + clearing[1]);
+                }
+            }
+        }
+        Collections.sort(expected);
+
+        for (int maxBuildRows : new int[]{10_000, 100, 3}) {
+            List<String> joined = new ArrayList<>();
+            try (GraceHashJoin<Object[], Object[], String> join = new GraceHashJoin<>(row -> row[0], row -> row[0],
+                    (core, clearing) -> core[1] + "/" + clearing[1], maxBuildRows, 4, spillDirectory)) {
+                cores.forEach(join::build);
+                clearings.forEach(row -> join.probe(row, joined::add));
+                join.finish(joined::add);
+                Assertions.assertEquals(maxBuildRows < cores.size(), join.isSpilled());
+            }
+            Collections.sort(joined);
+            Assertions.assertEquals(expected, joined, "budget " + maxBuildRows);
+            try (Stream<Path> files = Files.list(spillDirectory)) {
+                Assertions.assertEquals(0, files.count());
+            }
+        }
+    }
+
+    @Test
+    public void testIntegralKeysMatchWhateverTheirType() {
+        List<String> joined = new ArrayList<>();
+        try (GraceHashJoin<Object[], Object[], String> join = new GraceHashJoin<>(row -> row[0], row -> row[0],
+                (left, right) -> left[1] + "=" + right[1], 10, 2, spillDirectory)) {
+            join.build(new Object[]{42, "int"});
+            join.probe(new Object[]{42L, "long"}, joined::add);
+            join.finish(joined::add);
+        }
+        Assertions.assertEquals(List.of("int=long"), joined);
+    }
+
+    @Test
+    public void testOnlySerializableRowsCanSpill() {
+        try (GraceHashJoin<Object, Object, Object> join = new GraceHashJoin<>(row -> 1, row -> 1,
+                (left, right) -> left, 1, 2, spillDirectory)) {
+            join.build(new Object());
+            Assertions.assertThrows(HibernateException.class, () -> join.build(new Object()));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.hql.fabric.sharding.merge;
+
+import org.hibernate.HibernateException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+public class AggregateQueryTest {
+
+    @Test
+    public void testAverageIsRewrittenAsSumAndCount() {
+        AggregateQuery query = AggregateQuery.of(ShardedQuery.of(
+                "select u.region, avg(u.balance), count(u) from AccountUser u where u.userType = :type group by u.region"));
+        Assertions.assertEquals(
+                "select u.region, sum(u.balance), count(u.balance), count(u) from AccountUser u where u.userType = :type group by u.region",
+                query.getShardHql());
+
+        List<List<Object[]>> partials = List.of(
+                List.<Object[]>of(new Object[]{"eu", 30L, 3L, 3L}, new Object[]{"us", 10L, 1L, 2L}),
+                List.<Object[]>of(new Object[]{"eu", 10L, 1L, 1L}),
+                List.<Object[]>of(new Object[]{"us", 20L, 1L, 1L}, new Object[]{"ap", null, 0L, 1L}));
+        List<Object> merged = query.merge(partials, Map.of("type", "ADMIN"));
+
+        Assertions.assertEquals(3, merged.size());
+        Assertions.assertArrayEquals(new Object[]{"eu", 10.0, 4L}, (Object[]) merged.get(0));
+        // the average of the merged groups, not the average of the shard averages
+        Assertions.assertArrayEquals(new Object[]{"us", 15.0, 3L}, (Object[]) merged.get(1));
+        Assertions.assertArrayEquals(new Object[]{"ap", null, 1L}, (Object[]) merged.get(2));
+    }
+
+    @Test
+    public void testHavingOrderByAndLimitApplyAfterTheMerge() {
+        AggregateQuery query = AggregateQuery.of(ShardedQuery.of(
+                "select u.region, sum(u.balance) as total from AccountUser u group by u.region "
+                        + "having count(u) >= :min and total > 0 order by total desc limit 2"));
+        Assertions.assertEquals(
+                "select u.region, sum(u.balance), count(u) from AccountUser u group by u.region",
+                query.getShardHql());
+        Assertions.assertEquals(Map.of(), query.shardParameters(Map.of("min", 2L)));
+
+        List<List<Object[]>> partials = List.of(
+                // each shard alone would fail the HAVING clause for eu
+                List.<Object[]>of(new Object[]{"eu", new BigDecimal("5.5"), 1L}, new Object[]{"us", new BigDecimal("100"), 1L}),
+                List.<Object[]>of(new Object[]{"eu", new BigDecimal("4.5"), 1L}, new Object[]{"ap", new BigDecimal("7"), 2L}),
+                List.<Object[]>of(new Object[]{"us", new BigDecimal("1"), 1L}, new Object[]{"mx", new BigDecimal("-3"), 5L}));
+        List<Object> merged = query.merge(partials, Map.of("min", 2L));
+
+        Assertions.assertEquals(2, merged.size());
+        Assertions.assertArrayEquals(new Object[]{"us", new BigDecimal("101")}, (Object[]) merged.get(0));
+        Assertions.assertArrayEquals(new Object[]{"eu", new BigDecimal("10.0")}, (Object[]) merged.get(1));
+    }
+
+    @Test
+    public void testGlobalAggregatesAreScalarsWhenSingle() {
+        AggregateQuery count = AggregateQuery.of(ShardedQuery.of("SELECT COUNT (t) FROM AccountUser t"));
+        Assertions.assertEquals("select count(t) FROM AccountUser t", count.getShardHql());
+        Assertions.assertEquals(List.of(6L),
+                count.merge(List.of(List.of(1L), List.of(0L), List.of(5L)), Map.of()));
+
+        AggregateQuery bounds = AggregateQuery.of(ShardedQuery.of(
+                "select min(t.createdAt), max(t.createdAt) from AccountUser t"));
+        Object[] merged = (Object[]) bounds.merge(List.of(
+                List.<Object[]>of(new Object[]{3, 9}),
+                List.<Object[]>of(new Object[]{null, null}),
+                List.<Object[]>of(new Object[]{1, 4})), Map.of()).get(0);
+        Assertions.assertArrayEquals(new Object[]{1, 9}, merged);
+    }
+
+    @Test
+    public void testNonAggregateAndUnmergeableQueries() {
+        Assertions.assertNull(AggregateQuery.of(ShardedQuery.of("from AccountUser u order by u.id")));
+        Assertions.assertNull(AggregateQuery.of(ShardedQuery.of(
+                "select u.region from AccountUser u where u.id in (select max(a.id) from AccountUser a)")));
+        Assertions.assertThrows(HibernateException.class, () -> AggregateQuery.of(ShardedQuery.of(
+                "select count(distinct u.region) from AccountUser u")));
+        Assertions.assertThrows(HibernateException.class, () -> AggregateQuery.of(ShardedQuery.of(
+                "select u.region, count(u) from AccountUser u group by u.region having count(u) > 1 or u.region = 'eu'")));
+    }
+}
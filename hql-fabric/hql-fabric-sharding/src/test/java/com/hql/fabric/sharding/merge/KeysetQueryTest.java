@@ -0,0 +1,169 @@
+package com.hql.fabric.sharding.merge;
+
+import com.hql.fabric.domain.reconciliation.AccountUser;
+import org.hibernate.HibernateException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+public class KeysetQueryTest {
+    private static final List<String> SHARDS = List.of("shard0", "shard1", "shard2");
+
+    @Test
+    public void testOrderIsMadeTotalAndRestrictedPastTheCursor() {
+        KeysetQuery query = KeysetQuery.of(
+                "from AccountUser u where u.region = :region or u.region is null order by u.createdDate desc");
+        Assertions.assertEquals(
+                "from AccountUser u where u.region = :region or u.region is null order by u.createdDate desc, u.id",
+                query.getHql());
+        Assertions.assertEquals(
+                "from AccountUser u where (u.region = :region or u.region is null) and (u.createdDate < :keysetCursor0"
+                        + " or (u.createdDate = :keysetCursor0 and u.id > :keysetCursor1)) order by u.createdDate desc, u.id",
+                query.shardHql(true));
+        Assertions.assertEquals(query.getHql(), query.shardHql(false));
+
+        KeysetQuery projection = KeysetQuery.of("select u.accountId, u.region from AccountUser u order by u.accountId");
+        Assertions.assertEquals(
+                "select u.accountId, u.region from AccountUser u where (u.accountId > :keysetCursor0) order by u.accountId",
+                projection.shardHql(true));
+
+        Assertions.assertThrows(HibernateException.class, () -> KeysetQuery.of("from AccountUser u"));
+    }
+
+    @Test
+    public void testPagesMatchTheGlobalOrderAndReadAtMostOnePagePerShard() {
+        KeysetQuery query = KeysetQuery.of("from AccountUser u order by u.createdDate desc");
+        Comparator<Object> order = query.getOrderBy().comparator();
+        Map<String, List<AccountUser>> shards = new LinkedHashMap<>();
+        List<AccountUser> all = new ArrayList<>();
+        for (long id = 1; id <= 50; id++) {
+            // duplicated timestamps, the identifier breaks the ties
+            AccountUser user = user(id, new Timestamp(1_000L * (id % 7)));
+            shards.computeIfAbsent("shard" + id % 3, shard -> new ArrayList<>()).add(user);
+            all.add(user);
+        }
+        shards.values().forEach(rows -> rows.sort(order));
+        all.sort(order);
+
+        List<Long> paged = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        do {
+            ContinuationToken previous = query.token(token, Map.of(), SHARDS);
+            Map<String, List<AccountUser>> partials = new LinkedHashMap<>();
+            for (Map.Entry<String, List<AccountUser>> shard : shards.entrySet()) {
+                if (!previous.isExhausted(shard.getKey())) {
+                    partials.put(shard.getKey(), fetch(query, shard.getValue(), previous.getCursor(shard.getKey()), 7));
+                }
+            }
+            partials.values().forEach(rows -> Assertions.assertTrue(rows.size() <= 7));
+            KeysetPage<AccountUser> page = query.page(partials, 7, previous);
+            page.getRows().forEach(user -> paged.add(user.getId()));
+            token = page.getNextToken();
+            pages++;
+        } while (Objects.nonNull(token));
+
+        Assertions.assertEquals(all.stream().map(AccountUser::getId).collect(Collectors.toList()), paged);
+        Assertions.assertEquals(8, pages);
+    }
+
+    @Test
+    public void testTokensOnlyDecodeForTheirQuery() {
+        KeysetQuery query = KeysetQuery.of("from AccountUser u order by u.accountId");
+        Map<String, List<AccountUser>> partials = new LinkedHashMap<>();
+        partials.put("shard0", List.of(user(1L, null), user(2L, null)));
+        partials.put("shard1", List.of(user(3L, null)));
+        partials.get("shard0").get(0).setAccountId("a");
+        partials.get("shard0").get(1).setAccountId("c");
+        partials.get("shard1").get(0).setAccountId("b");
+
+        KeysetPage<AccountUser> page = query.page(partials, 2, query.token(null, Map.of(), SHARDS));
+        ContinuationToken next = query.token(page.getNextToken(), Map.of(), SHARDS);
+        Assertions.assertEquals(List.of("a", 1L), next.getCursor("shard0"));
+        Assertions.assertNull(next.getCursor("shard1"));
+        Assertions.assertTrue(next.isExhausted("shard1"));
+
+        KeysetQuery other = KeysetQuery.of("from AccountUser u order by u.region");
+        Assertions.assertThrows(HibernateException.class, () -> other.token(page.getNextToken(), Map.of(), SHARDS));
+        Assertions.assertThrows(HibernateException.class, () -> query.token("not-a-token", Map.of(), SHARDS));
+    }
+
+    @Test
+    public void testTokensAreBoundToTheirParametersAndCheckedBeforeAllocating() throws IOException {
+        KeysetQuery query = KeysetQuery.of("from AccountUser u where u.region = :region order by u.accountId");
+        Map<String, List<AccountUser>> partials = new LinkedHashMap<>();
+        AccountUser user = user(1L, null);
+        user.setAccountId("a");
+        partials.put("shard0", List.of(user, user(2L, null)));
+        String token = query.page(partials, 1, query.token(null, Map.of("region", "eu"), SHARDS)).getNextToken();
+
+        Assertions.assertEquals(List.of("a", 1L),
+                query.token(token, Map.of("region", "eu"), SHARDS).getCursor("shard0"));
+        Assertions.assertThrows(HibernateException.class, () -> query.token(token, Map.of("region", "us"), SHARDS));
+
+        // version and fingerprint of the query, then forged counts
+        byte[] header = Arrays.copyOf(Base64.getUrlDecoder().decode(token), 9);
+        ByteArrayOutputStream cursors = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(cursors)) {
+            out.write(header);
+            out.writeInt(Integer.MAX_VALUE);
+        }
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(values)) {
+            out.write(header);
+            out.writeInt(1);
+            out.writeUTF("shard0");
+            out.writeInt(Integer.MAX_VALUE);
+        }
+        ByteArrayOutputStream unknownShard = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(unknownShard)) {
+            out.write(header);
+            out.writeInt(1);
+            out.writeUTF("shard9");
+        }
+        for (ByteArrayOutputStream forged : List.of(cursors, values, unknownShard)) {
+            String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(forged.toByteArray());
+            Assertions.assertThrows(HibernateException.class, () -> query.token(encoded, Map.of("region", "eu"), SHARDS));
+        }
+    }
+
+    /**
+     * What a shard returns for the shard query: at most a page of rows past its cursor.
+     */
+    private static List<AccountUser> fetch(KeysetQuery query, List<AccountUser> rows, List<Object> cursor, int pageSize) {
+        Comparator<Object> order = query.getOrderBy().comparator();
+        List<AccountUser> found = new ArrayList<>();
+        for (AccountUser row : rows) {
+            if (Objects.nonNull(cursor)) {
+                AccountUser last = user((Long) cursor.get(1), (Timestamp) cursor.get(0));
+                if (order.compare(row, last) <= 0) {
+                    continue;
+                }
+            }
+            if (found.size() < pageSize) {
+                found.add(row);
+            }
+        }
+        return found;
+    }
+
+    private static AccountUser user(Long id, Timestamp createdDate) {
+        AccountUser user = new AccountUser();
+        user.setId(id);
+        user.setCreatedDate(createdDate);
+        return user;
+    }
+}
@@ -0,0 +1,123 @@
+package com.hql.fabric.sharding.merge;
+
+import com.hql.fabric.domain.reconciliation.AccountUser;
+import org.hibernate.HibernateException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class ShardResultMergerTest {
+
+    @Test
+    public void testKWayMergeOfEntities() {
+        ShardedQuery query = ShardedQuery.of(
+                "from AccountUser u where u.userType = :type order by u.region asc, u.accountId desc", 1, 4);
+        Assertions.assertEquals(5, query.getShardMaxResults());
+
+        List<List<AccountUser>> partials = List.of(
+                List.of(user("a", "eu"), user("d", "us")),
+                List.of(user("c", "eu"), user("b", "eu"), user("e", null)),
+                List.of(user("f", "ap")));
+        List<String> merged = ShardResultMerger.merge(query, partials).stream()
+                .map(AccountUser::getAccountId)
+                .collect(Collectors.toList());
+
+        // ap:f, eu:c, eu:b, eu:a, us:d, null:e -> skip 1, take 4
+        Assertions.assertEquals(List.of("c", "b", "a", "d"), merged);
+    }
+
+    @Test
+    public void testMergeOfProjectionsAndLiteralLimit() {
+        ShardedQuery query = ShardedQuery.of(
+                "select u.region, count(u) as total from AccountUser u group by u.region order by total desc limit 2");
+        Assertions.assertEquals("select u.region, count(u) as total from AccountUser u group by u.region order by total desc",
+                query.getHql());
+        Assertions.assertEquals(2, query.getShardMaxResults());
+
+        List<List<Object[]>> partials = List.of(
+                List.of(new Object[]{"eu", 7L}, new Object[]{"us", 2L}),
+                List.of(new Object[]{"ap", 9L}, new Object[]{"sa", 1L}));
+        List<String> regions = ShardResultMerger.merge(query, partials).stream()
+                .map(row -> (String) row[0])
+                .collect(Collectors.toList());
+        Assertions.assertEquals(List.of("ap", "eu"), regions);
+    }
+
+    @Test
+    public void testUnorderedQueriesAreConcatenated() {
+        ShardedQuery query = ShardedQuery.of("from AccountUser u", 1, 2);
+        List<Integer> merged = ShardResultMerger.merge(query,
+                Arrays.asList(List.of(1, 2), List.of(3), List.of(4, 5)));
+        Assertions.assertEquals(List.of(2, 3), merged);
+    }
+
+    @Test
+    public void testUnselectedOrderOfProjectionsIsRejected() {
+        ShardedQuery query = ShardedQuery.of("select u.accountId, u.userName from AccountUser u order by u.region");
+        List<List<Object[]>> partials = List.of(
+                List.<Object[]>of(new Object[]{"a", "x"}),
+                List.<Object[]>of(new Object[]{"b", "y"}));
+        Assertions.assertThrows(HibernateException.class, () -> ShardResultMerger.merge(query, partials));
+    }
+
+    @Test
+    public void testDistinctRowsAreDeduplicatedAcrossShardsBeforeTheWindow() {
+        ShardedQuery sorted = ShardedQuery.of(
+                "select distinct u.region from AccountUser u order by u.region", 1, 2);
+        Assertions.assertTrue(sorted.isDistinct());
+        List<String> regions = ShardResultMerger.merge(sorted,
+                List.of(List.of("ap", "eu", "us"), List.of("eu", "sa", "us")));
+        // ap, eu, sa, us -> skip 1, take 2
+        Assertions.assertEquals(List.of("eu", "sa"), regions);
+
+        ShardedQuery unordered = ShardedQuery.of("select distinct u.region, u.userType from AccountUser u");
+        List<Object[]> rows = ShardResultMerger.merge(unordered, List.of(
+                List.of(new Object[]{"eu", 1}, new Object[]{"us", 1}),
+                List.<Object[]>of(new Object[]{"eu", 1})));
+        Assertions.assertEquals(2, rows.size());
+
+        AccountUser copy = user("a", "eu");
+        copy.setId(7L);
+        AccountUser other = user("a", "eu");
+        other.setId(7L);
+        Assertions.assertEquals(1, ShardResultMerger.merge(
+                ShardedQuery.of("select distinct u from AccountUser u"), List.of(List.of(copy), List.of(other))).size());
+        Assertions.assertFalse(ShardedQuery.of("select u.distinctName from AccountUser u").isDistinct());
+    }
+
+    @Test
+    public void testEntitiesAreOrderedByPropertiesOfTheRootAliasOnly() {
+        List<List<AccountUser>> partials = List.of(List.of(user("b", "eu")), List.of(user("a", "us")));
+        List<AccountUser> merged = ShardResultMerger.merge(
+                ShardedQuery.of("select a from AccountUser a order by a.accountId"), partials);
+        Assertions.assertEquals("a", merged.get(0).getAccountId());
+
+        ShardedQuery joined = ShardedQuery.of(
+                "select a from TransactionFlowCore t join t.accountUser a order by t.amount");
+        Assertions.assertThrows(HibernateException.class, () -> ShardResultMerger.merge(joined, partials));
+    }
+
+    @Test
+    public void testClausesAreFoundOutsideLiteralsAndIdentifiers() {
+        ShardedQuery query = ShardedQuery.of("select u.fromDate, u.region from AccountUser u "
+                + "where u.note = 'order by x' order by u.region desc");
+        Assertions.assertEquals(List.of("u.fromDate", "u.region"), query.getOrderBy().getSelections());
+        Assertions.assertEquals(1, query.getOrderBy().getItems().size());
+        Assertions.assertEquals("u.region", query.getOrderBy().getItems().get(0).getExpression());
+        Assertions.assertNull(query.getOrderBy().getEntityAlias());
+        Assertions.assertEquals("u", ShardedQuery.of("from AccountUser u where u.note <> 'from x' order by u.region")
+                .getOrderBy().getEntityAlias());
+        Assertions.assertEquals("select count(*) from AccountUser u where u.note = 'order by x'",
+                query.getCountHql());
+    }
+
+    private static AccountUser user(String accountId, String region) {
+        AccountUser user = new AccountUser();
+        user.setAccountId(accountId);
+        user.setRegion(region);
+        return user;
+    }
+}
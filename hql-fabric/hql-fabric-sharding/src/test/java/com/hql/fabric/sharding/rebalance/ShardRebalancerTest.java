@@ -0,0 +1,353 @@
+package com.hql.fabric.sharding.rebalance;
+
+import com.hql.fabric.domain.reconciliation.AccountUser;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import com.hql.fabric.sharding.executor.ShardQueryExecutor;
+import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
+import com.hql.fabric.sharding.router.RouterRegistry;
+import com.hql.fabric.sharding.router.TagShardRouter;
+import com.hql.fabric.sharding.service.ShardingHqlQueryService;
+import jakarta.persistence.metamodel.EntityType;
+import org.hibernate.HibernateException;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metamodel.model.domain.spi.JpaMetamodelImplementor;
+import org.hibernate.metamodel.spi.MappingMetamodelImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.query.MutationQuery;
+import org.hibernate.query.Query;
+import org.hibernate.type.Type;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.BeanUtils;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rebalances the accounts of region us from shard1 to shard2 over shards stubbed by
+ * in-memory tables.
+ */
+public class ShardRebalancerTest {
+    private static final List<String> SHARDS = List.of("shard0", "shard1", "shard2");
+    private static final int BATCH_SIZE = 2;
+
+    private final ShardQueryExecutor executor = new ShardQueryExecutor(3, 16, 5_000);
+    // rows of each shard by identifier
+    private final Map<String, ConcurrentSkipListMap<Long, AccountUser>> rows = new HashMap<>();
+    private final Map<String, SessionImplementor> sessions = new HashMap<>();
+    // shard operations in their order: copy, checksum or delete, then the shard
+    private final List<String> operations = new CopyOnWriteArrayList<>();
+    // shards whose upserts write stale copies
+    private final Set<String> staleShards = ConcurrentHashMap.newKeySet();
+    // run once before the next read by identifiers of a shard
+    private final Map<String, Runnable> beforeReadByIds = new ConcurrentHashMap<>();
+    // run once after the next upsert to a shard
+    private final Map<String, Runnable> afterUpsert = new ConcurrentHashMap<>();
+    private ShardingProperties properties;
+    private RouterRegistry registry;
+    private ShardedSessionResolver resolver;
+
+    @BeforeEach
+    public void setUp() {
+        properties = properties(Map.of("eu", "shard0", "us", "shard1"));
+        properties.getRebalance().setBatchSize(BATCH_SIZE);
+        registry = new RouterRegistry(List.of(new TagShardRouter(properties)));
+        Map<String, SessionFactoryImplementor> factories = new TreeMap<>();
+        for (String shard : SHARDS) {
+            rows.put(shard, new ConcurrentSkipListMap<>());
+            factories.put(shard, sessionFactory(shard));
+        }
+        resolver = new ShardedSessionResolver(registry, factories, 16, properties);
+
+        for (long id = 1; id <= 5; id++) {
+            store("shard1", account(id, "us"));
+        }
+        store("shard0", account(6L, "eu"));
+        store("shard0", account(7L, "eu"));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.destroy();
+    }
+
+    @Test
+    public void testRowsAreCopiedByBatchesAndDeletedOnceVerifiedAndRouted() {
+        RebalanceReport report = new ShardRebalancer(resolver, registry, properties).rebalance(AccountUser.class,
+                new TagShardRouter(properties(Map.of("eu", "shard0", "us", "shard2"))));
+
+        Assertions.assertEquals("AccountUser", report.getRootTable());
+        Assertions.assertEquals(Map.of("AccountUser", 5L), report.getMovedRows());
+        // keyset pages of 2 rows: 1-2, 3-4 and 5
+        Assertions.assertEquals(3, report.getRanges());
+        Assertions.assertEquals(0, report.getRangesCopiedAgain());
+        Assertions.assertEquals(5, report.getDeletedRows());
+        Assertions.assertEquals(Set.of(1L, 2L, 3L, 4L, 5L), rows.get("shard2").keySet());
+        Assertions.assertEquals(Set.of(6L, 7L), rows.get("shard0").keySet());
+        Assertions.assertTrue(rows.get("shard1").isEmpty());
+        Assertions.assertEquals("user-3", rows.get("shard2").get(3L).getUserName());
+
+        // every row is copied and every range verified before the first delete
+        int firstDelete = operations.indexOf("delete shard1");
+        Assertions.assertEquals(List.of("copy shard2", "copy shard2", "copy shard2", "copy shard2", "copy shard2"),
+                operations.subList(0, 5));
+        Assertions.assertEquals(6, firstDelete - 5);
+        Assertions.assertEquals(Set.of("checksum shard1", "checksum shard2"), Set.copyOf(operations.subList(5, firstDelete)));
+        Assertions.assertEquals(List.of("delete shard1", "delete shard1", "delete shard1"),
+                operations.subList(firstDelete, operations.size()));
+        Assertions.assertEquals("shard2", resolver.resolveShard(account(1L, "us")).get());
+        Assertions.assertTrue(registry.getMigrationRouterForTable("AccountUser").isEmpty());
+    }
+
+    @Test
+    public void testRangesWrittenToWhileCopiedAreCopiedAgain() {
+        // a bulk update of the source, which is not mirrored, between the copy and the checksums
+        beforeReadByIds.put("shard1", () -> rows.get("shard1").get(1L).setUserName("renamed"));
+
+        RebalanceReport report = new ShardRebalancer(resolver, registry, properties).rebalance(AccountUser.class,
+                new TagShardRouter(properties(Map.of("eu", "shard0", "us", "shard2"))));
+
+        Assertions.assertEquals(1, report.getRangesCopiedAgain());
+        Assertions.assertEquals(5, report.getDeletedRows());
+        Assertions.assertEquals("renamed", rows.get("shard2").get(1L).getUserName());
+        Assertions.assertEquals("user-2", rows.get("shard2").get(2L).getUserName());
+    }
+
+    @Test
+    public void testAbortedRebalanceKeepsTheSourceAndItsRouting() {
+        Map<Long, String> source = userNames("shard1");
+        // the copies never match their source
+        staleShards.add("shard2");
+        properties.getRebalance().setVerifyAttempts(3);
+        ShardRebalancer rebalancer = new ShardRebalancer(resolver, registry, properties);
+
+        HibernateException e = Assertions.assertThrows(HibernateException.class, () -> rebalancer.rebalance(
+                AccountUser.class, new TagShardRouter(properties(Map.of("eu", "shard0", "us", "shard2")))));
+        Assertions.assertTrue(e.getMessage().contains("still differs after 3 copies"));
+        Assertions.assertEquals(source, userNames("shard1"));
+        Assertions.assertFalse(operations.stream().anyMatch(operation -> operation.startsWith("delete")));
+        Mockito.verify(sessions.get("shard1"), Mockito.never()).createMutationQuery(Mockito.anyString());
+        // the group keeps its routing and its writes are no longer mirrored
+        AccountUser user = account(1L, "us");
+        Assertions.assertEquals("shard1", resolver.resolveShard(user).get());
+        Assertions.assertTrue(resolver.resolveMigrationShard(user, "shard1").isEmpty());
+        Assertions.assertTrue(registry.getMigrationRouterForTable("AccountUser").isEmpty());
+    }
+
+    @Test
+    public void testWritesDuringTheRebalanceReachBothShards() {
+        ShardingHqlQueryService service = new ShardingHqlQueryService(resolver, executor, BATCH_SIZE);
+        AtomicReference<Map<String, String>> seen = new AtomicReference<>();
+        // once the first range is copied, update a copied row and insert a new one
+        afterUpsert.put("shard2", () -> {
+            AccountUser updated = account(1L, "us");
+            updated.setUserName("updated");
+            service.save(updated, true);
+            service.save(account(10L, "us"));
+            seen.set(Map.of("shard1", rows.get("shard1").get(1L).getUserName(),
+                    "shard2", rows.get("shard2").get(1L).getUserName(),
+                    "inserted", String.valueOf(rows.get("shard1").containsKey(10L) && rows.get("shard2").containsKey(10L))));
+        });
+
+        RebalanceReport report = new ShardRebalancer(resolver, registry, properties).rebalance(AccountUser.class,
+                new TagShardRouter(properties(Map.of("eu", "shard0", "us", "shard2"))));
+
+        Assertions.assertEquals(Map.of("shard1", "updated", "shard2", "updated", "inserted", "true"), seen.get());
+        // the mirrored writes leave nothing to copy again
+        Assertions.assertEquals(0, report.getRangesCopiedAgain());
+        Assertions.assertEquals(Set.of(1L, 2L, 3L, 4L, 5L, 10L), rows.get("shard2").keySet());
+        Assertions.assertEquals("updated", rows.get("shard2").get(1L).getUserName());
+        Assertions.assertTrue(rows.get("shard1").isEmpty());
+
+        // once routed, the writes go to the new shard only
+        AccountUser user = account(11L, "us");
+        service.save(user);
+        Assertions.assertTrue(rows.get("shard2").containsKey(11L));
+        Assertions.assertFalse(rows.get("shard1").containsKey(11L));
+    }
+
+    private SessionFactoryImplementor sessionFactory(String shard) {
+        SessionFactoryImplementor factory = Mockito.mock(SessionFactoryImplementor.class);
+        EntityType<?> entityType = Mockito.mock(EntityType.class);
+        Mockito.when(entityType.getName()).thenReturn("AccountUser");
+        Mockito.doReturn(AccountUser.class).when(entityType).getJavaType();
+        JpaMetamodelImplementor jpaMetamodel = Mockito.mock(JpaMetamodelImplementor.class);
+        Mockito.doReturn(Set.of(entityType)).when(jpaMetamodel).getEntities();
+        Mockito.when(factory.getJpaMetamodel()).thenReturn(jpaMetamodel);
+        MappingMetamodelImplementor mappingMetamodel = Mockito.mock(MappingMetamodelImplementor.class);
+        EntityPersister persister = persister();
+        Mockito.when(mappingMetamodel.getEntityDescriptor(AccountUser.class)).thenReturn(persister);
+        Mockito.when(factory.getMappingMetamodel()).thenReturn(mappingMetamodel);
+        Mockito.when(factory.unwrap(SessionFactoryImplementor.class)).thenReturn(factory);
+
+        SessionImplementor session = session(shard);
+        Mockito.when(session.getSessionFactory()).thenReturn(factory);
+        Mockito.when(factory.openSession()).thenReturn(session);
+        sessions.put(shard, session);
+        StatelessSession statelessSession = statelessSession(shard);
+        Mockito.when(factory.openStatelessSession()).thenReturn(statelessSession);
+        return factory;
+    }
+
+    private static EntityPersister persister() {
+        EntityPersister persister = Mockito.mock(EntityPersister.class);
+        Mockito.when(persister.getPropertyValues(Mockito.any())).thenAnswer(invocation -> {
+            AccountUser user = invocation.getArgument(0);
+            return new Object[]{user.getAccountId(), user.getUserName(), user.getRegion()};
+        });
+        Type type = Mockito.mock(Type.class);
+        Mockito.when(persister.getPropertyTypes()).thenReturn(new Type[]{type, type, type});
+        return persister;
+    }
+
+    @SuppressWarnings("unchecked")
+    private SessionImplementor session(String shard) {
+        SessionImplementor session = Mockito.mock(SessionImplementor.class);
+        Mockito.when(session.beginTransaction()).thenReturn(Mockito.mock(Transaction.class));
+        Mockito.doAnswer(invocation -> {
+            store(shard, invocation.getArgument(0));
+            return null;
+        }).when(session).persist(Mockito.any());
+        Mockito.when(session.merge(Mockito.any(Object.class))).thenAnswer(invocation -> {
+            store(shard, invocation.getArgument(0));
+            return invocation.getArgument(0);
+        });
+        Mockito.doAnswer(invocation -> selectQuery(shard, invocation.getArgument(0)))
+                .when(session).createQuery(Mockito.anyString(), Mockito.any(Class.class));
+        Mockito.when(session.createMutationQuery(Mockito.anyString())).thenAnswer(invocation -> deleteQuery(shard));
+        return session;
+    }
+
+    private StatelessSession statelessSession(String shard) {
+        StatelessSession session = Mockito.mock(StatelessSession.class);
+        Mockito.when(session.beginTransaction()).thenReturn(Mockito.mock(Transaction.class));
+        Mockito.doAnswer(invocation -> {
+            AccountUser copy = copy(invocation.getArgument(0));
+            if (staleShards.contains(shard)) {
+                copy.setUserName("stale");
+            }
+            rows.get(shard).put(copy.getId(), copy);
+            operations.add("copy " + shard);
+            Runnable hook = afterUpsert.remove(shard);
+            if (hook != null) {
+                hook.run();
+            }
+            return null;
+        }).when(session).upsert(Mockito.any(Object.class));
+        return session;
+    }
+
+    /**
+     * @return a query reading a keyset page of the shard, or its rows of the identifiers
+     */
+    @SuppressWarnings("unchecked")
+    private Query<Object> selectQuery(String shard, String hql) {
+        Query<Object> query = Mockito.mock(Query.class, Mockito.RETURNS_SELF);
+        Map<String, Object> params = new ConcurrentHashMap<>();
+        Mockito.when(query.setParameter(Mockito.anyString(), Mockito.any())).thenAnswer(invocation -> {
+            params.put(invocation.getArgument(0), invocation.getArgument(1));
+            return query;
+        });
+        Mockito.when(query.setParameterList(Mockito.anyString(), Mockito.anyCollection())).thenAnswer(invocation -> {
+            params.put(invocation.getArgument(0), invocation.getArgument(1));
+            return query;
+        });
+        Mockito.when(query.getResultList()).thenAnswer(invocation -> {
+            if (hql.contains(":last")) {
+                return rows.get(shard).tailMap((Long) params.get("last"), false).values().stream()
+                        .limit(BATCH_SIZE)
+                        .toList();
+            }
+            Runnable hook = beforeReadByIds.remove(shard);
+            if (hook != null) {
+                hook.run();
+            }
+            operations.add("checksum " + shard);
+            List<AccountUser> result = new ArrayList<>();
+            for (Object id : (Collection<Object>) params.get("ids")) {
+                AccountUser row = rows.get(shard).get((Long) id);
+                if (row != null) {
+                    result.add(row);
+                }
+            }
+            return result;
+        });
+        return query;
+    }
+
+    @SuppressWarnings("unchecked")
+    private MutationQuery deleteQuery(String shard) {
+        MutationQuery query = Mockito.mock(MutationQuery.class, Mockito.RETURNS_SELF);
+        AtomicReference<Collection<Object>> ids = new AtomicReference<>();
+        Mockito.when(query.setParameterList(Mockito.anyString(), Mockito.anyCollection())).thenAnswer(invocation -> {
+            ids.set(invocation.getArgument(1));
+            return query;
+        });
+        Mockito.when(query.executeUpdate()).thenAnswer(invocation -> {
+            // the moved rows are deleted once the group is routed to their new shard
+            Assertions.assertTrue(registry.getMigrationRouterForTable("AccountUser").isEmpty());
+            operations.add("delete " + shard);
+            int deleted = 0;
+            for (Object id : ids.get()) {
+                if (rows.get(shard).remove((Long) id) != null) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        });
+        return query;
+    }
+
+    private void store(String shard, AccountUser user) {
+        rows.get(shard).put(user.getId(), copy(user));
+    }
+
+    private Map<Long, String> userNames(String shard) {
+        Map<Long, String> names = new TreeMap<>();
+        for (AccountUser user : rows.get(shard).values()) {
+            names.put(user.getId(), user.getUserName());
+        }
+        return names;
+    }
+
+    private static AccountUser copy(AccountUser user) {
+        AccountUser copy = new AccountUser();
+        BeanUtils.copyProperties(user, copy);
+        return copy;
+    }
+
+    private static AccountUser account(Long id, String region) {
+        AccountUser account = new AccountUser();
+        account.setId(id);
+        account.setAccountId("ACC-" + id);
+        account.setUserName("user-" + id);
+        account.setRegion(region);
+        return account;
+    }
+
+    private static ShardingProperties properties(Map<String, String> tags) {
+        ShardingProperties properties = new ShardingProperties();
+        properties.setDatasources(Map.of("shard0", new DataSourceProperties(), "shard1", new DataSourceProperties(),
+                "shard2", new DataSourceProperties()));
+        properties.setStrategy("tag");
+        properties.setShardKeys(Map.of("AccountUser", "region"));
+        properties.getTag().setTags(tags);
+        return properties;
+    }
+}
@@ -0,0 +1,88 @@
+package com.hql.fabric.sharding.replica;
+
+import com.hql.fabric.sharding.context.UnitOfWork;
+import com.hql.fabric.sharding.executor.ShardQueryExecutor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+public class ReplicaSelectorTest {
+
+    @Test
+    public void testTheReplicaRunningTheFewestReadsIsSelected() {
+        Replica first = new Replica("r0", "shard0", null);
+        Replica second = new Replica("r1", "shard0", null);
+        ReplicaSelector selector = selector(Map.of("shard0", List.of(first, second)),
+                Map.of("r0", 0L, "r1", 0L));
+        selector.refreshLag();
+
+        Replica a = selector.select("shard0").orElseThrow();
+        Replica b = selector.select("shard0").orElseThrow();
+        Assertions.assertNotSame(a, b);
+        Assertions.assertEquals(1, first.getOutstanding());
+        Assertions.assertEquals(1, second.getOutstanding());
+
+        // the replica released first takes the next read
+        b.release();
+        Assertions.assertSame(b, selector.select("shard0").orElseThrow());
+        Assertions.assertTrue(selector.select("shard1").isEmpty());
+    }
+
+    @Test
+    public void testLaggingAndUnmeasuredReplicasAreSkipped() {
+        Replica late = new Replica("late", "shard0", null);
+        Replica down = new Replica("down", "shard0", null);
+        Replica fresh = new Replica("fresh", "shard0", null);
+        ReplicaSelector selector = selector(Map.of("shard0", List.of(late, down, fresh)),
+                Map.of("late", 60_000L, "fresh", 10L));
+        Assertions.assertEquals(Long.MAX_VALUE, fresh.getLagMillis());
+        Assertions.assertTrue(selector.select("shard0").isEmpty());
+
+        selector.refreshLag();
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertSame(fresh, selector.select("shard0").orElseThrow());
+        }
+        // the probe of "down" fails
+        Assertions.assertEquals(Long.MAX_VALUE, down.getLagMillis());
+    }
+
+    @Test
+    public void testReadsFollowTheWritesOfTheUnitOfWork() {
+        Replica replica = new Replica("r0", "shard0", null);
+        ReplicaSelector selector = selector(Map.of("shard0", List.of(replica)), Map.of("r0", 0L));
+        selector.refreshLag();
+        ShardQueryExecutor executor = new ShardQueryExecutor(2, 16, 5_000);
+        try (UnitOfWork unit = UnitOfWork.begin()) {
+            Assertions.assertTrue(selector.select("shard0").isPresent());
+            // written on a shard thread, read on the others
+            executor.scatter(List.of("shard0", "shard1"), shard -> {
+                UnitOfWork.markWritten(shard);
+                return shard;
+            });
+            Map<String, Optional<Replica>> reads = executor.scatter(List.of("shard0", "shard1"), selector::select);
+            Assertions.assertTrue(reads.get("shard0").isEmpty());
+            try (UnitOfWork nested = UnitOfWork.begin()) {
+                Assertions.assertTrue(selector.select("shard0").isEmpty());
+            }
+        } finally {
+            executor.destroy();
+        }
+        Assertions.assertNull(UnitOfWork.current());
+        Assertions.assertTrue(selector.select("shard0").isPresent());
+    }
+
+    private static ReplicaSelector selector(Map<String, List<Replica>> replicas, Map<String, Long> lags) {
+        ReplicaSelector selector = new ReplicaSelector(replicas, 1_000, 0, replica -> {
+            Long lag = lags.get(replica.getName());
+            if (Objects.isNull(lag)) {
+                throw new IllegalStateException("connection refused");
+            }
+            return lag;
+        });
+        return selector;
+    }
+}
@@ -0,0 +1,115 @@
+package com.hql.fabric.sharding.resolver;
+
+import com.hql.fabric.domain.reconciliation.AccountUser;
+import com.hql.fabric.domain.reconciliation.TransactionFlowCore;
+import com.hql.fabric.persistence.query.builder.HqlQueryBuilder;
+import com.hql.fabric.persistence.query.builder.HqlQueryRequest;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import com.hql.fabric.sharding.router.DefaultHashShardRouter;
+import com.hql.fabric.sharding.router.TimeShardRouter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+public class ShardPrunerTest {
+    private final ShardPruner pruner = new ShardPruner();
+    private final DefaultHashShardRouter router = new DefaultHashShardRouter(properties());
+
+    @Test
+    public void testEqualityOnShardKeyGoesToOneShard() {
+        HqlQueryRequest request = HqlQueryRequest.from(new HqlQueryBuilder()
+                .fromAs(AccountUser.class, "t")
+                .eq("t.accountId", "ACC-1")
+                .and()
+                .eq("t.region", "eu"));
+
+        Optional<Set<String>> shards = pruner.prune(request, "AccountUser", router);
+        Assertions.assertEquals(Optional.of(Set.of(router.routeShardByKey("AccountUser", "ACC-1"))), shards);
+    }
+
+    @Test
+    public void testInGoesToTheShardsOfItsValues() {
+        HqlQueryRequest request = HqlQueryRequest.from(new HqlQueryBuilder()
+                .fromAs(AccountUser.class, "t")
+                .in("t.accountId", "ACC-1", "ACC-2", "ACC-3", "ACC-4"));
+
+        Set<String> expected = new HashSet<>();
+        for (String accountId : new String[]{"ACC-1", "ACC-2", "ACC-3", "ACC-4"}) {
+            expected.add(router.routeShardByKey("AccountUser", accountId));
+        }
+        Assertions.assertEquals(Optional.of(expected), pruner.prune(request, "AccountUser", router));
+    }
+
+    @Test
+    public void testOtherPredicatesFanOut() {
+        HqlQueryRequest or = HqlQueryRequest.from(new HqlQueryBuilder()
+                .fromAs(AccountUser.class, "t")
+                .eq("t.accountId", "ACC-1")
+                .or()
+                .eq("t.region", "eu"));
+        Assertions.assertTrue(pruner.prune(or, "AccountUser", router).isEmpty());
+
+        HqlQueryRequest negated = HqlQueryRequest.from(new HqlQueryBuilder()
+                .fromAs(AccountUser.class, "t")
+                .not()
+                .eq("t.accountId", "ACC-1"));
+        Assertions.assertTrue(pruner.prune(negated, "AccountUser", router).isEmpty());
+
+        HqlQueryRequest otherField = HqlQueryRequest.from(new HqlQueryBuilder()
+                .fromAs(AccountUser.class, "t")
+                .like("t.accountId", "ACC-%"));
+        Assertions.assertTrue(pruner.prune(otherField, "AccountUser", router).isEmpty());
+    }
+
+    @Test
+    public void testNestedOrDoesNotPreventPruning() {
+        HqlQueryRequest request = HqlQueryRequest.from(new HqlQueryBuilder()
+                .fromAs(AccountUser.class, "t")
+                .eq("t.accountId", "ACC-1")
+                .and()
+                .open()
+                .eq("t.region", "eu")
+                .or()
+                .eq("t.region", "us")
+                .close());
+        Assertions.assertEquals(1, pruner.prune(request, "AccountUser", router).orElseThrow().size());
+    }
+
+    @Test
+    public void testTimeWindowGoesToTheShardsCoveringIt() {
+        ShardingProperties properties = properties();
+        properties.getTime().setLowerBounds(Map.of("shard0", "2023-01-01",
+                "shard1", "2024-01-01", "shard2", "2025-01-01"));
+        properties.setShardKeys(Map.of("TransactionFlowCore", "txnTime"));
+        TimeShardRouter timeRouter = new TimeShardRouter(properties);
+
+        HqlQueryRequest window = HqlQueryRequest.from(new HqlQueryBuilder()
+                .fromAs(TransactionFlowCore.class, "t")
+                .ge("t.txnTime", Date.from(Instant.parse("2024-03-01T00:00:00Z")))
+                .and()
+                .lt("t.txnTime", Date.from(Instant.parse("2024-04-01T00:00:00Z"))));
+        Assertions.assertEquals(Optional.of(Set.of("shard1")),
+                pruner.prune(window, "TransactionFlowCore", timeRouter));
+
+        HqlQueryRequest since = HqlQueryRequest.from(new HqlQueryBuilder()
+                .fromAs(TransactionFlowCore.class, "t")
+                .gt("t.txnTime", Date.from(Instant.parse("2024-12-01T00:00:00Z"))));
+        Assertions.assertEquals(Optional.of(Set.of("shard1", "shard2")),
+                pruner.prune(since, "TransactionFlowCore", timeRouter));
+    }
+
+    private static ShardingProperties properties() {
+        ShardingProperties properties = new ShardingProperties();
+        properties.setDatasources(Map.of("shard0", new DataSourceProperties(),
+                "shard1", new DataSourceProperties(), "shard2", new DataSourceProperties()));
+        properties.setShardKeys(Map.of("AccountUser", "accountId"));
+        return properties;
+    }
+}
@@ -0,0 +1,85 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.domain.reconciliation.ReconciliationBatch;
+import com.hql.fabric.domain.reconciliation.ReconciliationException;
+import com.hql.fabric.domain.reconciliation.ReconciliationResult;
+import com.hql.fabric.persistence.entity.NamedArtifact;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import com.hql.fabric.sharding.context.ShardRoutingContext;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+import java.util.List;
+import java.util.Map;
+
+public class ColocationShardRouterTest {
+    private static final List<String> TABLES =
+            List.of("ReconciliationBatch", "ReconciliationResult", "ReconciliationException");
+    private static final Map<String, Colocation> COLOCATIONS = Map.of(
+            "ReconciliationResult", new Colocation("batch", "ReconciliationBatch"),
+            "ReconciliationException", new Colocation("result", "ReconciliationResult"));
+
+    private final DefaultHashShardRouter hashRouter = new DefaultHashShardRouter(properties());
+
+    @Test
+    public void testEntityGroupIsRoutedByTheShardKeyOfItsRoot() {
+        RouterRegistry registry = new RouterRegistry(List.of(hashRouter));
+        registry.register(TABLES, COLOCATIONS);
+
+        TableAwareShardRouter<?> results = registry.getRouterForTable("ReconciliationResult").orElseThrow();
+        TableAwareShardRouter<?> exceptions = registry.getRouterForTable("ReconciliationException").orElseThrow();
+        Assertions.assertSame(hashRouter, registry.getRouterForTable("ReconciliationBatch").orElseThrow());
+        Assertions.assertEquals("batch.id", results.getShardKey("ReconciliationResult"));
+        Assertions.assertEquals("result.batch.id", exceptions.getShardKey("ReconciliationException"));
+
+        for (long batchId = 1; batchId <= 100; batchId++) {
+            String shard = hashRouter.routeShardByKey("ReconciliationBatch", batchId);
+            Assertions.assertEquals(shard, results.routeShardByKey("ReconciliationResult", batchId));
+            Assertions.assertEquals(shard, exceptions.routeShardByKey("ReconciliationException", batchId));
+        }
+    }
+
+    @Test
+    public void testBoundEntityOfTheGroupRoutesEveryTableOfTheGroup() {
+        RouterRegistry registry = new RouterRegistry(List.of(hashRouter));
+        registry.register(TABLES, COLOCATIONS);
+        TableAwareShardRouter<?> exceptions = registry.getRouterForTable("ReconciliationException").orElseThrow();
+
+        ReconciliationBatch batch = new ReconciliationBatch();
+        batch.setId(42L);
+        ReconciliationResult result = new ReconciliationResult();
+        result.setBatch(batch);
+        ReconciliationException exception = new ReconciliationException();
+        exception.setResult(result);
+        String shard = hashRouter.routeShardByKey("ReconciliationBatch", 42L);
+
+        for (NamedArtifact entity : List.<NamedArtifact>of(batch, result, exception)) {
+            try (ShardRoutingContext.Scope scope = ShardRoutingContext.ofEntity(entity).open()) {
+                Assertions.assertEquals(shard, exceptions.routeShard("ReconciliationException"));
+            }
+        }
+        // a parent not set leaves the shard undetermined
+        try (ShardRoutingContext.Scope scope = ShardRoutingContext.ofEntity(new ReconciliationException()).open()) {
+            Assertions.assertNull(exceptions.routeShard("ReconciliationException"));
+        }
+        Assertions.assertSame(result, ((ColocationShardRouter) exceptions).getParent(exception));
+    }
+
+    @Test
+    public void testColocationCycleIsRejected() {
+        RouterRegistry registry = new RouterRegistry(List.of(hashRouter));
+        Map<String, Colocation> cycle = Map.of(
+                "ReconciliationBatch", new Colocation("result", "ReconciliationResult"),
+                "ReconciliationResult", new Colocation("batch", "ReconciliationBatch"));
+
+        Assertions.assertThrows(IllegalStateException.class, () -> registry.register(TABLES, cycle));
+    }
+
+    private static ShardingProperties properties() {
+        ShardingProperties properties = new ShardingProperties();
+        properties.setDatasources(Map.of("shard0", new DataSourceProperties(),
+                "shard1", new DataSourceProperties(), "shard2", new DataSourceProperties()));
+        return properties;
+    }
+}
@@ -0,0 +1,58 @@
+package com.hql.fabric.sharding.router;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class ConsistentHashRingTest {
+    private static final int KEYS = 100_000;
+
+    @Test
+    public void testGrowingFromThreeToFourShardsMovesAQuarterOfTheKeys() {
+        ConsistentHashRing three = new ConsistentHashRing(
+                Map.of("shard0", 1, "shard1", 1, "shard2", 1), 160);
+        ConsistentHashRing four = new ConsistentHashRing(
+                Map.of("shard0", 1, "shard1", 1, "shard2", 1, "shard3", 1), 160);
+
+        int moved = 0;
+        for (long id = 0; id < KEYS; id++) {
+            String before = three.route(id);
+            String after = four.route(id);
+            if (!before.equals(after)) {
+                moved++;
+                // keys only move to the new shard
+                Assertions.assertEquals("shard3", after);
+            }
+        }
+        double movedRatio = moved / (double) KEYS;
+        Assertions.assertTrue(movedRatio > 0.20 && movedRatio < 0.30, "moved " + movedRatio);
+    }
+
+    @Test
+    public void testWeightsAndBalance() {
+        ConsistentHashRing ring = new ConsistentHashRing(
+                Map.of("shard0", 1, "shard1", 1, "shard2", 2), 160);
+        Map<String, Integer> counts = new HashMap<>();
+        for (long id = 0; id < KEYS; id++) {
+            counts.merge(ring.route(id), 1, Integer::sum);
+        }
+        Assertions.assertEquals(0.25, counts.get("shard0") / (double) KEYS, 0.05);
+        Assertions.assertEquals(0.25, counts.get("shard1") / (double) KEYS, 0.05);
+        Assertions.assertEquals(0.50, counts.get("shard2") / (double) KEYS, 0.05);
+        Assertions.assertEquals(160 * 4, ring.size());
+    }
+
+    @Test
+    public void testRoutingIsStableAndAcceptsNegativeKeys() {
+        ConsistentHashRing ring = new ConsistentHashRing(Map.of("shard0", 1, "shard1", 1), 16);
+        ConsistentHashRing same = new ConsistentHashRing(new HashMap<>(Map.of("shard1", 1, "shard0", 1)), 16);
+        for (long id = -1_000; id < 1_000; id++) {
+            Assertions.assertEquals(ring.route(id), same.route(id));
+        }
+        Assertions.assertEquals(ring.route("ACC-42"), same.route("ACC-42"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new ConsistentHashRing(Map.of("shard0", 0), 16));
+    }
+}
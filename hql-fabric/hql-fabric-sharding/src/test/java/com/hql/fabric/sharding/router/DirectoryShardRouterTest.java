@@ -0,0 +1,103 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DirectoryShardRouterTest {
+    private final InMemoryDirectory directory = new InMemoryDirectory();
+    private final ShardingProperties properties = new ShardingProperties();
+
+    @BeforeEach
+    public void setUp() {
+        properties.setDatasources(Map.of("shard0", new DataSourceProperties(),
+                "shard1", new DataSourceProperties(), "shard2", new DataSourceProperties()));
+        properties.getDirectory().setTables(List.of("AccountUser"));
+        for (long key = 0; key < 10_000; key++) {
+            directory.entries.put("AccountUser|" + key, "shard" + (key * 7 % 3));
+        }
+        directory.entries.put("AccountUser|LEGACY-42", "shard2");
+    }
+
+    @Test
+    public void testPreloadedKeysAreRoutedWithoutLookup() {
+        DirectoryShardRouter router = new DirectoryShardRouter(properties, directory);
+
+        Assertions.assertEquals(10_001, router.getCachedKeys());
+        for (long key = 0; key < 10_000; key++) {
+            Assertions.assertEquals("shard" + (key * 7 % 3), router.routeShardByKey("AccountUser", key));
+        }
+        // integral strings are the same keys
+        Assertions.assertEquals("shard1", router.routeShardByKey("AccountUser", "1"));
+        Assertions.assertEquals("shard2", router.routeShardByKey("AccountUser", "LEGACY-42"));
+        Assertions.assertEquals(0, directory.lookups.get());
+
+        Assertions.assertTrue(router.supportsTable("AccountUser"));
+        Assertions.assertFalse(router.supportsTable("TransactionFlowCore"));
+    }
+
+    @Test
+    public void testMissingKeysAreLookedUpOnceAndAssignedKeysUpdated() {
+        properties.getDirectory().setPreload(false);
+        DirectoryShardRouter router = new DirectoryShardRouter(properties, directory);
+
+        Assertions.assertEquals("shard1", router.routeShardByKey("AccountUser", 1L));
+        Assertions.assertEquals("shard1", router.routeShardByKey("AccountUser", 1));
+        Assertions.assertEquals(1, directory.lookups.get());
+        // keys missing from the directory are not routed, and looked up again
+        Assertions.assertNull(router.routeShardByKey("AccountUser", 20_000L));
+        Assertions.assertNull(router.routeShardByKey("AccountUser", 20_000L));
+        Assertions.assertEquals(3, directory.lookups.get());
+
+        router.assign("AccountUser", 20_000L, "shard0");
+        router.assign("AccountUser", 1L, "shard2");
+        Assertions.assertEquals("shard0", router.routeShardByKey("AccountUser", 20_000L));
+        Assertions.assertEquals("shard2", router.routeShardByKey("AccountUser", "1"));
+        Assertions.assertEquals(3, directory.lookups.get());
+        Assertions.assertEquals("shard2", directory.entries.get("AccountUser|1"));
+    }
+
+    @Test
+    public void testDirectoryRouterPrecedesTheStrategyRouter() {
+        DirectoryShardRouter directoryRouter = new DirectoryShardRouter(properties, directory);
+        RouterRegistry registry = new RouterRegistry(List.of(directoryRouter, new DefaultHashShardRouter(properties)));
+        registry.register(List.of("AccountUser", "TransactionFlowCore"));
+
+        Assertions.assertSame(directoryRouter, registry.getRouterForTable("AccountUser").orElseThrow());
+        Assertions.assertNotSame(directoryRouter, registry.getRouterForTable("TransactionFlowCore").orElseThrow());
+    }
+
+    private static final class InMemoryDirectory implements ShardDirectory {
+        private final Map<String, String> entries = new ConcurrentHashMap<>();
+        private final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public void forEach(Collection<String> tableNames, EntryConsumer consumer) {
+            entries.forEach((entry, shard) -> {
+                String[] parts = entry.split("\\|");
+                if (tableNames.contains(parts[0])) {
+                    consumer.accept(parts[0], parts[1], shard);
+                }
+            });
+        }
+
+        @Override
+        public String lookup(String tableName, String key) {
+            lookups.incrementAndGet();
+            return entries.get(tableName + "|" + key);
+        }
+
+        @Override
+        public void assign(String tableName, String key, String shard) {
+            entries.put(tableName + "|" + key, shard);
+        }
+    }
+}
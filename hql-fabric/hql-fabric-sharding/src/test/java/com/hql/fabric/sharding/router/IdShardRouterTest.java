@@ -0,0 +1,32 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.persistence.id.SnowflakeIdGenerator;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+import java.util.Map;
+
+public class IdShardRouterTest {
+
+    @Test
+    public void testIdentifiersRouteToTheShardWhichAllocatedThem() {
+        ShardingProperties properties = new ShardingProperties();
+        properties.setDatasources(Map.of("shard0", new DataSourceProperties(),
+                "shard1", new DataSourceProperties(), "shard2", new DataSourceProperties()));
+        IdShardRouter router = new IdShardRouter(properties);
+
+        for (int shard = 0; shard < 3; shard++) {
+            SnowflakeIdGenerator generator = new SnowflakeIdGenerator(7, shard);
+            for (int i = 0; i < 100; i++) {
+                long id = generator.nextId();
+                Assertions.assertEquals("shard" + shard, router.routeShardByKey("AccountUser", id));
+                // ids taken from query strings as well
+                Assertions.assertEquals("shard" + shard, router.routeShardByKey("AccountUser", Long.toString(id)));
+            }
+        }
+        Assertions.assertNull(router.routeShardByKey("AccountUser", "not-an-id"));
+        Assertions.assertNull(router.routeShardByKey("AccountUser", new SnowflakeIdGenerator(0, 5).nextId()));
+    }
+}
@@ -0,0 +1,39 @@
+package com.hql.fabric.sharding.router;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class IntervalIndexTest {
+    private final IntervalIndex index = new IntervalIndex(
+            Map.of("shard0", 0L, "shard1", 1_000L, "shard2", 2_000L));
+
+    @Test
+    public void testPointsRouteToTheFloorInterval() {
+        Assertions.assertEquals("shard0", index.route(0));
+        Assertions.assertEquals("shard0", index.route(999));
+        Assertions.assertEquals("shard1", index.route(1_000));
+        Assertions.assertEquals("shard2", index.route(Long.MAX_VALUE));
+        // below the lowest bound
+        Assertions.assertEquals("shard0", index.route(-5));
+    }
+
+    @Test
+    public void testRangesRouteToTheCoveringIntervals() {
+        Assertions.assertEquals(List.of("shard1"), List.copyOf(index.routeRange(1_200L, 1_800L)));
+        Assertions.assertEquals(List.of("shard0", "shard1"), List.copyOf(index.routeRange(500L, 1_000L)));
+        Assertions.assertEquals(List.of("shard1", "shard2"), List.copyOf(index.routeRange(1_500L, null)));
+        Assertions.assertEquals(List.of("shard0"), List.copyOf(index.routeRange(null, -10L)));
+        Assertions.assertEquals(List.of("shard0", "shard1", "shard2"), List.copyOf(index.routeRange(null, null)));
+        Assertions.assertTrue(index.routeRange(10L, 5L).isEmpty());
+    }
+
+    @Test
+    public void testSharedBoundsAreRejected() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new IntervalIndex(Map.of("shard0", 0L, "shard1", 0L)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new IntervalIndex(Map.of()));
+    }
+}
@@ -0,0 +1,101 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RouterRegistryTest {
+
+    @Test
+    public void testRegisteredTablesAreResolvedOnce() {
+        AtomicInteger lookups = new AtomicInteger();
+        TableAwareShardRouter<?> accounts = router("AccountUser", lookups);
+        TableAwareShardRouter<?> batches = router("ReconciliationBatch", lookups);
+        RouterRegistry registry = new RouterRegistry(List.of(accounts, batches));
+        registry.register(List.of("AccountUser", "ReconciliationBatch", "ProductConfig"));
+        int resolved = lookups.get();
+
+        for (int i = 0; i < 1_000; i++) {
+            Assertions.assertSame(accounts, registry.getRouterForTable("AccountUser").orElseThrow());
+            Assertions.assertSame(batches, registry.getRouterForTable("ReconciliationBatch").orElseThrow());
+            Assertions.assertTrue(registry.getRouterForTable("ProductConfig").isEmpty());
+        }
+        Assertions.assertEquals(resolved, lookups.get());
+        // the lookups of a registered table return the same instance
+        Assertions.assertSame(registry.getRouterForTable("AccountUser"), registry.getRouterForTable("AccountUser"));
+    }
+
+    @Test
+    public void testUnregisteredTablesFallBackToTheRouters() {
+        AtomicInteger lookups = new AtomicInteger();
+        TableAwareShardRouter<?> accounts = router("AccountUser", lookups);
+        RouterRegistry registry = new RouterRegistry(List.of(accounts));
+
+        Assertions.assertSame(accounts, registry.getRouterForTable("AccountUser").orElseThrow());
+        Assertions.assertTrue(registry.getRouterForTable("Unknown").isEmpty());
+        Assertions.assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testCompletedMigrationRoutesTheEntityGroupWithTheTargetRouter() {
+        ShardingProperties properties = new ShardingProperties();
+        properties.setDatasources(Map.of("shard0", new DataSourceProperties(), "shard1", new DataSourceProperties(),
+                "shard2", new DataSourceProperties(), "shard3", new DataSourceProperties()));
+        properties.getRebalance().setStandbyShards(List.of("shard3"));
+        DefaultHashShardRouter current = new DefaultHashShardRouter(properties);
+        DefaultHashShardRouter target = new DefaultHashShardRouter(properties.withStandbyShardsPromoted());
+        RouterRegistry registry = new RouterRegistry(List.of(current));
+        registry.register(List.of("ReconciliationBatch", "ReconciliationResult", "AccountUser"),
+                Map.of("ReconciliationResult", new Colocation("batch", "ReconciliationBatch")));
+
+        Assertions.assertEquals(List.of("shard0", "shard1", "shard2"), properties.getShardNames());
+        Assertions.assertEquals(List.of("ReconciliationBatch", "ReconciliationResult"),
+                registry.getEntityGroup("ReconciliationBatch"));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> registry.beginMigration("ReconciliationResult", target));
+
+        registry.beginMigration("ReconciliationBatch", target);
+        Assertions.assertThrows(IllegalStateException.class, () -> registry.beginMigration("ReconciliationBatch", target));
+        Assertions.assertSame(current, registry.getRouterForTable("ReconciliationBatch").orElseThrow());
+        Assertions.assertSame(target, registry.getMigrationRouterForTable("ReconciliationBatch").orElseThrow());
+        Assertions.assertTrue(registry.getMigrationRouterForTable("AccountUser").isEmpty());
+        // the rows of 3 of the keys move to shard3, along with their children
+        Assertions.assertEquals("shard3", registry.getMigrationRouterForTable("ReconciliationResult").orElseThrow()
+                .routeShardByKey("ReconciliationResult", 3L));
+        Assertions.assertEquals("shard0", registry.getRouterForTable("ReconciliationResult").orElseThrow()
+                .routeShardByKey("ReconciliationResult", 3L));
+
+        registry.completeMigration("ReconciliationBatch");
+        Assertions.assertSame(target, registry.getRouterForTable("ReconciliationBatch").orElseThrow());
+        Assertions.assertEquals("shard3", registry.getRouterForTable("ReconciliationResult").orElseThrow()
+                .routeShardByKey("ReconciliationResult", 3L));
+        Assertions.assertSame(current, registry.getRouterForTable("AccountUser").orElseThrow());
+        Assertions.assertTrue(registry.getMigrationRouterForTable("ReconciliationResult").isEmpty());
+
+        // an aborted migration keeps the routing
+        registry.beginMigration("AccountUser", target);
+        registry.abortMigration("AccountUser");
+        Assertions.assertSame(current, registry.getRouterForTable("AccountUser").orElseThrow());
+        Assertions.assertTrue(registry.getMigrationRouterForTable("AccountUser").isEmpty());
+    }
+
+    private static TableAwareShardRouter<Object> router(String table, AtomicInteger lookups) {
+        return new TableAwareShardRouter<>() {
+            @Override
+            public boolean supportsTable(String tableName) {
+                lookups.incrementAndGet();
+                return table.equals(tableName);
+            }
+
+            @Override
+            public String routeShard(String tableName) {
+                return "shard0";
+            }
+        };
+    }
+}
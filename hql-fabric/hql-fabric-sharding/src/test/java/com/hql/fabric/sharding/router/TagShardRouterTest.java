@@ -0,0 +1,118 @@
+package com.hql.fabric.sharding.router;
+
+import com.hql.fabric.domain.reconciliation.AccountUser;
+import com.hql.fabric.domain.reconciliation.TransactionFlowCore;
+import com.hql.fabric.sharding.config.ShardingProperties;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class TagShardRouterTest {
+
+    @Test
+    public void testTagsFallBackToOtherTagsThenToTheDefaultShard() {
+        TagShardRouter router = new TagShardRouter(properties());
+
+        Assertions.assertEquals("shard0", router.routeShardByKey("AccountUser", "EU"));
+        Assertions.assertEquals("shard1", router.routeShardByKey("AccountUser", "us"));
+        // uk -> eu
+        Assertions.assertEquals("shard0", router.routeShardByKey("AccountUser", "uk"));
+        Assertions.assertEquals("shard1", router.routeShardByKey("AccountUser", "latam"));
+        Assertions.assertEquals("shard1", router.routeEntity("AccountUser", account("ACC-1", null)));
+        Assertions.assertEquals(Set.of("shard1"), router.routeShardsByKey("AccountUser", "latam"));
+    }
+
+    @Test
+    public void testOverflowingTagIsSpreadOverItsShardsAndTransactionsFollowTheirAccount() {
+        ShardingProperties properties = properties();
+        properties.getTag().setOverflow(Map.of("ap", List.of("shard3")));
+        TagShardRouter router = new TagShardRouter(properties);
+        RouterRegistry registry = new RouterRegistry(List.of(router));
+        registry.register(List.of("AccountUser", "TransactionFlowCore"),
+                Map.of("TransactionFlowCore", new Colocation("accountUser", "AccountUser")));
+        TableAwareShardRouter<?> transactions = registry.getRouterForTable("TransactionFlowCore").orElseThrow();
+
+        Set<String> shards = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            AccountUser account = account("ACC-" + i, "AP");
+            String shard = router.routeEntity("AccountUser", account);
+            shards.add(shard);
+            Assertions.assertEquals(shard, router.routeEntity("AccountUser", account("ACC-" + i, "ap")));
+
+            TransactionFlowCore transaction = new TransactionFlowCore();
+            transaction.setAccountUser(account);
+            Assertions.assertEquals(shard, transactions.routeEntity("TransactionFlowCore", transaction));
+        }
+        Assertions.assertEquals(Set.of("shard2", "shard3"), shards);
+        // the region alone does not determine the shard, but prunes to the shards of the region
+        Assertions.assertNull(router.routeShardByKey("AccountUser", "ap"));
+        Assertions.assertEquals(Set.of("shard2", "shard3"), router.routeShardsByKey("AccountUser", "ap"));
+        Assertions.assertEquals(Set.of("shard2", "shard3"), transactions.routeShardsByKey("TransactionFlowCore", "ap"));
+        Assertions.assertEquals("accountUser.region", transactions.getShardKey("TransactionFlowCore"));
+        // a transaction without account cannot be placed
+        Assertions.assertNull(transactions.routeEntity("TransactionFlowCore", new TransactionFlowCore()));
+    }
+
+    @Test
+    public void testInvalidTagsAreRejected() {
+        ShardingProperties unknownShard = properties();
+        unknownShard.getTag().setOverflow(Map.of("eu", List.of("shard9")));
+        Assertions.assertThrows(IllegalStateException.class, () -> new TagShardRouter(unknownShard));
+
+        ShardingProperties cycle = properties();
+        cycle.getTag().setFallbacks(Map.of("uk", "ie", "ie", "uk"));
+        Assertions.assertThrows(IllegalStateException.class, () -> new TagShardRouter(cycle));
+
+        ShardingProperties noSpreadKey = properties();
+        noSpreadKey.getTag().setOverflow(Map.of("ap", List.of("shard3")));
+        noSpreadKey.getTag().setSpreadKey(null);
+        Assertions.assertThrows(IllegalStateException.class, () -> new TagShardRouter(noSpreadKey));
+    }
+
+    @Test
+    public void testOverflowingRowsStayAmongTheShardsOfTheirTag() {
+        ShardingProperties properties = properties();
+        properties.getTag().setOverflow(Map.of("ap", List.of("shard3")));
+        TagShardRouter router = new TagShardRouter(properties);
+        // an unset spread key is rejected instead of leaving the row to any shard
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> router.routeEntity("AccountUser", account(null, "ap")));
+        // a tag with a single shard needs no spread key
+        Assertions.assertEquals("shard0", router.routeEntity("AccountUser", account(null, "eu")));
+
+        properties.getTag().setSpreadKey("id");
+        TagShardRouter byId = new TagShardRouter(properties);
+        AccountUser account = account(null, "ap");
+        // the writer allocates the identifier first, then routes on it
+        Assertions.assertNull(byId.routeEntity("AccountUser", account));
+        for (long id = 1; id <= 20; id++) {
+            account.setId(id);
+            Assertions.assertTrue(Set.of("shard2", "shard3").contains(byId.routeEntity("AccountUser", account)));
+        }
+    }
+
+    private static AccountUser account(String accountId, String region) {
+        AccountUser account = new AccountUser();
+        account.setAccountId(accountId);
+        account.setRegion(region);
+        return account;
+    }
+
+    private static ShardingProperties properties() {
+        ShardingProperties properties = new ShardingProperties();
+        properties.setDatasources(Map.of("shard0", new DataSourceProperties(), "shard1", new DataSourceProperties(),
+                "shard2", new DataSourceProperties(), "shard3", new DataSourceProperties()));
+        properties.setStrategy("tag");
+        properties.setShardKeys(Map.of("AccountUser", "region"));
+        properties.getTag().setTags(Map.of("eu", "shard0", "us", "shard1", "ap", "shard2"));
+        properties.getTag().setFallbacks(Map.of("uk", "eu"));
+        properties.getTag().setDefaultShard("shard1");
+        properties.getTag().setSpreadKey("accountId");
+        return properties;
+    }
+}
@@ -0,0 +1,386 @@
+package com.hql.fabric.sharding.service;
+
+import com.hql.fabric.domain.reconciliation.AccountUser;
+import com.hql.fabric.domain.reconciliation.ProductConfig;
+import com.hql.fabric.domain.reconciliation.TransactionFlowCore;
+import com.hql.fabric.persistence.entity.BaseEntity;
+import com.hql.fabric.persistence.id.IdGenerator;
+import com.hql.fabric.persistence.model.TotalCount;
+import com.hql.fabric.persistence.query.builder.HqlQueryBuilder;
+import com.hql.fabric.persistence.query.builder.HqlQueryRequest;
+import com.hql.fabric.sharding.executor.ShardQueryExecutor;
+import com.hql.fabric.sharding.index.GlobalSecondaryIndex;
+import com.hql.fabric.sharding.resolver.ShardedSessionResolver;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.query.MutationQuery;
+import org.hibernate.query.Query;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+public class ShardingHqlQueryServiceTest {
+    private final ShardQueryExecutor executor = new ShardQueryExecutor(3, 16, 5_000);
+    private final ShardedSessionResolver resolver = Mockito.mock(ShardedSessionResolver.class);
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final Map<String, Transaction> transactions = new HashMap<>();
+    private final Map<String, StatelessSession> statelessSessions = new HashMap<>();
+    private ShardingHqlQueryService service;
+
+    @BeforeEach
+    public void setUp() {
+        Mockito.when(resolver.getShardNames()).thenReturn(List.of("shard0", "shard1", "shard2"));
+        Mockito.when(resolver.getWriteShardNames()).thenReturn(List.of("shard0", "shard1", "shard2"));
+        for (String shard : List.of("shard0", "shard1", "shard2")) {
+            Session session = Mockito.mock(Session.class);
+            Transaction trx = Mockito.mock(Transaction.class);
+            Mockito.when(session.beginTransaction()).thenReturn(trx);
+            Mockito.when(session.merge(Mockito.any(Object.class))).thenAnswer(invocation -> invocation.getArgument(0));
+            Mockito.when(resolver.openSession(shard)).thenReturn(session);
+            sessions.put(shard, session);
+            transactions.put(shard, trx);
+
+            StatelessSession statelessSession = Mockito.mock(StatelessSession.class);
+            Mockito.when(statelessSession.beginTransaction()).thenReturn(Mockito.mock(Transaction.class));
+            Mockito.when(resolver.openStatelessSession(shard)).thenReturn(statelessSession);
+            statelessSessions.put(shard, statelessSession);
+        }
+        Mockito.when(resolver.isBroadcast(ProductConfig.class)).thenReturn(true);
+        AtomicLong ids = new AtomicLong(100);
+        // each shard embeds its index into its identifiers, like the generators of the shards
+        Mockito.when(resolver.generateId(Mockito.anyString(), Mockito.any())).thenAnswer(invocation ->
+                IdGenerator.compose(ids.incrementAndGet(), Integer.parseInt(((String) invocation.getArgument(0)).substring(5))));
+        Mockito.when(resolver.resolveShard(Mockito.any(AccountUser.class))).thenAnswer(invocation -> {
+            AccountUser user = invocation.getArgument(0);
+            return Optional.ofNullable(user.getRegion());
+        });
+        service = new ShardingHqlQueryService(resolver, executor, 2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.destroy();
+    }
+
+    @Test
+    public void testItemsAreGroupedByShardAndBatched() {
+        List<AccountUser> users = List.of(user("shard0"), user("shard1"), user("shard0"),
+                user("shard0"), user("shard2"));
+        ShardedWriteResult<AccountUser> result = service.saveAllByShard(users);
+
+        Assertions.assertTrue(result.isSuccessful());
+        Assertions.assertEquals(Map.of("shard0", 3, "shard1", 1, "shard2", 1), result.getCounts());
+        Assertions.assertEquals(5, result.getWrittenCount());
+        // one session and one transaction per shard
+        Mockito.verify(resolver, Mockito.times(1)).openSession("shard0");
+        Mockito.verify(sessions.get("shard0"), Mockito.times(3)).persist(Mockito.any());
+        Mockito.verify(sessions.get("shard0")).setJdbcBatchSize(2);
+        Mockito.verify(sessions.get("shard0"), Mockito.times(1)).flush();
+        Mockito.verify(transactions.get("shard0")).commit();
+        Mockito.verify(transactions.get("shard2")).commit();
+    }
+
+    @Test
+    public void testAShardFailureOnlyRollsBackItsOwnItems() {
+        Mockito.doThrow(new HibernateException("constraint violation"))
+                .when(sessions.get("shard1")).merge(Mockito.any());
+        List<AccountUser> users = List.of(user("shard0"), user("shard1"), user("shard2"));
+
+        ShardedWriteResult<AccountUser> result = service.mergeAllByShard(users);
+        Assertions.assertFalse(result.isSuccessful());
+        Assertions.assertEquals(Map.of("shard0", 1, "shard1", 0, "shard2", 1), result.getCounts());
+        Assertions.assertEquals("constraint violation", result.getFailures().get("shard1").getMessage());
+        Assertions.assertEquals(List.of(users.get(0), users.get(2)), result.getItems());
+        Mockito.verify(transactions.get("shard1")).rollback();
+        Mockito.verify(transactions.get("shard0")).commit();
+
+        HibernateException e = Assertions.assertThrows(HibernateException.class, () -> service.mergeAll(users));
+        Assertions.assertEquals(1, e.getSuppressed().length);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testUnroutedItemsAreRoutedOnTheirNewIdAndFoundByIt() {
+        // routes on the region if set, else on the shard bits of the identifier
+        Mockito.when(resolver.resolveShard(Mockito.any(AccountUser.class))).thenAnswer(invocation -> {
+            AccountUser user = invocation.getArgument(0);
+            return Optional.ofNullable(user.getRegion())
+                    .or(() -> Optional.ofNullable(user.getId()).map(ShardingHqlQueryServiceTest::shardOf));
+        });
+        Mockito.when(resolver.resolveShards(Mockito.eq(AccountUser.class), Mockito.eq("id"), Mockito.any()))
+                .thenAnswer(invocation -> List.of(shardOf(invocation.getArgument(2))));
+        Mockito.doReturn(Long.class).when(resolver).getIdentifierType(AccountUser.class);
+        Map<String, List<AccountUser>> stored = new ConcurrentHashMap<>();
+        for (Map.Entry<String, Session> shard : sessions.entrySet()) {
+            Mockito.doAnswer(invocation -> stored.computeIfAbsent(shard.getKey(), name -> new ArrayList<>())
+                    .add(invocation.getArgument(0))).when(shard.getValue()).persist(Mockito.any());
+            Query<Object> query = Mockito.mock(Query.class);
+            AtomicReference<Object> boundId = new AtomicReference<>();
+            Mockito.when(query.setParameter(Mockito.eq(0), Mockito.any())).thenAnswer(invocation -> {
+                boundId.set(invocation.getArgument(1));
+                return query;
+            });
+            Mockito.when(query.list()).thenAnswer(invocation -> stored.getOrDefault(shard.getKey(), List.of()).stream()
+                    .filter(user -> user.getId().equals(boundId.get()))
+                    .toList());
+            Mockito.when(shard.getValue().createQuery(Mockito.anyString())).thenReturn(query);
+        }
+
+        List<AccountUser> users = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            users.add(user(null));
+        }
+        ShardedWriteResult<AccountUser> result = service.saveAllByShard(users);
+        Assertions.assertTrue(result.isSuccessful());
+        // the new identifiers are spread over the shards and their rows land where they point
+        Assertions.assertEquals(Map.of("shard0", 2, "shard1", 2, "shard2", 2), result.getCounts());
+        for (AccountUser user : users) {
+            Assertions.assertNotNull(user.getId());
+            Assertions.assertTrue(stored.get(shardOf(user.getId())).contains(user));
+            Assertions.assertSame(user, service.findObjectById(AccountUser.class, user.getId().toString(), null));
+        }
+        // a transaction without account cannot be routed, even with an identifier
+        Assertions.assertThrows(HibernateException.class,
+                () -> service.saveAllByShard(List.of(new TransactionFlowCore())));
+    }
+
+    @Test
+    public void testBroadcastItemsAreWrittenToEveryShardWithTheSameId() {
+        ProductConfig product = new ProductConfig();
+        product.setProductCode("P-1");
+        List<BaseEntity> items = List.of(user("shard1"), product);
+
+        ShardedWriteResult<BaseEntity> result = service.saveAllByShard(items);
+        Assertions.assertTrue(result.isSuccessful());
+        Assertions.assertEquals(Map.of("shard0", 1, "shard1", 2, "shard2", 1), result.getCounts());
+        Assertions.assertEquals(IdGenerator.compose(101, 0), product.getId());
+        for (StatelessSession session : statelessSessions.values()) {
+            ArgumentCaptor<Object> written = ArgumentCaptor.forClass(Object.class);
+            Mockito.verify(session).upsert(written.capture());
+            // a copy per shard, with the identifier of the row
+            Assertions.assertNotSame(product, written.getValue());
+            Assertions.assertEquals(IdGenerator.compose(101, 0), ((ProductConfig) written.getValue()).getId());
+            Assertions.assertEquals("P-1", ((ProductConfig) written.getValue()).getProductCode());
+        }
+        Mockito.verify(sessions.get("shard0"), Mockito.never()).persist(Mockito.any());
+        Mockito.verify(sessions.get("shard1")).persist(items.get(0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testIndexedLookupsReadTheShardsOfTheValue() {
+        GlobalSecondaryIndex index = Mockito.mock(GlobalSecondaryIndex.class);
+        Mockito.when(index.isIndexed(TransactionFlowCore.class, "name")).thenReturn(true);
+        Mockito.when(index.lookup(TransactionFlowCore.class, "name", "txn-1")).thenReturn(Set.of("shard1"));
+        Mockito.when(index.lookup(TransactionFlowCore.class, "name", "txn-2")).thenReturn(Set.of("shard0"));
+        service.setGlobalIndex(index);
+        TransactionFlowCore transaction = new TransactionFlowCore();
+        for (Map.Entry<String, Session> shard : sessions.entrySet()) {
+            Query<Object> query = Mockito.mock(Query.class);
+            Mockito.when(query.list()).thenReturn(shard.getKey().equals("shard1") ? List.of(transaction) : List.of());
+            Mockito.when(shard.getValue().createQuery(Mockito.anyString())).thenReturn(query);
+        }
+
+        Assertions.assertSame(transaction, service.findObjectByName(TransactionFlowCore.class, "txn-1"));
+        Mockito.verify(sessions.get("shard0"), Mockito.never()).createQuery(Mockito.anyString());
+        Mockito.verify(sessions.get("shard2"), Mockito.never()).createQuery(Mockito.anyString());
+
+        // a stale entry falls back to every shard
+        Assertions.assertSame(transaction, service.findObjectByName(TransactionFlowCore.class, "txn-2"));
+        Mockito.verify(sessions.get("shard0"), Mockito.times(2)).createQuery(Mockito.anyString());
+        Mockito.verify(sessions.get("shard2")).createQuery(Mockito.anyString());
+    }
+
+    @Test
+    public void testWrittenItemsAreIndexed() {
+        GlobalSecondaryIndex index = Mockito.mock(GlobalSecondaryIndex.class);
+        service.setGlobalIndex(index);
+        Mockito.doThrow(new HibernateException("shard1 is down")).when(sessions.get("shard1")).persist(Mockito.any());
+        List<AccountUser> users = List.of(user("shard0"), user("shard1"));
+
+        service.saveAllByShard(users);
+        Mockito.verify(index).index("shard0", List.of(users.get(0)));
+        Mockito.verify(index, Mockito.never()).index(Mockito.eq("shard1"), Mockito.any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFetchPagesMergeTheIdsOfEveryShard() {
+        Mockito.when(resolver.resolveShards(Mockito.any(HqlQueryRequest.class)))
+                .thenReturn(List.of("shard0", "shard1", "shard2"));
+        Map<String, List<Object>> idRows = Map.of(
+                "shard0", List.of(new Object[]{1L, "a"}, new Object[]{4L, "d"}),
+                "shard1", List.of(new Object[]{2L, "b"}, new Object[]{5L, "e"}),
+                "shard2", List.of((Object) new Object[]{3L, "c"}));
+        Map<String, Query<Object>> fetchQueries = new HashMap<>();
+        for (Map.Entry<String, Session> shard : sessions.entrySet()) {
+            Query<Object> idQuery = Mockito.mock(Query.class);
+            Mockito.when(idQuery.list()).thenReturn(idRows.get(shard.getKey()));
+            Mockito.when(shard.getValue().createQuery(Mockito.startsWith("SELECT a.id"))).thenReturn(idQuery);
+            Query<Object> fetchQuery = Mockito.mock(Query.class);
+            Mockito.when(fetchQuery.list()).thenAnswer(invocation -> {
+                List<Object> fetched = new ArrayList<>();
+                for (Object row : idRows.get(shard.getKey())) {
+                    fetched.add(user(shard.getKey(), (Long) ((Object[]) row)[0]));
+                }
+                return fetched;
+            });
+            Mockito.when(shard.getValue().createQuery(Mockito.startsWith("SELECT a FROM"))).thenReturn(fetchQuery);
+            fetchQueries.put(shard.getKey(), fetchQuery);
+        }
+        HqlQueryBuilder builder = new HqlQueryBuilder().fromAs(AccountUser.class, "a")
+                .leftJoinFetch("a.transactions", "t")
+                .orderBy("a.accountId", true);
+
+        List<AccountUser> page = service.pagedFetchQuery(builder, 1, 3);
+        Assertions.assertEquals(List.of(2L, 3L, 4L), page.stream().map(BaseEntity::getId).toList());
+        // each shard loads the entities of its own identifiers in the page
+        Mockito.verify(fetchQueries.get("shard0")).setParameterList(HqlQueryBuilder.ROOT_IDS_PARAMETER, List.of(4L));
+        Mockito.verify(fetchQueries.get("shard1")).setParameterList(HqlQueryBuilder.ROOT_IDS_PARAMETER, List.of(2L));
+        Mockito.verify(fetchQueries.get("shard2")).setParameterList(HqlQueryBuilder.ROOT_IDS_PARAMETER, List.of(3L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDistinctCountsMergeTheSketchesOfTheShards() {
+        int shardIndex = 0;
+        for (String shard : List.of("shard0", "shard1", "shard2")) {
+            // 1000 values per shard, overlapping by half with the next shard
+            int first = shardIndex++ * 500;
+            Query<Object> query = Mockito.mock(Query.class);
+            Mockito.when(query.stream()).thenAnswer(invocation ->
+                    IntStream.range(first, first + 1000).mapToObj(i -> (Object) ("txn-" + i)));
+            Mockito.when(sessions.get(shard).createQuery(Mockito.anyString())).thenReturn(query);
+        }
+
+        long distinct = service.approximateDistinctCount("select name from TransactionFlowCore", Map.of());
+        Assertions.assertEquals(2000, distinct, 2000 * 0.05);
+    }
+
+    @Test
+    public void testApproximateCountsSumTheShards() {
+        for (Session session : sessions.values()) {
+            Mockito.when(session.doReturningWork(Mockito.any()))
+                    .thenReturn(List.of((Object) new Object[]{"[{\"Plan\": {\"Plan Rows\": 400}}]"}))
+                    .thenThrow(new HibernateException("no planner"))
+                    .thenReturn(List.of((Object) new Object[]{5L}));
+        }
+        String sql = "select * from transaction_flow_core";
+
+        // 3 x 400 rows estimated, above the cutoff
+        TotalCount estimated = service.approximateCount(sql, 1000);
+        Assertions.assertFalse(estimated.isExact());
+        Assertions.assertEquals(1000, estimated.getTotal());
+        // no estimate, each shard counts its rows
+        TotalCount counted = service.approximateCount(sql, 1000);
+        Assertions.assertTrue(counted.isExact());
+        Assertions.assertEquals(15, counted.getTotal());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testObjectsAreFoundByTypedIdOnTheirShardAndNamesSkipDeletedRows() {
+        Mockito.doReturn(Long.class).when(resolver).getIdentifierType(AccountUser.class);
+        Mockito.when(resolver.resolveShards(AccountUser.class, "id", 42L)).thenReturn(List.of("shard2"));
+        Mockito.when(resolver.hasAttribute(AccountUser.class, "deleted")).thenReturn(true);
+        AccountUser user = user("shard2", 42L);
+        Map<String, Query<Object>> queries = new HashMap<>();
+        for (Map.Entry<String, Session> shard : sessions.entrySet()) {
+            Query<Object> query = Mockito.mock(Query.class);
+            Mockito.when(query.list()).thenReturn(shard.getKey().equals("shard2") ? List.of(user) : List.of());
+            Mockito.when(shard.getValue().createQuery(Mockito.anyString())).thenReturn(query);
+            queries.put(shard.getKey(), query);
+        }
+
+        Assertions.assertSame(user, service.findObjectById(AccountUser.class, "42", null));
+        Mockito.verify(queries.get("shard2")).setParameter(0, 42L);
+        Mockito.verify(sessions.get("shard0"), Mockito.never()).createQuery(Mockito.anyString());
+        // not an identifier of the entity
+        Assertions.assertNull(service.findObjectById(AccountUser.class, "ACC-1", null));
+
+        Assertions.assertSame(user, service.findObjectByName(AccountUser.class, "acc"));
+        Mockito.verify(sessions.get("shard0")).createQuery("from " + AccountUser.class.getName()
+                + " where lower(name) = lower(?0) and deleted is null");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSingleItemsAreWrittenAndDeletedOnTheirShard() {
+        AccountUser saved = service.save(user("shard1"));
+        Mockito.verify(sessions.get("shard1")).persist(saved);
+        Mockito.verify(transactions.get("shard1")).commit();
+
+        AccountUser stored = user("shard1", 7L);
+        Mockito.when(sessions.get("shard1").get(AccountUser.class, 7L)).thenReturn(stored);
+        service.delete(user("shard1", 7L));
+        Mockito.verify(sessions.get("shard1")).remove(stored);
+        Mockito.verify(sessions.get("shard0"), Mockito.never()).get(Mockito.eq(AccountUser.class), Mockito.any());
+        // a row whose shard is unknown is looked up on every shard
+        service.delete(user(null, 8L));
+        for (Session session : sessions.values()) {
+            Mockito.verify(session).get(AccountUser.class, 8L);
+        }
+
+        String hql = "from AccountUser where accountId = :accountId";
+        Mockito.when(resolver.resolveShard(hql)).thenReturn(Optional.empty());
+        for (Session session : sessions.values()) {
+            Query<Object> query = Mockito.mock(Query.class);
+            Mockito.when(session.createQuery(hql)).thenReturn(query);
+        }
+        AccountUser created = user("shard2");
+        Assertions.assertSame(created, service.findOrSave(hql, Map.of("accountId", "ACC-1"), created));
+        Mockito.verify(sessions.get("shard2")).persist(created);
+    }
+
+    @Test
+    public void testUpdatesRunOnTheirShardsAndSumTheirCounts() {
+        String hql = "update AccountUser set region = :region where userType = 1";
+        Mockito.when(resolver.resolveWriteShards(hql)).thenReturn(List.of("shard0", "shard1"));
+        for (Session session : sessions.values()) {
+            MutationQuery query = Mockito.mock(MutationQuery.class);
+            Mockito.when(query.executeUpdate()).thenReturn(2);
+            Mockito.when(session.createMutationQuery(hql)).thenReturn(query);
+            Mockito.when(session.doReturningWork(Mockito.any())).thenReturn(3);
+        }
+
+        Assertions.assertEquals(4, service.executeQuery(hql, Map.of("region", "eu")));
+        Mockito.verify(transactions.get("shard0")).commit();
+        Mockito.verify(transactions.get("shard1")).commit();
+        Mockito.verify(sessions.get("shard2"), Mockito.never()).createMutationQuery(Mockito.anyString());
+        // SQL is not routed
+        Assertions.assertEquals(9, service.sqlUpdate("update account_user set region = ?", "eu"));
+    }
+
+    private static String shardOf(Object id) {
+        return "shard" + IdGenerator.shardOf((Long) id);
+    }
+
+    private static AccountUser user(String shard, Long id) {
+        AccountUser user = user(shard);
+        user.setId(id);
+        return user;
+    }
+
+    private static AccountUser user(String shard) {
+        AccountUser user = new AccountUser();
+        // the mocked resolver routes on the region
+        user.setRegion(shard);
+        return user;
+    }
+}